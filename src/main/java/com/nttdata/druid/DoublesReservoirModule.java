@@ -22,12 +22,24 @@ import com.fasterxml.jackson.databind.Module;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.inject.Binder;
+import com.google.inject.multibindings.Multibinder;
 import com.nttdata.druid.aggregation.percentiles.aggregator.*;
+import com.nttdata.druid.aggregation.percentiles.expression.DoublesReservoirExprMacros;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogram;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogramComplexMetricSerde;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogramJsonSerializer;
+import com.nttdata.druid.aggregation.percentiles.metrics.DoublesReservoirMonitor;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
 import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirComplexMetricSerde;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirJsonDeserializer;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirJsonSerializer;
 import com.nttdata.druid.aggregation.percentiles.sql.*;
+import org.apache.druid.guice.ExpressionModule;
 import org.apache.druid.initialization.DruidModule;
 import org.apache.druid.segment.column.ColumnType;
 import org.apache.druid.segment.serde.ComplexMetrics;
+import org.apache.druid.server.initialization.jetty.ServletFilterHolder;
+import org.apache.druid.server.metrics.MetricsModule;
 import org.apache.druid.sql.guice.SqlBindings;
 
 import java.util.Collections;
@@ -36,14 +48,23 @@ import java.util.List;
 public class DoublesReservoirModule implements DruidModule {
     public static final String TYPE_NAME = "doublesReservoir";
     public static final ColumnType TYPE = ColumnType.ofComplex(TYPE_NAME);
+    public static final String LOG_HISTOGRAM_TYPE_NAME = "doublesLogHistogram";
+    public static final ColumnType LOG_HISTOGRAM_TYPE = ColumnType.ofComplex(LOG_HISTOGRAM_TYPE_NAME);
 
     @Override
     public void configure(Binder binder) {
         registerSerde();
+        MetricsModule.register(binder, DoublesReservoirMonitor.class);
+        Multibinder.newSetBinder(binder, ServletFilterHolder.class)
+                .addBinding()
+                .to(DoublesReservoirBudgetFilterHolder.class);
+
         SqlBindings.addAggregator(binder, DoublesReservoirObjectSqlAggregator.class);
+        SqlBindings.addAggregator(binder, DoublesReservoirRankErrorSqlAggregator.class);
 
         SqlBindings.addOperatorConversion(binder, DoublesReservoirPercentileOperatorConversion.class);
         SqlBindings.addOperatorConversion(binder, DoublesReservoirPercentilesOperatorConversion.class);
+        SqlBindings.addOperatorConversion(binder, DoublesReservoirPercentileCIOperatorConversion.class);
 
         SqlBindings.addOperatorConversion(binder, DoublesReservoirStddevOperatorConversion.class);
 
@@ -51,23 +72,59 @@ public class DoublesReservoirModule implements DruidModule {
 
         SqlBindings.addOperatorConversion(binder, DoublesReservoirMINOperatorConversion.class);
         SqlBindings.addOperatorConversion(binder, DoublesReservoirMAXOperatorConversion.class);
+
+        SqlBindings.addOperatorConversion(binder, DoublesReservoirRankOperatorConversion.class);
+        SqlBindings.addOperatorConversion(binder, DoublesReservoirCDFOperatorConversion.class);
+        SqlBindings.addOperatorConversion(binder, DoublesReservoirHistogramOperatorConversion.class);
+        SqlBindings.addOperatorConversion(binder, DoublesReservoirHistogramBinsOperatorConversion.class);
+
+        SqlBindings.addOperatorConversion(binder, DoublesReservoirTrimmedMeanOperatorConversion.class);
+        SqlBindings.addOperatorConversion(binder, DoublesReservoirIQROperatorConversion.class);
+        SqlBindings.addOperatorConversion(binder, DoublesReservoirMADOperatorConversion.class);
+
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.PercentileExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.PercentilesExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.PercentileCIExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.StddevExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.AVGExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.MINExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.MAXExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.RankExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.CDFExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.HistogramExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.HistogramBinsExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.TrimmedMeanExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.IQRExprMacro.class);
+        ExpressionModule.addExprMacro(binder, DoublesReservoirExprMacros.MADExprMacro.class);
     }
 
     @Override
     public List<? extends Module> getJacksonModules() {
         return Collections.singletonList(new SimpleModule(getClass().getSimpleName())
                 .registerSubtypes(DoublesReservoirAggregatorFactory.class)
+                .registerSubtypes(DoublesLogHistogramAggregatorFactory.class)
                 .registerSubtypes(DoublesReservoirToPercentilePostAggregator.class)
                 .registerSubtypes(DoublesReservoirToPercentilesPostAggregator.class)
+                .registerSubtypes(DoublesReservoirToPercentileCIPostAggregator.class)
                 .registerSubtypes(DoublesReservoirToStddevPostAggregator.class)
                 .registerSubtypes(DoublesReservoirToAVGPostAggregator.class)
                 .registerSubtypes(DoublesReservoirToMAXPostAggregator.class)
                 .registerSubtypes(DoublesReservoirToMINPostAggregator.class)
+                .registerSubtypes(DoublesReservoirToRankPostAggregator.class)
+                .registerSubtypes(DoublesReservoirToCDFPostAggregator.class)
+                .registerSubtypes(DoublesReservoirToHistogramPostAggregator.class)
+                .registerSubtypes(DoublesReservoirToTrimmedMeanPostAggregator.class)
+                .registerSubtypes(DoublesReservoirToIQRPostAggregator.class)
+                .registerSubtypes(DoublesReservoirToMADPostAggregator.class)
+                .addSerializer(DoublesReservoir.class, new DoublesReservoirJsonSerializer())
+                .addDeserializer(DoublesReservoir.class, new DoublesReservoirJsonDeserializer())
+                .addSerializer(DoublesLogHistogram.class, new DoublesLogHistogramJsonSerializer())
         );
     }
 
     @VisibleForTesting
     public static void registerSerde() {
         ComplexMetrics.registerSerde(TYPE_NAME, new DoublesReservoirComplexMetricSerde());
+        ComplexMetrics.registerSerde(LOG_HISTOGRAM_TYPE_NAME, new DoublesLogHistogramComplexMetricSerde());
     }
 }
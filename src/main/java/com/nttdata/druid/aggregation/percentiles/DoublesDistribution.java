@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogram;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.druid.java.util.common.IAE;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Summary of a stream of doubles that percentiles and statistics can be read from, whichever aggregator built it,
+ * so the {@code doublesReservoirTo*} post-aggregators and the {@code DR_GET_*} functions work on all of them.
+ */
+public interface DoublesDistribution {
+    double getPercentile(double fraction);
+
+    double[] getPercentile(double[] fractions);
+
+    /**
+     * Confidence interval of a percentile, as its lower bound, the percentile itself and its upper bound. The bounds
+     * cover the percentile of all the items seen with the given confidence, e.g. 0.95, and are the percentile itself
+     * when it is known exactly.
+     */
+    double[] getPercentileConfidenceInterval(double fraction, double confidence);
+
+    double getStddev();
+
+    double getAVG();
+
+    double getMin();
+
+    double getMax();
+
+    long getTotalItemsSeen();
+
+    /**
+     * Mean of the items between two fractions of the sorted items, e.g. 0.05 and 0.95 to leave out 5% of the items
+     * at each end.
+     */
+    double getTrimmedMean(double lowerFraction, double upperFraction);
+
+    /**
+     * Interquartile range, the spread of the middle half of the items.
+     */
+    @JsonIgnore
+    default double getIQR() {
+        return getPercentile(0.75) - getPercentile(0.25);
+    }
+
+    /**
+     * Median of the absolute deviations of the items from their median.
+     */
+    @JsonIgnore
+    double getMedianAbsoluteDeviation();
+
+    /**
+     * Fraction of the items seen that are less than or equal to {@code value}, or NaN when there are none.
+     */
+    double getRank(double value);
+
+    /**
+     * Cumulative distribution at the given split points, which must be strictly increasing: the rank of each split
+     * point, followed by 1 for all the items. Empty distributions give NaN for all of them.
+     */
+    default double[] getCDF(double[] splitPoints) {
+        checkSplitPoints(splitPoints);
+
+        final double[] cdf = new double[splitPoints.length + 1];
+
+        for (int index = 0; index < splitPoints.length; ++index) {
+            cdf[index] = getRank(splitPoints[index]);
+        }
+
+        cdf[splitPoints.length] = getTotalItemsSeen() == 0 ? Double.NaN : 1.0;
+        return cdf;
+    }
+
+    /**
+     * What the counts of a histogram add up to: the items seen, or 1 when the items do not weigh the same, in which
+     * case histograms hold the fraction of the total weight in each bin.
+     */
+    @JsonIgnore
+    default double getHistogramTotal() {
+        return getTotalItemsSeen();
+    }
+
+    /**
+     * Number of items falling in each of the bins the given split points delimit, which must be strictly increasing:
+     * the items up to the first split point, then those above each split point up to the next one, and last those
+     * above the last split point. For a sample, the counts are scaled to {@link #getHistogramTotal()}.
+     */
+    default double[] getHistogram(double[] splitPoints) {
+        final double[] cdf = getCDF(splitPoints);
+        final double total = getHistogramTotal();
+        double previous = 0;
+
+        for (int index = 0; index < cdf.length; ++index) {
+            final double rank = cdf[index];
+            cdf[index] = (rank - previous) * total;
+            previous = rank;
+        }
+
+        return cdf;
+    }
+
+    /**
+     * Number of items falling in each of {@code numBins} bins of equal width between the minimum and the maximum.
+     */
+    default double[] getHistogram(int numBins) {
+        if (numBins < 1) {
+            throw new IAE("Number of bins must be positive, got [%s]", numBins);
+        }
+
+        final long totalItemsSeen = getTotalItemsSeen();
+        final double min = getMin();
+        final double max = getMax();
+
+        if (totalItemsSeen == 0 || !(max > min)) {
+            // Nothing to split: all the items are in the first bin
+            final double[] histogram = new double[numBins];
+
+            if (totalItemsSeen == 0) {
+                Arrays.fill(histogram, Double.NaN);
+            } else {
+                histogram[0] = getHistogramTotal();
+            }
+
+            return histogram;
+        }
+
+        final double[] splitPoints = new double[numBins - 1];
+
+        for (int index = 0; index < splitPoints.length; ++index) {
+            splitPoints[index] = min + (max - min) * (index + 1) / numBins;
+        }
+
+        return getHistogram(splitPoints);
+    }
+
+    static void checkSplitPoints(double[] splitPoints) {
+        for (int index = 0; index < splitPoints.length; ++index) {
+            if (Double.isNaN(splitPoints[index]) || (index > 0 && splitPoints[index] <= splitPoints[index - 1])) {
+                throw new IAE("Split points must be strictly increasing numbers: %s", Arrays.toString(splitPoints));
+            }
+        }
+    }
+
+    /**
+     * Reads a distribution in any of the forms a reservoir or a histogram can take in query results: the object
+     * itself, its binary form as raw bytes or base64, or the JSON object form of a reservoir.
+     */
+    @Nullable
+    static DoublesDistribution deserialize(@Nullable Object data) {
+        if (data instanceof DoublesDistribution) {
+            return (DoublesDistribution) data;
+        }
+
+        if (data instanceof byte[] && DoublesLogHistogram.isSerialized((byte[]) data)) {
+            return DoublesLogHistogram.fromBytes(ByteBuffer.wrap((byte[]) data));
+        }
+
+        if (data instanceof String && !StringUtils.isEmpty((String) data) && ((String) data).charAt(0) != '{') {
+            final byte[] bytes = Base64.getDecoder().decode((String) data);
+            return deserialize(bytes);
+        }
+
+        return DoublesReservoir.deserialize(data);
+    }
+}
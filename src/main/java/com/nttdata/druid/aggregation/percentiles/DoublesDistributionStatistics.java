@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles;
+
+import org.apache.commons.math3.special.Erf;
+import org.apache.druid.java.util.common.IAE;
+
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Robust statistics read from the sorted view of a distribution, as a number of ascending values, each standing for
+ * some weight of the items: 1 for the samples of a reservoir, the counts in value-count mode or in a histogram, and
+ * the decayed weights in forward-decay mode. Both walk the values in place, so they add no sort or copy.
+ */
+public class DoublesDistributionStatistics {
+    private DoublesDistributionStatistics() {
+        throw new AssertionError("No DoublesDistributionStatistics instances for you!");
+    }
+
+    /**
+     * Mean of the items between two fractions of the sorted items, counting in part the items straddling them.
+     */
+    public static double trimmedMean(
+            IntToDoubleFunction values,
+            IntToDoubleFunction weights,
+            int size,
+            double totalWeight,
+            double lowerFraction,
+            double upperFraction) {
+        checkTrimFractions(lowerFraction, upperFraction);
+
+        if (size == 0 || !(totalWeight > 0)) {
+            return Double.NaN;
+        }
+
+        final double from = lowerFraction * totalWeight;
+        final double to = upperFraction * totalWeight;
+        double cumulative = 0;
+        double sum = 0;
+        double kept = 0;
+
+        for (int index = 0; index < size && cumulative < to; ++index) {
+            final double weight = weights.applyAsDouble(index);
+            final double overlap = Math.min(cumulative + weight, to) - Math.max(cumulative, from);
+
+            if (overlap > 0) {
+                sum += overlap * values.applyAsDouble(index);
+                kept += overlap;
+            }
+
+            cumulative += weight;
+        }
+
+        return kept > 0 ? sum / kept : Double.NaN;
+    }
+
+    /**
+     * Median of the absolute deviations from {@code median}. The deviations are walked in ascending order from the
+     * median outwards, taking the closer of the values below and above it each time, until half the weight is seen.
+     */
+    public static double medianAbsoluteDeviation(
+            IntToDoubleFunction values, IntToDoubleFunction weights, int size, double totalWeight, double median) {
+        if (size == 0 || !(totalWeight > 0) || Double.isNaN(median)) {
+            return Double.NaN;
+        }
+
+        // First value not below the median
+        int low = 0;
+        int high = size;
+
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+
+            if (values.applyAsDouble(middle) < median) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        int above = low;
+        int below = low - 1;
+        final double half = totalWeight / 2;
+        double cumulative = 0;
+        double deviation = Double.NaN;
+
+        while (below >= 0 || above < size) {
+            final int index = closer(values, below, above, size, median);
+            deviation = Math.abs(values.applyAsDouble(index) - median);
+            cumulative += weights.applyAsDouble(index);
+
+            if (index == below) {
+                --below;
+            } else {
+                ++above;
+            }
+
+            if (cumulative > half) {
+                return deviation;
+            }
+
+            if (cumulative == half && (below >= 0 || above < size)) {
+                // Even split: halfway to the next deviation, like the median of an even number of items
+                final double next = Math.abs(values.applyAsDouble(closer(values, below, above, size, median)) - median);
+                return (deviation + next) / 2;
+            }
+        }
+
+        return deviation;
+    }
+
+    private static int closer(IntToDoubleFunction values, int below, int above, int size, double median) {
+        if (above >= size) {
+            return below;
+        }
+
+        if (below < 0) {
+            return above;
+        }
+
+        return median - values.applyAsDouble(below) <= values.applyAsDouble(above) - median ? below : above;
+    }
+
+    /**
+     * Number of standard deviations either side of the mean of a normal distribution holding the given share of it,
+     * e.g. 1.96 for 0.95.
+     */
+    public static double normalQuantile(double confidence) {
+        checkConfidence(confidence);
+        return Math.sqrt(2) * Erf.erfInv(confidence);
+    }
+
+    public static void checkConfidence(double confidence) {
+        if (!(confidence > 0 && confidence < 1)) {
+            throw new IAE("Confidence must be > 0 and < 1, got [%s]", confidence);
+        }
+    }
+
+    public static void checkTrimFractions(double lowerFraction, double upperFraction) {
+        if (!(lowerFraction >= 0 && lowerFraction < upperFraction && upperFraction <= 1)) {
+            throw new IAE(
+                    "Trim fractions must satisfy 0 <= lower < upper <= 1, got [%s] and [%s]",
+                    lowerFraction,
+                    upperFraction);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogram;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogramLayout;
+import org.apache.commons.lang.StringUtils;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.query.aggregation.*;
+import org.apache.druid.query.cache.CacheKeyBuilder;
+import org.apache.druid.segment.ColumnInspector;
+import org.apache.druid.segment.ColumnSelectorFactory;
+import org.apache.druid.segment.ColumnValueSelector;
+import org.apache.druid.segment.column.ColumnCapabilities;
+import org.apache.druid.segment.column.ColumnType;
+import org.apache.druid.segment.vector.VectorColumnSelectorFactory;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+import static com.nttdata.druid.DoublesReservoirModule.LOG_HISTOGRAM_TYPE;
+import static com.nttdata.druid.DoublesReservoirModule.LOG_HISTOGRAM_TYPE_NAME;
+
+/**
+ * Builds a {@link DoublesLogHistogram}: fixed memory and a bounded relative error on every percentile, where a
+ * reservoir gives exact percentiles while its items fit and a sampling error afterwards.
+ */
+@JsonTypeName(LOG_HISTOGRAM_TYPE_NAME)
+public class DoublesLogHistogramAggregatorFactory extends AggregatorFactory {
+    private static final byte CACHE_ID = 0x65;
+
+    private final String name;
+    private final String fieldName;
+    private final DoublesLogHistogramLayout layout;
+
+    public DoublesLogHistogramAggregatorFactory(final String name, final String fieldName) {
+        this(name, fieldName, DoublesLogHistogramLayout.DEFAULT);
+    }
+
+    @JsonCreator
+    public DoublesLogHistogramAggregatorFactory(
+            @JsonProperty("name") final String name,
+            @JsonProperty("fieldName") final String fieldName,
+            @JsonProperty("significantDigits") @Nullable final Integer significantDigits,
+            @JsonProperty("lowestDiscernibleValue") @Nullable final Double lowestDiscernibleValue,
+            @JsonProperty("highestTrackableValue") @Nullable final Double highestTrackableValue) {
+        this(
+                name,
+                fieldName,
+                DoublesLogHistogramLayout.of(significantDigits, lowestDiscernibleValue, highestTrackableValue));
+    }
+
+    public DoublesLogHistogramAggregatorFactory(
+            final String name, final String fieldName, final DoublesLogHistogramLayout layout) {
+        if (StringUtils.isBlank(name)) {
+            throw new IAE("Must have a valid, non-null aggregator name");
+        }
+        if (StringUtils.isBlank(fieldName)) {
+            throw new IAE("Parameter fieldName must be specified");
+        }
+
+        this.name = name;
+        this.fieldName = fieldName;
+        this.layout = layout;
+    }
+
+    @Override
+    public Aggregator factorize(final ColumnSelectorFactory metricFactory) {
+        final ColumnValueSelector<?> selector = metricFactory.makeColumnValueSelector(fieldName);
+        return new DoublesLogHistogramBuildAggregator(selector, layout);
+    }
+
+    @Override
+    public BufferAggregator factorizeBuffered(ColumnSelectorFactory metricFactory) {
+        final ColumnValueSelector<?> selector = metricFactory.makeColumnValueSelector(fieldName);
+        return new DoublesLogHistogramBufferAggregator(selector, layout);
+    }
+
+    @Override
+    public boolean canVectorize(ColumnInspector columnInspector) {
+        // Pre-aggregated histogram columns are merged row by row
+        final ColumnCapabilities capabilities = columnInspector.getColumnCapabilities(fieldName);
+        return capabilities == null || capabilities.isNumeric();
+    }
+
+    @Override
+    public VectorAggregator factorizeVector(VectorColumnSelectorFactory selectorFactory) {
+        return new DoublesLogHistogramVectorAggregator(selectorFactory.makeValueSelector(fieldName), layout);
+    }
+
+    @Override
+    public Comparator<DoublesLogHistogram> getComparator() {
+        return DoublesLogHistogram.COUNT_COMPARATOR;
+    }
+
+    @Nullable
+    @Override
+    public Object combine(@Nullable Object lhs, @Nullable Object rhs) {
+        if (lhs == null) {
+            return rhs;
+        }
+        if (rhs == null) {
+            return lhs;
+        }
+
+        // Frozen histograms may be shared, so they are merged into a copy; mutable ones belong to the merge in progress
+        final DoublesLogHistogram histogram = DoublesLogHistogram.deserialize(lhs);
+        final DoublesLogHistogram other = DoublesLogHistogram.deserialize(rhs);
+        final DoublesLogHistogram target = histogram.isFrozen() ? histogram.copy() : histogram;
+
+        return target.mergeWith(other);
+    }
+
+    @Override
+    public AggregatorFactory getCombiningFactory() {
+        return new DoublesLogHistogramAggregatorFactory(name, name, layout);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public AggregateCombiner makeAggregateCombiner() {
+        return new ObjectAggregateCombiner<DoublesLogHistogram>() {
+            // Reused across resets, so rollup merges do not allocate counters
+            private final DoublesLogHistogram combined = new DoublesLogHistogram(layout);
+
+            @Override
+            public void reset(final ColumnValueSelector selector) {
+                combined.clear();
+                fold(selector);
+            }
+
+            @Override
+            public void fold(final ColumnValueSelector selector) {
+                combined.mergeWith((DoublesLogHistogram) selector.getObject());
+            }
+
+            @Override
+            public DoublesLogHistogram getObject() {
+                return combined;
+            }
+
+            @Override
+            public Class<DoublesLogHistogram> classOfObject() {
+                return DoublesLogHistogram.class;
+            }
+        };
+    }
+
+    @Override
+    public Object deserialize(Object serializedObject) {
+        if (serializedObject instanceof DoublesLogHistogram) {
+            return serializedObject;
+        }
+
+        // Decoded results can be handed to several consumers, e.g. the merge and the cache populator
+        final DoublesLogHistogram histogram = DoublesLogHistogram.deserialize(serializedObject);
+        return histogram == null ? null : histogram.freeze();
+    }
+
+    @Nullable
+    @Override
+    public Object finalizeComputation(@Nullable Object object) {
+        return object;
+    }
+
+    @Override
+    @JsonProperty
+    public String getName() {
+        return name;
+    }
+
+    @JsonProperty
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    @JsonProperty
+    public int getSignificantDigits() {
+        return layout.getSignificantDigits();
+    }
+
+    @JsonProperty
+    public double getLowestDiscernibleValue() {
+        return layout.getLowestDiscernibleValue();
+    }
+
+    @JsonProperty
+    public double getHighestTrackableValue() {
+        return layout.getHighestTrackableValue();
+    }
+
+    @Override
+    public List<String> requiredFields() {
+        return Collections.singletonList(fieldName);
+    }
+
+    @Override
+    public int getMaxIntermediateSize() {
+        return DoublesLogHistogram.getBufferSize(layout);
+    }
+
+    @Override
+    public AggregatorFactory withName(String newName) {
+        return new DoublesLogHistogramAggregatorFactory(newName, fieldName, layout);
+    }
+
+    @Override
+    public ColumnType getIntermediateType() {
+        return LOG_HISTOGRAM_TYPE;
+    }
+
+    @Override
+    public ColumnType getResultType() {
+        return LOG_HISTOGRAM_TYPE;
+    }
+
+    @Override
+    public byte[] getCacheKey() {
+        return new CacheKeyBuilder(CACHE_ID)
+                .appendString(name)
+                .appendString(fieldName)
+                .appendInt(layout.getSignificantDigits())
+                .appendDouble(layout.getLowestDiscernibleValue())
+                .appendDouble(layout.getHighestTrackableValue())
+                .build();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final DoublesLogHistogramAggregatorFactory that = (DoublesLogHistogramAggregatorFactory) o;
+
+        return Objects.equals(name, that.name)
+                && Objects.equals(fieldName, that.fieldName)
+                && Objects.equals(layout, that.layout);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, fieldName, layout);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + "name=" + name
+                + ", fieldName=" + fieldName
+                + ", layout=" + layout
+                + "}";
+    }
+}
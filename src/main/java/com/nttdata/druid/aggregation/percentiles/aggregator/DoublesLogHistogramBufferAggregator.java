@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.google.common.base.Preconditions;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogram;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogramLayout;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.query.aggregation.BufferAggregator;
+import org.apache.druid.segment.ColumnValueSelector;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the counters of the histogram in the aggregation buffer, so each value only increments one of them.
+ */
+public class DoublesLogHistogramBufferAggregator implements BufferAggregator {
+    private final ColumnValueSelector<?> selector;
+    private final DoublesLogHistogramLayout layout;
+
+    public DoublesLogHistogramBufferAggregator(ColumnValueSelector<?> selector, DoublesLogHistogramLayout layout) {
+        this.selector = Preconditions.checkNotNull(selector);
+        this.layout = Preconditions.checkNotNull(layout);
+    }
+
+    @Override
+    public void init(ByteBuffer buffer, int position) {
+        DoublesLogHistogram.initBuffer(buffer, position, layout);
+    }
+
+    @Override
+    public void aggregate(ByteBuffer buffer, int position) {
+        final Object obj = selector.getObject();
+
+        if (obj == null) {
+            return;
+        }
+
+        if (obj instanceof Number) {
+            DoublesLogHistogram.acceptInBuffer(buffer, position, layout, ((Number) obj).doubleValue());
+        } else if (obj instanceof DoublesLogHistogram) {
+            merge(buffer, position, (DoublesLogHistogram) obj);
+        } else if (obj instanceof byte[] || obj instanceof String) {
+            merge(buffer, position, DoublesLogHistogram.deserialize(obj));
+        } else {
+            throw new IAE(
+                    "Expected a number or an instance of DoublesLogHistogram, but received [%s] of type [%s]",
+                    obj, obj.getClass());
+        }
+    }
+
+    private void merge(ByteBuffer buffer, int position, @Nullable DoublesLogHistogram other) {
+        if (other != null) {
+            DoublesLogHistogram.mergeInBuffer(buffer, position, layout, other);
+        }
+    }
+
+    @Override
+    public DoublesLogHistogram get(final ByteBuffer buffer, final int position) {
+        return DoublesLogHistogram.fromBuffer(buffer, position, layout).freeze();
+    }
+
+    @Override
+    public float getFloat(final ByteBuffer buffer, final int position) {
+        throw new UnsupportedOperationException("Not implemented");
+    }
+
+    @Override
+    public long getLong(final ByteBuffer buffer, final int position) {
+        throw new UnsupportedOperationException("Not implemented");
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release, the state lives in the buffer
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.google.errorprone.annotations.concurrent.GuardedBy;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogram;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogramLayout;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.query.aggregation.Aggregator;
+import org.apache.druid.segment.ColumnValueSelector;
+
+public class DoublesLogHistogramBuildAggregator implements Aggregator {
+    private final ColumnValueSelector<?> selector;
+
+    @GuardedBy("this")
+    private DoublesLogHistogram histogram;
+
+    public DoublesLogHistogramBuildAggregator(
+            final ColumnValueSelector<?> selector, DoublesLogHistogramLayout layout) {
+        this.selector = selector;
+        this.histogram = new DoublesLogHistogram(layout);
+    }
+
+    @Override
+    public synchronized void aggregate() {
+        final Object obj = selector.getObject();
+
+        if (obj == null) {
+            return;
+        }
+
+        if (obj instanceof Number) {
+            histogram.accept(((Number) obj).doubleValue());
+        } else if (obj instanceof DoublesLogHistogram) {
+            histogram.mergeWith((DoublesLogHistogram) obj);
+        } else if (obj instanceof byte[] || obj instanceof String) {
+            histogram.mergeWith(DoublesLogHistogram.deserialize(obj));
+        } else {
+            throw new IAE(
+                    "Expected a number or an instance of DoublesLogHistogram, but received [%s] of type [%s]",
+                    obj, obj.getClass());
+        }
+    }
+
+    @Override
+    public synchronized Object get() {
+        // Realtime queries read the histogram while ingestion keeps aggregating into it
+        return histogram.copy().freeze();
+    }
+
+    @Override
+    public float getFloat() {
+        throw new UnsupportedOperationException("Not implemented");
+    }
+
+    @Override
+    public long getLong() {
+        throw new UnsupportedOperationException("Not implemented");
+    }
+
+    @Override
+    public double getDouble() {
+        throw new UnsupportedOperationException("Not implemented");
+    }
+
+    @Override
+    public synchronized void close() {
+        histogram = null;
+    }
+}
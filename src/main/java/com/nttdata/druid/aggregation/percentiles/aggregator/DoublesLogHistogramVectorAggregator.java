@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.google.common.base.Preconditions;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogram;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogramLayout;
+import org.apache.druid.query.aggregation.VectorAggregator;
+import org.apache.druid.segment.vector.VectorValueSelector;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Counts a vector of numeric values at a time into histograms kept in the aggregation buffer.
+ */
+public class DoublesLogHistogramVectorAggregator implements VectorAggregator {
+    private final VectorValueSelector selector;
+    private final DoublesLogHistogramLayout layout;
+
+    public DoublesLogHistogramVectorAggregator(VectorValueSelector selector, DoublesLogHistogramLayout layout) {
+        this.selector = Preconditions.checkNotNull(selector);
+        this.layout = Preconditions.checkNotNull(layout);
+    }
+
+    @Override
+    public void init(ByteBuffer buffer, int position) {
+        DoublesLogHistogram.initBuffer(buffer, position, layout);
+    }
+
+    @Override
+    public void aggregate(ByteBuffer buffer, int position, int startRow, int endRow) {
+        final double[] values = selector.getDoubleVector();
+        final boolean[] nulls = selector.getNullVector();
+
+        for (int row = startRow; row < endRow; ++row) {
+            if (nulls == null || !nulls[row]) {
+                DoublesLogHistogram.acceptInBuffer(buffer, position, layout, values[row]);
+            }
+        }
+    }
+
+    @Override
+    public void aggregate(
+            ByteBuffer buffer, int numRows, int[] positions, @Nullable int[] rows, int positionOffset) {
+        final double[] values = selector.getDoubleVector();
+        final boolean[] nulls = selector.getNullVector();
+
+        for (int index = 0; index < numRows; ++index) {
+            final int row = rows == null ? index : rows[index];
+
+            if (nulls == null || !nulls[row]) {
+                DoublesLogHistogram.acceptInBuffer(buffer, positions[index] + positionOffset, layout, values[row]);
+            }
+        }
+    }
+
+    @Override
+    public DoublesLogHistogram get(ByteBuffer buffer, int position) {
+        return DoublesLogHistogram.fromBuffer(buffer, position, layout).freeze();
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release, the state lives in the buffer
+    }
+}
@@ -19,9 +19,13 @@
 package com.nttdata.druid.aggregation.percentiles.aggregator;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
+import com.nttdata.druid.aggregation.percentiles.metrics.DoublesReservoirCounter;
 import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirOrdering;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirStorage;
 import org.apache.commons.lang.StringUtils;
 import org.apache.druid.java.util.common.IAE;
 import org.apache.druid.query.aggregation.*;
@@ -29,10 +33,12 @@ import org.apache.druid.query.cache.CacheKeyBuilder;
 import org.apache.druid.segment.ColumnSelectorFactory;
 import org.apache.druid.segment.ColumnValueSelector;
 import org.apache.druid.segment.NilColumnValueSelector;
+import org.apache.druid.segment.column.ColumnHolder;
 import org.apache.druid.segment.column.ColumnType;
+import org.joda.time.Period;
 
 import javax.annotation.Nullable;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
@@ -43,16 +49,76 @@ import static com.nttdata.druid.DoublesReservoirModule.TYPE_NAME;
 @JsonTypeName(TYPE_NAME)
 public class DoublesReservoirAggregatorFactory extends AggregatorFactory {
     private static final byte CACHE_ID = 0x60;
+    // Rows a rollup combiner holds on to before merging them, which bounds what it keeps alive for large groups
+    private static final int MERGE_BATCH_SIZE = 64;
+
+    /**
+     * Confidence of the targetRankError when none is given.
+     */
+    public static final double DEFAULT_CONFIDENCE = 0.95;
 
     private final String name;
     private final String fieldName;
     private final int maxReservoirSize;
+    private final DoublesReservoirOrdering ordering;
+    private final DoublesReservoirStorage storage;
+    // K of the sketch a reservoir switches to once its items no longer fit exactly, 0 to sample instead
+    private final int sketchK;
+    // Column holding the number of items each row stands for, when rows were pre-aggregated upstream
+    @Nullable
+    private final String weightFieldName;
+    // Half-life of the weight of the items of forward-decay reservoirs, 0 for uniform samples
+    private final long halfLifeMillis;
+    // Whether reservoirs count their distinct values before sampling, which only the binary form can store
+    private final boolean valueCounts;
+    // Budget of the query this factory was read or planned in, shared with its copies; null outside of queries and
+    // for queries without a limit. Owned and released by the query, see DoublesReservoirMemoryBudget.
+    @Nullable
+    private final DoublesReservoirMemoryBudget budget;
 
     @JsonCreator
     public DoublesReservoirAggregatorFactory(
             @JsonProperty("name") final String name,
             @JsonProperty("fieldName") final String fieldName,
-            @JsonProperty("maxReservoirSize") final Integer maxReservoirSize) {
+            @JsonProperty("maxReservoirSize") @Nullable final Integer maxReservoirSize,
+            @JsonProperty("ordering") @Nullable final DoublesReservoirOrdering ordering,
+            @JsonProperty("storage") @Nullable final String storage,
+            @JsonProperty("scale") @Nullable final Integer scale,
+            @JsonProperty("sketchK") @Nullable final Integer sketchK,
+            @JsonProperty("weightFieldName") @Nullable final String weightFieldName,
+            @JsonProperty("halfLife") @Nullable final String halfLife,
+            @JsonProperty("targetRankError") @Nullable final Double targetRankError,
+            @JsonProperty("confidence") @Nullable final Double confidence,
+            @JsonProperty("valueCounts") @Nullable final Boolean valueCounts) {
+        this(
+                name,
+                fieldName,
+                toMaxReservoirSize(maxReservoirSize, targetRankError, confidence),
+                ordering,
+                DoublesReservoirStorage.of(storage, scale),
+                sketchK == null ? 0 : sketchK,
+                weightFieldName,
+                toMillis(halfLife),
+                valueCounts != null && valueCounts,
+                DoublesReservoirMemoryBudget.current());
+    }
+
+    /**
+     * Takes the budget of the query the factory is read or planned for, null for none, see
+     * {@link DoublesReservoirMemoryBudget#current()}. Copies made from the factory pass it on, so that they draw on the
+     * same one whatever the thread they are made on.
+     */
+    public DoublesReservoirAggregatorFactory(
+            final String name,
+            final String fieldName,
+            final Integer maxReservoirSize,
+            @Nullable final DoublesReservoirOrdering ordering,
+            final DoublesReservoirStorage storage,
+            final int sketchK,
+            @Nullable final String weightFieldName,
+            final long halfLifeMillis,
+            final boolean valueCounts,
+            @Nullable final DoublesReservoirMemoryBudget budget) {
 
         if (StringUtils.isBlank(name)) {
             throw new IAE("Must have a valid, non-null aggregator name");
@@ -60,22 +126,106 @@ public class DoublesReservoirAggregatorFactory extends AggregatorFactory {
         if (StringUtils.isBlank(fieldName)) {
             throw new IAE("Parameter fieldName must be specified");
         }
-        if (maxReservoirSize <= 0) {
+        if (maxReservoirSize == null || maxReservoirSize <= 0) {
             throw new IAE("Parameter maxReservoirSize must be specified and greater than 0");
         }
+        if (maxReservoirSize > DoublesReservoir.MAX_BUFFERED_SIZE) {
+            throw new IAE("Parameter maxReservoirSize must not be greater than %d", DoublesReservoir.MAX_BUFFERED_SIZE);
+        }
+        if (sketchK != 0 && (sketchK < DoublesReservoir.MIN_SKETCH_K || sketchK > DoublesReservoir.MAX_SKETCH_K)) {
+            throw new IAE(
+                    "Parameter sketchK must be between %d and %d",
+                    DoublesReservoir.MIN_SKETCH_K, DoublesReservoir.MAX_SKETCH_K);
+        }
+        if (halfLifeMillis < 0) {
+            throw new IAE("Parameter halfLife must be positive");
+        }
+        if (halfLifeMillis > 0 && sketchK != 0) {
+            throw new IAE("Parameters sketchK and halfLife cannot be combined");
+        }
+        if (halfLifeMillis > 0 && valueCounts) {
+            throw new IAE("Parameters valueCounts and halfLife cannot be combined");
+        }
+        if (halfLifeMillis > 0 && maxReservoirSize > DoublesReservoir.MAX_DECAYED_BUFFERED_SIZE) {
+            throw new IAE(
+                    "Parameter maxReservoirSize must not be greater than %d with halfLife",
+                    DoublesReservoir.MAX_DECAYED_BUFFERED_SIZE);
+        }
 
         this.fieldName = fieldName;
         this.name = name;
         this.maxReservoirSize = maxReservoirSize;
+        this.ordering = ordering == null ? DoublesReservoirOrdering.DEFAULT : ordering;
+        this.storage = storage;
+        this.sketchK = sketchK;
+        this.weightFieldName = StringUtils.isBlank(weightFieldName) ? null : weightFieldName;
+        this.halfLifeMillis = halfLifeMillis;
+        this.valueCounts = valueCounts;
+        this.budget = budget;
+    }
+
+    /**
+     * Size given either as is or as the rank error its percentiles must stay within, at the given confidence. Only
+     * the size is kept, so both specs of the same size are the same aggregator.
+     */
+    @Nullable
+    private static Integer toMaxReservoirSize(
+            @Nullable Integer maxReservoirSize,
+            @Nullable Double targetRankError,
+            @Nullable Double confidence) {
+        if (targetRankError == null) {
+            if (confidence != null) {
+                throw new IAE("Parameter confidence requires targetRankError");
+            }
+            return maxReservoirSize;
+        }
+        if (maxReservoirSize != null) {
+            throw new IAE("Parameters maxReservoirSize and targetRankError cannot be combined");
+        }
+
+        return DoublesReservoir.getSizeForRankError(
+                targetRankError, confidence == null ? DEFAULT_CONFIDENCE : confidence);
+    }
+
+    private static long toMillis(@Nullable String halfLife) {
+        if (StringUtils.isBlank(halfLife)) {
+            return 0;
+        }
+
+        final long millis;
+
+        try {
+            millis = new Period(halfLife).toStandardDuration().getMillis();
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            throw new IAE(
+                    "Parameter halfLife must be an ISO 8601 period of fixed length, like PT5M, got [%s]", halfLife);
+        }
+
+        if (millis <= 0) {
+            throw new IAE("Parameter halfLife must be positive, got [%s]", halfLife);
+        }
+
+        return millis;
     }
 
     @Override
     public Aggregator factorize(final ColumnSelectorFactory metricFactory) {
         final ColumnValueSelector<?> selector = metricFactory.makeColumnValueSelector(getFieldName());
 
-        return selector instanceof NilColumnValueSelector
-                ? new NoopReservoirAggregator()
-                : new DoublesReservoirBuildAggregator(selector, getMaxReservoirSize());
+        if (selector instanceof NilColumnValueSelector) {
+            return new NoopReservoirAggregator();
+        }
+
+        return new DoublesReservoirBuildAggregator(
+                selector,
+                makeWeightSelector(metricFactory),
+                makeTimeSelector(metricFactory),
+                budget == null ? getMaxReservoirSize() : budget.reserve(getMaxReservoirSize(), storage),
+                storage,
+                sketchK,
+                halfLifeMillis,
+                valueCounts,
+                budget);
     }
 
     @Override
@@ -84,12 +234,32 @@ public class DoublesReservoirAggregatorFactory extends AggregatorFactory {
 
         return selector instanceof NilColumnValueSelector
                 ? new NoopReservoirBufferAggregator()
-                : new DoublesReservoirBufferBuildAggregator(selector, getMaxReservoirSize());
+                : new DoublesReservoirBufferBuildAggregator(
+                        selector,
+                        makeWeightSelector(metricFactory),
+                        makeTimeSelector(metricFactory),
+                        getMaxReservoirSize(),
+                        storage,
+                        sketchK,
+                        halfLifeMillis,
+                        valueCounts,
+                        budget);
+    }
+
+    @Nullable
+    private ColumnValueSelector<?> makeWeightSelector(ColumnSelectorFactory metricFactory) {
+        // A missing weight column reads as null, so every row then stands for no items
+        return weightFieldName == null ? null : metricFactory.makeColumnValueSelector(weightFieldName);
+    }
+
+    @Nullable
+    private ColumnValueSelector<?> makeTimeSelector(ColumnSelectorFactory metricFactory) {
+        return halfLifeMillis == 0 ? null : metricFactory.makeColumnValueSelector(ColumnHolder.TIME_COLUMN_NAME);
     }
 
     @Override
     public Comparator<DoublesReservoir> getComparator() {
-        return DoublesReservoir.COMPARATOR;
+        return ordering.getComparator();
     }
 
     @Nullable
@@ -102,23 +272,90 @@ public class DoublesReservoirAggregatorFactory extends AggregatorFactory {
             return lhs;
         }
 
-        return DoublesReservoir.deserialize(lhs).mergeWith(DoublesReservoir.deserialize(rhs));
+        // Frozen reservoirs may be shared (aggregator snapshots, results still being written to the cache), so they are
+        // merged into a copy-on-write view. Mutable ones belong to the merge in progress and are merged in place.
+        final DoublesReservoir reservoir = DoublesReservoir.deserialize(lhs);
+        final DoublesReservoir other = DoublesReservoir.deserialize(rhs);
+
+        if (reservoir == null || reservoir.getTotalItemsSeen() == 0) {
+            // e.g. EMPTY from a segment without the column, whose maxSize of 0 must not cap the result
+            if (budget != null) {
+                budget.discharge(reservoir);
+            }
+            return other;
+        }
+
+        final DoublesReservoir target = reservoir.isFrozen() ? reservoir.mutableCopy() : reservoir;
+        target.mergeWith(other);
+
+        if (budget != null) {
+            // Only the result of the merge is held from now on
+            budget.transfer(reservoir, target);
+            budget.discharge(other);
+        }
+
+        return target;
     }
 
     @Override
     public AggregatorFactory getCombiningFactory() {
-        return new DoublesReservoirAggregatorFactory(getName(), getName(), getMaxReservoirSize());
+        return new DoublesReservoirAggregatorFactory(
+                getName(),
+                getName(),
+                getMaxReservoirSize(),
+                getOrdering(),
+                storage,
+                sketchK,
+                null,
+                halfLifeMillis,
+                valueCounts,
+                budget);
+    }
+
+    /**
+     * Reservoirs of different sizes or storages, e.g. once older segments are compacted into smaller ones, merge into
+     * the largest size and the widest storage, so that queries and compactions spanning both lose no precision.
+     */
+    @Override
+    public AggregatorFactory getMergingFactory(AggregatorFactory other) throws AggregatorFactoryNotMergeableException {
+        if (getName().equals(other.getName()) && getClass() == other.getClass()) {
+            final DoublesReservoirAggregatorFactory that = (DoublesReservoirAggregatorFactory) other;
+
+            if (ordering == that.ordering && sketchK == that.sketchK && halfLifeMillis == that.halfLifeMillis) {
+                return new DoublesReservoirAggregatorFactory(
+                        getName(),
+                        getName(),
+                        Math.max(maxReservoirSize, that.maxReservoirSize),
+                        ordering,
+                        DoublesReservoirStorage.widest(storage, that.storage),
+                        sketchK,
+                        null,
+                        halfLifeMillis,
+                        valueCounts && that.valueCounts,
+                        budget);
+            }
+        }
+
+        throw new AggregatorFactoryNotMergeableException(this, other);
     }
 
     @SuppressWarnings("rawtypes")
     @Override
     public AggregateCombiner makeAggregateCombiner() {
+        DoublesReservoirCounter.CREATED.increment();
+
         return new ObjectAggregateCombiner<DoublesReservoir>() {
-            private DoublesReservoir combined = null;
+            // Reused across resets, so rollup merges only allocate when the storage has to grow
+            private final DoublesReservoir combined = halfLifeMillis > 0
+                    ? DoublesReservoir.decayed(maxReservoirSize, storage, halfLifeMillis)
+                    : new DoublesReservoir(maxReservoirSize, storage, sketchK, valueCounts);
+            // Rows folded since the last merge, merged together in one weighted pass rather than one at a time
+            private final List<DoublesReservoir> pending = new ArrayList<>();
 
             @Override
             public void reset(final ColumnValueSelector selector) {
-                combined = null;
+                combined.clear();
+                pending.clear();
                 fold(selector);
             }
 
@@ -130,18 +367,34 @@ public class DoublesReservoirAggregatorFactory extends AggregatorFactory {
                     return;
                 }
 
-                if (combined == null) {
-                    combined = new DoublesReservoir(maxReservoirSize);
+                pending.add(other);
+
+                if (pending.size() == MERGE_BATCH_SIZE) {
+                    mergePending();
                 }
 
-                combined.mergeWith(other);
+                if (budget != null) {
+                    // e.g. groupBy merging the reservoirs it spilled, read back with deserialize()
+                    budget.discharge(other);
+                }
             }
 
             @Override
             public DoublesReservoir getObject() {
+                mergePending();
                 return combined;
             }
 
+            private void mergePending() {
+                if (pending.size() == 1) {
+                    combined.mergeWith(pending.get(0));
+                } else if (!pending.isEmpty()) {
+                    combined.mergeWith(DoublesReservoir.mergeAll(maxReservoirSize, pending));
+                }
+
+                pending.clear();
+            }
+
             @Override
             public Class<DoublesReservoir> classOfObject() {
                 return DoublesReservoir.class;
@@ -151,12 +404,28 @@ public class DoublesReservoirAggregatorFactory extends AggregatorFactory {
 
     @Override
     public Object deserialize(Object serializedObject) {
-        return DoublesReservoir.deserialize(serializedObject);
+        if (serializedObject instanceof DoublesReservoir) {
+            return serializedObject;
+        }
+
+        // Decoded results can be handed to several consumers, e.g. the merge and the cache populator
+        final DoublesReservoir reservoir = DoublesReservoir.deserialize(serializedObject);
+
+        if (reservoir == null) {
+            return null;
+        }
+
+        return (budget == null ? reservoir : budget.charge(reservoir)).freeze();
     }
 
     @Nullable
     @Override
     public Object finalizeComputation(@Nullable Object object) {
+        if (budget != null && object instanceof DoublesReservoir) {
+            // The result leaves the query here, so its merge no longer holds it
+            budget.discharge((DoublesReservoir) object);
+        }
+
         return object;
     }
 
@@ -176,19 +445,103 @@ public class DoublesReservoirAggregatorFactory extends AggregatorFactory {
         return maxReservoirSize;
     }
 
+    @JsonProperty
+    public DoublesReservoirOrdering getOrdering() {
+        return ordering;
+    }
+
+    @JsonProperty
+    public String getStorage() {
+        return storage.getName();
+    }
+
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @Nullable
+    public Integer getScale() {
+        return storage.getScale();
+    }
+
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @Nullable
+    public Integer getSketchK() {
+        return sketchK == 0 ? null : sketchK;
+    }
+
+    /**
+     * Column holding the number of items each row stands for, null when each row is a single item. Only used when
+     * building reservoirs from numbers: reservoirs already carry the number of items they have seen.
+     */
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @Nullable
+    public String getWeightFieldName() {
+        return weightFieldName;
+    }
+
+    /**
+     * Half-life of the weight of the items, as an ISO 8601 period, null for uniform samples. See
+     * {@link DoublesReservoir#decayed}.
+     */
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @Nullable
+    public String getHalfLife() {
+        return halfLifeMillis == 0 ? null : new Period(halfLifeMillis).toString();
+    }
+
+    /**
+     * Whether reservoirs keep their distinct values with counts, and exact percentiles, until these no longer fit.
+     * Off by default, since only the binary form holds value counts: segments then can no longer be read by versions
+     * before it.
+     */
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public boolean isValueCounts() {
+        return valueCounts;
+    }
+
     @Override
     public List<String> requiredFields() {
-        return Collections.singletonList(fieldName);
+        final List<String> fields = new ArrayList<>(3);
+        fields.add(fieldName);
+
+        if (weightFieldName != null) {
+            fields.add(weightFieldName);
+        }
+
+        if (halfLifeMillis > 0) {
+            fields.add(ColumnHolder.TIME_COLUMN_NAME);
+        }
+
+        return fields;
     }
 
+    /**
+     * Decayed reservoirs keep the log weight and priority of each sample in their slot as well, and slots of
+     * reservoirs that may switch to a sketch have room for the sketch.
+     */
     @Override
     public int getMaxIntermediateSize() {
-        return maxReservoirSize * Double.BYTES;
+        return halfLifeMillis > 0
+                ? DoublesReservoir.getDecayedBufferSize(maxReservoirSize, storage)
+                : DoublesReservoir.getBufferSize(maxReservoirSize, storage, sketchK);
     }
 
     @Override
     public AggregatorFactory withName(String newName) {
-        return new DoublesReservoirAggregatorFactory(newName, getFieldName(), getMaxReservoirSize());
+        return new DoublesReservoirAggregatorFactory(
+                newName,
+                getFieldName(),
+                getMaxReservoirSize(),
+                getOrdering(),
+                storage,
+                sketchK,
+                weightFieldName,
+                halfLifeMillis,
+                valueCounts,
+                budget);
     }
 
     @Override
@@ -207,6 +560,14 @@ public class DoublesReservoirAggregatorFactory extends AggregatorFactory {
                 .appendString(name)
                 .appendString(fieldName)
                 .appendInt(maxReservoirSize)
+                .appendString(ordering.toString())
+                .appendString(storage.toString())
+                .appendInt(sketchK)
+                .appendString(weightFieldName)
+                .appendLong(halfLifeMillis)
+                .appendBoolean(valueCounts)
+                // Downsampled results must not be served to queries that would not downsample them
+                .appendLong(budget == null ? 0 : budget.getDownsampledBytes())
                 .build();
     }
 
@@ -223,12 +584,27 @@ public class DoublesReservoirAggregatorFactory extends AggregatorFactory {
 
         return Objects.equals(name, that.name)
                 && Objects.equals(fieldName, that.fieldName)
-                && maxReservoirSize == that.maxReservoirSize;
+                && maxReservoirSize == that.maxReservoirSize
+                && ordering == that.ordering
+                && Objects.equals(storage, that.storage)
+                && sketchK == that.sketchK
+                && Objects.equals(weightFieldName, that.weightFieldName)
+                && halfLifeMillis == that.halfLifeMillis
+                && valueCounts == that.valueCounts;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(name, fieldName, maxReservoirSize);
+        return Objects.hash(
+                name,
+                fieldName,
+                maxReservoirSize,
+                ordering,
+                storage,
+                sketchK,
+                weightFieldName,
+                halfLifeMillis,
+                valueCounts);
     }
 
     @Override
@@ -237,6 +613,12 @@ public class DoublesReservoirAggregatorFactory extends AggregatorFactory {
                 + "name=" + name
                 + ", fieldName=" + fieldName
                 + ", maxReservoirSize=" + maxReservoirSize
+                + ", ordering=" + ordering
+                + ", storage=" + storage
+                + ", sketchK=" + sketchK
+                + ", weightFieldName=" + weightFieldName
+                + ", halfLifeMillis=" + halfLifeMillis
+                + ", valueCounts=" + valueCounts
                 + "}";
     }
 
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.java.util.common.StringUtils;
+import org.apache.druid.java.util.common.logger.Logger;
+import org.apache.druid.query.QueryContext;
+
+import javax.annotation.Nullable;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+
+/**
+ * Opens the {@link DoublesReservoirMemoryBudget} of each query request whose context sets
+ * {@value DoublesReservoirMemoryBudget#CTX_MAX_BYTES_PER_QUERY}, native or SQL, before the service reads the query,
+ * and closes it once the response is done. Requests are read ahead to find the context, then handed on unchanged.
+ */
+public class DoublesReservoirBudgetFilter implements Filter {
+    private static final Logger log = new Logger(DoublesReservoirBudgetFilter.class);
+    private static final byte[] MARKER = StringUtils.toUtf8(DoublesReservoirMemoryBudget.CTX_MAX_BYTES_PER_QUERY);
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory());
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest) || !"POST".equals(((HttpServletRequest) request).getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final byte[] body = ByteStreams.toByteArray(request.getInputStream());
+        final HttpServletRequest buffered = new BufferedRequest((HttpServletRequest) request, body);
+        final DoublesReservoirMemoryBudget budget;
+
+        try {
+            budget = Bytes.indexOf(body, MARKER) < 0 ? null : open(body, request.getContentType());
+        } catch (IAE e) {
+            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        try {
+            chain.doFilter(buffered, response);
+        } finally {
+            DoublesReservoirMemoryBudget.detach();
+
+            if (budget != null) {
+                if (buffered.isAsyncStarted()) {
+                    buffered.getAsyncContext().addListener(new ClosingListener(budget));
+                } else {
+                    budget.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Opens the budget of the query in the body, null if it sets no limit or cannot be read: the service reports
+     * the latter when it reads the query itself.
+     */
+    @Nullable
+    private static DoublesReservoirMemoryBudget open(byte[] body, @Nullable String contentType) {
+        final ObjectMapper mapper = contentType != null && StringUtils.toLowerCase(contentType).contains("smile")
+                ? SMILE_MAPPER
+                : JSON_MAPPER;
+        final JsonNode context;
+
+        try {
+            context = mapper.readTree(body).path("context");
+        } catch (IOException | RuntimeException e) {
+            log.debug(e, "Cannot read the context of the query, leaving its reservoirs without budget");
+            return null;
+        }
+
+        if (!context.isObject()) {
+            return null;
+        }
+
+        return DoublesReservoirMemoryBudget.open(
+                QueryContext.of(mapper.convertValue(context, new TypeReference<Map<String, Object>>() {})));
+    }
+
+    private static class BufferedRequest extends HttpServletRequestWrapper {
+        private final byte[] body;
+
+        BufferedRequest(HttpServletRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            final ByteArrayInputStream in = new ByteArrayInputStream(body);
+
+            return new ServletInputStream() {
+                @Override
+                public boolean isFinished() {
+                    return in.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public int read() {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return in.read(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            final String encoding = getCharacterEncoding();
+
+            return new BufferedReader(new InputStreamReader(
+                    getInputStream(), encoding == null ? StringUtils.UTF8_STRING : encoding));
+        }
+    }
+
+    private static class ClosingListener implements AsyncListener {
+        private final DoublesReservoirMemoryBudget budget;
+
+        ClosingListener(DoublesReservoirMemoryBudget budget) {
+            this.budget = budget;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            budget.close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            budget.close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            budget.close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import org.apache.druid.server.initialization.jetty.ServletFilterHolder;
+
+import javax.annotation.Nullable;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+
+/**
+ * Puts a {@link DoublesReservoirBudgetFilter} in front of the native and SQL query endpoints.
+ */
+public class DoublesReservoirBudgetFilterHolder implements ServletFilterHolder {
+    private static final String QUERY_PATH = "/druid/v2/*";
+
+    @Override
+    public Filter getFilter() {
+        return new DoublesReservoirBudgetFilter();
+    }
+
+    @Override
+    public Class<? extends Filter> getFilterClass() {
+        return DoublesReservoirBudgetFilter.class;
+    }
+
+    @Override
+    public Map<String, String> getInitParameters() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String getPath() {
+        return QUERY_PATH;
+    }
+
+    @Override
+    public String[] getPaths() {
+        return new String[]{QUERY_PATH};
+    }
+
+    @Nullable
+    @Override
+    public EnumSet<DispatcherType> getDispatcherType() {
+        return null;
+    }
+}
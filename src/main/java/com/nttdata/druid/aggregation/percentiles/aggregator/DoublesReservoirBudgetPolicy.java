@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.java.util.common.StringUtils;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * What a reservoir aggregator does once its reservoirs need more heap than the budget of its query allows, see
+ * {@link DoublesReservoirMemoryBudget}.
+ */
+public enum DoublesReservoirBudgetPolicy {
+    /**
+     * Fails the query with a resource limit error.
+     */
+    FAIL,
+    /**
+     * Keeps going with smaller reservoirs, down to {@link DoublesReservoirMemoryBudget#MIN_DOWNSAMPLED_SIZE} samples,
+     * then fails.
+     */
+    DOWNSAMPLE;
+
+    public static final DoublesReservoirBudgetPolicy DEFAULT = FAIL;
+
+    @JsonCreator
+    public static DoublesReservoirBudgetPolicy fromString(@Nullable String name) {
+        if (name == null) {
+            return DEFAULT;
+        }
+
+        for (DoublesReservoirBudgetPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+
+        throw new IAE("Unknown budget policy [%s], must be one of %s", name, Arrays.toString(values()));
+    }
+
+    @JsonValue
+    @Override
+    public String toString() {
+        return StringUtils.toLowerCase(name());
+    }
+}
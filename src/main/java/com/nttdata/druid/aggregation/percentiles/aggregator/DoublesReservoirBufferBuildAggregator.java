@@ -19,46 +19,111 @@
 package com.nttdata.druid.aggregation.percentiles.aggregator;
 
 import com.google.common.base.Preconditions;
+import com.nttdata.druid.aggregation.percentiles.metrics.DoublesReservoirCounter;
 import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirStorage;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import org.apache.datasketches.kll.KllDoublesSketch;
+import org.apache.datasketches.memory.DefaultMemoryRequestServer;
+import org.apache.datasketches.memory.MemoryRequestServer;
+import org.apache.datasketches.memory.WritableMemory;
 import org.apache.druid.java.util.common.IAE;
 import org.apache.druid.query.aggregation.BufferAggregator;
 import org.apache.druid.segment.ColumnValueSelector;
 
+import javax.annotation.Nullable;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.IdentityHashMap;
 
+/**
+ * Keeps the whole reservoir in the aggregation buffer (see {@link DoublesReservoir#getBufferSize(int, DoublesReservoirStorage)}), so groupBy
+ * can size its merge buffers from {@link DoublesReservoirAggregatorFactory#getMaxIntermediateSize()} and move, copy
+ * or spill slots without any help from the aggregator. Forward-decay reservoirs keep their priority sample in a
+ * slot of their own layout (see {@link DoublesReservoir#getDecayedBufferSize}).
+ *
+ * <p>Hybrid reservoirs that switch to a sketch build it in their slot, sized for both (see
+ * {@link DoublesReservoir#getBufferSize(int, DoublesReservoirStorage, int)}), the way Druid's KLL buffer aggregator
+ * does: the sketches wrapping the slots are only cached by position, and wrapped again after {@link #relocate}.
+ */
 public class DoublesReservoirBufferBuildAggregator implements BufferAggregator {
+    private static final MemoryRequestServer MEM_REQ_SERVER = new DefaultMemoryRequestServer();
+
     private final ColumnValueSelector<?> selector;
-    private final IdentityHashMap<ByteBuffer, Int2ObjectMap<DoublesReservoir>> cache = new IdentityHashMap<>();
+    @Nullable
+    private final ColumnValueSelector<?> weightSelector;
+    @Nullable
+    private final ColumnValueSelector<?> timeSelector;
     private final int maxSize;
+    private final DoublesReservoirStorage storage;
+    private final int sketchK;
+    private final long halfLifeMillis;
+    private final boolean valueCounts;
+    // Budget that reservoirs merged in were charged to
+    @Nullable
+    private final DoublesReservoirMemoryBudget budget;
+    private final IdentityHashMap<ByteBuffer, WritableMemory> memCache = new IdentityHashMap<>();
+    private final IdentityHashMap<ByteBuffer, Int2ObjectMap<KllDoublesSketch>> sketchCache = new IdentityHashMap<>();
 
-    public DoublesReservoirBufferBuildAggregator(ColumnValueSelector<?> selector, int maxReservoirSize) {
+    public DoublesReservoirBufferBuildAggregator(
+            ColumnValueSelector<?> selector,
+            @Nullable ColumnValueSelector<?> weightSelector,
+            @Nullable ColumnValueSelector<?> timeSelector,
+            int maxReservoirSize,
+            DoublesReservoirStorage storage,
+            int sketchK,
+            long halfLifeMillis,
+            boolean valueCounts,
+            @Nullable DoublesReservoirMemoryBudget budget) {
         this.selector = Preconditions.checkNotNull(selector);
+        this.weightSelector = weightSelector;
+        this.timeSelector = halfLifeMillis > 0 ? Preconditions.checkNotNull(timeSelector) : null;
         this.maxSize = maxReservoirSize;
+        this.storage = Preconditions.checkNotNull(storage);
+        this.sketchK = sketchK;
+        this.halfLifeMillis = halfLifeMillis;
+        this.valueCounts = valueCounts;
+        this.budget = budget;
     }
 
     @Override
     public void init(ByteBuffer buffer, int position) {
-        final DoublesReservoir emptyReservoir = new DoublesReservoir(maxSize);
-        addToCache(buffer, position, emptyReservoir);
+        if (halfLifeMillis > 0) {
+            DoublesReservoir.initDecayedBuffer(buffer, position);
+        } else {
+            DoublesReservoir.initBuffer(buffer, position, valueCounts);
+        }
+
+        DoublesReservoirCounter.CREATED.increment();
+        removeSketch(buffer, position);
     }
 
     @Override
     public void aggregate(ByteBuffer buffer, int position) {
-        final Object obj = selector.getObject();
+        final Object obj = DoublesReservoirBuildAggregator.toInput(selector.getObject());
 
         if (obj == null) {
             return;
         }
 
-        final DoublesReservoir doublesReservoir = get(buffer, position);
-
         if (obj instanceof Number) {
-            doublesReservoir.accept(((Number) obj).doubleValue());
+            final double value = ((Number) obj).doubleValue();
+            final long weight = DoublesReservoirBuildAggregator.getWeight(weightSelector);
+
+            if (timeSelector == null) {
+                accept(buffer, position, value, weight);
+            } else {
+                final long timestamp = DoublesReservoirBuildAggregator.getTimestamp(timeSelector);
+                DoublesReservoir.acceptAtInBuffer(
+                        buffer, position, maxSize, storage, halfLifeMillis, value, timestamp, weight);
+            }
         } else if (obj instanceof DoublesReservoir) {
-            doublesReservoir.mergeWith((DoublesReservoir) obj);
+            merge(buffer, position, (DoublesReservoir) obj);
+            // e.g. groupBy results read back on the broker, no longer held once merged
+            discharge((DoublesReservoir) obj);
+        } else if (DoublesReservoirBuildAggregator.isSerializedReservoir(obj)) {
+            merge(buffer, position, DoublesReservoir.deserialize(obj));
         } else {
             throw new IAE(
                     "Expected a number or an instance of DoublesReservoir, but received [%s] of type [%s]",
@@ -66,9 +131,117 @@ public class DoublesReservoirBufferBuildAggregator implements BufferAggregator {
         }
     }
 
+    private void accept(ByteBuffer buffer, int position, double value, long weight) {
+        if (weight <= 0) {
+            return;
+        }
+
+        if (DoublesReservoir.isPromotedInBuffer(buffer, position)) {
+            DoublesReservoir.acceptInSketchBuffer(buffer, position, getSketch(buffer, position), value, weight);
+        } else if (sketchK == 0) {
+            DoublesReservoir.acceptInBuffer(buffer, position, maxSize, storage, value, weight);
+        } else if (!DoublesReservoir.acceptExactlyInBuffer(buffer, position, maxSize, storage, value, weight)) {
+            final DoublesReservoir reservoir = DoublesReservoir.fromBuffer(buffer, position, maxSize, storage, sketchK);
+            reservoir.accept(value, weight);
+            update(buffer, position, reservoir);
+        }
+    }
+
+    private void merge(ByteBuffer buffer, int position, @Nullable DoublesReservoir other) {
+        if (other == null || other.getTotalItemsSeen() == 0) {
+            return;
+        }
+
+        if (halfLifeMillis > 0 || other.getHalfLifeMillis() > 0) {
+            // A slot sized for a uniform sample has no room for weights, so both sides must decay alike
+            DoublesReservoir.mergeDecayedInBuffer(buffer, position, maxSize, storage, halfLifeMillis, other);
+        } else if (DoublesReservoir.isPromotedInBuffer(buffer, position)) {
+            DoublesReservoir.mergeInSketchBuffer(buffer, position, getSketch(buffer, position), other);
+        } else if (sketchK == 0 && other.isSketchMode()) {
+            // A slot sized for a sample has no room for a sketch, so the sketch joins as a sample of its quantiles
+            final DoublesReservoir quantiles =
+                    new DoublesReservoir(other.getMaxSize(), other.getSortedValues(), other.getTotalItemsSeen());
+            final DoublesReservoir doublesReservoir = DoublesReservoir.fromBuffer(buffer, position, maxSize, storage);
+            update(buffer, position, doublesReservoir.mergeWith(quantiles));
+        } else {
+            final DoublesReservoir doublesReservoir =
+                    DoublesReservoir.fromBuffer(buffer, position, maxSize, storage, sketchK);
+            update(buffer, position, doublesReservoir.mergeWith(other));
+        }
+    }
+
+    /**
+     * Writes the reservoir back to its slot, as a sketch built in the slot once it has switched to one.
+     */
+    private void update(ByteBuffer buffer, int position, DoublesReservoir reservoir) {
+        if (reservoir.isSketchMode()) {
+            putSketch(buffer, position, reservoir.writeSketchToBuffer(buffer, getMemory(buffer), position));
+        } else {
+            reservoir.writeToBuffer(buffer, position);
+        }
+    }
+
+    private void discharge(@Nullable DoublesReservoir reservoir) {
+        if (budget != null) {
+            budget.discharge(reservoir);
+        }
+    }
+
+    private WritableMemory getMemory(ByteBuffer buffer) {
+        return memCache.computeIfAbsent(buffer, buf -> WritableMemory.writableWrap(buf, ByteOrder.LITTLE_ENDIAN, MEM_REQ_SERVER));
+    }
+
+    private void putSketch(ByteBuffer buffer, int position, KllDoublesSketch sketch) {
+        sketchCache.computeIfAbsent(buffer, buf -> new Int2ObjectOpenHashMap<>()).put(position, sketch);
+    }
+
+    /**
+     * The sketch built in a promoted slot, wrapped again if the slot has moved since.
+     */
+    private KllDoublesSketch getSketch(ByteBuffer buffer, int position) {
+        final Int2ObjectMap<KllDoublesSketch> sketches = sketchCache.get(buffer);
+        KllDoublesSketch sketch = sketches == null ? null : sketches.get(position);
+
+        if (sketch == null) {
+            sketch = DoublesReservoir.wrapSketchInBuffer(getMemory(buffer), position, sketchK);
+            putSketch(buffer, position, sketch);
+        }
+
+        return sketch;
+    }
+
+    private void removeSketch(ByteBuffer buffer, int position) {
+        final Int2ObjectMap<KllDoublesSketch> sketches = sketchCache.get(buffer);
+
+        if (sketches != null) {
+            sketches.remove(position);
+
+            if (sketches.isEmpty()) {
+                sketchCache.remove(buffer);
+            }
+        }
+    }
+
     @Override
     public DoublesReservoir get(final ByteBuffer buffer, final int position) {
-        return cache.get(buffer).get(position);
+        if (halfLifeMillis > 0) {
+            return DoublesReservoir.fromDecayedBuffer(buffer, position, maxSize, storage, halfLifeMillis).freeze();
+        }
+
+        if (DoublesReservoir.isPromotedInBuffer(buffer, position)) {
+            return DoublesReservoir.fromSketchBuffer(buffer, position, getSketch(buffer, position), maxSize, storage)
+                                   .freeze();
+        }
+
+        // A copy of the buffer contents, so it is not affected by later updates of the slot
+        return DoublesReservoir.fromBuffer(buffer, position, maxSize, storage, sketchK).freeze();
+    }
+
+    @Override
+    public void relocate(int oldPosition, int newPosition, ByteBuffer oldBuffer, ByteBuffer newBuffer) {
+        // The sketch moved along with the bytes of the slot, and is wrapped again at its new position when needed
+        removeSketch(oldBuffer, oldPosition);
+        removeSketch(newBuffer, newPosition);
     }
 
     @Override
@@ -83,23 +256,7 @@ public class DoublesReservoirBufferBuildAggregator implements BufferAggregator {
 
     @Override
     public void close() {
-        cache.clear();
-    }
-
-    @Override
-    public void relocate(int oldPosition, int newPosition, ByteBuffer oldBuffer, ByteBuffer newBuffer) {
-        final DoublesReservoir doublesReservoir = get(oldBuffer, oldPosition);
-        addToCache(newBuffer, newPosition, doublesReservoir);
-
-        final Int2ObjectMap<DoublesReservoir> map = cache.get(oldBuffer);
-        map.remove(oldPosition);
-
-        if (map.isEmpty()) {
-            cache.remove(oldBuffer);
-        }
-    }
-
-    private void addToCache(final ByteBuffer buffer, final int position, final DoublesReservoir histogram) {
-        cache.computeIfAbsent(buffer, b -> new Int2ObjectOpenHashMap<>()).put(position, histogram);
+        memCache.clear();
+        sketchCache.clear();
     }
 }
@@ -18,35 +18,85 @@
  */
 package com.nttdata.druid.aggregation.percentiles.aggregator;
 
+import com.google.common.primitives.Doubles;
 import com.google.errorprone.annotations.concurrent.GuardedBy;
+import com.nttdata.druid.aggregation.percentiles.metrics.DoublesReservoirCounter;
 import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirStorage;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.java.util.common.logger.Logger;
 import org.apache.druid.query.aggregation.Aggregator;
 import org.apache.druid.segment.ColumnValueSelector;
 
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class DoublesReservoirBuildAggregator implements Aggregator {
+    private static final Logger log = new Logger(DoublesReservoirBuildAggregator.class);
+    // Whether a row has been skipped for its fractional weight yet, which is only logged the first time
+    private static final AtomicBoolean FRACTIONAL_WEIGHT_LOGGED = new AtomicBoolean();
+
     private final ColumnValueSelector<?> selector;
+    // Number of items each row stands for, when rows were pre-aggregated upstream
+    @Nullable
+    private final ColumnValueSelector<?> weightSelector;
+    // Time of each row, for forward-decay reservoirs
+    @Nullable
+    private final ColumnValueSelector<?> timeSelector;
+    // Budget the reservoir was sized against, given back on close, and that reservoirs merged in were charged to
+    @Nullable
+    private final DoublesReservoirMemoryBudget budget;
 
     @GuardedBy("this")
     private DoublesReservoir reservoir;
 
-    public DoublesReservoirBuildAggregator(final ColumnValueSelector<?> selector, int maxSize) {
+    public DoublesReservoirBuildAggregator(
+            final ColumnValueSelector<?> selector,
+            @Nullable final ColumnValueSelector<?> weightSelector,
+            @Nullable final ColumnValueSelector<?> timeSelector,
+            int maxSize,
+            DoublesReservoirStorage storage,
+            int sketchK,
+            long halfLifeMillis,
+            boolean valueCounts,
+            @Nullable final DoublesReservoirMemoryBudget budget) {
         this.selector = selector;
-        this.reservoir = new DoublesReservoir(maxSize);
+        this.weightSelector = weightSelector;
+        this.timeSelector = halfLifeMillis > 0 ? timeSelector : null;
+        this.budget = budget;
+        this.reservoir = halfLifeMillis > 0
+                ? DoublesReservoir.decayed(maxSize, storage, halfLifeMillis)
+                : new DoublesReservoir(maxSize, storage, sketchK, valueCounts);
+        DoublesReservoirCounter.CREATED.increment();
     }
 
     @Override
     public synchronized void aggregate() {
-        Object obj = selector.getObject();
+        Object obj = toInput(selector.getObject());
 
         if (obj == null) {
             return;
         }
 
         if (obj instanceof Number) {
-            this.reservoir.accept(((Number) obj).doubleValue());
+            final double value = ((Number) obj).doubleValue();
+
+            if (timeSelector == null) {
+                this.reservoir.accept(value, getWeight(weightSelector));
+            } else {
+                this.reservoir.acceptAt(value, getTimestamp(timeSelector), getWeight(weightSelector));
+            }
         } else if (obj instanceof DoublesReservoir) {
             this.reservoir.mergeWith((DoublesReservoir) obj);
+
+            if (budget != null) {
+                // e.g. groupBy results read back on the broker, no longer held once merged
+                budget.discharge((DoublesReservoir) obj);
+            }
+        } else if (isSerializedReservoir(obj)) {
+            this.reservoir.mergeWith(DoublesReservoir.deserialize(obj));
         } else {
             throw new IAE(
                     "Expected a number or an instance of DoublesReservoir, but received [%s] of type [%s]",
@@ -54,9 +104,91 @@ public class DoublesReservoirBuildAggregator implements Aggregator {
         }
     }
 
+    /**
+     * Whether the input is a reservoir in one of its serialized forms, as read back from groupBy spill files or
+     * from the results of a subquery.
+     */
+    static boolean isSerializedReservoir(Object obj) {
+        return obj instanceof byte[]
+                || obj instanceof Map
+                || (obj instanceof String && DoublesReservoir.isSerialized((String) obj));
+    }
+
+    /**
+     * The input of the current row, with numbers read as strings, e.g. from a CSV column without a schema, parsed
+     * as numbers, and empty strings dropped like missing values.
+     */
+    @Nullable
+    static Object toInput(@Nullable Object obj) {
+        if (!(obj instanceof String)) {
+            return obj;
+        }
+
+        final String value = (String) obj;
+
+        if (value.isEmpty()) {
+            return null;
+        }
+
+        final Double number = Doubles.tryParse(value);
+        return number == null ? obj : number;
+    }
+
+    /**
+     * Number of items the current row stands for: 1 without a weight column, and none for a missing or non-numeric
+     * weight. Rows whose weight is not a whole number are skipped as well, rather than rounded to a count of items
+     * they do not stand for, and counted in {@link DoublesReservoirCounter#ROWS_SKIPPED}.
+     */
+    static long getWeight(@Nullable ColumnValueSelector<?> weightSelector) {
+        if (weightSelector == null) {
+            return 1;
+        }
+
+        // Read as an object: at ingestion, the selector hands out whatever the complex metric extractor returns
+        final Object weight = weightSelector.getObject();
+
+        if (weight instanceof Number) {
+            return toWeight((Number) weight);
+        }
+
+        if (weight instanceof String && NumberUtils.isCreatable((String) weight)) {
+            return toWeight(NumberUtils.createNumber((String) weight));
+        }
+
+        return 0;
+    }
+
+    private static long toWeight(Number weight) {
+        final double value = weight.doubleValue();
+        final long count = weight.longValue();
+
+        if (value > 0 && value != count) {
+            DoublesReservoirCounter.ROWS_SKIPPED.increment();
+
+            if (FRACTIONAL_WEIGHT_LOGGED.compareAndSet(false, true)) {
+                log.warn("Skipping rows whose weight is not a whole number of items, first one [%s]", weight);
+            }
+
+            return 0;
+        }
+
+        return count;
+    }
+
+    static long getTimestamp(ColumnValueSelector<?> timeSelector) {
+        final Object timestamp = timeSelector.getObject();
+
+        if (timestamp instanceof Number) {
+            return ((Number) timestamp).longValue();
+        }
+
+        throw new IAE("Expected the time of the row, but received [%s]", timestamp);
+    }
+
     @Override
     public synchronized Object get() {
-        return reservoir;
+        // Realtime queries read the reservoir while ingestion keeps aggregating into it
+        return reservoir.snapshot();
     }
 
     @Override
@@ -76,6 +208,10 @@ public class DoublesReservoirBuildAggregator implements Aggregator {
 
     @Override
     public synchronized void close() {
+        if (budget != null && reservoir != null) {
+            budget.release(reservoir.getMaxSize(), reservoir.getStorage());
+        }
+
         reservoir = null;
     }
 }
@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirStorage;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.java.util.common.StringUtils;
+import org.apache.druid.query.QueryContext;
+import org.apache.druid.query.ResourceLimitExceededException;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Heap taken by the reservoir aggregators of a query, on a service running it. Queries set the limit and the policy
+ * with the {@value #CTX_MAX_BYTES_PER_QUERY} and {@value #CTX_BUDGET_POLICY} query context parameters, whatever their
+ * type. {@link DoublesReservoirBudgetFilter} opens the budget of each query request that sets a limit, and closes it
+ * once the response is done; the aggregator factories read or planned on the request thread in between draw on it,
+ * as do the copies made from them. Queries without a limit and ingestion tasks have no budget.
+ *
+ * <p>Heap aggregators reserve room for their reservoir up front and give it back once closed. Reservoirs read back
+ * from other services or from spill files count until they are merged into another, or until they are finalized
+ * for those that hold the merged result. Whatever is still counted when the query ends, e.g. for aggregators that
+ * were never closed, goes away with {@link #close}, so that nothing outlives the query. Reservoirs built in
+ * aggregation buffers are not counted, as the processing buffers already bound them.
+ */
+public class DoublesReservoirMemoryBudget implements AutoCloseable {
+    public static final String CTX_MAX_BYTES_PER_QUERY = "drMaxBytesPerQuery";
+    public static final String CTX_BUDGET_POLICY = "drBudgetPolicy";
+
+    /**
+     * Size below which reservoirs are not downsampled: past that, the query fails even under the downsample policy.
+     */
+    public static final int MIN_DOWNSAMPLED_SIZE = 64;
+
+    // Budget of the query the current thread reads, between open() and close()
+    private static final ThreadLocal<DoublesReservoirMemoryBudget> CURRENT = new ThreadLocal<>();
+
+    private final long maxBytes;
+    private final DoublesReservoirBudgetPolicy policy;
+    private final AtomicLong usedBytes = new AtomicLong();
+    // Bytes charged for each reservoir read back and not merged yet, by identity. Entries go away through
+    // discharge(), or all at once when the query ends.
+    private final Map<DoublesReservoir, Long> charged = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    public DoublesReservoirMemoryBudget(long maxBytes, DoublesReservoirBudgetPolicy policy) {
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * Opens the budget of a query with the given context, for the factories the current thread creates until it is
+     * closed. Returns null, and opens nothing, when the context sets no limit.
+     */
+    @Nullable
+    public static DoublesReservoirMemoryBudget open(QueryContext context) {
+        final long maxBytes = getMaxBytes(context);
+
+        if (maxBytes == 0) {
+            return null;
+        }
+
+        final DoublesReservoirMemoryBudget budget = new DoublesReservoirMemoryBudget(maxBytes, getPolicy(context));
+        CURRENT.set(budget);
+        return budget;
+    }
+
+    /**
+     * Budget of the query the current thread reads, null outside of queries and for queries without a limit.
+     */
+    @Nullable
+    public static DoublesReservoirMemoryBudget current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Stops handing the budget to the factories the current thread creates, while letting those created so far draw
+     * on it until it is closed.
+     */
+    public static void detach() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Limit a query with the given context sets, 0 for none.
+     */
+    public static long getMaxBytes(QueryContext context) {
+        final long maxBytes = context.getLong(CTX_MAX_BYTES_PER_QUERY, 0L);
+
+        if (maxBytes < 0) {
+            throw new IAE("Query context parameter [%s] must be positive", CTX_MAX_BYTES_PER_QUERY);
+        }
+
+        return maxBytes;
+    }
+
+    /**
+     * Policy a query with the given context sets, {@link DoublesReservoirBudgetPolicy#DEFAULT} for none.
+     */
+    public static DoublesReservoirBudgetPolicy getPolicy(QueryContext context) {
+        return DoublesReservoirBudgetPolicy.fromString(context.getString(CTX_BUDGET_POLICY));
+    }
+
+    /**
+     * Reserves room for a reservoir of {@code maxSize} samples, and returns the size it may grow to: {@code maxSize},
+     * or down to {@link #MIN_DOWNSAMPLED_SIZE} once the budget runs short and the policy is to downsample.
+     */
+    public int reserve(int maxSize, DoublesReservoirStorage storage) {
+        return allocate(maxSize, storage);
+    }
+
+    public void release(int maxSize, DoublesReservoirStorage storage) {
+        usedBytes.addAndGet(-getBytes(maxSize, storage));
+    }
+
+    /**
+     * Counts a reservoir brought onto the heap, downsampled first if it does not fit and the policy allows it.
+     */
+    public DoublesReservoir charge(DoublesReservoir reservoir) {
+        // Value counts take no more room than maxSize samples, whatever the number of items they stand for
+        final int size = Math.min(reservoir.getSize(), reservoir.getMaxSize());
+        final int granted = allocate(size, reservoir.getStorage());
+        final DoublesReservoir result = granted < size ? reservoir.downsample(granted) : reservoir;
+
+        charged.put(result, getBytes(granted, reservoir.getStorage()));
+        return result;
+    }
+
+    /**
+     * Gives back the bytes charged for a reservoir read back, once it has been merged into another. Does nothing for
+     * reservoirs that were not charged, or already discharged.
+     */
+    public void discharge(@Nullable DoublesReservoir reservoir) {
+        final Long bytes = reservoir == null ? null : charged.remove(reservoir);
+
+        if (bytes != null) {
+            usedBytes.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * Moves the charge of a reservoir read back to the copy that replaces it, e.g. a mutable copy made to merge into.
+     */
+    public void transfer(DoublesReservoir reservoir, DoublesReservoir copy) {
+        final Long bytes = reservoir == copy ? null : charged.remove(reservoir);
+
+        if (bytes != null) {
+            charged.put(copy, bytes);
+        }
+    }
+
+    /**
+     * Limit past which reservoirs are downsampled, 0 if they never are, as query results depend on it.
+     */
+    public long getDownsampledBytes() {
+        return policy == DoublesReservoirBudgetPolicy.DOWNSAMPLE ? maxBytes : 0;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Ends the query: lets go of all the reservoirs still charged and of the room still reserved. May be called from
+     * any thread.
+     */
+    @Override
+    public void close() {
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+
+        charged.clear();
+        usedBytes.set(0);
+    }
+
+    private int allocate(int size, DoublesReservoirStorage storage) {
+        while (true) {
+            final long used = usedBytes.get();
+            int granted = size;
+
+            if (used + getBytes(size, storage) > maxBytes) {
+                if (policy == DoublesReservoirBudgetPolicy.FAIL) {
+                    throw new ResourceLimitExceededException(StringUtils.format(
+                            "Reservoirs of the query need more than the %,d bytes of %s. Lower their size, raise the "
+                                    + "limit or set %s to downsample.",
+                            maxBytes, CTX_MAX_BYTES_PER_QUERY, CTX_BUDGET_POLICY));
+                }
+
+                final long available = (maxBytes - used - getBytes(0, storage)) / storage.getBytesPerSample();
+                granted = (int) Math.max(0, Math.min(size, available));
+
+                if (granted < Math.min(size, MIN_DOWNSAMPLED_SIZE)) {
+                    throw new ResourceLimitExceededException(StringUtils.format(
+                            "Reservoirs of the query need more than the %,d bytes of %s, even downsampled to %d samples. "
+                                    + "Lower their size or raise the limit.",
+                            maxBytes, CTX_MAX_BYTES_PER_QUERY, MIN_DOWNSAMPLED_SIZE));
+                }
+            }
+
+            if (usedBytes.compareAndSet(used, used + getBytes(granted, storage))) {
+                return granted;
+            }
+        }
+    }
+
+    private static long getBytes(int size, DoublesReservoirStorage storage) {
+        return DoublesReservoir.getBufferSize(size, storage);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Doubles;
+import com.nttdata.druid.aggregation.percentiles.DoublesDistribution;
+import org.apache.druid.query.aggregation.AggregatorFactory;
+import org.apache.druid.query.aggregation.PostAggregator;
+import org.apache.druid.query.cache.CacheKeyBuilder;
+import org.apache.druid.segment.ColumnInspector;
+import org.apache.druid.segment.column.ColumnType;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+@JsonTypeName("doublesReservoirToCDF")
+public class DoublesReservoirToCDFPostAggregator implements PostAggregator {
+    private static final byte CACHE_ID = 0x67;
+    private static final Comparator<double[]> COMPARATOR =
+            Comparator.nullsFirst(Doubles.lexicographicalComparator());
+
+    private final String name;
+    private final PostAggregator field;
+    private final double[] splitPoints;
+
+    @JsonCreator
+    public DoublesReservoirToCDFPostAggregator(
+            @JsonProperty("name") final String name,
+            @JsonProperty("field") final PostAggregator field,
+            @JsonProperty("splitPoints") final double[] splitPoints) {
+        this.name = Preconditions.checkNotNull(name, "name is null");
+        this.field = Preconditions.checkNotNull(field, "field is null");
+        this.splitPoints = Preconditions.checkNotNull(splitPoints, "array of split points is null");
+        DoublesDistribution.checkSplitPoints(splitPoints);
+    }
+
+    @Nullable
+    @Override
+    public ColumnType getType(ColumnInspector signature) {
+        return ColumnType.DOUBLE_ARRAY;
+    }
+
+    @Override
+    public Set<String> getDependentFields() {
+        return field.getDependentFields();
+    }
+
+    @Override
+    public Comparator<double[]> getComparator() {
+        return COMPARATOR;
+    }
+
+    @Nullable
+    @Override
+    public Object compute(Map<String, Object> combinedAggregators) {
+        final Object compute = getField().compute(combinedAggregators);
+        final DoublesDistribution distribution = DoublesDistribution.deserialize(compute);
+
+        return distribution.getCDF(getSplitPoints());
+    }
+
+    @JsonProperty
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @JsonProperty
+    public PostAggregator getField() {
+        return field;
+    }
+
+    @JsonProperty
+    public double[] getSplitPoints() {
+        return splitPoints;
+    }
+
+    @Override
+    public PostAggregator decorate(Map<String, AggregatorFactory> map) {
+        return this;
+    }
+
+    @Override
+    public byte[] getCacheKey() {
+        return new CacheKeyBuilder(CACHE_ID)
+                .appendCacheable(field)
+                .appendDoubleArray(splitPoints)
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" + "name='"
+                + name + '\'' + ", field="
+                + field + ", splitPoints="
+                + Arrays.toString(splitPoints) + "}";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final DoublesReservoirToCDFPostAggregator that = (DoublesReservoirToCDFPostAggregator) o;
+
+        return Arrays.equals(splitPoints, that.splitPoints)
+                && Objects.equals(name, that.name)
+                && Objects.equals(field, that.field);
+    }
+
+    @Override
+    public int hashCode() {
+        return (name.hashCode() * 31 + field.hashCode()) * 31 + Arrays.hashCode(splitPoints);
+    }
+}
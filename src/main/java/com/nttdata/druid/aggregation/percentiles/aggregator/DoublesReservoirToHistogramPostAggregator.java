@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Doubles;
+import com.nttdata.druid.aggregation.percentiles.DoublesDistribution;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.query.aggregation.AggregatorFactory;
+import org.apache.druid.query.aggregation.PostAggregator;
+import org.apache.druid.query.cache.CacheKeyBuilder;
+import org.apache.druid.segment.ColumnInspector;
+import org.apache.druid.segment.column.ColumnType;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+@JsonTypeName("doublesReservoirToHistogram")
+public class DoublesReservoirToHistogramPostAggregator implements PostAggregator {
+    public static final int DEFAULT_NUM_BINS = 10;
+
+    private static final byte CACHE_ID = 0x68;
+    private static final Comparator<double[]> COMPARATOR =
+            Comparator.nullsFirst(Doubles.lexicographicalComparator());
+
+    private final String name;
+    private final PostAggregator field;
+    @Nullable
+    private final double[] splitPoints;
+    @Nullable
+    private final Integer numBins;
+
+    @JsonCreator
+    public DoublesReservoirToHistogramPostAggregator(
+            @JsonProperty("name") final String name,
+            @JsonProperty("field") final PostAggregator field,
+            @JsonProperty("splitPoints") @Nullable final double[] splitPoints,
+            @JsonProperty("numBins") @Nullable final Integer numBins) {
+        this.name = Preconditions.checkNotNull(name, "name is null");
+        this.field = Preconditions.checkNotNull(field, "field is null");
+        this.splitPoints = splitPoints;
+        this.numBins = numBins;
+
+        if (splitPoints != null) {
+            if (numBins != null) {
+                throw new IAE("Cannot use both splitPoints and numBins");
+            }
+
+            DoublesDistribution.checkSplitPoints(splitPoints);
+        } else if (numBins != null && numBins < 1) {
+            throw new IAE("Number of bins must be positive, got [%s]", numBins);
+        }
+    }
+
+    @Nullable
+    @Override
+    public ColumnType getType(ColumnInspector signature) {
+        return ColumnType.DOUBLE_ARRAY;
+    }
+
+    @Override
+    public Set<String> getDependentFields() {
+        return field.getDependentFields();
+    }
+
+    @Override
+    public Comparator<double[]> getComparator() {
+        return COMPARATOR;
+    }
+
+    @Nullable
+    @Override
+    public Object compute(Map<String, Object> combinedAggregators) {
+        final Object compute = getField().compute(combinedAggregators);
+        final DoublesDistribution distribution = DoublesDistribution.deserialize(compute);
+
+        return splitPoints != null
+                ? distribution.getHistogram(splitPoints)
+                : distribution.getHistogram(numBins != null ? numBins : DEFAULT_NUM_BINS);
+    }
+
+    @JsonProperty
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @JsonProperty
+    public PostAggregator getField() {
+        return field;
+    }
+
+    @Nullable
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public double[] getSplitPoints() {
+        return splitPoints;
+    }
+
+    @Nullable
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Integer getNumBins() {
+        return numBins;
+    }
+
+    @Override
+    public PostAggregator decorate(Map<String, AggregatorFactory> map) {
+        return this;
+    }
+
+    @Override
+    public byte[] getCacheKey() {
+        final CacheKeyBuilder builder = new CacheKeyBuilder(CACHE_ID).appendCacheable(field);
+
+        if (splitPoints != null) {
+            builder.appendDoubleArray(splitPoints);
+        } else {
+            builder.appendInt(numBins != null ? numBins : DEFAULT_NUM_BINS);
+        }
+
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" + "name='"
+                + name + '\'' + ", field="
+                + field + ", splitPoints="
+                + Arrays.toString(splitPoints) + ", numBins="
+                + numBins + "}";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final DoublesReservoirToHistogramPostAggregator that = (DoublesReservoirToHistogramPostAggregator) o;
+
+        return Arrays.equals(splitPoints, that.splitPoints)
+                && Objects.equals(numBins, that.numBins)
+                && Objects.equals(name, that.name)
+                && Objects.equals(field, that.field);
+    }
+
+    @Override
+    public int hashCode() {
+        return ((name.hashCode() * 31 + field.hashCode()) * 31 + Arrays.hashCode(splitPoints)) * 31
+                + Objects.hashCode(numBins);
+    }
+}
@@ -23,7 +23,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Doubles;
-import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
+import com.nttdata.druid.aggregation.percentiles.DoublesDistribution;
 import org.apache.druid.query.aggregation.AggregatorFactory;
 import org.apache.druid.query.aggregation.PostAggregator;
 import org.apache.druid.query.cache.CacheKeyBuilder;
@@ -71,9 +71,9 @@ public class DoublesReservoirToMAXPostAggregator implements PostAggregator {
     @Override
     public Object compute(Map<String, Object> combinedAggregators) {
         final Object compute = getField().compute(combinedAggregators);
-        final DoublesReservoir reservoir = DoublesReservoir.deserialize(compute);
+        final DoublesDistribution distribution = DoublesDistribution.deserialize(compute);
 
-        return reservoir.getMax();
+        return distribution.getMax();
     }
 
     @JsonProperty
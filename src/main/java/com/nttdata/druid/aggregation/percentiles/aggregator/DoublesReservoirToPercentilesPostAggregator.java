@@ -22,8 +22,8 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
 import com.google.common.base.Preconditions;
-import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
-import org.apache.druid.java.util.common.IAE;
+import com.google.common.primitives.Doubles;
+import com.nttdata.druid.aggregation.percentiles.DoublesDistribution;
 import org.apache.druid.query.aggregation.AggregatorFactory;
 import org.apache.druid.query.aggregation.PostAggregator;
 import org.apache.druid.query.cache.CacheKeyBuilder;
@@ -36,6 +36,8 @@ import java.util.*;
 @JsonTypeName("doublesReservoirToPercentiles")
 public class DoublesReservoirToPercentilesPostAggregator implements PostAggregator {
     private static final byte CACHE_ID = 0x62;
+    private static final Comparator<double[]> COMPARATOR =
+            Comparator.nullsFirst(Doubles.lexicographicalComparator());
 
     private final String name;
     private final PostAggregator field;
@@ -64,16 +66,16 @@ public class DoublesReservoirToPercentilesPostAggregator implements PostAggregat
 
     @Override
     public Comparator<double[]> getComparator() {
-        throw new IAE("Comparing arrays of percentiles is not supported");
+        return COMPARATOR;
     }
 
     @Nullable
     @Override
     public Object compute(Map<String, Object> combinedAggregators) {
         final Object compute = getField().compute(combinedAggregators);
-        final DoublesReservoir reservoir = DoublesReservoir.deserialize(compute);
+        final DoublesDistribution distribution = DoublesDistribution.deserialize(compute);
 
-        return reservoir.getPercentile(getFractions());
+        return distribution.getPercentile(getFractions());
     }
 
     @JsonProperty
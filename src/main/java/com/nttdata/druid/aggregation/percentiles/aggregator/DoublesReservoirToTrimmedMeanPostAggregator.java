@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Doubles;
+import com.nttdata.druid.aggregation.percentiles.DoublesDistribution;
+import com.nttdata.druid.aggregation.percentiles.DoublesDistributionStatistics;
+import org.apache.druid.query.aggregation.AggregatorFactory;
+import org.apache.druid.query.aggregation.PostAggregator;
+import org.apache.druid.query.cache.CacheKeyBuilder;
+import org.apache.druid.segment.ColumnInspector;
+import org.apache.druid.segment.column.ColumnType;
+
+import javax.annotation.Nullable;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+@JsonTypeName("doublesReservoirToTrimmedMean")
+public class DoublesReservoirToTrimmedMeanPostAggregator implements PostAggregator {
+    private static final byte CACHE_ID = 0x69;
+
+    private final String name;
+    private final PostAggregator field;
+    private final Double lowerFraction;
+    private final Double upperFraction;
+
+    @JsonCreator
+    public DoublesReservoirToTrimmedMeanPostAggregator(
+            @JsonProperty("name") final String name,
+            @JsonProperty("field") final PostAggregator field,
+            @JsonProperty("lowerFraction") final Double lowerFraction,
+            @JsonProperty("upperFraction") final Double upperFraction) {
+        this.name = Preconditions.checkNotNull(name, "name is null");
+        this.field = Preconditions.checkNotNull(field, "field is null");
+        this.lowerFraction = Preconditions.checkNotNull(lowerFraction, "lowerFraction is null");
+        this.upperFraction = Preconditions.checkNotNull(upperFraction, "upperFraction is null");
+        DoublesDistributionStatistics.checkTrimFractions(lowerFraction, upperFraction);
+    }
+
+    @Nullable
+    @Override
+    public ColumnType getType(ColumnInspector signature) {
+        return ColumnType.DOUBLE;
+    }
+
+    @Override
+    public Set<String> getDependentFields() {
+        return field.getDependentFields();
+    }
+
+    @Override
+    public Comparator<Double> getComparator() {
+        return Doubles::compare;
+    }
+
+    @Nullable
+    @Override
+    public Object compute(Map<String, Object> combinedAggregators) {
+        final Object compute = getField().compute(combinedAggregators);
+        final DoublesDistribution distribution = DoublesDistribution.deserialize(compute);
+
+        return distribution.getTrimmedMean(getLowerFraction(), getUpperFraction());
+    }
+
+    @JsonProperty
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @JsonProperty
+    public PostAggregator getField() {
+        return field;
+    }
+
+    @JsonProperty
+    public double getLowerFraction() {
+        return lowerFraction;
+    }
+
+    @JsonProperty
+    public double getUpperFraction() {
+        return upperFraction;
+    }
+
+    @Override
+    public PostAggregator decorate(Map<String, AggregatorFactory> map) {
+        return this;
+    }
+
+    @Override
+    public byte[] getCacheKey() {
+        return new CacheKeyBuilder(CACHE_ID)
+                .appendCacheable(field)
+                .appendDouble(lowerFraction)
+                .appendDouble(upperFraction)
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + "{" + "name='" + name + '\''
+                + ", field=" + field
+                + ", lowerFraction=" + lowerFraction
+                + ", upperFraction=" + upperFraction + "}";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final DoublesReservoirToTrimmedMeanPostAggregator that = (DoublesReservoirToTrimmedMeanPostAggregator) o;
+        return Objects.equals(lowerFraction, that.lowerFraction)
+                && Objects.equals(upperFraction, that.upperFraction)
+                && Objects.equals(name, that.name)
+                && Objects.equals(field, that.field);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, field, lowerFraction, upperFraction);
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.expression;
+
+import com.nttdata.druid.aggregation.percentiles.DoublesDistribution;
+import com.nttdata.druid.aggregation.percentiles.aggregator.DoublesReservoirToPercentileCIPostAggregator;
+import org.apache.druid.math.expr.Expr;
+import org.apache.druid.math.expr.ExprEval;
+import org.apache.druid.math.expr.ExprMacroTable;
+import org.apache.druid.math.expr.ExpressionType;
+import org.apache.druid.math.expr.vector.ExprEvalDoubleVector;
+import org.apache.druid.math.expr.vector.ExprEvalVector;
+import org.apache.druid.math.expr.vector.ExprVectorProcessor;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Native expression functions over {@link DoublesDistribution} values (reservoirs and histograms), so the
+ * {@code DR_GET_*} functions can be used in virtual columns, filters and inner layers of nested queries on
+ * pre-aggregated reservoir and histogram columns.
+ */
+public class DoublesReservoirExprMacros {
+    public static final String PERCENTILE = "dr_percentile";
+    public static final String PERCENTILES = "dr_percentiles";
+    public static final String STDDEV = "dr_stddev";
+    public static final String AVG = "dr_avg";
+    public static final String MIN = "dr_min";
+    public static final String MAX = "dr_max";
+    public static final String RANK = "dr_rank";
+    public static final String CDF = "dr_cdf";
+    public static final String HISTOGRAM = "dr_histogram";
+    public static final String HISTOGRAM_BINS = "dr_histogram_bins";
+    public static final String TRIMMED_MEAN = "dr_trimmed_mean";
+    public static final String IQR = "dr_iqr";
+    public static final String MAD = "dr_mad";
+    public static final String PERCENTILE_CI = "dr_percentile_ci";
+
+    private DoublesReservoirExprMacros() {
+        throw new AssertionError("No DoublesReservoirExprMacros instances for you!");
+    }
+
+    public static class PercentileExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return PERCENTILE;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckArgumentCount(args, 2);
+            final double fraction = getLiteralFraction(this, args.get(1));
+
+            return new DoublesReservoirToDoubleExpr(this, args, reservoir -> reservoir.getPercentile(fraction));
+        }
+    }
+
+    public static class PercentilesExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return PERCENTILES;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckMinArgumentCount(args, 2);
+            final double[] fractions = new double[args.size() - 1];
+
+            for (int index = 0; index < fractions.length; ++index) {
+                fractions[index] = getLiteralFraction(this, args.get(index + 1));
+            }
+
+            return new DoublesReservoirToDoubleArrayExpr(this, args, reservoir -> reservoir.getPercentile(fractions));
+        }
+    }
+
+    public static class RankExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return RANK;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckArgumentCount(args, 2);
+            final double value = getLiteralDouble(this, "value", args.get(1));
+
+            return new DoublesReservoirToDoubleExpr(this, args, reservoir -> reservoir.getRank(value));
+        }
+    }
+
+    public static class CDFExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return CDF;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckMinArgumentCount(args, 2);
+            final double[] splitPoints = getSplitPoints(this, args);
+
+            return new DoublesReservoirToDoubleArrayExpr(this, args, reservoir -> reservoir.getCDF(splitPoints));
+        }
+    }
+
+    public static class HistogramExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return HISTOGRAM;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckMinArgumentCount(args, 2);
+            final double[] splitPoints = getSplitPoints(this, args);
+
+            return new DoublesReservoirToDoubleArrayExpr(
+                    this, args, reservoir -> reservoir.getHistogram(splitPoints));
+        }
+    }
+
+    public static class HistogramBinsExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return HISTOGRAM_BINS;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckArgumentCount(args, 2);
+            final double numBins = getLiteralDouble(this, "numBins", args.get(1));
+
+            if (numBins < 1 || numBins != Math.floor(numBins)) {
+                throw validationFailed("numBins argument [%s] must be a positive integer", args.get(1).stringify());
+            }
+
+            return new DoublesReservoirToDoubleArrayExpr(
+                    this, args, reservoir -> reservoir.getHistogram((int) numBins));
+        }
+    }
+
+    public static class PercentileCIExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return PERCENTILE_CI;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckArgumentRange(args, 2, 3);
+            final double fraction = getLiteralFraction(this, args.get(1));
+            final double confidence = args.size() > 2
+                    ? getLiteralDouble(this, "confidence", args.get(2))
+                    : DoublesReservoirToPercentileCIPostAggregator.DEFAULT_CONFIDENCE;
+
+            if (!(confidence > 0 && confidence < 1)) {
+                throw validationFailed("confidence must be > 0 and < 1");
+            }
+
+            return new DoublesReservoirToDoubleArrayExpr(
+                    this, args, reservoir -> reservoir.getPercentileConfidenceInterval(fraction, confidence));
+        }
+    }
+
+    public static class StddevExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return STDDEV;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckArgumentCount(args, 1);
+            return new DoublesReservoirToDoubleExpr(this, args, DoublesDistribution::getStddev);
+        }
+    }
+
+    public static class AVGExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return AVG;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckArgumentCount(args, 1);
+            return new DoublesReservoirToDoubleExpr(this, args, DoublesDistribution::getAVG);
+        }
+    }
+
+    public static class MINExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return MIN;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckArgumentCount(args, 1);
+            return new DoublesReservoirToDoubleExpr(this, args, DoublesDistribution::getMin);
+        }
+    }
+
+    public static class MAXExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return MAX;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckArgumentCount(args, 1);
+            return new DoublesReservoirToDoubleExpr(this, args, DoublesDistribution::getMax);
+        }
+    }
+
+    public static class TrimmedMeanExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return TRIMMED_MEAN;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckArgumentCount(args, 3);
+            final double lowerFraction = getLiteralDouble(this, "lower fraction", args.get(1));
+            final double upperFraction = getLiteralDouble(this, "upper fraction", args.get(2));
+
+            if (!(lowerFraction >= 0 && lowerFraction < upperFraction && upperFraction <= 1)) {
+                throw validationFailed("fractions must satisfy 0 <= lower < upper <= 1");
+            }
+
+            return new DoublesReservoirToDoubleExpr(
+                    this, args, reservoir -> reservoir.getTrimmedMean(lowerFraction, upperFraction));
+        }
+    }
+
+    public static class IQRExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return IQR;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckArgumentCount(args, 1);
+            return new DoublesReservoirToDoubleExpr(this, args, DoublesDistribution::getIQR);
+        }
+    }
+
+    public static class MADExprMacro implements ExprMacroTable.ExprMacro {
+        @Override
+        public String name() {
+            return MAD;
+        }
+
+        @Override
+        public Expr apply(List<Expr> args) {
+            validationHelperCheckArgumentCount(args, 1);
+            return new DoublesReservoirToDoubleExpr(this, args, DoublesDistribution::getMedianAbsoluteDeviation);
+        }
+    }
+
+    /**
+     * Reduces the distribution in the first argument to a single double, row by row or a vector at a time.
+     */
+    static class DoublesReservoirToDoubleExpr extends ExprMacroTable.BaseScalarMacroFunctionExpr {
+        private final ToDoubleFunction<DoublesDistribution> function;
+
+        DoublesReservoirToDoubleExpr(
+                ExprMacroTable.ExprMacro macro, List<Expr> args, ToDoubleFunction<DoublesDistribution> function) {
+            super(macro, args);
+            this.function = function;
+        }
+
+        @Override
+        public ExprEval eval(ObjectBinding bindings) {
+            final Object value = args.get(0).eval(bindings).value();
+
+            if (value == null) {
+                return ExprEval.ofDouble(null);
+            }
+
+            return ExprEval.ofDouble(function.applyAsDouble(DoublesDistribution.deserialize(value)));
+        }
+
+        @Nullable
+        @Override
+        public ExpressionType getOutputType(InputBindingInspector inspector) {
+            return ExpressionType.DOUBLE;
+        }
+
+        @Override
+        public boolean canVectorize(InputBindingInspector inspector) {
+            return args.get(0).canVectorize(inspector);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> ExprVectorProcessor<T> asVectorProcessor(VectorInputBindingInspector inspector) {
+            final ExprVectorProcessor<?> input = args.get(0).asVectorProcessor(inspector);
+
+            return (ExprVectorProcessor<T>) new ExprVectorProcessor<double[]>() {
+                private final double[] output = new double[inspector.getMaxVectorSize()];
+                private final boolean[] outputNulls = new boolean[inspector.getMaxVectorSize()];
+
+                @Override
+                public ExprEvalVector<double[]> evalVector(VectorInputBinding bindings) {
+                    final Object[] reservoirs = input.evalVector(bindings).getObjectVector();
+
+                    for (int row = 0; row < bindings.getCurrentVectorSize(); ++row) {
+                        final Object value = reservoirs[row];
+                        outputNulls[row] = value == null;
+                        output[row] = value == null
+                                ? 0
+                                : function.applyAsDouble(DoublesDistribution.deserialize(value));
+                    }
+
+                    return new ExprEvalDoubleVector(output, outputNulls);
+                }
+
+                @Override
+                public ExpressionType getOutputType() {
+                    return ExpressionType.DOUBLE;
+                }
+
+                @Override
+                public int maxVectorSize() {
+                    return output.length;
+                }
+            };
+        }
+    }
+
+    /**
+     * Reduces the distribution in the first argument to an array of doubles, row by row.
+     */
+    static class DoublesReservoirToDoubleArrayExpr extends ExprMacroTable.BaseScalarMacroFunctionExpr {
+        private final Function<DoublesDistribution, double[]> function;
+
+        DoublesReservoirToDoubleArrayExpr(
+                ExprMacroTable.ExprMacro macro, List<Expr> args, Function<DoublesDistribution, double[]> function) {
+            super(macro, args);
+            this.function = function;
+        }
+
+        @Override
+        public ExprEval eval(ObjectBinding bindings) {
+            final Object value = args.get(0).eval(bindings).value();
+
+            if (value == null) {
+                return ExprEval.ofArray(ExpressionType.DOUBLE_ARRAY, null);
+            }
+
+            final double[] doubles = function.apply(DoublesDistribution.deserialize(value));
+            final Double[] result = new Double[doubles.length];
+
+            for (int index = 0; index < doubles.length; ++index) {
+                result[index] = doubles[index];
+            }
+
+            return ExprEval.ofArray(ExpressionType.DOUBLE_ARRAY, result);
+        }
+
+        @Nullable
+        @Override
+        public ExpressionType getOutputType(InputBindingInspector inspector) {
+            return ExpressionType.DOUBLE_ARRAY;
+        }
+    }
+
+    private static double[] getSplitPoints(ExprMacroTable.ExprMacro macro, List<Expr> args) {
+        final double[] splitPoints = new double[args.size() - 1];
+
+        for (int index = 0; index < splitPoints.length; ++index) {
+            splitPoints[index] = getLiteralDouble(macro, "split point", args.get(index + 1));
+        }
+
+        for (int index = 1; index < splitPoints.length; ++index) {
+            if (!(splitPoints[index] > splitPoints[index - 1])) {
+                throw macro.validationFailed("split points must be strictly increasing");
+            }
+        }
+
+        return splitPoints;
+    }
+
+    /**
+     * Checked when the expression is planned, rather than failing on every row.
+     */
+    private static double getLiteralFraction(ExprMacroTable.ExprMacro macro, Expr arg) {
+        final double fraction = getLiteralDouble(macro, "fraction", arg);
+
+        if (!(fraction >= 0 && fraction <= 1)) {
+            throw macro.validationFailed("fraction argument [%s] must be >= 0 and <= 1", arg.stringify());
+        }
+
+        return fraction;
+    }
+
+    private static double getLiteralDouble(ExprMacroTable.ExprMacro macro, String argName, Expr arg) {
+        if (!arg.isLiteral() || !(arg.getLiteralValue() instanceof Number)) {
+            throw macro.validationFailed("%s argument [%s] must be a numeric literal", argName, arg.stringify());
+        }
+
+        return ((Number) arg.getLiteralValue()).doubleValue();
+    }
+}
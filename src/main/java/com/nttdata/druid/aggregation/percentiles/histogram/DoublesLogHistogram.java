@@ -0,0 +1,566 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.histogram;
+
+import com.nttdata.druid.aggregation.percentiles.DoublesDistribution;
+import com.nttdata.druid.aggregation.percentiles.DoublesDistributionStatistics;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.java.util.common.ISE;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+
+/**
+ * Log-linear histogram of a stream of doubles, in the spirit of HdrHistogram: items are counted in the buckets of a
+ * {@link DoublesLogHistogramLayout}, so percentiles have a bounded relative error, memory is fixed by the layout
+ * whatever the number of items, and two histograms merge by adding their counters. The count, minimum, maximum,
+ * average and standard deviation are exact.
+ *
+ * <p>Like reservoirs, a histogram is mutable until {@link #freeze()} makes it safe to share.
+ */
+public class DoublesLogHistogram implements DoublesDistribution, Serializable {
+    /**
+     * Orders histograms by the number of items they have seen.
+     */
+    public static final Comparator<DoublesLogHistogram> COUNT_COMPARATOR =
+            Comparator.nullsFirst(Comparator.comparingLong(DoublesLogHistogram::getTotalItemsSeen));
+
+    // The high bit tells the binary form of a histogram apart from the versions of the reservoir format
+    private static final byte SERIAL_VERSION = (byte) 0x81;
+
+    // In-buffer aggregation state: totalItemsSeen, min, max, mean, sum of squared deviations, then one counter per
+    // bucket
+    private static final int BUFFER_HEADER_BYTES = Long.BYTES + 4 * Double.BYTES;
+
+    private final DoublesLogHistogramLayout layout;
+    private final long[] counts;
+    private long totalItemsSeen;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    // Running mean and sum of squared deviations, for the average and standard deviation
+    private double mean;
+    private double sumOfSquaredDeviations;
+
+    private transient boolean frozen;
+
+    public DoublesLogHistogram(DoublesLogHistogramLayout layout) {
+        this.layout = layout;
+        this.counts = new long[layout.getNumBuckets()];
+    }
+
+    public void accept(double value) {
+        checkNotFrozen();
+
+        if (Double.isNaN(value)) {
+            return;
+        }
+
+        ++counts[layout.indexOf(value)];
+        ++totalItemsSeen;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+
+        // Welford's online update
+        final double delta = value - mean;
+        mean += delta / totalItemsSeen;
+        sumOfSquaredDeviations += delta * (value - mean);
+    }
+
+    /**
+     * Adds the items of {@code source} to this histogram. Histograms with the same layout add up their counters;
+     * otherwise, the items of each bucket of {@code source} are counted at the value standing for that bucket.
+     */
+    public DoublesLogHistogram mergeWith(@Nullable DoublesLogHistogram source) {
+        checkNotFrozen();
+
+        if (source == null || source.totalItemsSeen == 0) {
+            return this;
+        }
+
+        if (layout.equals(source.layout)) {
+            for (int index = 0; index < counts.length; ++index) {
+                counts[index] += source.counts[index];
+            }
+        } else {
+            for (int index = 0; index < source.counts.length; ++index) {
+                if (source.counts[index] > 0) {
+                    counts[layout.indexOf(source.valueOf(index))] += source.counts[index];
+                }
+            }
+        }
+
+        // Chan et al. parallel update of the statistics
+        final long total = totalItemsSeen + source.totalItemsSeen;
+        final double delta = source.mean - mean;
+
+        mean += delta * source.totalItemsSeen / total;
+        sumOfSquaredDeviations += source.sumOfSquaredDeviations
+                + delta * delta * ((double) totalItemsSeen * source.totalItemsSeen / total);
+        totalItemsSeen = total;
+        min = Math.min(min, source.min);
+        max = Math.max(max, source.max);
+
+        return this;
+    }
+
+    /**
+     * Empties this histogram, keeping its counters for reuse.
+     */
+    public void clear() {
+        checkNotFrozen();
+        Arrays.fill(counts, 0);
+        totalItemsSeen = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        mean = 0;
+        sumOfSquaredDeviations = 0;
+    }
+
+    /**
+     * A mutable copy of this histogram, owned by the caller.
+     */
+    public DoublesLogHistogram copy() {
+        final DoublesLogHistogram copy = new DoublesLogHistogram(layout);
+        System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+        copy.totalItemsSeen = totalItemsSeen;
+        copy.min = min;
+        copy.max = max;
+        copy.mean = mean;
+        copy.sumOfSquaredDeviations = sumOfSquaredDeviations;
+        return copy;
+    }
+
+    /**
+     * Makes this histogram read-only, so it can be shared.
+     */
+    public DoublesLogHistogram freeze() {
+        frozen = true;
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new ISE("Cannot modify a frozen histogram");
+        }
+    }
+
+    public DoublesLogHistogramLayout getLayout() {
+        return layout;
+    }
+
+    @Override
+    public long getTotalItemsSeen() {
+        return totalItemsSeen;
+    }
+
+    @Override
+    public double getPercentile(double fraction) {
+        checkFractionBound(fraction);
+
+        if (totalItemsSeen == 0) {
+            return Double.NaN;
+        }
+
+        final long rank = (long) Math.ceil(fraction * totalItemsSeen);
+
+        if (rank <= 1) {
+            return min;
+        }
+        if (rank >= totalItemsSeen) {
+            return max;
+        }
+
+        long seen = 0;
+
+        for (int index = 0; index < counts.length; ++index) {
+            seen += counts[index];
+
+            if (seen >= rank) {
+                return valueOf(index);
+            }
+        }
+
+        return max;
+    }
+
+    @Override
+    public double[] getPercentile(double[] fractions) {
+        final double[] percentiles = new double[fractions.length];
+
+        for (int index = 0; index < fractions.length; ++index) {
+            percentiles[index] = getPercentile(fractions[index]);
+        }
+
+        return percentiles;
+    }
+
+    /**
+     * Fraction of the items seen that are less than or equal to {@code value}, counting the items of each bucket at
+     * the value standing for it, the same value {@link #getPercentile} reads for them.
+     */
+    @Override
+    public double getRank(double value) {
+        if (totalItemsSeen == 0 || Double.isNaN(value)) {
+            return Double.NaN;
+        }
+
+        if (value < min) {
+            return 0.0;
+        }
+        if (value >= max) {
+            return 1.0;
+        }
+
+        long seen = 0;
+
+        for (int index = 0; index < counts.length && valueOf(index) <= value; ++index) {
+            seen += counts[index];
+        }
+
+        return (double) seen / totalItemsSeen;
+    }
+
+    /**
+     * Bounds of a percentile from the range of the bucket holding it: the histogram counts all the items, so the
+     * error only comes from the width of the buckets, and holds whatever the confidence.
+     */
+    @Override
+    public double[] getPercentileConfidenceInterval(double fraction, double confidence) {
+        DoublesDistributionStatistics.checkConfidence(confidence);
+        final double estimate = getPercentile(fraction);
+
+        if (Double.isNaN(estimate)) {
+            return new double[]{estimate, estimate, estimate};
+        }
+
+        final int index = layout.indexOf(estimate);
+        return new double[]{
+                Math.max(min, layout.lowerBoundAt(index)), estimate, Math.min(max, layout.upperBoundAt(index))
+        };
+    }
+
+    /**
+     * Trimmed mean, counting the items of each bucket at the value standing for it.
+     */
+    @Override
+    public double getTrimmedMean(double lowerFraction, double upperFraction) {
+        return DoublesDistributionStatistics.trimmedMean(
+                this::valueOf, index -> counts[index], counts.length, totalItemsSeen, lowerFraction, upperFraction);
+    }
+
+    /**
+     * Median absolute deviation, counting the items of each bucket at the value standing for it.
+     */
+    @Override
+    public double getMedianAbsoluteDeviation() {
+        return DoublesDistributionStatistics.medianAbsoluteDeviation(
+                this::valueOf, index -> counts[index], counts.length, totalItemsSeen, getMedian());
+    }
+
+    public double getMedian() {
+        return getPercentile(0.5);
+    }
+
+    @Override
+    public double getStddev() {
+        return totalItemsSeen <= 1
+                ? (totalItemsSeen == 0 ? Double.NaN : 0.0)
+                : Math.sqrt(sumOfSquaredDeviations / (totalItemsSeen - 1));
+    }
+
+    @Override
+    public double getAVG() {
+        return totalItemsSeen == 0 ? Double.NaN : mean;
+    }
+
+    @Override
+    public double getMin() {
+        return totalItemsSeen == 0 ? Double.NaN : min;
+    }
+
+    @Override
+    public double getMax() {
+        return totalItemsSeen == 0 ? Double.NaN : max;
+    }
+
+    /**
+     * Value standing for the items of a bucket, within the range of the items seen.
+     */
+    private double valueOf(int index) {
+        final double value = layout.valueAt(index);
+
+        if (Double.isNaN(value)) {
+            return index == 0 ? min : max;
+        }
+
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static void checkFractionBound(final double fraction) {
+        if ((fraction < 0.0) || (fraction > 1.0)) {
+            throw new IAE("A fraction must be >= 0 and <= 1.0: " + fraction);
+        }
+    }
+
+    /**
+     * Serializes this histogram as a little-endian header followed by its non-empty buckets, each as its index and
+     * its count.
+     */
+    public byte[] toBytes() {
+        int nonEmpty = 0;
+
+        for (long count : counts) {
+            if (count > 0) {
+                ++nonEmpty;
+            }
+        }
+
+        final ByteBuffer buffer = ByteBuffer
+                .allocate(2 * Byte.BYTES + 7 * Double.BYTES + Integer.BYTES + nonEmpty * (Integer.BYTES + Long.BYTES))
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.put(SERIAL_VERSION);
+        buffer.put((byte) layout.getSignificantDigits());
+        buffer.putDouble(layout.getLowestDiscernibleValue());
+        buffer.putDouble(layout.getHighestTrackableValue());
+        buffer.putLong(totalItemsSeen);
+        buffer.putDouble(min);
+        buffer.putDouble(max);
+        buffer.putDouble(mean);
+        buffer.putDouble(sumOfSquaredDeviations);
+        buffer.putInt(nonEmpty);
+
+        for (int index = 0; index < counts.length; ++index) {
+            if (counts[index] > 0) {
+                buffer.putInt(index);
+                buffer.putLong(counts[index]);
+            }
+        }
+
+        return buffer.array();
+    }
+
+    public static DoublesLogHistogram fromBytes(ByteBuffer buffer) {
+        final ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        final byte version = data.get();
+
+        if (version != SERIAL_VERSION) {
+            throw new IAE("Unsupported histogram serialization version [%s]", version);
+        }
+
+        final int significantDigits = data.get();
+        final DoublesLogHistogramLayout layout =
+                DoublesLogHistogramLayout.of(significantDigits, data.getDouble(), data.getDouble());
+        final DoublesLogHistogram histogram = new DoublesLogHistogram(layout);
+
+        histogram.totalItemsSeen = data.getLong();
+        histogram.min = data.getDouble();
+        histogram.max = data.getDouble();
+        histogram.mean = data.getDouble();
+        histogram.sumOfSquaredDeviations = data.getDouble();
+
+        final int nonEmpty = data.getInt();
+
+        for (int bucket = 0; bucket < nonEmpty; ++bucket) {
+            final int index = data.getInt();
+            histogram.counts[index] = data.getLong();
+        }
+
+        buffer.position(buffer.position() + data.position());
+
+        return histogram;
+    }
+
+    /**
+     * Whether the given bytes are the binary form of a histogram rather than of a reservoir.
+     */
+    public static boolean isSerialized(byte[] data) {
+        return data.length > 0 && data[0] == SERIAL_VERSION;
+    }
+
+    /**
+     * Reads a histogram in any of the forms it can take in query results, groupBy spill files and segments.
+     */
+    @Nullable
+    public static DoublesLogHistogram deserialize(@Nullable Object data) {
+        if (data == null || data instanceof DoublesLogHistogram) {
+            return (DoublesLogHistogram) data;
+        }
+
+        if (data instanceof byte[]) {
+            return fromBytes(ByteBuffer.wrap((byte[]) data));
+        }
+
+        if (data instanceof String) {
+            final String base64 = (String) data;
+            return StringUtils.isEmpty(base64) ? null : fromBytes(ByteBuffer.wrap(Base64.getDecoder().decode(base64)));
+        }
+
+        throw new IAE("Cannot deserialize object of type " + data.getClass().getName());
+    }
+
+    /**
+     * Number of bytes taken in an aggregation buffer by a histogram with the given layout.
+     */
+    public static int getBufferSize(DoublesLogHistogramLayout layout) {
+        return BUFFER_HEADER_BYTES + layout.getNumBuckets() * Long.BYTES;
+    }
+
+    /**
+     * Writes an empty histogram at the given position of an aggregation buffer.
+     */
+    public static void initBuffer(ByteBuffer buffer, int position, DoublesLogHistogramLayout layout) {
+        buffer.putLong(position, 0);
+        buffer.putDouble(position + Long.BYTES, Double.POSITIVE_INFINITY);
+        buffer.putDouble(position + Long.BYTES + Double.BYTES, Double.NEGATIVE_INFINITY);
+        buffer.putDouble(position + Long.BYTES + 2 * Double.BYTES, 0);
+        buffer.putDouble(position + Long.BYTES + 3 * Double.BYTES, 0);
+
+        final int start = position + BUFFER_HEADER_BYTES;
+        for (int index = 0; index < layout.getNumBuckets(); ++index) {
+            buffer.putLong(start + index * Long.BYTES, 0);
+        }
+    }
+
+    /**
+     * Same as {@link #accept(double)}, applied directly to the histogram stored at the given position.
+     */
+    public static void acceptInBuffer(ByteBuffer buffer, int position, DoublesLogHistogramLayout layout, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+
+        final int minPosition = position + Long.BYTES;
+        final int maxPosition = minPosition + Double.BYTES;
+        final int meanPosition = maxPosition + Double.BYTES;
+        final int deviationsPosition = meanPosition + Double.BYTES;
+        final int counter = position + BUFFER_HEADER_BYTES + layout.indexOf(value) * Long.BYTES;
+        final long totalItemsSeen = buffer.getLong(position) + 1;
+        final double mean = buffer.getDouble(meanPosition);
+        final double delta = value - mean;
+        final double newMean = mean + delta / totalItemsSeen;
+
+        buffer.putLong(counter, buffer.getLong(counter) + 1);
+        buffer.putLong(position, totalItemsSeen);
+        buffer.putDouble(minPosition, Math.min(buffer.getDouble(minPosition), value));
+        buffer.putDouble(maxPosition, Math.max(buffer.getDouble(maxPosition), value));
+        buffer.putDouble(meanPosition, newMean);
+        buffer.putDouble(deviationsPosition, buffer.getDouble(deviationsPosition) + delta * (value - newMean));
+    }
+
+    /**
+     * Same as {@link #mergeWith(DoublesLogHistogram)}, applied directly to the histogram stored at the given position.
+     */
+    public static void mergeInBuffer(
+            ByteBuffer buffer, int position, DoublesLogHistogramLayout layout, DoublesLogHistogram source) {
+        if (source.totalItemsSeen == 0) {
+            return;
+        }
+
+        if (!layout.equals(source.layout)) {
+            fromBuffer(buffer, position, layout).mergeWith(source).writeToBuffer(buffer, position);
+            return;
+        }
+
+        final int minPosition = position + Long.BYTES;
+        final int maxPosition = minPosition + Double.BYTES;
+        final int meanPosition = maxPosition + Double.BYTES;
+        final int deviationsPosition = meanPosition + Double.BYTES;
+        final int start = position + BUFFER_HEADER_BYTES;
+        final long totalItemsSeen = buffer.getLong(position);
+        final long total = totalItemsSeen + source.totalItemsSeen;
+        final double mean = buffer.getDouble(meanPosition);
+        final double delta = source.mean - mean;
+
+        for (int index = 0; index < source.counts.length; ++index) {
+            if (source.counts[index] > 0) {
+                final int counter = start + index * Long.BYTES;
+                buffer.putLong(counter, buffer.getLong(counter) + source.counts[index]);
+            }
+        }
+
+        buffer.putLong(position, total);
+        buffer.putDouble(minPosition, Math.min(buffer.getDouble(minPosition), source.min));
+        buffer.putDouble(maxPosition, Math.max(buffer.getDouble(maxPosition), source.max));
+        buffer.putDouble(meanPosition, mean + delta * source.totalItemsSeen / total);
+        buffer.putDouble(
+                deviationsPosition,
+                buffer.getDouble(deviationsPosition)
+                        + source.sumOfSquaredDeviations
+                        + delta * delta * ((double) totalItemsSeen * source.totalItemsSeen / total));
+    }
+
+    /**
+     * Reads the histogram stored at the given position of an aggregation buffer into a new mutable histogram.
+     */
+    public static DoublesLogHistogram fromBuffer(ByteBuffer buffer, int position, DoublesLogHistogramLayout layout) {
+        final DoublesLogHistogram histogram = new DoublesLogHistogram(layout);
+        final int start = position + BUFFER_HEADER_BYTES;
+
+        histogram.totalItemsSeen = buffer.getLong(position);
+        histogram.min = buffer.getDouble(position + Long.BYTES);
+        histogram.max = buffer.getDouble(position + Long.BYTES + Double.BYTES);
+        histogram.mean = buffer.getDouble(position + Long.BYTES + 2 * Double.BYTES);
+        histogram.sumOfSquaredDeviations = buffer.getDouble(position + Long.BYTES + 3 * Double.BYTES);
+
+        for (int index = 0; index < histogram.counts.length; ++index) {
+            histogram.counts[index] = buffer.getLong(start + index * Long.BYTES);
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Writes this histogram at the given position of an aggregation buffer sized with
+     * {@link #getBufferSize(DoublesLogHistogramLayout)} for its layout.
+     */
+    public void writeToBuffer(ByteBuffer buffer, int position) {
+        final int start = position + BUFFER_HEADER_BYTES;
+
+        buffer.putLong(position, totalItemsSeen);
+        buffer.putDouble(position + Long.BYTES, min);
+        buffer.putDouble(position + Long.BYTES + Double.BYTES, max);
+        buffer.putDouble(position + Long.BYTES + 2 * Double.BYTES, mean);
+        buffer.putDouble(position + Long.BYTES + 3 * Double.BYTES, sumOfSquaredDeviations);
+
+        for (int index = 0; index < counts.length; ++index) {
+            buffer.putLong(start + index * Long.BYTES, counts[index]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + "layout=" + layout
+                + ", totalItemsSeen=" + totalItemsSeen
+                + ", min=" + getMin()
+                + ", max=" + getMax()
+                + "}";
+    }
+}
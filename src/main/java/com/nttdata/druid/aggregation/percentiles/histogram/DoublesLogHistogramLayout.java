@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.histogram;
+
+import org.apache.druid.java.util.common.IAE;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Buckets of a {@link DoublesLogHistogram}: every power of two from the one holding {@code lowestDiscernibleValue}
+ * to the one holding {@code highestTrackableValue} is split into {@code 2^subBucketBits} buckets of equal width, with
+ * enough sub-buckets for {@code significantDigits} decimal digits. A bucket is then at most {@code 2^-subBucketBits}
+ * times as wide as the values it holds, and reporting its midpoint is within half of that of any of them.
+ *
+ * <p>Bucket 0 counts the values below the first power of two (zero and negative values included), and the last
+ * bucket the values past the last one.
+ */
+public final class DoublesLogHistogramLayout implements Serializable {
+    public static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+    public static final int MAX_SIGNIFICANT_DIGITS = 3;
+    public static final double DEFAULT_LOWEST_DISCERNIBLE_VALUE = 1e-3;
+    public static final double DEFAULT_HIGHEST_TRACKABLE_VALUE = 1e12;
+
+    /**
+     * Most buckets of a layout, which bounds the memory of a histogram to 8 MiB.
+     */
+    public static final int MAX_BUCKETS = 1 << 20;
+
+    public static final DoublesLogHistogramLayout DEFAULT = new DoublesLogHistogramLayout(
+            DEFAULT_SIGNIFICANT_DIGITS, DEFAULT_LOWEST_DISCERNIBLE_VALUE, DEFAULT_HIGHEST_TRACKABLE_VALUE);
+
+    private static final long MANTISSA_MASK = 0x000FFFFFFFFFFFFFL;
+    private static final int MANTISSA_BITS = 52;
+
+    private final int significantDigits;
+    private final double lowestDiscernibleValue;
+    private final double highestTrackableValue;
+    private final int subBucketBits;
+    private final int minExponent;
+    private final int numBuckets;
+    private final double lowestBucketed;
+    private final double highestBucketed;
+
+    public DoublesLogHistogramLayout(
+            int significantDigits, double lowestDiscernibleValue, double highestTrackableValue) {
+        if (significantDigits < 1 || significantDigits > MAX_SIGNIFICANT_DIGITS) {
+            throw new IAE(
+                    "Parameter significantDigits must be between 1 and %d, got [%d]",
+                    MAX_SIGNIFICANT_DIGITS, significantDigits);
+        }
+        if (!(lowestDiscernibleValue >= Double.MIN_NORMAL) || Double.isInfinite(lowestDiscernibleValue)) {
+            throw new IAE("Parameter lowestDiscernibleValue must be positive, got [%s]", lowestDiscernibleValue);
+        }
+        if (!(highestTrackableValue > lowestDiscernibleValue) || Double.isInfinite(highestTrackableValue)) {
+            throw new IAE(
+                    "Parameter highestTrackableValue must be greater than lowestDiscernibleValue, got [%s]",
+                    highestTrackableValue);
+        }
+
+        this.significantDigits = significantDigits;
+        this.lowestDiscernibleValue = lowestDiscernibleValue;
+        this.highestTrackableValue = highestTrackableValue;
+        this.subBucketBits = (int) Math.ceil(significantDigits * Math.log(10) / Math.log(2));
+        this.minExponent = Math.getExponent(lowestDiscernibleValue);
+
+        final long exponents = Math.getExponent(highestTrackableValue) - minExponent + 1L;
+        final long buckets = (exponents << subBucketBits) + 2;
+
+        if (buckets > MAX_BUCKETS) {
+            throw new IAE(
+                    "Too many buckets [%d] for lowestDiscernibleValue [%s], highestTrackableValue [%s] and "
+                            + "significantDigits [%d], must not be more than %d",
+                    buckets, lowestDiscernibleValue, highestTrackableValue, significantDigits, MAX_BUCKETS);
+        }
+
+        this.numBuckets = (int) buckets;
+        this.lowestBucketed = Math.scalb(1.0, minExponent);
+        this.highestBucketed = Math.scalb(1.0, Math.getExponent(highestTrackableValue) + 1);
+    }
+
+    public static DoublesLogHistogramLayout of(
+            @Nullable Integer significantDigits,
+            @Nullable Double lowestDiscernibleValue,
+            @Nullable Double highestTrackableValue) {
+        if (significantDigits == null && lowestDiscernibleValue == null && highestTrackableValue == null) {
+            return DEFAULT;
+        }
+
+        return new DoublesLogHistogramLayout(
+                significantDigits == null ? DEFAULT_SIGNIFICANT_DIGITS : significantDigits,
+                lowestDiscernibleValue == null ? DEFAULT_LOWEST_DISCERNIBLE_VALUE : lowestDiscernibleValue,
+                highestTrackableValue == null ? DEFAULT_HIGHEST_TRACKABLE_VALUE : highestTrackableValue);
+    }
+
+    public int getSignificantDigits() {
+        return significantDigits;
+    }
+
+    public double getLowestDiscernibleValue() {
+        return lowestDiscernibleValue;
+    }
+
+    public double getHighestTrackableValue() {
+        return highestTrackableValue;
+    }
+
+    public int getNumBuckets() {
+        return numBuckets;
+    }
+
+    /**
+     * Bucket counting the given value, which must not be NaN.
+     */
+    public int indexOf(double value) {
+        if (value < lowestBucketed) {
+            return 0;
+        }
+        if (value >= highestBucketed) {
+            return numBuckets - 1;
+        }
+
+        final long bits = Double.doubleToRawLongBits(value);
+        final int subBucket = (int) ((bits & MANTISSA_MASK) >>> (MANTISSA_BITS - subBucketBits));
+
+        return 1 + ((Math.getExponent(value) - minExponent) << subBucketBits) + subBucket;
+    }
+
+    /**
+     * Value standing for the items of a bucket: the middle of its range, or NaN for the underflow and overflow
+     * buckets, whose items are only known to be below or above the tracked range.
+     */
+    public double valueAt(int index) {
+        if (index <= 0 || index >= numBuckets - 1) {
+            return Double.NaN;
+        }
+
+        final int bucket = index - 1;
+        final int subBuckets = 1 << subBucketBits;
+        final int subBucket = bucket & (subBuckets - 1);
+
+        return Math.scalb(1.0 + (subBucket + 0.5) / subBuckets, minExponent + (bucket >> subBucketBits));
+    }
+
+    /**
+     * Lowest value counted by a bucket, or minus infinity for the underflow bucket.
+     */
+    public double lowerBoundAt(int index) {
+        if (index <= 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        if (index >= numBuckets - 1) {
+            return highestBucketed;
+        }
+
+        final int bucket = index - 1;
+        final int subBuckets = 1 << subBucketBits;
+        final int subBucket = bucket & (subBuckets - 1);
+
+        return Math.scalb(1.0 + (double) subBucket / subBuckets, minExponent + (bucket >> subBucketBits));
+    }
+
+    /**
+     * Lowest value above the ones counted by a bucket, or infinity for the overflow bucket.
+     */
+    public double upperBoundAt(int index) {
+        return index >= numBuckets - 1 ? Double.POSITIVE_INFINITY : lowerBoundAt(index + 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final DoublesLogHistogramLayout that = (DoublesLogHistogramLayout) o;
+        return significantDigits == that.significantDigits
+                && Double.compare(lowestDiscernibleValue, that.lowestDiscernibleValue) == 0
+                && Double.compare(highestTrackableValue, that.highestTrackableValue) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(significantDigits, lowestDiscernibleValue, highestTrackableValue);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + "significantDigits=" + significantDigits
+                + ", lowestDiscernibleValue=" + lowestDiscernibleValue
+                + ", highestTrackableValue=" + highestTrackableValue
+                + "}";
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.histogram;
+
+import org.apache.druid.segment.data.ObjectStrategy;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+public class DoublesLogHistogramObjectStrategy implements ObjectStrategy<DoublesLogHistogram> {
+    private static final byte[] EMPTY_BYTES = new byte[]{};
+
+    @Override
+    public int compare(final DoublesLogHistogram s1, final DoublesLogHistogram s2) {
+        return DoublesLogHistogram.COUNT_COMPARATOR.compare(s1, s2);
+    }
+
+    @Nullable
+    @Override
+    public DoublesLogHistogram fromByteBuffer(final ByteBuffer buffer, final int numBytes) {
+        if (numBytes == 0) {
+            return null;
+        }
+
+        return DoublesLogHistogram.fromBytes(buffer).freeze();
+    }
+
+    @Override
+    public Class<DoublesLogHistogram> getClazz() {
+        return DoublesLogHistogram.class;
+    }
+
+    @Override
+    public byte[] toBytes(@Nullable DoublesLogHistogram histogram) {
+        if (histogram == null) {
+            return EMPTY_BYTES;
+        }
+
+        return histogram.toBytes();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters of the work done on reservoirs, emitted by {@link DoublesReservoirMonitor}. They are striped
+ * {@link LongAdder}s, and only updated by operations touching whole reservoirs (allocations, merges, sorts and
+ * serialization), never for each item accepted, except rows skipped for an invalid weight.
+ */
+public enum DoublesReservoirCounter {
+    CREATED("doublesReservoir/created/count"),
+    BYTES_ALLOCATED("doublesReservoir/allocated/bytes"),
+    // Samples held and room for samples of the reservoirs serialized, whose ratio is the fill ratio
+    SAMPLES_SERIALIZED("doublesReservoir/serialized/samples"),
+    CAPACITY_SERIALIZED("doublesReservoir/serialized/capacity"),
+    MERGES("doublesReservoir/merge/count"),
+    MERGE_NANOS("doublesReservoir/merge/time"),
+    BYTES_READ("doublesReservoir/serde/read/bytes"),
+    BYTES_WRITTEN("doublesReservoir/serde/written/bytes"),
+    SORTS("doublesReservoir/sort/count"),
+    SAMPLES_SORTED("doublesReservoir/sort/samples"),
+    SORT_NANOS("doublesReservoir/sort/time"),
+    ROWS_SKIPPED("doublesReservoir/skipped/rows");
+
+    private final String metricName;
+    private final LongAdder adder = new LongAdder();
+
+    DoublesReservoirCounter(String metricName) {
+        this.metricName = metricName;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+
+    public void increment() {
+        adder.increment();
+    }
+
+    public void add(long delta) {
+        adder.add(delta);
+    }
+
+    /**
+     * Adds the time elapsed since {@code startNanos}, as returned by {@link System#nanoTime()}.
+     */
+    public void addNanosSince(long startNanos) {
+        adder.add(System.nanoTime() - startNanos);
+    }
+
+    public long sum() {
+        return adder.sum();
+    }
+
+    /**
+     * The count since the last call, for the monitor to emit.
+     */
+    long sumThenReset() {
+        return adder.sumThenReset();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.metrics;
+
+import org.apache.druid.java.util.emitter.service.ServiceEmitter;
+import org.apache.druid.java.util.emitter.service.ServiceMetricEvent;
+import org.apache.druid.java.util.metrics.AbstractMonitor;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emits the {@link DoublesReservoirCounter}s accumulated since the previous emission, on every service loading the
+ * extension. Times are emitted in milliseconds, and the fill ratio of the reservoirs serialized in the period as
+ * {@value #FILL_RATIO_METRIC}.
+ */
+public class DoublesReservoirMonitor extends AbstractMonitor {
+    public static final String FILL_RATIO_METRIC = "doublesReservoir/serialized/fillRatio";
+
+    @Override
+    public boolean doMonitor(ServiceEmitter emitter) {
+        final Map<DoublesReservoirCounter, Long> deltas = new EnumMap<>(DoublesReservoirCounter.class);
+
+        for (DoublesReservoirCounter counter : DoublesReservoirCounter.values()) {
+            deltas.put(counter, counter.sumThenReset());
+        }
+
+        for (Map.Entry<DoublesReservoirCounter, Long> delta : deltas.entrySet()) {
+            final DoublesReservoirCounter counter = delta.getKey();
+            final long value = counter == DoublesReservoirCounter.MERGE_NANOS
+                    || counter == DoublesReservoirCounter.SORT_NANOS
+                    ? TimeUnit.NANOSECONDS.toMillis(delta.getValue())
+                    : delta.getValue();
+            emitter.emit(ServiceMetricEvent.builder().setMetric(counter.getMetricName(), value));
+        }
+
+        final long capacity = deltas.get(DoublesReservoirCounter.CAPACITY_SERIALIZED);
+
+        if (capacity > 0) {
+            final double fillRatio = (double) deltas.get(DoublesReservoirCounter.SAMPLES_SERIALIZED) / capacity;
+            emitter.emit(ServiceMetricEvent.builder().setMetric(FILL_RATIO_METRIC, fillRatio));
+        }
+
+        return true;
+    }
+}
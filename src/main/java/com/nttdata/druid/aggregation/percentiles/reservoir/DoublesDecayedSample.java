@@ -0,0 +1,722 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.reservoir;
+
+import com.nttdata.druid.aggregation.percentiles.DoublesDistributionStatistics;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.apache.commons.math3.stat.descriptive.rank.Max;
+import org.apache.commons.math3.stat.descriptive.rank.Min;
+import org.apache.druid.java.util.common.ISE;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Priority sample of items weighed by their timestamp, so that recent items dominate. The weight of an item doubles
+ * with every {@code halfLifeMillis} of its timestamp, and the sample keeps the items of the {@code maxSize} largest
+ * priorities, each the decayed weight of an item divided by a uniform random number.
+ */
+final class DoublesDecayedSample extends DoublesReservoirMode {
+    private static final double LN_2 = Math.log(2);
+
+    final long halfLifeMillis;
+
+    // The samples form a min-heap on `priorities`, and `logWeights` holds the log of their decayed weights
+    double[] values;
+    double[] logWeights;
+    double[] priorities;
+    int size;
+    // Largest priority left out of the sample: a sample of a smaller log weight stands for this much weight
+    double threshold = Double.NEGATIVE_INFINITY;
+
+    // The samples in ascending order, built lazily and dropped whenever a new sample is accepted
+    @Nullable
+    private transient double[] sorted;
+    // Position of each sorted sample within the decayed weight of all the items, built along with `sorted`
+    @Nullable
+    private transient double[] sortedPositions;
+    // Fraction of the decayed weight of all the items up to and including each sorted sample
+    @Nullable
+    private transient double[] sortedRanks;
+    // Sum of the squared fractions of the decayed weight the samples stand for, built along with `sortedRanks`
+    private transient double sortedWeightSquares;
+
+    DoublesDecayedSample(int maxSize, DoublesReservoirStorage storage, long halfLifeMillis) {
+        super(maxSize, storage, 0);
+
+        final int capacity = Math.min(maxSize, INITIAL_CAPACITY);
+        this.halfLifeMillis = halfLifeMillis;
+        this.values = newSamples(capacity);
+        this.logWeights = newSamples(capacity);
+        this.priorities = newSamples(capacity);
+    }
+
+    DoublesDecayedSample(
+            int maxSize,
+            DoublesReservoirStorage storage,
+            long halfLifeMillis,
+            double[] values,
+            double[] logWeights,
+            double[] priorities,
+            int size,
+            double threshold,
+            long totalItemsSeen) {
+        super(maxSize, storage, totalItemsSeen);
+        this.halfLifeMillis = halfLifeMillis;
+        this.values = values;
+        this.logWeights = logWeights;
+        this.priorities = priorities;
+        this.size = size;
+        this.threshold = threshold;
+    }
+
+    @Override
+    boolean accept(double sample, long weight, boolean exactOnly) {
+        throw new ISE("Forward-decay reservoirs need the timestamp of each item, use acceptAt()");
+    }
+
+    /**
+     * Accepts {@code weight} occurrences of a sample seen at the given time, which enter the priority sample with a
+     * priority of their decayed weight divided by a uniform random number.
+     */
+    void acceptAt(double sample, long timestamp, long weight) {
+        totalItemsSeen += weight;
+
+        final double logWeight = getLogWeight(timestamp, weight, halfLifeMillis);
+        offer(sample, logWeight, drawPriority(logWeight));
+    }
+
+    /**
+     * Log of the decayed weight of {@code weight} items seen at the given time. Logs keep the weights finite whatever
+     * the timestamps: only their differences matter.
+     */
+    private static double getLogWeight(long timestamp, long weight, long halfLifeMillis) {
+        return timestamp * (LN_2 / halfLifeMillis) + Math.log(weight);
+    }
+
+    /**
+     * Log of the decayed weight divided by a uniform random number.
+     */
+    private static double drawPriority(double logWeight) {
+        return logWeight - Math.log(1 - ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * Offers a sample to the priority sample, which keeps the {@code maxSize} largest priorities and remembers the
+     * largest one it leaves out.
+     */
+    private void offer(double sample, double logWeight, double priority) {
+        dropSorted();
+
+        if (size < maxSize) {
+            if (size == values.length) {
+                final int capacity = Math.min(maxSize, Math.max(INITIAL_CAPACITY, size * 2));
+                values = copySamples(values, capacity);
+                priorities = copySamples(priorities, capacity);
+                logWeights = copySamples(logWeights, capacity);
+            }
+
+            int index = size++;
+
+            while (index > 0) {
+                final int parent = (index - 1) >>> 1;
+
+                if (priorities[parent] <= priority) {
+                    break;
+                }
+
+                move(parent, index);
+                index = parent;
+            }
+
+            set(index, sample, logWeight, priority);
+            return;
+        }
+
+        if (maxSize == 0 || priority <= priorities[0]) {
+            threshold = Math.max(threshold, priority);
+            return;
+        }
+
+        threshold = Math.max(threshold, priorities[0]);
+        int index = 0;
+
+        while (true) {
+            int child = 2 * index + 1;
+
+            if (child >= size) {
+                break;
+            }
+
+            if (child + 1 < size && priorities[child + 1] < priorities[child]) {
+                ++child;
+            }
+
+            if (priorities[child] >= priority) {
+                break;
+            }
+
+            move(child, index);
+            index = child;
+        }
+
+        set(index, sample, logWeight, priority);
+    }
+
+    private void move(int from, int to) {
+        set(to, values[from], logWeights[from], priorities[from]);
+    }
+
+    private void set(int index, double sample, double logWeight, double priority) {
+        values[index] = sample;
+        logWeights[index] = logWeight;
+        priorities[index] = priority;
+    }
+
+    /**
+     * Merges the priority sample of another forward-decay sample of the same half-life, which keeps the largest
+     * priorities of both.
+     */
+    void merge(DoublesDecayedSample source) {
+        final boolean narrow = !storage.isExact() && !storage.equals(source.storage);
+
+        for (int index = 0; index < source.size; ++index) {
+            final double value = source.values[index];
+            offer(narrow ? storage.narrow(value) : value, source.logWeights[index], source.priorities[index]);
+        }
+
+        threshold = Math.max(threshold, source.threshold);
+        totalItemsSeen += source.totalItemsSeen;
+        dropSorted();
+    }
+
+    @Override
+    boolean isExact() {
+        return threshold == Double.NEGATIVE_INFINITY;
+    }
+
+    @Override
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * The samples without their weights.
+     */
+    @Override
+    double[] getSortedSamples() {
+        return sorted();
+    }
+
+    /**
+     * Forward-decay samples have no sketch K to take, so they never turn into a sketch.
+     */
+    @Override
+    void addTo(DoublesKllSummary sketch) {
+        throw new ISE("Cannot add the weighted samples of a forward-decay reservoir to a sketch");
+    }
+
+    /**
+     * Forward-decay samples only merge with each other, by keeping the largest priorities.
+     */
+    @Override
+    DoublesUniformSample asSample(int maxSampleSize) {
+        throw new ISE("Cannot turn the weighted samples of a forward-decay reservoir into a uniform sample");
+    }
+
+    @Override
+    DoublesDecayedSample copy() {
+        return new DoublesDecayedSample(
+                maxSize,
+                storage,
+                halfLifeMillis,
+                copySamples(values, values.length),
+                copySamples(logWeights, logWeights.length),
+                copySamples(priorities, priorities.length),
+                size,
+                threshold,
+                totalItemsSeen);
+    }
+
+    @Override
+    DoublesDecayedSample emptyCopy() {
+        return new DoublesDecayedSample(maxSize, storage, halfLifeMillis);
+    }
+
+    @Override
+    void clear() {
+        size = 0;
+        totalItemsSeen = 0;
+        threshold = Double.NEGATIVE_INFINITY;
+        dropSorted();
+    }
+
+    private void dropSorted() {
+        sorted = null;
+        sortedPositions = null;
+        sortedRanks = null;
+    }
+
+    /**
+     * Weight each sample stands for, relative to the largest one: its own weight, or the weight of the threshold
+     * priority when that is larger (priority sampling estimates).
+     */
+    private double[] getEstimatedWeights() {
+        double largest = threshold;
+
+        for (int index = 0; index < size; ++index) {
+            largest = Math.max(largest, logWeights[index]);
+        }
+
+        final double[] weights = newSamples(size);
+
+        for (int index = 0; index < size; ++index) {
+            weights[index] = Math.exp(Math.max(logWeights[index], threshold) - largest);
+        }
+
+        return weights;
+    }
+
+    /**
+     * The samples in ascending order, along with their positions: each sample sits at the middle of its weight, and
+     * the positions are stretched so the first sample is at 0 and the last at 1, which for equal weights gives the
+     * positions of unweighted samples.
+     */
+    private double[] sorted() {
+        if (sorted != null && sortedPositions != null && sortedRanks != null) {
+            return sorted;
+        }
+
+        final double[] weights = getEstimatedWeights();
+        final int[] order = new int[size];
+
+        for (int index = 0; index < size; ++index) {
+            order[index] = index;
+        }
+
+        final long startNanos = System.nanoTime();
+        IntArrays.quickSort(order, (lhs, rhs) -> Double.compare(values[lhs], values[rhs]));
+        countSort(size, startNanos);
+
+        final double[] sortedValues = newSamples(size);
+        final double[] positions = newSamples(size);
+        final double[] ranks = newSamples(size);
+        double total = 0;
+        double sumOfSquares = 0;
+
+        for (int index = 0; index < size; ++index) {
+            sortedValues[index] = values[order[index]];
+            total += weights[order[index]];
+            sumOfSquares += weights[order[index]] * weights[order[index]];
+        }
+
+        if (size > 0) {
+            final double first = weights[order[0]] / 2;
+            final double span = total - first - weights[order[size - 1]] / 2;
+            double cumulative = 0;
+
+            for (int index = 0; index < size; ++index) {
+                final double weight = weights[order[index]];
+                positions[index] = span <= 0 ? 0 : Math.min(1, (cumulative + weight / 2 - first) / span);
+                cumulative += weight;
+                ranks[index] = Math.min(1, cumulative / total);
+            }
+        }
+
+        sorted = sortedValues;
+        sortedPositions = positions;
+        sortedRanks = ranks;
+        sortedWeightSquares = size == 0 ? 0 : sumOfSquares / (total * total);
+        return sortedValues;
+    }
+
+    /**
+     * Share of the decayed weight of the items standing on a sorted sample.
+     */
+    private static double weightAt(double[] sortedRanks, int index) {
+        return index == 0 ? sortedRanks[0] : sortedRanks[index] - sortedRanks[index - 1];
+    }
+
+    @Override
+    public double getPercentile(double fraction) {
+        checkFractionBound(fraction);
+
+        final double[] values = sorted();
+        final double[] positions = sortedPositions;
+
+        if (values.length <= 1) {
+            return values.length == 0 ? Double.NaN : values[0];
+        }
+
+        int index = Arrays.binarySearch(positions, fraction);
+        index = index >= 0 ? index : -index - 2;
+
+        if (index >= values.length - 1) {
+            return values[values.length - 1];
+        }
+
+        final double span = positions[index + 1] - positions[index];
+
+        // Interpolate between the two values, the same way as unweighted samples do
+        return span <= 0
+                ? values[index]
+                : values[index] + (fraction - positions[index]) / span * (values[index + 1] - values[index]);
+    }
+
+    /**
+     * Adds up the decayed weights of the samples up to {@code value}.
+     */
+    @Override
+    public double getRank(double value) {
+        final double[] values = sorted();
+        final int count = countUpTo(values, values.length, value);
+        return values.length == 0 ? Double.NaN : (count == 0 ? 0.0 : sortedRanks[count - 1]);
+    }
+
+    @Override
+    public double getTrimmedMean(double lowerFraction, double upperFraction) {
+        final double[] values = sorted();
+        final double[] ranks = sortedRanks;
+        return DoublesDistributionStatistics.trimmedMean(
+                index -> values[index], index -> weightAt(ranks, index), values.length, 1,
+                lowerFraction, upperFraction);
+    }
+
+    @Override
+    public double getMedianAbsoluteDeviation() {
+        final double median = getPercentile(0.5);
+        final double[] values = sorted();
+        final double[] ranks = sortedRanks;
+        return DoublesDistributionStatistics.medianAbsoluteDeviation(
+                index -> values[index], index -> weightAt(ranks, index), values.length, 1, median);
+    }
+
+    /**
+     * Spreads the rank of the percentile by Kish's effective sample size of the weighted samples, kept along with the
+     * sorted samples.
+     */
+    @Override
+    public double[] getPercentileConfidenceInterval(double fraction, double confidence) {
+        checkFractionBound(fraction);
+        final double z = DoublesDistributionStatistics.normalQuantile(confidence);
+        final double estimate = getPercentile(fraction);
+
+        if (Double.isNaN(estimate) || threshold == Double.NEGATIVE_INFINITY) {
+            return new double[]{estimate, estimate, estimate};
+        }
+
+        sorted();
+        final double spread = z * Math.sqrt(fraction * (1 - fraction) * sortedWeightSquares);
+        return new double[]{
+                Math.min(estimate, getPercentile(Math.max(0, fraction - spread))),
+                estimate,
+                Math.max(estimate, getPercentile(Math.min(1, fraction + spread)))
+        };
+    }
+
+    /**
+     * Decayed weights are relative to the epoch, so histograms hold fractions of the total decayed weight rather than
+     * counts.
+     */
+    @Override
+    public double getHistogramTotal() {
+        return 1.0;
+    }
+
+    @Override
+    public double getStddev() {
+        if (size <= 1) {
+            return size == 0 ? Double.NaN : 0.0;
+        }
+
+        final double[] weights = getEstimatedWeights();
+        final double mean = getAVG(weights);
+        double total = 0;
+        double sumOfSquaredWeights = 0;
+        double sumOfSquares = 0;
+
+        for (int index = 0; index < size; ++index) {
+            final double deviation = values[index] - mean;
+            total += weights[index];
+            sumOfSquaredWeights += weights[index] * weights[index];
+            sumOfSquares += weights[index] * deviation * deviation;
+        }
+
+        // Bias-corrected for reliability weights, which gives the unweighted correction for equal weights
+        final double correction = total - sumOfSquaredWeights / total;
+        return correction <= 0 ? 0.0 : Math.sqrt(sumOfSquares / correction);
+    }
+
+    @Override
+    public double getAVG() {
+        return getAVG(getEstimatedWeights());
+    }
+
+    private double getAVG(double[] weights) {
+        double sum = 0;
+        double total = 0;
+
+        for (int index = 0; index < size; ++index) {
+            sum += weights[index] * values[index];
+            total += weights[index];
+        }
+
+        return size == 0 ? Double.NaN : sum / total;
+    }
+
+    @Override
+    public double getMax() {
+        return new Max().evaluate(values, 0, size);
+    }
+
+    @Override
+    public double getMin() {
+        return new Min().evaluate(values, 0, size);
+    }
+
+    @Override
+    int getBodyBytes() {
+        return Integer.BYTES + Double.BYTES + size * (storage.getBytesPerSample() + 2 * Double.BYTES);
+    }
+
+    /**
+     * Writes the number of samples and the threshold, followed by the samples, their log weights and their
+     * priorities in heap order, as read back by {@link #readBody}.
+     */
+    @Override
+    void writeBody(ByteBuffer buffer) {
+        buffer.putInt(size);
+        buffer.putDouble(threshold);
+        writeSamples(buffer, values, size);
+
+        for (int index = 0; index < size; ++index) {
+            buffer.putDouble(logWeights[index]);
+        }
+
+        for (int index = 0; index < size; ++index) {
+            buffer.putDouble(priorities[index]);
+        }
+    }
+
+    static DoublesDecayedSample readBody(
+            ByteBuffer data, int maxSize, DoublesReservoirStorage storage, long halfLifeMillis, long totalItemsSeen) {
+        final int size = data.getInt();
+        final double threshold = data.getDouble();
+        final double[] values = readSamples(data, storage, size);
+        final double[] logWeights = newSamples(size);
+        final double[] priorities = newSamples(size);
+
+        for (int index = 0; index < size; ++index) {
+            logWeights[index] = data.getDouble();
+        }
+
+        for (int index = 0; index < size; ++index) {
+            priorities[index] = data.getDouble();
+        }
+
+        return new DoublesDecayedSample(
+                maxSize, storage, halfLifeMillis, values, logWeights, priorities, size, threshold, totalItemsSeen);
+    }
+
+    /**
+     * Number of bytes taken in an aggregation buffer: the header of {@link DoublesReservoir#initBuffer} followed by
+     * the threshold, then room for {@code maxSize} samples, their log weights and their priorities.
+     */
+    static int getBufferSize(int maxSize, DoublesReservoirStorage storage) {
+        return DoublesReservoir.BUFFER_HEADER_BYTES
+                + Double.BYTES
+                + maxSize * (storage.getBytesPerSample() + 2 * Double.BYTES);
+    }
+
+    static void initBuffer(ByteBuffer buffer, int position) {
+        buffer.putLong(position, 0);
+        buffer.putInt(position + Long.BYTES, 0);
+        buffer.putDouble(position + DoublesReservoir.BUFFER_HEADER_BYTES, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Same as {@link #acceptAt}, applied directly to the sample stored at the given position of an aggregation
+     * buffer.
+     */
+    static void acceptAtInBuffer(
+            ByteBuffer buffer,
+            int position,
+            int maxSize,
+            DoublesReservoirStorage storage,
+            long halfLifeMillis,
+            double sample,
+            long timestamp,
+            long weight) {
+        final double logWeight = getLogWeight(timestamp, weight, halfLifeMillis);
+
+        buffer.putLong(position, buffer.getLong(position) + weight);
+        offerInBuffer(buffer, position, maxSize, storage, sample, logWeight, drawPriority(logWeight));
+    }
+
+    /**
+     * Same as {@link #merge}, applied directly to the sample stored at the given position of an aggregation buffer.
+     */
+    static void mergeInBuffer(
+            ByteBuffer buffer, int position, int maxSize, DoublesReservoirStorage storage, DoublesDecayedSample source) {
+        final boolean narrow = !storage.isExact() && !storage.equals(source.storage);
+        final int thresholdPosition = position + DoublesReservoir.BUFFER_HEADER_BYTES;
+
+        for (int index = 0; index < source.size; ++index) {
+            final double value = source.values[index];
+            offerInBuffer(
+                    buffer,
+                    position,
+                    maxSize,
+                    storage,
+                    narrow ? storage.narrow(value) : value,
+                    source.logWeights[index],
+                    source.priorities[index]);
+        }
+
+        buffer.putDouble(thresholdPosition, Math.max(buffer.getDouble(thresholdPosition), source.threshold));
+        buffer.putLong(position, buffer.getLong(position) + source.totalItemsSeen);
+    }
+
+    /**
+     * Same as {@link #offer} on the min-heap stored in an aggregation buffer, whose samples, log weights and
+     * priorities each start at their own region of the slot.
+     */
+    private static void offerInBuffer(
+            ByteBuffer buffer,
+            int position,
+            int maxSize,
+            DoublesReservoirStorage storage,
+            double sample,
+            double logWeight,
+            double priority) {
+        final int size = buffer.getInt(position + Long.BYTES);
+        final int thresholdPosition = position + DoublesReservoir.BUFFER_HEADER_BYTES;
+        final int bytesPerSample = storage.getBytesPerSample();
+        final int samples = thresholdPosition + Double.BYTES;
+        final int logWeights = samples + maxSize * bytesPerSample;
+        final int priorities = logWeights + maxSize * Double.BYTES;
+        int index;
+
+        if (size < maxSize) {
+            buffer.putInt(position + Long.BYTES, size + 1);
+            index = size;
+
+            while (index > 0) {
+                final int parent = (index - 1) >>> 1;
+
+                if (buffer.getDouble(priorities + parent * Double.BYTES) <= priority) {
+                    break;
+                }
+
+                moveInBuffer(buffer, storage, samples, logWeights, priorities, parent, index);
+                index = parent;
+            }
+        } else {
+            final double threshold = buffer.getDouble(thresholdPosition);
+
+            if (maxSize == 0 || priority <= buffer.getDouble(priorities)) {
+                buffer.putDouble(thresholdPosition, Math.max(threshold, priority));
+                return;
+            }
+
+            buffer.putDouble(thresholdPosition, Math.max(threshold, buffer.getDouble(priorities)));
+            index = 0;
+
+            while (true) {
+                int child = 2 * index + 1;
+
+                if (child >= size) {
+                    break;
+                }
+
+                if (child + 1 < size
+                        && buffer.getDouble(priorities + (child + 1) * Double.BYTES)
+                                < buffer.getDouble(priorities + child * Double.BYTES)) {
+                    ++child;
+                }
+
+                if (buffer.getDouble(priorities + child * Double.BYTES) >= priority) {
+                    break;
+                }
+
+                moveInBuffer(buffer, storage, samples, logWeights, priorities, child, index);
+                index = child;
+            }
+        }
+
+        storage.write(buffer, samples + index * bytesPerSample, sample);
+        buffer.putDouble(logWeights + index * Double.BYTES, logWeight);
+        buffer.putDouble(priorities + index * Double.BYTES, priority);
+    }
+
+    private static void moveInBuffer(
+            ByteBuffer buffer,
+            DoublesReservoirStorage storage,
+            int samples,
+            int logWeights,
+            int priorities,
+            int from,
+            int to) {
+        final int bytesPerSample = storage.getBytesPerSample();
+
+        storage.write(buffer, samples + to * bytesPerSample, storage.read(buffer, samples + from * bytesPerSample));
+        buffer.putDouble(logWeights + to * Double.BYTES, buffer.getDouble(logWeights + from * Double.BYTES));
+        buffer.putDouble(priorities + to * Double.BYTES, buffer.getDouble(priorities + from * Double.BYTES));
+    }
+
+    static DoublesDecayedSample fromBuffer(
+            ByteBuffer buffer, int position, int maxSize, DoublesReservoirStorage storage, long halfLifeMillis) {
+        final long totalItemsSeen = buffer.getLong(position);
+        final int size = buffer.getInt(position + Long.BYTES);
+        final int thresholdPosition = position + DoublesReservoir.BUFFER_HEADER_BYTES;
+        final int bytesPerSample = storage.getBytesPerSample();
+        final int samples = thresholdPosition + Double.BYTES;
+        final int logWeights = samples + maxSize * bytesPerSample;
+        final int priorities = logWeights + maxSize * Double.BYTES;
+        final int capacity = Math.max(size, Math.min(maxSize, INITIAL_CAPACITY));
+        final double[] values = newSamples(capacity);
+        final double[] sampleLogWeights = newSamples(capacity);
+        final double[] samplePriorities = newSamples(capacity);
+
+        for (int index = 0; index < size; ++index) {
+            values[index] = storage.read(buffer, samples + index * bytesPerSample);
+            sampleLogWeights[index] = buffer.getDouble(logWeights + index * Double.BYTES);
+            samplePriorities[index] = buffer.getDouble(priorities + index * Double.BYTES);
+        }
+
+        return new DoublesDecayedSample(
+                maxSize,
+                storage,
+                halfLifeMillis,
+                values,
+                sampleLogWeights,
+                samplePriorities,
+                size,
+                buffer.getDouble(thresholdPosition),
+                totalItemsSeen);
+    }
+
+    @Override
+    String describe() {
+        return "reservoir=" + Arrays.toString(Arrays.copyOf(values, size))
+                + ", halfLifeMillis=" + halfLifeMillis + ", threshold=" + threshold;
+    }
+}
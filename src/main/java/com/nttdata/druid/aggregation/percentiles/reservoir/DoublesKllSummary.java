@@ -0,0 +1,391 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.reservoir;
+
+import com.nttdata.druid.aggregation.percentiles.DoublesDistributionStatistics;
+import org.apache.datasketches.kll.KllDoublesSketch;
+import org.apache.datasketches.kll.KllSketch;
+import org.apache.datasketches.memory.DefaultMemoryRequestServer;
+import org.apache.datasketches.memory.Memory;
+import org.apache.datasketches.memory.MemoryRequestServer;
+import org.apache.datasketches.memory.WritableMemory;
+import org.apache.druid.java.util.common.ISE;
+
+import java.nio.ByteBuffer;
+
+/**
+ * KLL sketch of the items of a hybrid reservoir that no longer fit exactly, whose rank error is bounded whatever the
+ * number of items, along with their running mean and sum of squared deviations for the average and standard
+ * deviation.
+ */
+final class DoublesKllSummary extends DoublesReservoirMode {
+    // Confidence of the normalized rank error of KLL sketches
+    private static final double SKETCH_ERROR_NORMAL_QUANTILE = DoublesDistributionStatistics.normalQuantile(0.99);
+    // Number of items the sketch of a buffer slot is sized for, which no slot reaches in practice: beyond it, the
+    // sketch would move to memory of its own
+    private static final long MAX_BUFFERED_ITEMS = 1L << 50;
+    private static final MemoryRequestServer MEMORY_REQUEST_SERVER = new DefaultMemoryRequestServer();
+    // In-buffer layout after the header of DoublesReservoir#initBuffer: the running mean, the sum of squared
+    // deviations, then the sketch
+    private static final int BUFFER_MEAN_OFFSET = DoublesReservoir.BUFFER_HEADER_BYTES;
+    private static final int BUFFER_DEVIATIONS_OFFSET = BUFFER_MEAN_OFFSET + Double.BYTES;
+    private static final int BUFFER_SKETCH_OFFSET = BUFFER_DEVIATIONS_OFFSET + Double.BYTES;
+
+    KllDoublesSketch sketch;
+    double mean;
+    double sumOfSquaredDeviations;
+
+    DoublesKllSummary(int maxSize, DoublesReservoirStorage storage, int sketchK) {
+        this(maxSize, storage, KllDoublesSketch.newHeapInstance(sketchK), 0, 0, 0);
+    }
+
+    DoublesKllSummary(
+            int maxSize,
+            DoublesReservoirStorage storage,
+            KllDoublesSketch sketch,
+            double mean,
+            double sumOfSquaredDeviations,
+            long totalItemsSeen) {
+        super(maxSize, storage, totalItemsSeen);
+        this.sketch = sketch;
+        this.mean = mean;
+        this.sumOfSquaredDeviations = sumOfSquaredDeviations;
+    }
+
+    @Override
+    boolean accept(double sample, long weight, boolean exactOnly) {
+        update(sample, weight);
+        totalItemsSeen += weight;
+        return true;
+    }
+
+    /**
+     * Adds {@code weight} occurrences of a value to the sketch and to the running statistics, leaving totalItemsSeen
+     * to the caller.
+     */
+    void update(double value, long weight) {
+        if (Double.isNaN(value) || weight <= 0) {
+            // The sketch ignores NaN, and so do the statistics
+            return;
+        }
+
+        final long count = sketch.getN();
+        final double delta = value - mean;
+        final double total = count + weight;
+
+        mean += delta * weight / total;
+        sumOfSquaredDeviations += delta * delta * count * weight / total;
+        sketch.update(value, weight);
+    }
+
+    /**
+     * Merges the sketch and statistics of {@code source} into these, leaving totalItemsSeen to the caller.
+     */
+    void merge(DoublesKllSummary source) {
+        if (source.sketch.isEmpty()) {
+            return;
+        }
+
+        // Chan et al. parallel update of the statistics, of which a single weighted value is the special case above
+        final long count = sketch.getN();
+        final long sourceCount = source.sketch.getN();
+        final double delta = source.mean - mean;
+        final double total = count + sourceCount;
+
+        mean += delta * sourceCount / total;
+        sumOfSquaredDeviations += source.sumOfSquaredDeviations + delta * delta * count * sourceCount / total;
+        sketch.merge(source.sketch);
+    }
+
+    @Override
+    boolean isExact() {
+        return false;
+    }
+
+    /**
+     * The items retained by the sketch.
+     */
+    @Override
+    int getSize() {
+        return sketch.getNumRetained();
+    }
+
+    /**
+     * Evenly spaced quantiles of the sketch, which stand for the items the same way a sample of up to
+     * {@code maxSize} items would.
+     */
+    @Override
+    double[] getSortedSamples() {
+        final int count = (int) Math.min(maxSize, sketch.getN());
+        final double[] ranks = new double[count];
+
+        for (int index = 0; index < count; ++index) {
+            ranks[index] = (index + 0.5) / count;
+        }
+
+        return count == 0 ? new double[0] : sketch.getQuantiles(ranks);
+    }
+
+    @Override
+    void addTo(DoublesKllSummary target) {
+        target.merge(this);
+    }
+
+    /**
+     * A sketch has no samples to draw from: whatever merges it becomes a sketch as well.
+     */
+    @Override
+    DoublesUniformSample asSample(int maxSampleSize) {
+        throw new ISE("Cannot sample the items of a sketch");
+    }
+
+    @Override
+    DoublesKllSummary copy() {
+        return new DoublesKllSummary(
+                maxSize,
+                storage,
+                KllDoublesSketch.heapify(Memory.wrap(sketch.toByteArray())),
+                mean,
+                sumOfSquaredDeviations,
+                totalItemsSeen);
+    }
+
+    @Override
+    DoublesKllSummary emptyCopy() {
+        return new DoublesKllSummary(maxSize, storage, sketch.getK());
+    }
+
+    @Override
+    void clear() {
+        sketch.reset();
+        mean = 0;
+        sumOfSquaredDeviations = 0;
+        totalItemsSeen = 0;
+    }
+
+    @Override
+    public double getPercentile(double fraction) {
+        checkFractionBound(fraction);
+        return sketch.isEmpty() ? Double.NaN : sketch.getQuantile(fraction);
+    }
+
+    @Override
+    public double getRank(double value) {
+        return sketch.isEmpty() ? Double.NaN : sketch.getRank(value);
+    }
+
+    @Override
+    public double getTrimmedMean(double lowerFraction, double upperFraction) {
+        final double[] quantiles = getSortedSamples();
+        return DoublesDistributionStatistics.trimmedMean(
+                index -> quantiles[index], index -> 1, quantiles.length, quantiles.length,
+                lowerFraction, upperFraction);
+    }
+
+    @Override
+    public double getMedianAbsoluteDeviation() {
+        final double[] quantiles = getSortedSamples();
+        return DoublesDistributionStatistics.medianAbsoluteDeviation(
+                index -> quantiles[index], index -> 1, quantiles.length, quantiles.length, getPercentile(0.5));
+    }
+
+    /**
+     * Scales the normalized rank error of the sketch, given at 99% confidence, to the requested confidence.
+     */
+    @Override
+    public double[] getPercentileConfidenceInterval(double fraction, double confidence) {
+        checkFractionBound(fraction);
+        final double z = DoublesDistributionStatistics.normalQuantile(confidence);
+        final double estimate = getPercentile(fraction);
+
+        if (Double.isNaN(estimate)) {
+            return new double[]{estimate, estimate, estimate};
+        }
+
+        final double error = sketch.getNormalizedRankError(false) * z / SKETCH_ERROR_NORMAL_QUANTILE;
+        return new double[]{
+                Math.min(estimate, getPercentile(Math.max(0, fraction - error))),
+                estimate,
+                Math.max(estimate, getPercentile(Math.min(1, fraction + error)))
+        };
+    }
+
+    @Override
+    public double getStddev() {
+        final long count = sketch.getN();
+        return count <= 1 ? (count == 0 ? Double.NaN : 0.0) : Math.sqrt(sumOfSquaredDeviations / (count - 1));
+    }
+
+    @Override
+    public double getAVG() {
+        return sketch.isEmpty() ? Double.NaN : mean;
+    }
+
+    @Override
+    public double getMax() {
+        return sketch.isEmpty() ? Double.NaN : sketch.getMaxItem();
+    }
+
+    @Override
+    public double getMin() {
+        return sketch.isEmpty() ? Double.NaN : sketch.getMinItem();
+    }
+
+    @Override
+    int getBodyBytes() {
+        return 2 * Double.BYTES + Integer.BYTES + sketch.getSerializedSizeBytes();
+    }
+
+    /**
+     * Writes the running statistics followed by the serialized sketch, as read back by {@link #readBody}.
+     */
+    @Override
+    void writeBody(ByteBuffer buffer) {
+        final byte[] sketchBytes = sketch.toByteArray();
+
+        buffer.putDouble(mean);
+        buffer.putDouble(sumOfSquaredDeviations);
+        buffer.putInt(sketchBytes.length);
+        buffer.put(sketchBytes);
+    }
+
+    static DoublesKllSummary readBody(
+            ByteBuffer data, int maxSize, DoublesReservoirStorage storage, long totalItemsSeen) {
+        final double mean = data.getDouble();
+        final double sumOfSquaredDeviations = data.getDouble();
+        final byte[] sketchBytes = new byte[data.getInt()];
+        data.get(sketchBytes);
+
+        return new DoublesKllSummary(
+                maxSize,
+                storage,
+                KllDoublesSketch.heapify(Memory.wrap(sketchBytes)),
+                mean,
+                sumOfSquaredDeviations,
+                totalItemsSeen);
+    }
+
+    /**
+     * Number of bytes taken in an aggregation buffer: the header of {@link DoublesReservoir#initBuffer} followed by
+     * the running statistics and an updatable sketch of the given K.
+     */
+    static int getBufferSize(int sketchK) {
+        return BUFFER_SKETCH_OFFSET + getSketchBytes(sketchK);
+    }
+
+    private static int getSketchBytes(int sketchK) {
+        return KllSketch.getMaxSerializedSizeBytes(
+                sketchK, MAX_BUFFERED_ITEMS, KllSketch.SketchType.DOUBLES_SKETCH, true);
+    }
+
+    private static WritableMemory getSketchRegion(WritableMemory memory, int position, int sketchK) {
+        return memory.writableRegion(position + BUFFER_SKETCH_OFFSET, getSketchBytes(sketchK));
+    }
+
+    /**
+     * The sketch stored at the given position of an aggregation buffer, of which {@code memory} is a writable view.
+     */
+    static KllDoublesSketch wrapBuffer(WritableMemory memory, int position, int sketchK) {
+        return KllDoublesSketch.writableWrap(getSketchRegion(memory, position, sketchK), MEMORY_REQUEST_SERVER);
+    }
+
+    /**
+     * Writes this summary at the given position of an aggregation buffer, of which {@code memory} is a writable
+     * view, and returns the sketch built there.
+     */
+    KllDoublesSketch writeToBuffer(ByteBuffer buffer, WritableMemory memory, int position) {
+        final KllDoublesSketch target = KllDoublesSketch.newDirectInstance(
+                sketch.getK(), getSketchRegion(memory, position, sketch.getK()), MEMORY_REQUEST_SERVER);
+
+        target.merge(sketch);
+        buffer.putLong(position, totalItemsSeen);
+        buffer.putDouble(position + BUFFER_MEAN_OFFSET, mean);
+        buffer.putDouble(position + BUFFER_DEVIATIONS_OFFSET, sumOfSquaredDeviations);
+        return target;
+    }
+
+    /**
+     * Same as {@link #accept}, applied to the summary stored at the given position of an aggregation buffer, whose
+     * sketch is {@code target}.
+     */
+    static void acceptInBuffer(ByteBuffer buffer, int position, KllDoublesSketch target, double value, long weight) {
+        buffer.putLong(position, buffer.getLong(position) + weight);
+
+        if (Double.isNaN(value)) {
+            return;
+        }
+
+        final long count = target.getN();
+        final double mean = buffer.getDouble(position + BUFFER_MEAN_OFFSET);
+        final double delta = value - mean;
+        final double total = count + weight;
+
+        buffer.putDouble(position + BUFFER_MEAN_OFFSET, mean + delta * weight / total);
+        buffer.putDouble(
+                position + BUFFER_DEVIATIONS_OFFSET,
+                buffer.getDouble(position + BUFFER_DEVIATIONS_OFFSET) + delta * delta * count * weight / total);
+        target.update(value, weight);
+    }
+
+    /**
+     * Same as {@link #merge} followed by adding up the items seen, applied to the summary stored at the given
+     * position of an aggregation buffer, whose sketch is {@code target}.
+     */
+    static void mergeInBuffer(ByteBuffer buffer, int position, KllDoublesSketch target, DoublesKllSummary source) {
+        buffer.putLong(position, buffer.getLong(position) + source.totalItemsSeen);
+
+        if (source.sketch.isEmpty()) {
+            return;
+        }
+
+        final long count = target.getN();
+        final long sourceCount = source.sketch.getN();
+        final double mean = buffer.getDouble(position + BUFFER_MEAN_OFFSET);
+        final double delta = source.mean - mean;
+        final double total = count + sourceCount;
+
+        buffer.putDouble(position + BUFFER_MEAN_OFFSET, mean + delta * sourceCount / total);
+        buffer.putDouble(
+                position + BUFFER_DEVIATIONS_OFFSET,
+                buffer.getDouble(position + BUFFER_DEVIATIONS_OFFSET)
+                        + source.sumOfSquaredDeviations
+                        + delta * delta * count * sourceCount / total);
+        target.merge(source.sketch);
+    }
+
+    /**
+     * Reads the summary stored at the given position of an aggregation buffer, whose sketch is {@code source}, into
+     * a new summary on heap.
+     */
+    static DoublesKllSummary fromBuffer(
+            ByteBuffer buffer, int position, KllDoublesSketch source, int maxSize, DoublesReservoirStorage storage) {
+        return new DoublesKllSummary(
+                maxSize,
+                storage,
+                KllDoublesSketch.heapify(Memory.wrap(source.toByteArray())),
+                buffer.getDouble(position + BUFFER_MEAN_OFFSET),
+                buffer.getDouble(position + BUFFER_DEVIATIONS_OFFSET),
+                buffer.getLong(position));
+    }
+
+    @Override
+    String describe() {
+        return "sketchRetained=" + sketch.getNumRetained();
+    }
+}
@@ -22,45 +22,235 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.nttdata.druid.aggregation.percentiles.DoublesDistribution;
+import com.nttdata.druid.aggregation.percentiles.DoublesDistributionStatistics;
+import com.nttdata.druid.aggregation.percentiles.metrics.DoublesReservoirCounter;
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.datasketches.kll.KllDoublesSketch;
+import org.apache.datasketches.memory.WritableMemory;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
-import org.apache.commons.math3.stat.descriptive.moment.Mean;
-import org.apache.commons.math3.stat.descriptive.rank.Min;
 import org.apache.druid.java.util.common.IAE;
-import org.apache.commons.math3.stat.descriptive.rank.Max;
+import org.apache.druid.java.util.common.ISE;
 import javax.annotation.Nullable;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
-public class DoublesReservoir implements Serializable {
-    public static final Comparator<DoublesReservoir> COMPARATOR =
-            Comparator.nullsFirst(Comparator.comparingInt(DoublesReservoir::hashCode));
+/**
+ * Uniform sample of a stream of doubles.
+ *
+ * <p>A reservoir is either mutable, and then owned by whoever created it (an aggregator, a combiner, a merge in
+ * progress), or frozen, and then safe to share: {@link #snapshot()} and {@link #freeze()} hand out frozen reservoirs,
+ * and modifying one throws. {@link #mutableCopy()} gives a new owner its own reservoir; the samples are shared
+ * copy-on-write, so they are only copied when one side modifies them.
+ *
+ * <p>The items seen are held by a {@link DoublesReservoirMode}, and the reservoir decides when to move them from one
+ * mode to the next. A reservoir created with value counts starts in value-count mode ({@link DoublesValueCounts}):
+ * as long as it has seen few distinct values, it keeps each of them once with the number of times it was seen, so
+ * percentiles stay exact whatever the number of items. Once the distinct values no longer fit in the memory of
+ * {@code maxSize} samples, it switches for good to sampling ({@link DoublesUniformSample}), the mode other reservoirs
+ * start in.
+ *
+ * <p>A hybrid reservoir, created with a sketch K, never samples: it stays exact as long as its items fit, and then
+ * summarizes them with a KLL sketch ({@link DoublesKllSummary}), whose rank error is bounded whatever the number of
+ * items.
+ *
+ * <p>A forward-decay reservoir, created with {@link #decayed}, weighs each item by its timestamp so that recent items
+ * dominate, and keeps a priority sample of the weighted items ({@link DoublesDecayedSample}) instead of a uniform
+ * one.
+ */
+public class DoublesReservoir implements DoublesDistribution, Serializable {
+    /**
+     * Orders reservoirs by the number of items they have seen.
+     */
+    public static final Comparator<DoublesReservoir> COUNT_COMPARATOR =
+            Comparator.nullsFirst(Comparator.comparingLong(DoublesReservoir::getTotalItemsSeen));
+
+    /**
+     * Orders reservoirs by their median, empty reservoirs (NaN median) first.
+     */
+    public static final Comparator<DoublesReservoir> MEDIAN_COMPARATOR =
+            Comparator.nullsFirst((lhs, rhs) -> compareNaNFirst(lhs.getMedian(), rhs.getMedian()));
+
+    public static final Comparator<DoublesReservoir> COMPARATOR = COUNT_COMPARATOR;
+
+    public static final DoublesReservoir EMPTY = new DoublesReservoir(0).freeze();
+
+    static final byte SERIAL_VERSION = 1;
+    // Adds the storage of the samples, written for anything but double samples
+    static final byte SERIAL_VERSION_STORAGE = 2;
+    // Value-count mode: storage, then the distinct values followed by their counts
+    static final byte SERIAL_VERSION_COUNTS = 3;
+    // Hybrid reservoirs: flags, storage, sketch K, then either the exact items or the statistics and the sketch
+    static final byte SERIAL_VERSION_HYBRID = 4;
+    private static final byte FLAG_COUNTS = 1;
+    private static final byte FLAG_SKETCH = 2;
+    // Forward-decay reservoirs: storage, maxSize, half-life, totalItemsSeen, then the size, threshold, samples, log
+    // weights and priorities of the priority sample
+    static final byte SERIAL_VERSION_DECAYED = 5;
+    // version, maxSize, totalItemsSeen, followed by the body written by the mode
+    private static final int SAMPLE_HEADER_BYTES = Byte.BYTES + Integer.BYTES + Long.BYTES;
+    // storage id, scale
+    private static final int STORAGE_HEADER_BYTES = Byte.BYTES + Byte.BYTES;
+    // version, flags, storage id, scale, maxSize, sketchK, totalItemsSeen
+    private static final int HYBRID_HEADER_BYTES = 4 * Byte.BYTES + 2 * Integer.BYTES + Long.BYTES;
+    // version, storage id, scale, maxSize, halfLifeMillis, totalItemsSeen
+    private static final int DECAYED_HEADER_BYTES = 3 * Byte.BYTES + Integer.BYTES + 2 * Long.BYTES;
+    // In-buffer aggregation state: totalItemsSeen, size, then room for maxSize samples. In value-count mode, size is
+    // the complement of the number of distinct values, whose counts follow the room for maxDistinct values.
+    static final int BUFFER_HEADER_BYTES = Long.BYTES + Integer.BYTES;
+    // State of a buffer slot whose hybrid reservoir has switched to a sketch, which no value-count size can reach
+    private static final int PROMOTED_STATE = Integer.MIN_VALUE;
+
+    /**
+     * Most distinct values kept in value-count mode, which bounds the cost of inserting a new one.
+     */
+    public static final int MAX_DISTINCT_VALUES = 1024;
+
+    /**
+     * Bounds of the K of the sketch of a hybrid reservoir, whose normalized rank error is about 1.65 / K.
+     */
+    public static final int MIN_SKETCH_K = 8;
+    public static final int MAX_SKETCH_K = 65535;
 
-    public static final DoublesReservoir EMPTY = new DoublesReservoir(0, Collections.emptyList());
-    private static final Random RANDOM = new Random();
+    /**
+     * Largest reservoir whose aggregation state still fits in a single buffer slot.
+     */
+    public static final int MAX_BUFFERED_SIZE = (Integer.MAX_VALUE - BUFFER_HEADER_BYTES) / Double.BYTES;
+
+    /**
+     * Largest forward-decay reservoir whose aggregation state still fits in a single buffer slot, each sample taking
+     * its log weight and priority along.
+     */
+    public static final int MAX_DECAYED_BUFFERED_SIZE =
+            (Integer.MAX_VALUE - BUFFER_HEADER_BYTES - Double.BYTES) / (3 * Double.BYTES);
 
     private final int maxSize;
-    private int totalItemsSeen;
-    private final List<Double> reservoir;
-    private boolean alreadySorted = true;
+    private final DoublesReservoirStorage storage;
+
+    // Hybrid mode: K of the sketch replacing the items once they no longer fit exactly, 0 to sample instead
+    private int sketchK;
+    // Forward-decay mode: half-life of the weight of an item, 0 for a uniform sample
+    private long halfLifeMillis;
+
+    private DoublesReservoirMode mode;
+
+    private transient boolean frozen;
+    // Whether `mode` may also be referenced by another reservoir, and must be copied before being written
+    private transient boolean modeShared;
 
     public DoublesReservoir(int maxSize) {
-        this(maxSize, new ArrayList<>(maxSize));
+        this(maxSize, DoublesReservoirStorage.DOUBLE);
+    }
+
+    public DoublesReservoir(int maxSize, DoublesReservoirStorage storage) {
+        this(maxSize, storage, newMode(maxSize, storage));
+    }
+
+    /**
+     * Creates a hybrid reservoir, which keeps its items exactly while they fit and then switches to a KLL sketch of
+     * the given K instead of sampling.
+     */
+    public DoublesReservoir(int maxSize, DoublesReservoirStorage storage, int sketchK) {
+        this(maxSize, storage, sketchK, true);
+    }
+
+    /**
+     * Creates a reservoir that counts its distinct values first only if {@code valueCounts} is set, and otherwise
+     * samples right away, or keeps its items exactly until they need a sketch for a hybrid one.
+     */
+    public DoublesReservoir(int maxSize, DoublesReservoirStorage storage, int sketchK, boolean valueCounts) {
+        this(maxSize, storage, valueCounts ? newMode(maxSize, storage) : new DoublesUniformSample(maxSize, storage));
+        this.sketchK = sketchK;
+    }
+
+    /**
+     * Creates a forward-decay reservoir, fed with {@link #acceptAt}. The weight of an item doubles with every
+     * {@code halfLifeMillis} of its timestamp, so next to the latest items, an item weighs half as much for each
+     * half-life of age. Since the weights only depend on the timestamps, reservoirs of the same half-life merge
+     * whatever the time range they cover.
+     */
+    public static DoublesReservoir decayed(int maxSize, DoublesReservoirStorage storage, long halfLifeMillis) {
+        if (halfLifeMillis <= 0) {
+            throw new IAE("Half-life must be positive, got [%s]", halfLifeMillis);
+        }
+
+        final DoublesReservoir reservoir =
+                new DoublesReservoir(maxSize, storage, new DoublesDecayedSample(maxSize, storage, halfLifeMillis));
+        reservoir.halfLifeMillis = halfLifeMillis;
+        return reservoir;
     }
 
     public DoublesReservoir(int maxSize, List<Double> reservoir) {
         this(maxSize, reservoir, reservoir.size());
     }
 
+    public DoublesReservoir(int maxSize, List<Double> reservoir, long totalItemsSeen) {
+        this(maxSize, reservoir.stream().mapToDouble(Double::doubleValue).toArray(), totalItemsSeen);
+    }
+
     @JsonCreator
     public DoublesReservoir(
             @JsonProperty("maxSize") int maxSize,
-            @JsonProperty("reservoir") List<Double> reservoir,
-            @JsonProperty("totalItemsSeen") int totalItemsSeen) {
+            @JsonProperty("reservoir") double[] reservoir,
+            @JsonProperty("totalItemsSeen") long totalItemsSeen) {
+        // e.g. read from segments or responses, which list the samples in ascending order
+        this(
+                maxSize,
+                DoublesReservoirStorage.DOUBLE,
+                DoublesReservoirMode.isSorted(reservoir)
+                        ? DoublesUniformSample.ofSorted(
+                                maxSize, DoublesReservoirStorage.DOUBLE, reservoir, reservoir.length, totalItemsSeen)
+                        : new DoublesUniformSample(
+                                maxSize, DoublesReservoirStorage.DOUBLE, reservoir, reservoir.length, totalItemsSeen));
+    }
+
+    private DoublesReservoir(int maxSize, DoublesReservoirStorage storage, DoublesReservoirMode mode) {
         this.maxSize = maxSize;
-        this.reservoir = reservoir;
-        this.totalItemsSeen = totalItemsSeen;
+        this.storage = storage;
+        this.mode = mode;
+    }
+
+    /**
+     * The mode an empty reservoir starts in: value counts, unless not even one distinct value fits.
+     */
+    private static DoublesReservoirMode newMode(int maxSize, DoublesReservoirStorage storage) {
+        return getMaxDistinct(maxSize, storage) > 0
+                ? new DoublesValueCounts(maxSize, storage)
+                : new DoublesUniformSample(maxSize, storage);
+    }
+
+    /**
+     * Number of distinct values a reservoir of {@code maxSize} samples keeps in value-count mode, so that the values
+     * and their counts take no more room than the samples.
+     */
+    public static int getMaxDistinct(int maxSize, DoublesReservoirStorage storage) {
+        final int bytesPerSample = storage.getBytesPerSample();
+        return (int) Math.min(MAX_DISTINCT_VALUES, (long) maxSize * bytesPerSample / (bytesPerSample + Long.BYTES));
+    }
+
+    /**
+     * Smallest reservoir whose percentiles stay within {@code rankError} of the rank they were asked for with the given
+     * confidence, by the Dvoretzky-Kiefer-Wolfowitz inequality: n = ln(2 / (1 - confidence)) / (2 rankError^2), e.g.
+     * 18445 samples for 0.01 at 0.95. Sampling without replacement only makes the bound tighter.
+     */
+    public static int getSizeForRankError(double rankError, double confidence) {
+        if (!(rankError > 0 && rankError < 1)) {
+            throw new IAE("Rank error must be > 0 and < 1, got [%s]", rankError);
+        }
+        DoublesDistributionStatistics.checkConfidence(confidence);
+
+        final double size = Math.ceil(Math.log(2 / (1 - confidence)) / (2 * rankError * rankError));
+
+        if (size > MAX_BUFFERED_SIZE) {
+            throw new IAE(
+                    "Rank error [%s] at confidence [%s] needs more than the %d samples a reservoir can hold",
+                    rankError, confidence, MAX_BUFFERED_SIZE);
+        }
+
+        return (int) size;
     }
 
     public void addAll(List<Double> values) {
@@ -70,23 +260,142 @@ public class DoublesReservoir implements Serializable {
     }
 
     public void accept(double value) {
-        ++totalItemsSeen;
-        alreadySorted = false; // reset
+        accept(value, 1);
+    }
 
-        if (reservoir.size() < maxSize) {
-            reservoir.add(value);
-        } else {
-            int index = RANDOM.nextInt(totalItemsSeen);
+    /**
+     * Accepts {@code weight} occurrences of a value, e.g. a row pre-aggregated with a count, as if {@link #accept}
+     * had been called that many times. Once the reservoir is full, only the occurrences that replace a sample are
+     * drawn, so the cost does not grow with the weight. A weight that is not positive stands for no items.
+     */
+    public void accept(double value, long weight) {
+        if (weight <= 0) {
+            return;
+        }
 
-            if (index < maxSize) {
-                reservoir.set(index, value);
+        if (halfLifeMillis > 0) {
+            throw new ISE("Forward-decay reservoirs need the timestamp of each item, use acceptAt()");
+        }
+
+        prepareForWrite();
+        final double sample = storage.narrow(value);
+
+        // Counted values that no longer fit are sampled, or sketched by a hybrid reservoir, which never samples and
+        // sketches its exact items as soon as they do not all fit
+        while (!mode.accept(sample, weight, sketchK > 0)) {
+            if (sketchK > 0 && mode.totalItemsSeen + weight > maxSize) {
+                promote();
+            } else {
+                switchToSampling();
             }
         }
     }
 
+    /**
+     * Accepts {@code weight} occurrences of a value seen at the given time. In a forward-decay reservoir, the item
+     * enters the priority sample with a priority of its decayed weight divided by a uniform random number, and a
+     * reservoir without decay ignores the timestamp.
+     */
+    public void acceptAt(double value, long timestamp, long weight) {
+        if (halfLifeMillis == 0) {
+            accept(value, weight);
+            return;
+        }
+
+        if (weight <= 0) {
+            return;
+        }
+
+        prepareForWrite();
+        ((DoublesDecayedSample) mode).acceptAt(storage.narrow(value), timestamp, weight);
+    }
+
+    /**
+     * Leaves value-count mode, replacing the counted values with a uniform sample of the items they stand for.
+     */
+    private void switchToSampling() {
+        mode = mode.asSample(maxSize);
+    }
+
+    /**
+     * Replaces the items of a hybrid reservoir with a sketch: counted values keep their counts, and samples stand for
+     * their share of the items seen.
+     */
+    private void promote() {
+        final DoublesKllSummary summary = new DoublesKllSummary(maxSize, storage, sketchK);
+        mode.addTo(summary);
+        summary.totalItemsSeen = mode.totalItemsSeen;
+        mode = summary;
+    }
+
+    /**
+     * A reservoir of at most {@code maxSampleSize} samples standing for the same items, without modifying this one:
+     * a uniform sample of them, the largest priorities of a forward-decay reservoir, or a sketch for a hybrid one that
+     * no longer fits. Reservoirs that already fit, and sketches, are returned as is.
+     */
+    public DoublesReservoir downsample(int maxSampleSize) {
+        if (isSketchMode() || getSize() <= maxSampleSize) {
+            return this;
+        }
+
+        final DoublesReservoir target = halfLifeMillis > 0
+                ? decayed(maxSampleSize, storage, halfLifeMillis)
+                : new DoublesReservoir(maxSampleSize, storage, sketchK);
+        return target.mergeWith(this);
+    }
+
+    /**
+     * Whether this hybrid reservoir has switched to a sketch, in which case its percentiles are approximate.
+     */
+    @JsonIgnore
+    public boolean isSketchMode() {
+        return mode instanceof DoublesKllSummary;
+    }
+
+    @JsonIgnore
+    public int getSketchK() {
+        return sketchK;
+    }
+
+    /**
+     * Half-life of the weight of the items of a forward-decay reservoir, 0 for a uniform sample.
+     */
+    @JsonIgnore
+    public long getHalfLifeMillis() {
+        return halfLifeMillis;
+    }
+
+    /**
+     * Whether this reservoir keeps distinct values with their counts rather than samples, in which case its
+     * percentiles are exact.
+     */
+    @JsonIgnore
+    public boolean isValueCountMode() {
+        return mode instanceof DoublesValueCounts;
+    }
+
+    /**
+     * Whether the JSON object form holds all of this reservoir: not the case of narrower storages, value counts,
+     * sketches or forward-decay weights, which need the binary form.
+     */
+    @JsonIgnore
+    public boolean isPlainSample() {
+        return storage.isExact() && sketchK == 0 && !isValueCountMode() && halfLifeMillis == 0;
+    }
+
     @JsonProperty
-    public int getTotalItemsSeen() {
-        return totalItemsSeen;
+    public long getTotalItemsSeen() {
+        return mode.totalItemsSeen;
+    }
+
+    /**
+     * Decayed weights are relative to the epoch, so histograms of a forward-decay reservoir hold fractions of the
+     * total decayed weight rather than counts.
+     */
+    @Override
+    @JsonIgnore
+    public double getHistogramTotal() {
+        return mode.getHistogramTotal();
     }
 
     @JsonProperty
@@ -94,98 +403,923 @@ public class DoublesReservoir implements Serializable {
         return maxSize;
     }
 
+    /**
+     * The samples in ascending order. In value-count mode, every item seen, or {@code maxSize} evenly spaced quantiles
+     * of them once there are more; in sketch mode, {@code maxSize} evenly spaced quantiles, which stand for the items
+     * the same way a sample would; in forward-decay mode, the samples without their weights.
+     */
     @JsonProperty("reservoir")
     public List<Double> getSortedValues() {
-        final List<Double> sorted = new ArrayList<>(reservoir);
+        final double[] values = mode.getSortedSamples();
+        final List<Double> sortedValues = new ArrayList<>(values.length);
 
-        if (!alreadySorted) {
-            Collections.sort(sorted);
+        for (double value : values) {
+            sortedValues.add(value);
         }
 
-        return sorted;
+        return sortedValues;
     }
 
     public double getPercentile(double fraction) {
-        return calculate(getSortedValues(), fraction);
+        return mode.getPercentile(fraction);
     }
 
     public double[] getPercentile(double[] fraction) {
-        final double[] percentiles = new double[fraction.length];
-        final List<Double> sorted = getSortedValues();
+        return mode.getPercentile(fraction);
+    }
 
-        for (int index = 0; index < fraction.length; ++index) {
-            percentiles[index] = calculate(sorted, fraction[index]);
-        }
+    /**
+     * Fraction of the items seen that are less than or equal to {@code value}, found by binary search on the sorted
+     * samples; in value-count mode the counts of the values up to it are added up, and in forward-decay mode the
+     * decayed weights of the samples up to it.
+     */
+    @Override
+    public double getRank(double value) {
+        return Double.isNaN(value) ? Double.NaN : mode.getRank(value);
+    }
 
-        return percentiles;
+    @Override
+    public double getTrimmedMean(double lowerFraction, double upperFraction) {
+        return mode.getTrimmedMean(lowerFraction, upperFraction);
+    }
+
+    @Override
+    public double getMedianAbsoluteDeviation() {
+        return mode.getMedianAbsoluteDeviation();
+    }
+
+    /**
+     * Confidence interval of a percentile, from the order statistics of the sample: with {@code n} samples out of
+     * {@code N} items, the order statistics {@code z * sqrt(n * fraction * (1 - fraction) * (N - n) / (N - 1))}
+     * below and above the rank {@code (n - 1) * fraction} of the percentile bound the percentile of the items.
+     * Forward-decay reservoirs use their effective sample size, sketches scale their rank error to the confidence, and
+     * value-count mode, like any reservoir holding all the items it has seen, gives the exact percentile for all
+     * three.
+     */
+    @Override
+    public double[] getPercentileConfidenceInterval(double fraction, double confidence) {
+        return mode.getPercentileConfidenceInterval(fraction, confidence);
+    }
+
+    @JsonIgnore
+    public double getMedian() {
+        return getPercentile(0.5);
+    }
+
+    @JsonIgnore
+    public DoublesReservoirStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Number of samples held, which in value-count mode are all the items seen, and in sketch mode the items
+     * retained by the sketch.
+     */
+    @JsonIgnore
+    public int getSize() {
+        return mode.getSize();
     }
 
     @JsonIgnore
     public double getStddev() {
-        return new StandardDeviation().evaluate(reservoir.stream().mapToDouble(Double::doubleValue).toArray());
+        return mode.getStddev();
     }
 
     @JsonIgnore
     public double getAVG() {
-        return new Mean().evaluate(reservoir.stream().mapToDouble(Double::doubleValue).toArray());
+        return mode.getAVG();
     }
 
     @JsonIgnore
     public double getMax() {
-        return new Max().evaluate(
-                reservoir.stream()
-                        .mapToDouble(Double::doubleValue)
-                        .toArray()
-        );
+        return mode.getMax();
     }
 
     @JsonIgnore
     public double getMin() {
-        return new Min().evaluate(
-                reservoir.stream()
-                        .mapToDouble(Double::doubleValue)
-                        .toArray()
-        );
+        return mode.getMin();
     }
-    private static void checkFractionBound(final double fraction) {
-        if ((fraction < 0.0) || (fraction > 1.0)) {
-            throw new IAE("A fraction must be >= 0 and <= 1.0: " + fraction);
+
+    private static int compareNaNFirst(double lhs, double rhs) {
+        if (Double.isNaN(lhs) || Double.isNaN(rhs)) {
+            return Boolean.compare(!Double.isNaN(lhs), !Double.isNaN(rhs));
         }
+
+        return Double.compare(lhs, rhs);
+    }
+
+    /**
+     * Merges {@code source} into this reservoir, which afterwards holds a uniform sample of the items seen by both.
+     * Each side contributes samples in proportion to the number of items it has seen, and {@code source} is left
+     * untouched.
+     */
+    public DoublesReservoir mergeWith(@Nullable DoublesReservoir source) {
+        if (source == null || source.getTotalItemsSeen() == 0) {
+            return this;
+        }
+
+        final long startNanos = System.nanoTime();
+        merge(source);
+        DoublesReservoirCounter.MERGES.increment();
+        DoublesReservoirCounter.MERGE_NANOS.addNanosSince(startNanos);
+
+        return this;
     }
 
-    private static double calculate(List<Double> sortedList, double fraction) {
-        checkFractionBound(fraction);
+    private void merge(DoublesReservoir source) {
+        prepareForWrite();
 
-        if (sortedList.isEmpty()) {
-            return Double.NaN;
+        if (halfLifeMillis > 0 || source.halfLifeMillis > 0) {
+            mergeDecayed(source);
+            return;
         }
 
-        double rank = fraction * (sortedList.size() - 1);
-        int lowerIndex = (int) Math.floor(rank);
-        int upperIndex = (int) Math.ceil(rank);
+        if (source.isSketchMode() && sketchK == 0) {
+            // A sketch has no samples to draw from, so the result becomes a sketch as well
+            sketchK = source.sketchK;
+        }
+
+        if (sketchK > 0 && !canMergeExactly(source)) {
+            if (!isSketchMode()) {
+                promote();
+            }
 
-        if (lowerIndex == upperIndex) {
-            return sortedList.get(lowerIndex);
+            source.mode.addTo((DoublesKllSummary) mode);
+            mode.totalItemsSeen += source.getTotalItemsSeen();
+            return;
         }
 
-        double weight = rank - lowerIndex;
+        if (isValueCountMode()) {
+            if (source.isValueCountMode()) {
+                mergeCounts(source);
+                return;
+            }
+
+            switchToSampling();
+        }
 
-        // Interpolate between the two values
-        return sortedList.get(lowerIndex) + weight * (sortedList.get(upperIndex) - sortedList.get(lowerIndex));
+        ((DoublesUniformSample) mode).merge(source.mode.asSample(maxSize), ThreadLocalRandom.current());
     }
 
-    public DoublesReservoir mergeWith(@Nullable DoublesReservoir source) {
-        if (source != null) {
-            this.addAll(source.reservoir);
+    /**
+     * Merges the priority samples of two forward-decay reservoirs, which keeps the largest priorities of both.
+     */
+    private void mergeDecayed(DoublesReservoir source) {
+        if (halfLifeMillis == 0 && getTotalItemsSeen() == 0 && sketchK == 0) {
+            // An empty reservoir, e.g. that of a combiner, takes the decay of what it merges
+            halfLifeMillis = source.halfLifeMillis;
+            mode = new DoublesDecayedSample(maxSize, storage, halfLifeMillis);
+        }
+
+        if (halfLifeMillis != source.halfLifeMillis) {
+            throw new IAE(
+                    "Cannot merge reservoirs with half-lives of [%s] and [%s] ms",
+                    halfLifeMillis, source.halfLifeMillis);
         }
 
+        ((DoublesDecayedSample) mode).merge((DoublesDecayedSample) source.mode);
+    }
+
+    /**
+     * Whether merging {@code source} keeps every item of both sides: both are exact, and either count their values,
+     * which stay exact until they need a sketch, or fit together.
+     */
+    private boolean canMergeExactly(DoublesReservoir source) {
+        return mode.isExact()
+                && source.mode.isExact()
+                && ((isValueCountMode() && source.isValueCountMode())
+                        || getTotalItemsSeen() + source.getTotalItemsSeen() <= maxSize);
+    }
+
+    /**
+     * Merges the counted values of both reservoirs, falling back to a sketch or a uniform sample of all their items
+     * when the distinct values do not fit.
+     */
+    private void mergeCounts(DoublesReservoir source) {
+        if (((DoublesValueCounts) mode).merge((DoublesValueCounts) source.mode)) {
+            return;
+        }
+
+        if (sketchK > 0 && getTotalItemsSeen() > maxSize) {
+            promote();
+        } else {
+            switchToSampling();
+        }
+    }
+
+    /**
+     * Empties this reservoir, keeping its mode and the arrays of it so it can be refilled without allocating: a
+     * reservoir that switched to sampling or to a sketch, e.g. the one of a rollup combiner, keeps sampling or
+     * sketching rather than switching again on the next rows.
+     */
+    public void clear() {
+        checkMutable();
+
+        if (modeShared) {
+            mode = mode.emptyCopy();
+            modeShared = false;
+        } else {
+            mode.clear();
+        }
+    }
+
+    /**
+     * Makes this reservoir read-only, so it can be shared without copying.
+     */
+    public DoublesReservoir freeze() {
+        frozen = true;
         return this;
     }
 
+    @JsonIgnore
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Returns a frozen view of the current state. This reservoir stays mutable and copies its samples the next
+     * time it is modified, so the view never changes.
+     */
+    public DoublesReservoir snapshot() {
+        if (frozen) {
+            return this;
+        }
+
+        modeShared = true;
+        return shareMode().freeze();
+    }
+
+    /**
+     * Returns a mutable reservoir with the same state, sharing the samples copy-on-write.
+     */
+    public DoublesReservoir mutableCopy() {
+        if (!frozen) {
+            modeShared = true;
+        }
+
+        final DoublesReservoir copy = shareMode();
+        copy.modeShared = true;
+        return copy;
+    }
+
+    private DoublesReservoir shareMode() {
+        final DoublesReservoir reservoir = new DoublesReservoir(maxSize, storage, mode);
+        reservoir.sketchK = sketchK;
+        reservoir.halfLifeMillis = halfLifeMillis;
+        return reservoir;
+    }
+
+    /**
+     * Merges all the given reservoirs in a single weighted pass, without modifying any of them.
+     * The result can hold up to the largest {@code maxSize} of the inputs.
+     */
+    public static DoublesReservoir mergeAll(List<DoublesReservoir> reservoirs) {
+        int maxSize = 0;
+
+        for (DoublesReservoir reservoir : reservoirs) {
+            if (reservoir != null) {
+                maxSize = Math.max(maxSize, reservoir.maxSize);
+            }
+        }
+
+        return mergeAll(maxSize, reservoirs);
+    }
+
+    /**
+     * Merges all the given reservoirs into a new reservoir of {@code maxSize} in a single weighted pass, without
+     * modifying any of them. Merging is associative: any grouping of the inputs yields the same distribution.
+     * The result keeps the storage of the inputs when they all share it, and stores doubles otherwise.
+     */
+    public static DoublesReservoir mergeAll(int maxSize, List<DoublesReservoir> reservoirs) {
+        final List<DoublesReservoir> inputs = new ArrayList<>(reservoirs.size());
+        long totalItemsSeen = 0;
+        int totalSize = 0;
+        DoublesReservoirStorage storage = null;
+        boolean allCounted = true;
+        int sketchK = 0;
+        boolean decayed = false;
+
+        for (DoublesReservoir reservoir : reservoirs) {
+            if (reservoir != null && reservoir.getTotalItemsSeen() > 0) {
+                storage = storage == null
+                        ? reservoir.storage
+                        : DoublesReservoirStorage.widest(storage, reservoir.storage);
+                allCounted &= reservoir.isValueCountMode();
+                sketchK = Math.max(sketchK, reservoir.sketchK);
+                decayed |= reservoir.halfLifeMillis > 0;
+                inputs.add(reservoir);
+            }
+        }
+
+        if (decayed) {
+            // Priority samples merge by keeping the largest priorities, whatever the order
+            final DoublesReservoir merged = new DoublesReservoir(maxSize, storage);
+
+            for (DoublesReservoir input : inputs) {
+                merged.mergeWith(input);
+            }
+
+            return merged;
+        }
+
+        if (sketchK > 0) {
+            // Hybrid inputs stay exact as long as they fit, and are folded into one sketch otherwise
+            final DoublesReservoir merged = new DoublesReservoir(maxSize, storage, sketchK);
+
+            for (DoublesReservoir input : inputs) {
+                merged.mergeWith(input);
+            }
+
+            return merged;
+        }
+
+        if (allCounted && !inputs.isEmpty()) {
+            // Value counts add up exactly, and only turn into a sample if the distinct values do not fit
+            final DoublesReservoir merged = new DoublesReservoir(maxSize, storage);
+
+            for (DoublesReservoir input : inputs) {
+                merged.mergeWith(input);
+            }
+
+            return merged;
+        }
+
+        final long startNanos = System.nanoTime();
+        final List<DoublesUniformSample> samples = new ArrayList<>(inputs.size());
+
+        for (DoublesReservoir input : inputs) {
+            final DoublesUniformSample sample = input.mode.asSample(maxSize);
+            samples.add(sample);
+            totalItemsSeen += sample.totalItemsSeen;
+            totalSize += sample.size;
+        }
+
+        final int target = Math.min(maxSize, totalSize);
+        final int[] counts = new int[samples.size()];
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        // Fenwick tree over the items not drawn yet from each input, so each draw is O(log inputs)
+        final long[] tree = new long[samples.size() + 1];
+        for (int index = 0; index < samples.size(); ++index) {
+            DoublesReservoirMode.addToTree(tree, index, samples.get(index).totalItemsSeen);
+        }
+
+        long remaining = totalItemsSeen;
+        int drawn = 0;
+
+        while (drawn < target && remaining > 0) {
+            final int index = DoublesReservoirMode.findInTree(tree, random.nextLong(remaining));
+
+            if (counts[index] == samples.get(index).size) {
+                // A full input ran out of samples: stop here so the result stays a uniform sample
+                break;
+            }
+
+            ++counts[index];
+            DoublesReservoirMode.addToTree(tree, index, -1);
+            --remaining;
+            ++drawn;
+        }
+
+        final DoublesReservoirStorage mergedStorage = storage == null ? DoublesReservoirStorage.DOUBLE : storage;
+        final double[] values = DoublesReservoirMode.newSamples(drawn);
+        int offset = 0;
+
+        for (int index = 0; index < samples.size(); ++index) {
+            final DoublesUniformSample sample = samples.get(index);
+            DoublesReservoirMode.selectInto(sample.values, sample.size, counts[index], values, offset, random);
+            offset += counts[index];
+        }
+
+        DoublesReservoirCounter.MERGES.add(inputs.size());
+        DoublesReservoirCounter.MERGE_NANOS.addNanosSince(startNanos);
+
+        return new DoublesReservoir(
+                maxSize,
+                mergedStorage,
+                new DoublesUniformSample(maxSize, mergedStorage, values, drawn, totalItemsSeen));
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new ISE("Cannot modify a frozen reservoir, use mutableCopy() first");
+        }
+    }
+
+    private void prepareForWrite() {
+        checkMutable();
+
+        if (modeShared) {
+            mode = mode.copy();
+            modeShared = false;
+        }
+    }
+
+    /**
+     * Serializes this reservoir as a little-endian header followed by the items of its mode, each sample written with
+     * the storage of the reservoir.
+     */
+    public byte[] toBytes() {
+        final ByteBuffer buffer =
+                ByteBuffer.allocate(getHeaderBytes() + mode.getBodyBytes()).order(ByteOrder.LITTLE_ENDIAN);
+
+        writeHeader(buffer);
+        mode.writeBody(buffer);
+
+        final byte[] bytes = buffer.array();
+        DoublesReservoirCounter.BYTES_WRITTEN.add(bytes.length);
+
+        if (!isSketchMode()) {
+            DoublesReservoirCounter.SAMPLES_SERIALIZED.add(Math.min(getSize(), maxSize));
+            DoublesReservoirCounter.CAPACITY_SERIALIZED.add(maxSize);
+        }
+
+        return bytes;
+    }
+
+    private int getHeaderBytes() {
+        if (halfLifeMillis > 0) {
+            return DECAYED_HEADER_BYTES;
+        }
+
+        if (sketchK > 0) {
+            return HYBRID_HEADER_BYTES;
+        }
+
+        return SAMPLE_HEADER_BYTES + (storage.isExact() && !isValueCountMode() ? 0 : STORAGE_HEADER_BYTES);
+    }
+
+    /**
+     * Writes the version of the serialized form, which tells readers which mode wrote the body, along with what the
+     * mode needs to read it back.
+     */
+    private void writeHeader(ByteBuffer buffer) {
+        if (halfLifeMillis > 0) {
+            buffer.put(SERIAL_VERSION_DECAYED);
+            putStorage(buffer);
+            buffer.putInt(maxSize);
+            buffer.putLong(halfLifeMillis);
+            buffer.putLong(getTotalItemsSeen());
+            return;
+        }
+
+        if (sketchK > 0) {
+            buffer.put(SERIAL_VERSION_HYBRID);
+            buffer.put(isSketchMode() ? FLAG_SKETCH : isValueCountMode() ? FLAG_COUNTS : 0);
+            putStorage(buffer);
+            buffer.putInt(maxSize);
+            buffer.putInt(sketchK);
+            buffer.putLong(getTotalItemsSeen());
+            return;
+        }
+
+        if (isValueCountMode()) {
+            buffer.put(SERIAL_VERSION_COUNTS);
+            putStorage(buffer);
+        } else if (storage.isExact()) {
+            buffer.put(SERIAL_VERSION);
+        } else {
+            buffer.put(SERIAL_VERSION_STORAGE);
+            putStorage(buffer);
+        }
+
+        buffer.putInt(maxSize);
+        buffer.putLong(getTotalItemsSeen());
+    }
+
+    private void putStorage(ByteBuffer buffer) {
+        final Integer scale = storage.getScale();
+
+        buffer.put(storage.getId());
+        buffer.put(scale == null ? 0 : scale.byteValue());
+    }
+
+    private static DoublesReservoirStorage readStorage(ByteBuffer data) {
+        final byte id = data.get();
+        return DoublesReservoirStorage.fromId(id, data.get());
+    }
+
+    public static DoublesReservoir fromBytes(ByteBuffer buffer) {
+        final int start = buffer.position();
+        final DoublesReservoir reservoir = readBytes(buffer);
+        DoublesReservoirCounter.BYTES_READ.add(buffer.position() - start);
+        return reservoir;
+    }
+
+    private static DoublesReservoir readBytes(ByteBuffer buffer) {
+        final ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        final byte version = data.get();
+        final DoublesReservoir reservoir;
+
+        if (version == SERIAL_VERSION_HYBRID) {
+            reservoir = readHybrid(data);
+        } else if (version == SERIAL_VERSION_DECAYED) {
+            reservoir = readDecayed(data);
+        } else if (version == SERIAL_VERSION || version == SERIAL_VERSION_STORAGE || version == SERIAL_VERSION_COUNTS) {
+            final DoublesReservoirStorage storage =
+                    version == SERIAL_VERSION ? DoublesReservoirStorage.DOUBLE : readStorage(data);
+            final int maxSize = data.getInt();
+            final long totalItemsSeen = data.getLong();
+            final DoublesReservoirMode mode = version == SERIAL_VERSION_COUNTS
+                    ? DoublesValueCounts.readBody(data, maxSize, storage, totalItemsSeen)
+                    : DoublesUniformSample.readBody(data, maxSize, storage, totalItemsSeen);
+
+            reservoir = new DoublesReservoir(maxSize, storage, mode);
+        } else {
+            throw new IAE("Unsupported reservoir serialization version [%s]", version);
+        }
+
+        buffer.position(buffer.position() + data.position());
+        return reservoir;
+    }
+
+    private static DoublesReservoir readHybrid(ByteBuffer data) {
+        final byte flags = data.get();
+        final DoublesReservoirStorage storage = readStorage(data);
+        final int maxSize = data.getInt();
+        final int sketchK = data.getInt();
+        final long totalItemsSeen = data.getLong();
+        final DoublesReservoirMode mode;
+
+        if ((flags & FLAG_SKETCH) != 0) {
+            mode = DoublesKllSummary.readBody(data, maxSize, storage, totalItemsSeen);
+        } else if ((flags & FLAG_COUNTS) != 0) {
+            mode = DoublesValueCounts.readBody(data, maxSize, storage, totalItemsSeen);
+        } else {
+            mode = DoublesUniformSample.readBody(data, maxSize, storage, totalItemsSeen);
+        }
+
+        final DoublesReservoir reservoir = new DoublesReservoir(maxSize, storage, mode);
+        reservoir.sketchK = sketchK;
+        return reservoir;
+    }
+
+    private static DoublesReservoir readDecayed(ByteBuffer data) {
+        final DoublesReservoirStorage storage = readStorage(data);
+        final int maxSize = data.getInt();
+        final long halfLifeMillis = data.getLong();
+        final long totalItemsSeen = data.getLong();
+        final DoublesReservoir reservoir = new DoublesReservoir(
+                maxSize,
+                storage,
+                DoublesDecayedSample.readBody(data, maxSize, storage, halfLifeMillis, totalItemsSeen));
+
+        reservoir.halfLifeMillis = halfLifeMillis;
+        return reservoir;
+    }
+
+    public static int getSerializedSize(int size) {
+        return getSerializedSize(size, DoublesReservoirStorage.DOUBLE);
+    }
+
+    public static int getSerializedSize(int size, DoublesReservoirStorage storage) {
+        return SAMPLE_HEADER_BYTES
+                + (storage.isExact() ? 0 : STORAGE_HEADER_BYTES)
+                + Integer.BYTES
+                + size * storage.getBytesPerSample();
+    }
+
+    /**
+     * Number of bytes taken in an aggregation buffer by a reservoir of up to {@code maxSize} samples.
+     */
+    public static int getBufferSize(int maxSize, DoublesReservoirStorage storage) {
+        return BUFFER_HEADER_BYTES + maxSize * storage.getBytesPerSample();
+    }
+
+    /**
+     * Number of bytes taken in an aggregation buffer by a hybrid reservoir of up to {@code maxSize} samples, whose
+     * slot also has room for the sketch of the given K that replaces them.
+     */
+    public static int getBufferSize(int maxSize, DoublesReservoirStorage storage, int sketchK) {
+        final int size = getBufferSize(maxSize, storage);
+        return sketchK > 0 ? Math.max(size, DoublesKllSummary.getBufferSize(sketchK)) : size;
+    }
+
+    /**
+     * Number of bytes taken in an aggregation buffer by a forward-decay reservoir of up to {@code maxSize} samples,
+     * kept along with their log weights and priorities.
+     */
+    public static int getDecayedBufferSize(int maxSize, DoublesReservoirStorage storage) {
+        return DoublesDecayedSample.getBufferSize(maxSize, storage);
+    }
+
+    /**
+     * Writes an empty forward-decay reservoir at the given position of an aggregation buffer sized with
+     * {@link #getDecayedBufferSize}.
+     */
+    public static void initDecayedBuffer(ByteBuffer buffer, int position) {
+        DoublesDecayedSample.initBuffer(buffer, position);
+    }
+
+    /**
+     * Same as {@link #acceptAt}, applied directly to the forward-decay reservoir stored at the given position.
+     */
+    public static void acceptAtInBuffer(
+            ByteBuffer buffer,
+            int position,
+            int maxSize,
+            DoublesReservoirStorage storage,
+            long halfLifeMillis,
+            double value,
+            long timestamp,
+            long weight) {
+        if (weight > 0) {
+            DoublesDecayedSample.acceptAtInBuffer(
+                    buffer, position, maxSize, storage, halfLifeMillis, storage.narrow(value), timestamp, weight);
+        }
+    }
+
+    /**
+     * Same as {@link #mergeWith}, applied directly to the forward-decay reservoir stored at the given position, which
+     * only merges reservoirs of the same half-life.
+     */
+    public static void mergeDecayedInBuffer(
+            ByteBuffer buffer,
+            int position,
+            int maxSize,
+            DoublesReservoirStorage storage,
+            long halfLifeMillis,
+            @Nullable DoublesReservoir source) {
+        if (source == null || source.getTotalItemsSeen() == 0) {
+            return;
+        }
+
+        if (source.halfLifeMillis != halfLifeMillis) {
+            throw new IAE(
+                    "Cannot merge reservoirs with half-lives of [%s] and [%s] ms",
+                    halfLifeMillis, source.halfLifeMillis);
+        }
+
+        final long startNanos = System.nanoTime();
+        DoublesDecayedSample.mergeInBuffer(buffer, position, maxSize, storage, (DoublesDecayedSample) source.mode);
+        DoublesReservoirCounter.MERGES.increment();
+        DoublesReservoirCounter.MERGE_NANOS.addNanosSince(startNanos);
+    }
+
+    /**
+     * Reads the forward-decay reservoir stored at the given position of an aggregation buffer into a new mutable
+     * reservoir.
+     */
+    public static DoublesReservoir fromDecayedBuffer(
+            ByteBuffer buffer, int position, int maxSize, DoublesReservoirStorage storage, long halfLifeMillis) {
+        final DoublesReservoir reservoir = new DoublesReservoir(
+                maxSize,
+                storage,
+                DoublesDecayedSample.fromBuffer(buffer, position, maxSize, storage, halfLifeMillis));
+
+        reservoir.halfLifeMillis = halfLifeMillis;
+        return reservoir;
+    }
+
+    /**
+     * Writes an empty reservoir, in value-count mode, at the given position of an aggregation buffer.
+     */
+    public static void initBuffer(ByteBuffer buffer, int position) {
+        initBuffer(buffer, position, true);
+    }
+
+    /**
+     * Writes an empty reservoir at the given position of an aggregation buffer, in value-count mode only if
+     * {@code valueCounts} is set.
+     */
+    public static void initBuffer(ByteBuffer buffer, int position, boolean valueCounts) {
+        buffer.putLong(position, 0);
+        buffer.putInt(position + Long.BYTES, valueCounts ? ~0 : 0);
+    }
+
+    /**
+     * Same as {@link #accept(double)}, applied directly to the reservoir stored at the given position.
+     */
+    public static void acceptInBuffer(
+            ByteBuffer buffer, int position, int maxSize, DoublesReservoirStorage storage, double value) {
+        acceptInBuffer(buffer, position, maxSize, storage, value, 1, false);
+    }
+
+    /**
+     * Same as {@link #accept(double, long)}, applied directly to the reservoir stored at the given position.
+     */
+    public static void acceptInBuffer(
+            ByteBuffer buffer, int position, int maxSize, DoublesReservoirStorage storage, double value, long weight) {
+        acceptInBuffer(buffer, position, maxSize, storage, value, weight, false);
+    }
+
+    /**
+     * Same as {@link #acceptInBuffer(ByteBuffer, int, int, DoublesReservoirStorage, double)} for a hybrid reservoir,
+     * which never samples: returns false, leaving the buffer untouched, when the value no longer fits exactly.
+     */
+    public static boolean acceptExactlyInBuffer(
+            ByteBuffer buffer, int position, int maxSize, DoublesReservoirStorage storage, double value) {
+        return acceptInBuffer(buffer, position, maxSize, storage, value, 1, true);
+    }
+
+    /**
+     * Same as {@link #acceptExactlyInBuffer(ByteBuffer, int, int, DoublesReservoirStorage, double)} for
+     * {@code weight} occurrences of the value, all of which must fit.
+     */
+    public static boolean acceptExactlyInBuffer(
+            ByteBuffer buffer, int position, int maxSize, DoublesReservoirStorage storage, double value, long weight) {
+        return acceptInBuffer(buffer, position, maxSize, storage, value, weight, true);
+    }
+
+    private static boolean acceptInBuffer(
+            ByteBuffer buffer,
+            int position,
+            int maxSize,
+            DoublesReservoirStorage storage,
+            double value,
+            long weight,
+            boolean exactOnly) {
+        if (weight <= 0) {
+            return true;
+        }
+
+        final double sample = storage.narrow(value);
+        final int state = buffer.getInt(position + Long.BYTES);
+
+        if (state < 0) {
+            if (DoublesValueCounts.acceptInBuffer(buffer, position, maxSize, storage, ~state, sample, weight)) {
+                return true;
+            }
+
+            if (exactOnly && buffer.getLong(position) + weight > maxSize) {
+                return false;
+            }
+
+            DoublesValueCounts.fromBuffer(buffer, position, maxSize, storage, ~state)
+                              .asSample(maxSize)
+                              .writeToBuffer(buffer, position);
+        }
+
+        return DoublesUniformSample.acceptInBuffer(buffer, position, maxSize, storage, sample, weight, exactOnly);
+    }
+
+    /**
+     * Whether the hybrid reservoir at the given position of an aggregation buffer has switched to a sketch, kept in
+     * the slot since {@link #writeSketchToBuffer}.
+     */
+    public static boolean isPromotedInBuffer(ByteBuffer buffer, int position) {
+        return buffer.getInt(position + Long.BYTES) == PROMOTED_STATE;
+    }
+
+    /**
+     * The sketch of the hybrid reservoir promoted at the given position of an aggregation buffer, of which
+     * {@code memory} is a writable view.
+     */
+    public static KllDoublesSketch wrapSketchInBuffer(WritableMemory memory, int position, int sketchK) {
+        return DoublesKllSummary.wrapBuffer(memory, position, sketchK);
+    }
+
+    /**
+     * Same as {@link #accept(double, long)}, applied directly to the hybrid reservoir promoted at the given position,
+     * whose sketch is {@code sketch}.
+     */
+    public static void acceptInSketchBuffer(
+            ByteBuffer buffer, int position, KllDoublesSketch sketch, double value, long weight) {
+        if (weight > 0) {
+            DoublesKllSummary.acceptInBuffer(buffer, position, sketch, value, weight);
+        }
+    }
+
+    /**
+     * Same as {@link #mergeWith}, applied directly to the hybrid reservoir promoted at the given position, whose
+     * sketch is {@code sketch}.
+     */
+    public static void mergeInSketchBuffer(
+            ByteBuffer buffer, int position, KllDoublesSketch sketch, @Nullable DoublesReservoir source) {
+        if (source == null || source.getTotalItemsSeen() == 0) {
+            return;
+        }
+
+        if (source.halfLifeMillis > 0) {
+            throw new IAE("Cannot merge a forward-decay reservoir into a sketch");
+        }
+
+        final long startNanos = System.nanoTime();
+        final DoublesKllSummary summary;
+
+        if (source.isSketchMode()) {
+            summary = (DoublesKllSummary) source.mode;
+        } else {
+            summary = new DoublesKllSummary(source.maxSize, source.storage, sketch.getK());
+            source.mode.addTo(summary);
+            summary.totalItemsSeen = source.getTotalItemsSeen();
+        }
+
+        DoublesKllSummary.mergeInBuffer(buffer, position, sketch, summary);
+        DoublesReservoirCounter.MERGES.increment();
+        DoublesReservoirCounter.MERGE_NANOS.addNanosSince(startNanos);
+    }
+
+    /**
+     * Reads the hybrid reservoir promoted at the given position of an aggregation buffer, whose sketch is
+     * {@code sketch}, into a new mutable reservoir.
+     */
+    public static DoublesReservoir fromSketchBuffer(
+            ByteBuffer buffer, int position, KllDoublesSketch sketch, int maxSize, DoublesReservoirStorage storage) {
+        final DoublesReservoir reservoir = new DoublesReservoir(
+                maxSize, storage, DoublesKllSummary.fromBuffer(buffer, position, sketch, maxSize, storage));
+
+        reservoir.sketchK = sketch.getK();
+        return reservoir;
+    }
+
+    /**
+     * Reads the reservoir stored at the given position of an aggregation buffer into a new mutable reservoir.
+     */
+    public static DoublesReservoir fromBuffer(
+            ByteBuffer buffer, int position, int maxSize, DoublesReservoirStorage storage) {
+        return fromBuffer(buffer, position, maxSize, storage, 0);
+    }
+
+    /**
+     * Same as {@link #fromBuffer(ByteBuffer, int, int, DoublesReservoirStorage)} for a hybrid reservoir of the given
+     * sketch K, whose slot must not have been promoted.
+     */
+    public static DoublesReservoir fromBuffer(
+            ByteBuffer buffer, int position, int maxSize, DoublesReservoirStorage storage, int sketchK) {
+        if (isPromotedInBuffer(buffer, position)) {
+            throw new ISE("Reservoir at position [%s] has been promoted to a sketch", position);
+        }
+
+        final int state = buffer.getInt(position + Long.BYTES);
+        final DoublesReservoirMode mode = state < 0
+                ? DoublesValueCounts.fromBuffer(buffer, position, maxSize, storage, ~state)
+                : DoublesUniformSample.fromBuffer(buffer, position, maxSize, storage);
+        final DoublesReservoir reservoir = new DoublesReservoir(maxSize, storage, mode);
+
+        reservoir.sketchK = sketchK;
+        return reservoir;
+    }
+
+    /**
+     * Writes this hybrid reservoir, once switched to a sketch, at the given position of an aggregation buffer sized
+     * with {@link #getBufferSize(int, DoublesReservoirStorage, int)}, of which {@code memory} is a writable view, and
+     * returns the sketch built there, to be updated in place from then on.
+     */
+    public KllDoublesSketch writeSketchToBuffer(ByteBuffer buffer, WritableMemory memory, int position) {
+        if (!isSketchMode()) {
+            throw new ISE("Only sketches are written with writeSketchToBuffer(), use writeToBuffer()");
+        }
+
+        final KllDoublesSketch sketch = ((DoublesKllSummary) mode).writeToBuffer(buffer, memory, position);
+
+        buffer.putInt(position + Long.BYTES, PROMOTED_STATE);
+        return sketch;
+    }
+
+    /**
+     * Writes this reservoir at the given position of an aggregation buffer sized with
+     * {@link #getBufferSize(int, DoublesReservoirStorage)} for its storage.
+     */
+    public void writeToBuffer(ByteBuffer buffer, int position) {
+        if (isSketchMode()) {
+            throw new ISE("Sketches are written with writeSketchToBuffer()");
+        }
+
+        if (halfLifeMillis > 0) {
+            throw new ISE("Forward-decay reservoirs are updated in their slot, use mergeDecayedInBuffer()");
+        }
+
+        if (isValueCountMode()) {
+            ((DoublesValueCounts) mode).writeToBuffer(buffer, position);
+        } else {
+            ((DoublesUniformSample) mode).writeToBuffer(buffer, position);
+        }
+    }
+
     public static DoublesReservoir from(List<Double> value) {
         return new DoublesReservoir(value.size(), value);
     }
 
+    /**
+     * Whether a string holds a serialized reservoir: either its JSON object form, or its binary form in base64, whose
+     * first byte is one of the known serialization versions. Numbers read as strings never match.
+     */
+    public static boolean isSerialized(String data) {
+        if (data.isEmpty()) {
+            return false;
+        }
+
+        if (data.charAt(0) == '{') {
+            return true;
+        }
+
+        if (data.length() < 4) {
+            return false;
+        }
+
+        final byte[] head;
+
+        try {
+            // The first four characters are enough to decode the version byte
+            head = Base64.getDecoder().decode(data.substring(0, 4));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        return head.length > 0 && head[0] >= SERIAL_VERSION && head[0] <= SERIAL_VERSION_DECAYED;
+    }
+
     @SuppressWarnings("unchecked")
     @Nullable
     public static DoublesReservoir deserialize(@Nullable Object data) {
@@ -201,6 +1335,10 @@ public class DoublesReservoir implements Serializable {
             return (DoublesReservoir) data;
         }
 
+        if (data instanceof byte[]) {
+            return DoublesReservoir.fromBytes(ByteBuffer.wrap((byte[]) data));
+        }
+
         if (data instanceof String) {
             final String json = (String) data;
 
@@ -208,6 +1346,11 @@ public class DoublesReservoir implements Serializable {
                 return null;
             }
 
+            // Anything that is not a JSON object is the binary form in base64
+            if (json.charAt(0) != '{') {
+                return DoublesReservoir.fromBytes(ByteBuffer.wrap(Base64.getDecoder().decode(json)));
+            }
+
             try {
                 return DoublesReservoirUtils.readJson(json);
             } catch (JsonProcessingException e) {
@@ -227,9 +1370,10 @@ public class DoublesReservoir implements Serializable {
     public String toString() {
         return getClass().getSimpleName() + "{"
                 + "maxSize=" + maxSize
-                + ", alreadySorted=" + alreadySorted
-                + ", totalItemsSeen=" + totalItemsSeen
-                + ", reservoir=" + reservoir
+                + ", storage=" + storage
+                + ", totalItemsSeen=" + getTotalItemsSeen()
+                + ", " + mode.describe()
+                + (sketchK == 0 ? "" : ", sketchK=" + sketchK)
                 + "}";
     }
 }
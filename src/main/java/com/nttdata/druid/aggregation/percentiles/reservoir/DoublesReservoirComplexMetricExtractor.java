@@ -20,6 +20,7 @@ package com.nttdata.druid.aggregation.percentiles.reservoir;
 
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.druid.data.input.InputRow;
+import org.apache.druid.segment.column.ColumnHolder;
 import org.apache.druid.segment.serde.ComplexMetricExtractor;
 
 import javax.annotation.Nullable;
@@ -34,6 +35,11 @@ public class DoublesReservoirComplexMetricExtractor implements ComplexMetricExtr
     @Nullable
     @Override
     public Object extractValue(InputRow inputRow, String metricName) {
+        if (ColumnHolder.TIME_COLUMN_NAME.equals(metricName)) {
+            // Read by forward-decay reservoirs, and not one of the raw fields of the row
+            return inputRow.getTimestampFromEpoch();
+        }
+
         final Object object = inputRow.getRaw(metricName);
 
         if (object == null || object instanceof Number || object instanceof DoublesReservoir) {
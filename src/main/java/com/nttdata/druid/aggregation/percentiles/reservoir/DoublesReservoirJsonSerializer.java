@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.reservoir;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+
+import java.io.IOException;
+
+/**
+ * Writes reservoirs in query results as raw bytes where the format has a binary type, i.e. with Smile between
+ * services, in the result cache and in groupBy spill files. Plain JSON, e.g. the responses users read, gets the
+ * {@code {maxSize, reservoir, totalItemsSeen}} object, with the samples in ascending order, for plain samples, and
+ * the binary form in base64 for anything the object cannot hold.
+ */
+public class DoublesReservoirJsonSerializer extends JsonSerializer<DoublesReservoir> {
+    @Override
+    public void serialize(DoublesReservoir reservoir, JsonGenerator generator, SerializerProvider provider)
+            throws IOException {
+        if (generator.canWriteBinaryNatively() || !reservoir.isPlainSample()) {
+            generator.writeBinary(reservoir.toBytes());
+            return;
+        }
+
+        generator.writeStartObject();
+        generator.writeNumberField("maxSize", reservoir.getMaxSize());
+        generator.writeArrayFieldStart("reservoir");
+
+        for (double value : reservoir.getSortedValues()) {
+            generator.writeNumber(value);
+        }
+
+        generator.writeEndArray();
+        generator.writeNumberField("totalItemsSeen", reservoir.getTotalItemsSeen());
+        generator.writeEndObject();
+    }
+}
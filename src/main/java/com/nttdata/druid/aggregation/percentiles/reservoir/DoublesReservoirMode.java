@@ -0,0 +1,326 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.reservoir;
+
+import com.nttdata.druid.aggregation.percentiles.DoublesDistribution;
+import com.nttdata.druid.aggregation.percentiles.metrics.DoublesReservoirCounter;
+import org.apache.druid.java.util.common.IAE;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
+
+/**
+ * How a {@link DoublesReservoir} holds the items it has seen: a {@link DoublesUniformSample}, the
+ * {@link DoublesValueCounts} of its distinct values, a {@link DoublesKllSummary} or a {@link DoublesDecayedSample}.
+ * The reservoir decides when to move its items from one mode to the next; a mode only knows how to hold them.
+ *
+ * <p>Modes are owned by a single reservoir at a time, which copies them before writing when they are shared.
+ */
+abstract class DoublesReservoirMode implements DoublesDistribution, Serializable {
+    static final int INITIAL_CAPACITY = 16;
+
+    final int maxSize;
+    final DoublesReservoirStorage storage;
+    long totalItemsSeen;
+
+    DoublesReservoirMode(int maxSize, DoublesReservoirStorage storage, long totalItemsSeen) {
+        this.maxSize = maxSize;
+        this.storage = storage;
+        this.totalItemsSeen = totalItemsSeen;
+    }
+
+    /**
+     * Accepts {@code weight} occurrences of a sample, already narrowed to the storage. Returns false, leaving this mode
+     * untouched, when they do not fit: a new distinct value once the value counts are full, or, with
+     * {@code exactOnly}, more items than a sample can hold without dropping any.
+     */
+    abstract boolean accept(double sample, long weight, boolean exactOnly);
+
+    /**
+     * Whether this mode holds every item it has seen, in which case its percentiles are exact.
+     */
+    abstract boolean isExact();
+
+    /**
+     * Number of samples held, see {@link DoublesReservoir#getSize()}.
+     */
+    abstract int getSize();
+
+    /**
+     * The samples in ascending order, see {@link DoublesReservoir#getSortedValues()}.
+     */
+    abstract double[] getSortedSamples();
+
+    /**
+     * Adds the items of this mode to a sketch, leaving its totalItemsSeen to the caller.
+     */
+    abstract void addTo(DoublesKllSummary sketch);
+
+    /**
+     * This mode as a uniform sample of at most {@code maxSampleSize} items, without modifying it.
+     */
+    abstract DoublesUniformSample asSample(int maxSampleSize);
+
+    /**
+     * A copy of this mode, for a reservoir to write to while the original stays shared.
+     */
+    abstract DoublesReservoirMode copy();
+
+    /**
+     * An empty mode of the same kind, for a reservoir to clear while the original stays shared.
+     */
+    abstract DoublesReservoirMode emptyCopy();
+
+    /**
+     * Empties this mode, keeping its arrays so it can be refilled without allocating.
+     */
+    abstract void clear();
+
+    /**
+     * Number of bytes {@link #writeBody} writes.
+     */
+    abstract int getBodyBytes();
+
+    /**
+     * Writes the items of this mode after the header {@link DoublesReservoir#toBytes()} wrote for it, and moves past
+     * them.
+     */
+    abstract void writeBody(ByteBuffer buffer);
+
+    /**
+     * Describes the samples, for {@link DoublesReservoir#toString()}.
+     */
+    abstract String describe();
+
+    @Override
+    public long getTotalItemsSeen() {
+        return totalItemsSeen;
+    }
+
+    @Override
+    public double[] getPercentile(double[] fractions) {
+        final double[] percentiles = new double[fractions.length];
+
+        for (int index = 0; index < fractions.length; ++index) {
+            percentiles[index] = getPercentile(fractions[index]);
+        }
+
+        return percentiles;
+    }
+
+    /**
+     * Reads {@code size} samples written with the given storage at the current position, and moves past them.
+     */
+    static double[] readSamples(ByteBuffer data, DoublesReservoirStorage storage, int size) {
+        final int bytesPerSample = storage.getBytesPerSample();
+        final int samples = data.position();
+        final double[] values = newSamples(size);
+
+        if (storage.isExact()) {
+            data.asDoubleBuffer().get(values);
+        } else {
+            for (int index = 0; index < size; ++index) {
+                values[index] = storage.read(data, samples + index * bytesPerSample);
+            }
+        }
+
+        data.position(samples + size * bytesPerSample);
+        return values;
+    }
+
+    /**
+     * Writes the first {@code size} samples with the storage of this mode at the current position, and moves past
+     * them.
+     */
+    void writeSamples(ByteBuffer buffer, double[] values, int size) {
+        final int bytesPerSample = storage.getBytesPerSample();
+        final int samples = buffer.position();
+
+        if (storage.isExact()) {
+            buffer.asDoubleBuffer().put(values, 0, size);
+        } else {
+            for (int index = 0; index < size; ++index) {
+                storage.write(buffer, samples + index * bytesPerSample, values[index]);
+            }
+        }
+
+        buffer.position(samples + size * bytesPerSample);
+    }
+
+    static void checkFractionBound(final double fraction) {
+        if ((fraction < 0.0) || (fraction > 1.0)) {
+            throw new IAE("A fraction must be >= 0 and <= 1.0: " + fraction);
+        }
+    }
+
+    /**
+     * Number of leading values of a sorted array that are less than or equal to {@code value}; NaN values, sorted
+     * last, are never counted.
+     */
+    static int countUpTo(double[] sortedValues, int size, double value) {
+        int low = 0;
+        int high = size;
+
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+
+            if (sortedValues[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Draws which of {@code items} identical items, arriving at a full reservoir of {@code maxSize} samples that has
+     * already seen {@code itemsSeen} items, replace a sample, and passes the index of each sample they replace.
+     *
+     * <p>Sampling gives every item a uniform random key and keeps the items of the {@code maxSize} smallest keys. The
+     * largest kept key, which a new item must beat, is the {@code maxSize}-th smallest of {@code itemsSeen} uniform
+     * keys and follows a Beta distribution, so it is drawn directly; the number of items until the next one beats it
+     * is then geometric, and the new largest kept key shrinks by a Beta(maxSize, 1) factor. The cost is one step per
+     * replaced sample, about {@code maxSize * ln(1 + items / itemsSeen)} of them.
+     */
+    static void forEachReplacement(int maxSize, long itemsSeen, long items, IntConsumer replace) {
+        if (maxSize == 0) {
+            return;
+        }
+
+        final Random random = ThreadLocalRandom.current();
+        double threshold = nextBeta(random, maxSize, itemsSeen - maxSize + 1);
+        long remaining = items;
+
+        while (true) {
+            final double skipped = Math.floor(Math.log(1 - random.nextDouble()) / Math.log1p(-threshold));
+
+            if (!(skipped < remaining)) {
+                return;
+            }
+
+            remaining -= (long) skipped + 1;
+            replace.accept(random.nextInt(maxSize));
+            threshold *= Math.exp(Math.log(1 - random.nextDouble()) / maxSize);
+        }
+    }
+
+    private static double nextBeta(Random random, double alpha, double beta) {
+        final double x = nextGamma(random, alpha);
+        return x / (x + nextGamma(random, beta));
+    }
+
+    /**
+     * Marsaglia and Tsang's method, for a shape of at least 1.
+     */
+    private static double nextGamma(Random random, double shape) {
+        final double d = shape - 1.0 / 3;
+        final double c = 1 / Math.sqrt(9 * d);
+
+        while (true) {
+            final double x = random.nextGaussian();
+            final double v = Math.pow(1 + c * x, 3);
+
+            if (v > 0 && Math.log(1 - random.nextDouble()) < x * x / 2 + d - d * v + d * Math.log(v)) {
+                return d * v;
+            }
+        }
+    }
+
+    /**
+     * Copies {@code count} samples chosen uniformly at random from the first {@code size} source values into
+     * {@code target}, keeping their relative order (selection sampling).
+     */
+    static void selectInto(double[] source, int size, int count, double[] target, int offset, Random random) {
+        int needed = count;
+
+        for (int index = 0; index < size && needed > 0; ++index) {
+            if (random.nextInt(size - index) < needed) {
+                target[offset++] = source[index];
+                --needed;
+            }
+        }
+    }
+
+    static void addToTree(long[] tree, int index, long delta) {
+        for (int node = index + 1; node < tree.length; node += node & -node) {
+            tree[node] += delta;
+        }
+    }
+
+    /**
+     * Returns the index of the entry holding the given position among the remaining items.
+     */
+    static int findInTree(long[] tree, long position) {
+        int node = 0;
+        long rest = position;
+
+        for (int step = Integer.highestOneBit(tree.length); step > 0; step >>= 1) {
+            final int next = node + step;
+
+            if (next < tree.length && tree[next] <= rest) {
+                node = next;
+                rest -= tree[next];
+            }
+        }
+
+        return node;
+    }
+
+    static boolean isSorted(double[] values) {
+        for (int index = 1; index < values.length; ++index) {
+            if (Double.compare(values[index - 1], values[index]) > 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    static double[] newSamples(int length) {
+        DoublesReservoirCounter.BYTES_ALLOCATED.add((long) length * Double.BYTES);
+        return new double[length];
+    }
+
+    static double[] copySamples(double[] samples, int length) {
+        DoublesReservoirCounter.BYTES_ALLOCATED.add((long) length * Double.BYTES);
+        return Arrays.copyOf(samples, length);
+    }
+
+    static long[] newCounts(int length) {
+        DoublesReservoirCounter.BYTES_ALLOCATED.add((long) length * Long.BYTES);
+        return new long[length];
+    }
+
+    static long[] copyCounts(long[] counts, int length) {
+        DoublesReservoirCounter.BYTES_ALLOCATED.add((long) length * Long.BYTES);
+        return Arrays.copyOf(counts, length);
+    }
+
+    static void countSort(int samples, long startNanos) {
+        DoublesReservoirCounter.SORTS.increment();
+        DoublesReservoirCounter.SAMPLES_SORTED.add(samples);
+        DoublesReservoirCounter.SORT_NANOS.addNanosSince(startNanos);
+    }
+}
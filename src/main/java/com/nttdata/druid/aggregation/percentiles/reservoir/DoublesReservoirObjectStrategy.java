@@ -40,12 +40,17 @@ public class DoublesReservoirObjectStrategy implements ObjectStrategy<DoublesRes
             return DoublesReservoir.EMPTY;
         }
 
+        if (buffer.get(buffer.position()) != '{') {
+            return DoublesReservoir.fromBytes(buffer).freeze();
+        }
+
+        // Segments written before the binary format store reservoirs as JSON
         final byte[] data = new byte[numBytes];
         buffer.get(data);
 
         try {
             String json = new String(data, StandardCharsets.UTF_8);
-            return DoublesReservoirUtils.readJson(json);
+            return DoublesReservoirUtils.readJson(json).freeze();
         } catch (IOException e) {
             throw new IAE("Unable to read from byte buffer", e);
         }
@@ -62,6 +67,11 @@ public class DoublesReservoirObjectStrategy implements ObjectStrategy<DoublesRes
             return EMPTY_BYTES;
         }
 
+        if (!reservoir.isPlainSample()) {
+            return reservoir.toBytes();
+        }
+
+        // Plain double samples keep the JSON of earlier versions, so that these can still read the segments
         try {
             return DoublesReservoirUtils.convertToJson(reservoir).getBytes(StandardCharsets.UTF_8);
         } catch (IOException e) {
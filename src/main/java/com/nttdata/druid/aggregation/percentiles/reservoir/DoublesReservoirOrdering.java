@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.reservoir;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.java.util.common.StringUtils;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Statistic used to order reservoirs, e.g. when a topN or a limited groupBy sorts on a reservoir metric.
+ */
+public enum DoublesReservoirOrdering {
+    COUNT(DoublesReservoir.COUNT_COMPARATOR),
+    MEDIAN(DoublesReservoir.MEDIAN_COMPARATOR);
+
+    public static final DoublesReservoirOrdering DEFAULT = COUNT;
+
+    private final Comparator<DoublesReservoir> comparator;
+
+    DoublesReservoirOrdering(Comparator<DoublesReservoir> comparator) {
+        this.comparator = comparator;
+    }
+
+    public Comparator<DoublesReservoir> getComparator() {
+        return comparator;
+    }
+
+    @JsonCreator
+    public static DoublesReservoirOrdering fromString(@Nullable String name) {
+        if (name == null) {
+            return DEFAULT;
+        }
+
+        for (DoublesReservoirOrdering ordering : values()) {
+            if (ordering.name().equalsIgnoreCase(name)) {
+                return ordering;
+            }
+        }
+
+        throw new IAE("Unknown ordering [%s], must be one of %s", name, Arrays.toString(values()));
+    }
+
+    @JsonValue
+    @Override
+    public String toString() {
+        return StringUtils.toLowerCase(name());
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.reservoir;
+
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.java.util.common.StringUtils;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * How the samples of a reservoir are stored in aggregation buffers, segments and query results.
+ *
+ * <ul>
+ *     <li>{@code double}: 8 bytes per sample, exact (default).</li>
+ *     <li>{@code float}: 4 bytes per sample, about 7 significant digits.</li>
+ *     <li>{@code fixed}: 4 bytes per sample, rounded to {@code scale} decimal digits. Values outside the range of
+ *     an int once scaled are clamped.</li>
+ * </ul>
+ *
+ * Samples are narrowed as soon as they are accepted, so a reservoir returns the same percentiles before and after
+ * being serialized.
+ */
+public final class DoublesReservoirStorage implements Serializable {
+    public static final String DOUBLE_NAME = "double";
+    public static final String FLOAT_NAME = "float";
+    public static final String FIXED_NAME = "fixed";
+
+    public static final int DEFAULT_SCALE = 3;
+    public static final int MAX_SCALE = 9;
+
+    private static final byte DOUBLE_ID = 0;
+    private static final byte FLOAT_ID = 1;
+    private static final byte FIXED_ID = 2;
+
+    public static final DoublesReservoirStorage DOUBLE = new DoublesReservoirStorage(DOUBLE_ID, DOUBLE_NAME, 0);
+    public static final DoublesReservoirStorage FLOAT = new DoublesReservoirStorage(FLOAT_ID, FLOAT_NAME, 0);
+
+    private final byte id;
+    private final String name;
+    private final int scale;
+    private final double factor;
+
+    private DoublesReservoirStorage(byte id, String name, int scale) {
+        this.id = id;
+        this.name = name;
+        this.scale = scale;
+        this.factor = Math.pow(10, scale);
+    }
+
+    public static DoublesReservoirStorage fixed(int scale) {
+        if (scale < 0 || scale > MAX_SCALE) {
+            throw new IAE("Parameter scale must be between 0 and %d, got [%d]", MAX_SCALE, scale);
+        }
+
+        return new DoublesReservoirStorage(FIXED_ID, FIXED_NAME, scale);
+    }
+
+    public static DoublesReservoirStorage of(@Nullable String name, @Nullable Integer scale) {
+        if (name == null || DOUBLE_NAME.equalsIgnoreCase(name)) {
+            checkNoScale(name, scale);
+            return DOUBLE;
+        }
+
+        if (FLOAT_NAME.equalsIgnoreCase(name)) {
+            checkNoScale(name, scale);
+            return FLOAT;
+        }
+
+        if (FIXED_NAME.equalsIgnoreCase(name)) {
+            return fixed(scale == null ? DEFAULT_SCALE : scale);
+        }
+
+        throw new IAE("Unknown storage [%s], must be one of [%s, %s, %s]", name, DOUBLE_NAME, FLOAT_NAME, FIXED_NAME);
+    }
+
+    static DoublesReservoirStorage fromId(byte id, int scale) {
+        switch (id) {
+            case DOUBLE_ID:
+                return DOUBLE;
+            case FLOAT_ID:
+                return FLOAT;
+            case FIXED_ID:
+                return fixed(scale);
+            default:
+                throw new IAE("Unknown reservoir storage id [%s]", id);
+        }
+    }
+
+    /**
+     * The storage able to hold the samples of reservoirs stored as {@code lhs} and {@code rhs} without losing
+     * precision.
+     */
+    public static DoublesReservoirStorage widest(DoublesReservoirStorage lhs, DoublesReservoirStorage rhs) {
+        return lhs.equals(rhs) ? lhs : DOUBLE;
+    }
+
+    private static void checkNoScale(@Nullable String name, @Nullable Integer scale) {
+        if (scale != null) {
+            throw new IAE("Parameter scale only applies to the [%s] storage, not [%s]", FIXED_NAME, name);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Decimal digits kept by the {@code fixed} storage, null for the others.
+     */
+    @Nullable
+    public Integer getScale() {
+        return id == FIXED_ID ? scale : null;
+    }
+
+    byte getId() {
+        return id;
+    }
+
+    public int getBytesPerSample() {
+        return id == DOUBLE_ID ? Double.BYTES : Integer.BYTES;
+    }
+
+    public boolean isExact() {
+        return id == DOUBLE_ID;
+    }
+
+    /**
+     * Rounds a value to what this storage can represent.
+     */
+    public double narrow(double value) {
+        switch (id) {
+            case DOUBLE_ID:
+                return value;
+            case FLOAT_ID:
+                return (float) value;
+            default:
+                return decode(encode(value));
+        }
+    }
+
+    public void write(ByteBuffer buffer, int position, double value) {
+        switch (id) {
+            case DOUBLE_ID:
+                buffer.putDouble(position, value);
+                break;
+            case FLOAT_ID:
+                buffer.putFloat(position, (float) value);
+                break;
+            default:
+                buffer.putInt(position, encode(value));
+        }
+    }
+
+    public double read(ByteBuffer buffer, int position) {
+        switch (id) {
+            case DOUBLE_ID:
+                return buffer.getDouble(position);
+            case FLOAT_ID:
+                return buffer.getFloat(position);
+            default:
+                return decode(buffer.getInt(position));
+        }
+    }
+
+    private int encode(double value) {
+        final long scaled = Math.round(value * factor);
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, scaled));
+    }
+
+    private double decode(int value) {
+        return value / factor;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final DoublesReservoirStorage that = (DoublesReservoirStorage) o;
+        return id == that.id && scale == that.scale;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, scale);
+    }
+
+    @Override
+    public String toString() {
+        return id == FIXED_ID ? StringUtils.format("%s(%d)", name, scale) : name;
+    }
+}
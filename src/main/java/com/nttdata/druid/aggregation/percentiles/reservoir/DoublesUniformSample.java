@@ -0,0 +1,497 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.reservoir;
+
+import com.nttdata.druid.aggregation.percentiles.DoublesDistributionStatistics;
+import org.apache.commons.math3.stat.descriptive.moment.Mean;
+import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
+import org.apache.commons.math3.stat.descriptive.rank.Max;
+import org.apache.commons.math3.stat.descriptive.rank.Min;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Uniform sample of up to {@code maxSize} items, each item seen having had the same chance to be kept. As long as
+ * there are no more items than that, it holds all of them and its percentiles are exact.
+ */
+final class DoublesUniformSample extends DoublesReservoirMode {
+    // Samples live in the first `size` slots; the array grows on demand up to maxSize
+    double[] values;
+    int size;
+
+    // Sorted copy of the samples, built lazily and dropped whenever a new sample is accepted
+    @Nullable
+    private transient double[] sorted;
+
+    DoublesUniformSample(int maxSize, DoublesReservoirStorage storage) {
+        this(maxSize, storage, newSamples(Math.min(maxSize, INITIAL_CAPACITY)), 0, 0);
+    }
+
+    DoublesUniformSample(
+            int maxSize, DoublesReservoirStorage storage, double[] values, int size, long totalItemsSeen) {
+        super(maxSize, storage, totalItemsSeen);
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * A sample whose values are already in ascending order, which then double as the sorted view.
+     */
+    static DoublesUniformSample ofSorted(
+            int maxSize, DoublesReservoirStorage storage, double[] values, int size, long totalItemsSeen) {
+        final DoublesUniformSample sample = new DoublesUniformSample(maxSize, storage, values, size, totalItemsSeen);
+        sample.sorted = values.length == size ? values : null;
+        return sample;
+    }
+
+    @Override
+    boolean accept(double sample, long weight, boolean exactOnly) {
+        if (exactOnly && size + weight > maxSize) {
+            return false;
+        }
+
+        sorted = null;
+        totalItemsSeen += weight;
+
+        final int appended = (int) Math.min(weight, maxSize - size);
+
+        if (appended > 0) {
+            if (size + appended > values.length) {
+                ensureCapacity(Math.min(maxSize, Math.max(size + appended, Math.max(INITIAL_CAPACITY, size * 2))));
+            }
+
+            Arrays.fill(values, size, size + appended, sample);
+            size += appended;
+        }
+
+        final long remaining = weight - appended;
+
+        if (remaining == 1) {
+            final long index = ThreadLocalRandom.current().nextLong(totalItemsSeen);
+
+            if (index < maxSize) {
+                values[(int) index] = sample;
+            }
+        } else if (remaining > 1) {
+            forEachReplacement(maxSize, totalItemsSeen - remaining, remaining, index -> values[index] = sample);
+        }
+
+        return true;
+    }
+
+    /**
+     * Merges another sample into this one, which afterwards holds a uniform sample of the items seen by both. Each
+     * side contributes samples in proportion to the number of items it has seen.
+     */
+    void merge(DoublesUniformSample sample, Random random) {
+        sorted = null;
+
+        if (totalItemsSeen == 0 || (isExact() && sample.isExact() && size + sample.size <= maxSize)) {
+            // Nothing to weigh against: copy the source samples in bulk
+            final int count = Math.min(maxSize - size, sample.size);
+            ensureCapacity(size + count);
+
+            if (count == sample.size) {
+                System.arraycopy(sample.values, 0, values, size, count);
+            } else {
+                selectInto(sample.values, sample.size, count, values, size, random);
+            }
+
+            narrowFrom(sample, size, size + count);
+            size += count;
+            totalItemsSeen += sample.totalItemsSeen;
+
+            return;
+        }
+
+        final int target = Math.min(maxSize, size + sample.size);
+        long remaining = totalItemsSeen;
+        long remainingSource = sample.totalItemsSeen;
+        int fromThis = 0;
+        int fromSource = 0;
+
+        // Draw the number of samples taken from each side without replacement from the combined population
+        while (fromThis + fromSource < target && remaining + remainingSource > 0) {
+            if (random.nextLong(remaining + remainingSource) < remaining) {
+                if (fromThis == size) {
+                    break;
+                }
+                ++fromThis;
+                --remaining;
+            } else {
+                if (fromSource == sample.size) {
+                    break;
+                }
+                ++fromSource;
+                --remainingSource;
+            }
+        }
+
+        // Move a random subset of our own samples to the front, then append a random subset of the source
+        for (int index = 0; index < fromThis; ++index) {
+            swap(values, index, index + random.nextInt(size - index));
+        }
+
+        ensureCapacity(fromThis + fromSource);
+        selectInto(sample.values, sample.size, fromSource, values, fromThis, random);
+        narrowFrom(sample, fromThis, fromThis + fromSource);
+
+        size = fromThis + fromSource;
+        totalItemsSeen += sample.totalItemsSeen;
+    }
+
+    /**
+     * Narrows the samples in {@code [from, to)}, taken from {@code source}, to the storage of this sample.
+     */
+    private void narrowFrom(DoublesReservoirMode source, int from, int to) {
+        if (storage.isExact() || storage.equals(source.storage)) {
+            return;
+        }
+
+        for (int index = from; index < to; ++index) {
+            values[index] = storage.narrow(values[index]);
+        }
+    }
+
+    @Override
+    boolean isExact() {
+        return size == totalItemsSeen;
+    }
+
+    @Override
+    int getSize() {
+        return size;
+    }
+
+    @Override
+    double[] getSortedSamples() {
+        return sorted();
+    }
+
+    /**
+     * Each sample stands for its share of the items seen: the first {@code totalItemsSeen % size} samples stand for
+     * one item more than the others, so the weights add up without multiplying item counts.
+     */
+    @Override
+    void addTo(DoublesKllSummary sketch) {
+        if (size == 0) {
+            return;
+        }
+
+        final long weight = totalItemsSeen / size;
+        final long heavier = totalItemsSeen % size;
+
+        for (int index = 0; index < size; ++index) {
+            sketch.update(values[index], index < heavier ? weight + 1 : weight);
+        }
+    }
+
+    /**
+     * Larger samples whose sorted view is at hand, as for those read back from their serialized form, are cut down
+     * by stride sampling; others are left for the merge to select from.
+     */
+    @Override
+    DoublesUniformSample asSample(int maxSampleSize) {
+        final double[] sortedValues = sorted;
+        return sortedValues == null || size <= maxSampleSize
+                ? this
+                : strideSample(sortedValues, maxSampleSize, ThreadLocalRandom.current());
+    }
+
+    /**
+     * Takes every (size / sampleSize)-th of the sorted samples from a random offset, which gives each sample the same
+     * chance to be kept in a single pass over the kept ones, and keeps them in order.
+     */
+    private DoublesUniformSample strideSample(double[] sortedValues, int sampleSize, Random random) {
+        final double stride = (double) size / sampleSize;
+        final double offset = random.nextDouble() * stride;
+        final double[] sample = newSamples(sampleSize);
+
+        for (int index = 0; index < sampleSize; ++index) {
+            sample[index] = sortedValues[Math.min(size - 1, (int) (offset + index * stride))];
+        }
+
+        return ofSorted(maxSize, storage, sample, sampleSize, totalItemsSeen);
+    }
+
+    @Override
+    DoublesUniformSample copy() {
+        final DoublesUniformSample copy =
+                new DoublesUniformSample(maxSize, storage, copySamples(values, values.length), size, totalItemsSeen);
+        copy.sorted = sorted;
+        return copy;
+    }
+
+    @Override
+    DoublesUniformSample emptyCopy() {
+        return new DoublesUniformSample(maxSize, storage);
+    }
+
+    @Override
+    void clear() {
+        size = 0;
+        totalItemsSeen = 0;
+        sorted = null;
+    }
+
+    /**
+     * Empties this sample and refills it with the given values, growing its array only if they do not fit.
+     */
+    void reset(double[] samples, int count, long itemsSeen) {
+        clear();
+        ensureCapacity(count);
+        System.arraycopy(samples, 0, values, 0, count);
+        size = count;
+        totalItemsSeen = itemsSeen;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (values.length < capacity) {
+            values = copySamples(values, capacity);
+        }
+    }
+
+    private double[] sorted() {
+        double[] values = sorted;
+
+        if (values == null) {
+            final long startNanos = System.nanoTime();
+            values = copySamples(this.values, size);
+            Arrays.sort(values);
+            sorted = values;
+            countSort(size, startNanos);
+        }
+
+        return values;
+    }
+
+    @Override
+    public double getPercentile(double fraction) {
+        return calculate(sorted(), fraction);
+    }
+
+    static double calculate(double[] sortedValues, double fraction) {
+        checkFractionBound(fraction);
+
+        if (sortedValues.length == 0) {
+            return Double.NaN;
+        }
+
+        double rank = fraction * (sortedValues.length - 1);
+        int lowerIndex = (int) Math.floor(rank);
+        int upperIndex = (int) Math.ceil(rank);
+
+        if (lowerIndex == upperIndex) {
+            return sortedValues[lowerIndex];
+        }
+
+        double weight = rank - lowerIndex;
+
+        // Interpolate between the two values
+        return sortedValues[lowerIndex] + weight * (sortedValues[upperIndex] - sortedValues[lowerIndex]);
+    }
+
+    @Override
+    public double getRank(double value) {
+        final double[] values = sorted();
+        return values.length == 0 ? Double.NaN : (double) countUpTo(values, values.length, value) / values.length;
+    }
+
+    @Override
+    public double getTrimmedMean(double lowerFraction, double upperFraction) {
+        final double[] values = sorted();
+        return DoublesDistributionStatistics.trimmedMean(
+                index -> values[index], index -> 1, values.length, values.length, lowerFraction, upperFraction);
+    }
+
+    @Override
+    public double getMedianAbsoluteDeviation() {
+        final double[] values = sorted();
+        return DoublesDistributionStatistics.medianAbsoluteDeviation(
+                index -> values[index], index -> 1, values.length, values.length, getPercentile(0.5));
+    }
+
+    /**
+     * With {@code n} samples out of {@code N} items, the order statistics
+     * {@code z * sqrt(n * fraction * (1 - fraction) * (N - n) / (N - 1))} below and above the rank
+     * {@code (n - 1) * fraction} of the percentile bound the percentile of the items, which takes two lookups on the
+     * sorted samples.
+     */
+    @Override
+    public double[] getPercentileConfidenceInterval(double fraction, double confidence) {
+        checkFractionBound(fraction);
+        final double z = DoublesDistributionStatistics.normalQuantile(confidence);
+        final double estimate = getPercentile(fraction);
+        final double[] values = sorted();
+        final int n = values.length;
+
+        if (Double.isNaN(estimate) || totalItemsSeen <= n) {
+            return new double[]{estimate, estimate, estimate};
+        }
+
+        // Binomial spread of the rank, with the finite population correction
+        final double spread = z * Math.sqrt(
+                n * fraction * (1 - fraction) * (totalItemsSeen - n) / (totalItemsSeen - 1.0));
+        // Symmetric around the rank the percentile is interpolated at
+        final double rank = (n - 1) * fraction;
+        final int lower = (int) Math.max(0, Math.floor(rank - spread));
+        final int upper = (int) Math.min(n - 1, Math.ceil(rank + spread));
+
+        return new double[]{Math.min(estimate, values[lower]), estimate, Math.max(estimate, values[upper])};
+    }
+
+    @Override
+    public double getStddev() {
+        return new StandardDeviation().evaluate(values, 0, size);
+    }
+
+    @Override
+    public double getAVG() {
+        return new Mean().evaluate(values, 0, size);
+    }
+
+    @Override
+    public double getMax() {
+        return new Max().evaluate(values, 0, size);
+    }
+
+    @Override
+    public double getMin() {
+        return new Min().evaluate(values, 0, size);
+    }
+
+    @Override
+    int getBodyBytes() {
+        return Integer.BYTES + size * storage.getBytesPerSample();
+    }
+
+    /**
+     * Writes the number of samples followed by the samples, as read back by {@link #readBody}. Samples are written in
+     * ascending order, so readers get their sorted view for free.
+     */
+    @Override
+    void writeBody(ByteBuffer buffer) {
+        buffer.putInt(size);
+        writeSamples(buffer, sorted(), size);
+    }
+
+    static DoublesUniformSample readBody(
+            ByteBuffer data, int maxSize, DoublesReservoirStorage storage, long totalItemsSeen) {
+        final int size = data.getInt();
+        final double[] values = readSamples(data, storage, size);
+
+        // Written by a version that sorts its samples: they double as the sorted view
+        return isSorted(values)
+                ? ofSorted(maxSize, storage, values, size, totalItemsSeen)
+                : new DoublesUniformSample(maxSize, storage, values, size, totalItemsSeen);
+    }
+
+    /**
+     * Same as {@link #accept}, applied directly to the sample stored at the given position of an aggregation buffer,
+     * after the header of {@link DoublesReservoir#initBuffer}. Returns false, leaving the buffer untouched, when
+     * {@code exactOnly} and the items do not all fit.
+     */
+    static boolean acceptInBuffer(
+            ByteBuffer buffer,
+            int position,
+            int maxSize,
+            DoublesReservoirStorage storage,
+            double sample,
+            long weight,
+            boolean exactOnly) {
+        final long itemsSeen = buffer.getLong(position);
+        final int size = buffer.getInt(position + Long.BYTES);
+        final int bytesPerSample = storage.getBytesPerSample();
+        final int samples = position + DoublesReservoir.BUFFER_HEADER_BYTES;
+
+        if (exactOnly && size + weight > maxSize) {
+            return false;
+        }
+
+        final int appended = (int) Math.min(weight, maxSize - size);
+
+        for (int index = size; index < size + appended; ++index) {
+            storage.write(buffer, samples + index * bytesPerSample, sample);
+        }
+
+        buffer.putInt(position + Long.BYTES, size + appended);
+
+        final long remaining = weight - appended;
+        final long totalItemsSeen = itemsSeen + weight;
+
+        if (remaining == 1) {
+            final long index = ThreadLocalRandom.current().nextLong(totalItemsSeen);
+
+            if (index < maxSize) {
+                storage.write(buffer, samples + (int) index * bytesPerSample, sample);
+            }
+        } else if (remaining > 1) {
+            forEachReplacement(
+                    maxSize,
+                    itemsSeen + appended,
+                    remaining,
+                    index -> storage.write(buffer, samples + index * bytesPerSample, sample));
+        }
+
+        buffer.putLong(position, totalItemsSeen);
+        return true;
+    }
+
+    static DoublesUniformSample fromBuffer(
+            ByteBuffer buffer, int position, int maxSize, DoublesReservoirStorage storage) {
+        final long totalItemsSeen = buffer.getLong(position);
+        final int size = buffer.getInt(position + Long.BYTES);
+        final double[] values = newSamples(Math.max(size, Math.min(maxSize, INITIAL_CAPACITY)));
+        final int bytesPerSample = storage.getBytesPerSample();
+        final int samples = position + DoublesReservoir.BUFFER_HEADER_BYTES;
+
+        for (int index = 0; index < size; ++index) {
+            values[index] = storage.read(buffer, samples + index * bytesPerSample);
+        }
+
+        return new DoublesUniformSample(maxSize, storage, values, size, totalItemsSeen);
+    }
+
+    void writeToBuffer(ByteBuffer buffer, int position) {
+        final int bytesPerSample = storage.getBytesPerSample();
+        final int samples = position + DoublesReservoir.BUFFER_HEADER_BYTES;
+
+        buffer.putLong(position, totalItemsSeen);
+        buffer.putInt(position + Long.BYTES, size);
+
+        for (int index = 0; index < size; ++index) {
+            storage.write(buffer, samples + index * bytesPerSample, values[index]);
+        }
+    }
+
+    @Override
+    String describe() {
+        return "reservoir=" + Arrays.toString(Arrays.copyOf(values, size));
+    }
+
+    private static void swap(double[] values, int i, int j) {
+        final double value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.reservoir;
+
+import com.nttdata.druid.aggregation.percentiles.DoublesDistributionStatistics;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Each distinct value seen, kept once with the number of times it was seen, so percentiles stay exact whatever the
+ * number of items. Holds up to {@link DoublesReservoir#getMaxDistinct} values, which take no more room than the
+ * {@code maxSize} samples of a uniform sample.
+ */
+final class DoublesValueCounts extends DoublesReservoirMode {
+    // The `size` distinct values seen in ascending order, and how many times each of them was seen
+    double[] values;
+    long[] counts;
+    int size;
+
+    DoublesValueCounts(int maxSize, DoublesReservoirStorage storage) {
+        super(maxSize, storage, 0);
+
+        final int capacity = Math.min(DoublesReservoir.getMaxDistinct(maxSize, storage), INITIAL_CAPACITY);
+        this.values = newSamples(capacity);
+        this.counts = newCounts(capacity);
+    }
+
+    DoublesValueCounts(
+            int maxSize,
+            DoublesReservoirStorage storage,
+            double[] values,
+            long[] counts,
+            int size,
+            long totalItemsSeen) {
+        super(maxSize, storage, totalItemsSeen);
+        this.values = values;
+        this.counts = counts;
+        this.size = size;
+    }
+
+    /**
+     * Counts {@code weight} more occurrences of a value, which fails for a new value once the distinct values are
+     * full.
+     */
+    @Override
+    boolean accept(double sample, long weight, boolean exactOnly) {
+        final int index = Arrays.binarySearch(values, 0, size, sample);
+
+        if (index >= 0) {
+            counts[index] += weight;
+            totalItemsSeen += weight;
+            return true;
+        }
+
+        final int maxDistinct = DoublesReservoir.getMaxDistinct(maxSize, storage);
+
+        if (size == maxDistinct) {
+            return false;
+        }
+
+        if (size == values.length || size == counts.length) {
+            final int capacity = Math.min(maxDistinct, Math.max(INITIAL_CAPACITY, size * 2));
+            values = copySamples(values, Math.max(capacity, values.length));
+            counts = copyCounts(counts, Math.max(capacity, counts.length));
+        }
+
+        final int insertion = -index - 1;
+        System.arraycopy(values, insertion, values, insertion + 1, size - insertion);
+        System.arraycopy(counts, insertion, counts, insertion + 1, size - insertion);
+        values[insertion] = sample;
+        counts[insertion] = weight;
+        ++size;
+        totalItemsSeen += weight;
+
+        return true;
+    }
+
+    /**
+     * Adds the counted values of {@code source} to those of this mode. Returns false when the distinct values of both
+     * no longer fit, in which case this mode holds them all anyway, and must be left for another one.
+     */
+    boolean merge(DoublesValueCounts source) {
+        final boolean narrow = !storage.isExact() && !storage.equals(source.storage);
+        final double[] mergedValues = newSamples(size + source.size);
+        final long[] mergedCounts = newCounts(size + source.size);
+        int distinct = 0;
+        int index = 0;
+        int sourceIndex = 0;
+
+        while (index < size || sourceIndex < source.size) {
+            final double value;
+            final long count;
+
+            if (sourceIndex == source.size
+                    || (index < size && Double.compare(values[index], source.values[sourceIndex]) <= 0)) {
+                value = values[index];
+                count = counts[index++];
+            } else {
+                value = narrow ? storage.narrow(source.values[sourceIndex]) : source.values[sourceIndex];
+                count = source.counts[sourceIndex++];
+            }
+
+            // Narrowing keeps the values in order, but can make neighbours equal
+            if (distinct > 0 && Double.compare(mergedValues[distinct - 1], value) == 0) {
+                mergedCounts[distinct - 1] += count;
+            } else {
+                mergedValues[distinct] = value;
+                mergedCounts[distinct++] = count;
+            }
+        }
+
+        values = mergedValues;
+        counts = mergedCounts;
+        size = distinct;
+        totalItemsSeen += source.totalItemsSeen;
+
+        return distinct <= DoublesReservoir.getMaxDistinct(maxSize, storage);
+    }
+
+    /**
+     * Draws {@code sampleSize} items uniformly without replacement from the multiset of the counted values.
+     */
+    double[] sample(int sampleSize, Random random) {
+        final double[] sample = newSamples(sampleSize);
+
+        if (sampleSize == totalItemsSeen) {
+            int offset = 0;
+            for (int index = 0; index < size; ++index) {
+                Arrays.fill(sample, offset, offset + (int) counts[index], values[index]);
+                offset += (int) counts[index];
+            }
+            return sample;
+        }
+
+        final long[] tree = new long[size + 1];
+        for (int index = 0; index < size; ++index) {
+            addToTree(tree, index, counts[index]);
+        }
+
+        long remaining = totalItemsSeen;
+        for (int drawn = 0; drawn < sampleSize; ++drawn) {
+            final int index = findInTree(tree, random.nextLong(remaining));
+            sample[drawn] = values[index];
+            addToTree(tree, index, -1);
+            --remaining;
+        }
+
+        return sample;
+    }
+
+    @Override
+    boolean isExact() {
+        return true;
+    }
+
+    /**
+     * All the items seen.
+     */
+    @Override
+    int getSize() {
+        return (int) Math.min(totalItemsSeen, Integer.MAX_VALUE);
+    }
+
+    int getDistinct() {
+        return size;
+    }
+
+    /**
+     * Every item counted while there are no more than {@code maxSize}, and evenly spaced quantiles of them otherwise,
+     * so that a few values seen billions of times never expand into billions of samples.
+     */
+    @Override
+    double[] getSortedSamples() {
+        long total = 0;
+        for (int index = 0; index < size; ++index) {
+            total += counts[index];
+        }
+
+        final int count = (int) Math.min(maxSize, total);
+        final double[] quantiles = new double[count];
+        int index = 0;
+        // Number of items up to and including values[index]
+        long seen = size == 0 ? 0 : counts[0];
+
+        for (int item = 0; item < count; ++item) {
+            // Rank of the item in the middle of each of count equal parts, exactly item when every item fits
+            final long rank = count == total ? item : (long) ((item + 0.5) * total / count);
+
+            while (seen <= rank) {
+                seen += counts[++index];
+            }
+            quantiles[item] = values[index];
+        }
+
+        return quantiles;
+    }
+
+    @Override
+    void addTo(DoublesKllSummary sketch) {
+        for (int index = 0; index < size; ++index) {
+            sketch.update(values[index], counts[index]);
+        }
+    }
+
+    @Override
+    DoublesUniformSample asSample(int maxSampleSize) {
+        final int sampleSize = (int) Math.min(maxSampleSize, totalItemsSeen);
+        final double[] sample = sample(sampleSize, ThreadLocalRandom.current());
+
+        return new DoublesUniformSample(maxSize, storage, sample, sampleSize, totalItemsSeen);
+    }
+
+    @Override
+    DoublesValueCounts copy() {
+        return new DoublesValueCounts(
+                maxSize,
+                storage,
+                copySamples(values, values.length),
+                copyCounts(counts, counts.length),
+                size,
+                totalItemsSeen);
+    }
+
+    @Override
+    DoublesValueCounts emptyCopy() {
+        return new DoublesValueCounts(maxSize, storage);
+    }
+
+    @Override
+    void clear() {
+        size = 0;
+        totalItemsSeen = 0;
+    }
+
+    @Override
+    public double getPercentile(double fraction) {
+        checkFractionBound(fraction);
+
+        if (totalItemsSeen == 0) {
+            return Double.NaN;
+        }
+
+        final double rank = fraction * (totalItemsSeen - 1);
+        final long lowerIndex = (long) Math.floor(rank);
+        final long upperIndex = (long) Math.ceil(rank);
+        final double lower = valueAtRank(lowerIndex);
+
+        if (lowerIndex == upperIndex) {
+            return lower;
+        }
+
+        final double upper = valueAtRank(upperIndex);
+
+        // Interpolate between the two values
+        return lower + (rank - lowerIndex) * (upper - lower);
+    }
+
+    /**
+     * Value at the given position of the sorted items.
+     */
+    private double valueAtRank(long rank) {
+        long seen = 0;
+
+        for (int index = 0; index < size; ++index) {
+            seen += counts[index];
+
+            if (rank < seen) {
+                return values[index];
+            }
+        }
+
+        return values[size - 1];
+    }
+
+    @Override
+    public double getRank(double value) {
+        if (totalItemsSeen == 0) {
+            return Double.NaN;
+        }
+
+        final int count = countUpTo(values, size, value);
+        long seen = 0;
+
+        for (int index = 0; index < count; ++index) {
+            seen += counts[index];
+        }
+
+        return (double) seen / totalItemsSeen;
+    }
+
+    @Override
+    public double getTrimmedMean(double lowerFraction, double upperFraction) {
+        return DoublesDistributionStatistics.trimmedMean(
+                index -> values[index], index -> counts[index], size, totalItemsSeen, lowerFraction, upperFraction);
+    }
+
+    @Override
+    public double getMedianAbsoluteDeviation() {
+        return DoublesDistributionStatistics.medianAbsoluteDeviation(
+                index -> values[index], index -> counts[index], size, totalItemsSeen, getPercentile(0.5));
+    }
+
+    /**
+     * Like any reservoir holding all the items it has seen, gives the exact percentile for all three.
+     */
+    @Override
+    public double[] getPercentileConfidenceInterval(double fraction, double confidence) {
+        DoublesDistributionStatistics.normalQuantile(confidence);
+        final double estimate = getPercentile(fraction);
+        return new double[]{estimate, estimate, estimate};
+    }
+
+    @Override
+    public double getStddev() {
+        if (totalItemsSeen <= 1) {
+            return totalItemsSeen == 0 ? Double.NaN : 0.0;
+        }
+
+        final double mean = getAVG();
+        double sumOfSquares = 0;
+
+        for (int index = 0; index < size; ++index) {
+            final double deviation = values[index] - mean;
+            sumOfSquares += counts[index] * deviation * deviation;
+        }
+
+        // Bias-corrected, like StandardDeviation
+        return Math.sqrt(sumOfSquares / (totalItemsSeen - 1));
+    }
+
+    @Override
+    public double getAVG() {
+        double sum = 0;
+
+        for (int index = 0; index < size; ++index) {
+            sum += counts[index] * values[index];
+        }
+
+        return totalItemsSeen == 0 ? Double.NaN : sum / totalItemsSeen;
+    }
+
+    @Override
+    public double getMax() {
+        return size == 0 ? Double.NaN : values[size - 1];
+    }
+
+    @Override
+    public double getMin() {
+        return size == 0 ? Double.NaN : values[0];
+    }
+
+    @Override
+    int getBodyBytes() {
+        return Integer.BYTES + size * (storage.getBytesPerSample() + Long.BYTES);
+    }
+
+    /**
+     * Writes the number of distinct values, the values, then their counts, as read back by {@link #readBody}.
+     */
+    @Override
+    void writeBody(ByteBuffer buffer) {
+        buffer.putInt(size);
+        writeSamples(buffer, values, size);
+        buffer.asLongBuffer().put(counts, 0, size);
+        buffer.position(buffer.position() + size * Long.BYTES);
+    }
+
+    static DoublesValueCounts readBody(
+            ByteBuffer data, int maxSize, DoublesReservoirStorage storage, long totalItemsSeen) {
+        final int size = data.getInt();
+        final double[] values = readSamples(data, storage, size);
+        final long[] counts = newCounts(size);
+
+        data.asLongBuffer().get(counts);
+        data.position(data.position() + size * Long.BYTES);
+
+        return new DoublesValueCounts(maxSize, storage, values, counts, size, totalItemsSeen);
+    }
+
+    /**
+     * Same as {@link #accept}, applied directly to the {@code distinct} values counted at the given position of an
+     * aggregation buffer, after the header of {@link DoublesReservoir#initBuffer}: the values, then from
+     * {@code maxDistinct} values on, their counts.
+     */
+    static boolean acceptInBuffer(
+            ByteBuffer buffer,
+            int position,
+            int maxSize,
+            DoublesReservoirStorage storage,
+            int distinct,
+            double value,
+            long weight) {
+        final int bytesPerSample = storage.getBytesPerSample();
+        final int maxDistinct = DoublesReservoir.getMaxDistinct(maxSize, storage);
+        final int samples = position + DoublesReservoir.BUFFER_HEADER_BYTES;
+        final int countsStart = samples + maxDistinct * bytesPerSample;
+        int low = 0;
+        int high = distinct - 1;
+
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = Double.compare(storage.read(buffer, samples + middle * bytesPerSample), value);
+
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                final int count = countsStart + middle * Long.BYTES;
+                buffer.putLong(count, buffer.getLong(count) + weight);
+                buffer.putLong(position, buffer.getLong(position) + weight);
+                return true;
+            }
+        }
+
+        if (distinct == maxDistinct) {
+            return false;
+        }
+
+        // Shift the larger values and their counts one slot up
+        for (int index = distinct; index > low; --index) {
+            final double previous = storage.read(buffer, samples + (index - 1) * bytesPerSample);
+            storage.write(buffer, samples + index * bytesPerSample, previous);
+            buffer.putLong(countsStart + index * Long.BYTES, buffer.getLong(countsStart + (index - 1) * Long.BYTES));
+        }
+
+        storage.write(buffer, samples + low * bytesPerSample, value);
+        buffer.putLong(countsStart + low * Long.BYTES, weight);
+        buffer.putInt(position + Long.BYTES, ~(distinct + 1));
+        buffer.putLong(position, buffer.getLong(position) + weight);
+
+        return true;
+    }
+
+    static DoublesValueCounts fromBuffer(
+            ByteBuffer buffer, int position, int maxSize, DoublesReservoirStorage storage, int distinct) {
+        final long totalItemsSeen = buffer.getLong(position);
+        final int capacity = Math.max(distinct, Math.min(maxSize, INITIAL_CAPACITY));
+        final double[] values = newSamples(capacity);
+        final long[] counts = newCounts(capacity);
+        final int bytesPerSample = storage.getBytesPerSample();
+        final int samples = position + DoublesReservoir.BUFFER_HEADER_BYTES;
+        final int countsStart = samples + DoublesReservoir.getMaxDistinct(maxSize, storage) * bytesPerSample;
+
+        for (int index = 0; index < distinct; ++index) {
+            values[index] = storage.read(buffer, samples + index * bytesPerSample);
+            counts[index] = buffer.getLong(countsStart + index * Long.BYTES);
+        }
+
+        return new DoublesValueCounts(maxSize, storage, values, counts, distinct, totalItemsSeen);
+    }
+
+    void writeToBuffer(ByteBuffer buffer, int position) {
+        final int bytesPerSample = storage.getBytesPerSample();
+        final int samples = position + DoublesReservoir.BUFFER_HEADER_BYTES;
+        final int countsStart = samples + DoublesReservoir.getMaxDistinct(maxSize, storage) * bytesPerSample;
+
+        buffer.putLong(position, totalItemsSeen);
+        buffer.putInt(position + Long.BYTES, ~size);
+
+        for (int index = 0; index < size; ++index) {
+            storage.write(buffer, samples + index * bytesPerSample, values[index]);
+            buffer.putLong(countsStart + index * Long.BYTES, counts[index]);
+        }
+    }
+
+    @Override
+    String describe() {
+        return "reservoir=" + Arrays.toString(Arrays.copyOf(values, size))
+                + ", counts=" + Arrays.toString(Arrays.copyOf(counts, size));
+    }
+}
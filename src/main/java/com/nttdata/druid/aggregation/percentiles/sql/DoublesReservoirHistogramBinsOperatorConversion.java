@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.sql;
+
+import com.nttdata.druid.aggregation.percentiles.aggregator.DoublesReservoirToHistogramPostAggregator;
+import com.nttdata.druid.aggregation.percentiles.expression.DoublesReservoirExprMacros;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlFunction;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.SqlOperator;
+import org.apache.calcite.sql.type.ReturnTypes;
+import org.apache.calcite.sql.type.SqlTypeFamily;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.druid.query.aggregation.PostAggregator;
+import org.apache.druid.segment.column.ColumnType;
+import org.apache.druid.segment.column.RowSignature;
+import org.apache.druid.sql.calcite.expression.DruidExpression;
+import org.apache.druid.sql.calcite.expression.OperatorConversions;
+import org.apache.druid.sql.calcite.expression.PostAggregatorVisitor;
+import org.apache.druid.sql.calcite.expression.SqlOperatorConversion;
+import org.apache.druid.sql.calcite.planner.Calcites;
+import org.apache.druid.sql.calcite.planner.PlannerContext;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+public class DoublesReservoirHistogramBinsOperatorConversion implements SqlOperatorConversion {
+    private static final String NAME = "DR_GET_HISTOGRAM_BINS";
+    private static final SqlFunction SQL_FUNCTION = OperatorConversions.operatorBuilder(NAME)
+            .operandTypes(SqlTypeFamily.ANY, SqlTypeFamily.EXACT_NUMERIC)
+            .literalOperands(1)
+            .returnTypeInference(ReturnTypes.explicit(
+                    factory -> Calcites.createSqlArrayTypeWithNullability(factory, SqlTypeName.DOUBLE, false)))
+            .build();
+
+    @Override
+    public SqlOperator calciteOperator() {
+        return SQL_FUNCTION;
+    }
+
+    @Nullable
+    @Override
+    public DruidExpression toDruidExpression(
+            PlannerContext plannerContext, RowSignature rowSignature, RexNode rexNode) {
+        return OperatorConversions.convertCall(
+                plannerContext,
+                rowSignature,
+                rexNode,
+                druidExpressions -> DruidExpression.ofFunctionCall(
+                        ColumnType.DOUBLE_ARRAY, DoublesReservoirExprMacros.HISTOGRAM_BINS, druidExpressions));
+    }
+
+    @Nullable
+    @Override
+    public PostAggregator toPostAggregator(
+            PlannerContext plannerContext,
+            RowSignature rowSignature,
+            RexNode rexNode,
+            PostAggregatorVisitor postAggregatorVisitor) {
+        final List<RexNode> operands = ((RexCall) rexNode).getOperands();
+        final PostAggregator aggregator = OperatorConversions.toPostAggregator(
+                plannerContext, rowSignature, operands.get(0), postAggregatorVisitor, true);
+
+        if (aggregator == null || !operands.get(1).isA(SqlKind.LITERAL)) {
+            return null;
+        }
+
+        final int numBins = ((Number) RexLiteral.value(operands.get(1))).intValue();
+
+        return new DoublesReservoirToHistogramPostAggregator(
+                postAggregatorVisitor.getOutputNamePrefix() + postAggregatorVisitor.getAndIncrementCounter(),
+                aggregator,
+                null,
+                numBins);
+    }
+}
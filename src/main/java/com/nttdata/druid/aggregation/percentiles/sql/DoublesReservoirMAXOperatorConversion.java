@@ -19,6 +19,7 @@
 package com.nttdata.druid.aggregation.percentiles.sql;
 
 import com.nttdata.druid.aggregation.percentiles.aggregator.DoublesReservoirToMAXPostAggregator;
+import com.nttdata.druid.aggregation.percentiles.expression.DoublesReservoirExprMacros;
 import org.apache.calcite.rex.RexCall;
 import org.apache.calcite.rex.RexNode;
 import org.apache.calcite.sql.SqlFunction;
@@ -27,6 +28,7 @@ import org.apache.calcite.sql.type.SqlTypeFamily;
 import org.apache.calcite.sql.type.SqlTypeName;
 import org.apache.druid.java.util.common.StringUtils;
 import org.apache.druid.query.aggregation.PostAggregator;
+import org.apache.druid.segment.column.ColumnType;
 import org.apache.druid.segment.column.RowSignature;
 import org.apache.druid.sql.calcite.expression.DruidExpression;
 import org.apache.druid.sql.calcite.expression.OperatorConversions;
@@ -49,10 +51,16 @@ public class DoublesReservoirMAXOperatorConversion implements SqlOperatorConvers
         return SQL_FUNCTION;
     }
 
+    @Nullable
     @Override
     public DruidExpression toDruidExpression(
             PlannerContext plannerContext, RowSignature rowSignature, RexNode rexNode) {
-        return null;
+        return OperatorConversions.convertCall(
+                plannerContext,
+                rowSignature,
+                rexNode,
+                druidExpressions -> DruidExpression.ofFunctionCall(
+                        ColumnType.DOUBLE, DoublesReservoirExprMacros.MAX, druidExpressions));
     }
 
     @Nullable
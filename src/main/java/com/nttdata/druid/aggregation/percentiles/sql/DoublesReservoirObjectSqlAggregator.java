@@ -20,6 +20,8 @@ package com.nttdata.druid.aggregation.percentiles.sql;
 
 import com.google.common.collect.ImmutableList;
 import com.nttdata.druid.aggregation.percentiles.aggregator.DoublesReservoirAggregatorFactory;
+import com.nttdata.druid.aggregation.percentiles.aggregator.DoublesReservoirMemoryBudget;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirStorage;
 import org.apache.calcite.rel.core.AggregateCall;
 import org.apache.calcite.rex.RexLiteral;
 import org.apache.calcite.rex.RexNode;
@@ -27,8 +29,8 @@ import org.apache.calcite.sql.SqlAggFunction;
 import org.apache.calcite.sql.SqlFunctionCategory;
 import org.apache.calcite.sql.SqlKind;
 import org.apache.calcite.sql.type.SqlTypeFamily;
+import org.apache.druid.error.InvalidSqlInput;
 import org.apache.druid.java.util.common.StringUtils;
-import org.apache.druid.query.aggregation.AggregatorFactory;
 import org.apache.druid.segment.column.ColumnType;
 import org.apache.druid.sql.calcite.aggregation.Aggregation;
 import org.apache.druid.sql.calcite.aggregation.Aggregations;
@@ -48,8 +50,8 @@ import static com.nttdata.druid.DoublesReservoirModule.TYPE;
 public class DoublesReservoirObjectSqlAggregator implements SqlAggregator {
     private static final String NAME = "DR_PERCENTILE_AGG";
     private static final SqlAggFunction FUNCTION_INSTANCE = OperatorConversions.aggregatorBuilder(NAME)
-            .operandNames("column", "maxSize")
-            .operandTypes(SqlTypeFamily.ANY, SqlTypeFamily.EXACT_NUMERIC)
+            .operandNames("column", "maxSize", "weight")
+            .operandTypes(SqlTypeFamily.ANY, SqlTypeFamily.NUMERIC, SqlTypeFamily.NUMERIC)
             .returnTypeInference(Calcites.complexReturnTypeWithNullability(TYPE, false))
             .requiredOperandCount(2)
             .literalOperands(1)
@@ -79,27 +81,92 @@ public class DoublesReservoirObjectSqlAggregator implements SqlAggregator {
             return null;
         }
 
-        final RexNode resolutionArg =
-                inputAccessor.getField(aggregateCall.getArgList().get(1));
+        final Integer maxSize = getMaxSize(aggregateCall, inputAccessor);
 
-        if (!resolutionArg.isA(SqlKind.LITERAL)) {
-            // Resolution must be a literal in order to plan.
+        if (maxSize == null) {
             return null;
         }
 
+        // Optional number of items each row stands for, for rows pre-aggregated upstream
+        String weightFieldName = null;
+
+        if (aggregateCall.getArgList().size() > getWeightOperand()) {
+            final DruidExpression weight = Aggregations.toDruidExpressionForNumericAggregator(
+                    plannerContext,
+                    inputAccessor.getInputRowSignature(),
+                    inputAccessor.getField(aggregateCall.getArgList().get(getWeightOperand())));
+            if (weight == null) {
+                return null;
+            }
+
+            // Typed as a double, so that fractional weights reach the aggregator and are skipped rather than truncated
+            weightFieldName = weight.isDirectColumnAccess()
+                    ? weight.getDirectColumn()
+                    : virtualColumnRegistry.getOrCreateVirtualColumnForExpression(weight, ColumnType.DOUBLE);
+        }
+
         final String fieldName = StringUtils.format("%s:agg", name);
-        final int maxSize = ((Number) RexLiteral.value(resolutionArg)).intValue();
-        final AggregatorFactory aggregatorFactory;
+        final String inputFieldName;
 
         // No existing match found. Create a new one.
         if (input.isDirectColumnAccess()) {
-            aggregatorFactory = new DoublesReservoirAggregatorFactory(fieldName, input.getDirectColumn(), maxSize);
+            inputFieldName = input.getDirectColumn();
         } else {
-            String virtualColumnName =
-                    virtualColumnRegistry.getOrCreateVirtualColumnForExpression(input, ColumnType.FLOAT);
-            aggregatorFactory = new DoublesReservoirAggregatorFactory(fieldName, virtualColumnName, maxSize);
+            inputFieldName = virtualColumnRegistry.getOrCreateVirtualColumnForExpression(input, ColumnType.FLOAT);
         }
 
+        final DoublesReservoirAggregatorFactory aggregatorFactory = new DoublesReservoirAggregatorFactory(
+                fieldName,
+                inputFieldName,
+                maxSize,
+                null,
+                DoublesReservoirStorage.DOUBLE,
+                0,
+                weightFieldName,
+                0,
+                false,
+                DoublesReservoirMemoryBudget.current());
+
         return Aggregation.create(ImmutableList.of(aggregatorFactory), null);
     }
+
+    /**
+     * Size of the reservoirs, from the operands between the column and the weight; null when they are not literals,
+     * which leaves the call unplanned.
+     */
+    @Nullable
+    protected Integer getMaxSize(AggregateCall aggregateCall, InputAccessor inputAccessor) {
+        final Number maxSize = getLiteral(aggregateCall, inputAccessor, 1);
+
+        if (maxSize == null) {
+            return null;
+        }
+
+        final double size = maxSize.doubleValue();
+
+        if (!(size >= 1) || size != Math.floor(size)) {
+            throw InvalidSqlInput.exception(
+                    "maxSize argument of %s must be a positive integer, got [%s]. Use %s to size reservoirs by "
+                            + "rank error.",
+                    NAME, maxSize, DoublesReservoirRankErrorSqlAggregator.NAME);
+        }
+
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Position of the optional weight operand.
+     */
+    protected int getWeightOperand() {
+        return 2;
+    }
+
+    /**
+     * Value of a numeric operand, null when it is not a literal.
+     */
+    @Nullable
+    protected static Number getLiteral(AggregateCall aggregateCall, InputAccessor inputAccessor, int operand) {
+        final RexNode arg = inputAccessor.getField(aggregateCall.getArgList().get(operand));
+        return arg.isA(SqlKind.LITERAL) ? (Number) RexLiteral.value(arg) : null;
+    }
 }
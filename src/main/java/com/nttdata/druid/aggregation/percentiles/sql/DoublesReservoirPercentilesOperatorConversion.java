@@ -19,6 +19,7 @@
 package com.nttdata.druid.aggregation.percentiles.sql;
 
 import com.nttdata.druid.aggregation.percentiles.aggregator.DoublesReservoirToPercentilesPostAggregator;
+import com.nttdata.druid.aggregation.percentiles.expression.DoublesReservoirExprMacros;
 import org.apache.calcite.rex.RexCall;
 import org.apache.calcite.rex.RexLiteral;
 import org.apache.calcite.rex.RexNode;
@@ -29,6 +30,7 @@ import org.apache.calcite.sql.SqlOperator;
 import org.apache.calcite.sql.type.ReturnTypes;
 import org.apache.calcite.sql.type.SqlTypeName;
 import org.apache.druid.query.aggregation.PostAggregator;
+import org.apache.druid.segment.column.ColumnType;
 import org.apache.druid.segment.column.RowSignature;
 import org.apache.druid.sql.calcite.expression.DruidExpression;
 import org.apache.druid.sql.calcite.expression.OperatorConversions;
@@ -42,23 +44,30 @@ import java.util.List;
 
 public class DoublesReservoirPercentilesOperatorConversion implements SqlOperatorConversion {
     private static final String NAME = "DR_GET_PERCENTILES";
+    private static final SqlFunction SQL_FUNCTION = new SqlFunction(
+            NAME,
+            SqlKind.OTHER_FUNCTION,
+            ReturnTypes.explicit(
+                    factory -> Calcites.createSqlArrayTypeWithNullability(factory, SqlTypeName.DOUBLE, false)),
+            null,
+            new ListArgOperandTypeChecker(),
+            SqlFunctionCategory.USER_DEFINED_FUNCTION);
 
     @Override
     public SqlOperator calciteOperator() {
-        return new SqlFunction(
-                NAME,
-                SqlKind.OTHER_FUNCTION,
-                ReturnTypes.explicit(factory -> Calcites.createSqlType(factory, SqlTypeName.OTHER)),
-                null,
-                new ListArgOperandTypeChecker(),
-                SqlFunctionCategory.USER_DEFINED_FUNCTION);
+        return SQL_FUNCTION;
     }
 
     @Nullable
     @Override
     public DruidExpression toDruidExpression(
             PlannerContext plannerContext, RowSignature rowSignature, RexNode rexNode) {
-        return null;
+        return OperatorConversions.convertCall(
+                plannerContext,
+                rowSignature,
+                rexNode,
+                druidExpressions -> DruidExpression.ofFunctionCall(
+                        ColumnType.DOUBLE_ARRAY, DoublesReservoirExprMacros.PERCENTILES, druidExpressions));
     }
 
     @Nullable
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.sql;
+
+import com.nttdata.druid.aggregation.percentiles.aggregator.DoublesReservoirAggregatorFactory;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.sql.SqlAggFunction;
+import org.apache.calcite.sql.SqlFunctionCategory;
+import org.apache.calcite.sql.type.SqlTypeFamily;
+import org.apache.druid.error.InvalidSqlInput;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.sql.calcite.expression.OperatorConversions;
+import org.apache.druid.sql.calcite.planner.Calcites;
+import org.apache.druid.sql.calcite.rel.InputAccessor;
+
+import javax.annotation.Nullable;
+
+import static com.nttdata.druid.DoublesReservoirModule.TYPE;
+
+/**
+ * {@code DR_PERCENTILE_AGG} sized by the rank error its percentiles may have, at a given confidence, rather than by
+ * a number of samples. See {@link DoublesReservoir#getSizeForRankError}.
+ */
+public class DoublesReservoirRankErrorSqlAggregator extends DoublesReservoirObjectSqlAggregator {
+    static final String NAME = "DR_PERCENTILE_AGG_RANK_ERROR";
+    private static final SqlAggFunction FUNCTION_INSTANCE = OperatorConversions.aggregatorBuilder(NAME)
+            .operandNames("column", "targetRankError", "confidence", "weight")
+            .operandTypes(SqlTypeFamily.ANY, SqlTypeFamily.NUMERIC, SqlTypeFamily.NUMERIC, SqlTypeFamily.NUMERIC)
+            .returnTypeInference(Calcites.complexReturnTypeWithNullability(TYPE, false))
+            .requiredOperandCount(2)
+            .literalOperands(1, 2)
+            .functionCategory(SqlFunctionCategory.NUMERIC)
+            .build();
+
+    @Override
+    public SqlAggFunction calciteFunction() {
+        return FUNCTION_INSTANCE;
+    }
+
+    @Nullable
+    @Override
+    protected Integer getMaxSize(AggregateCall aggregateCall, InputAccessor inputAccessor) {
+        final Number rankError = getLiteral(aggregateCall, inputAccessor, 1);
+        final Number confidence = aggregateCall.getArgList().size() > 2
+                ? getLiteral(aggregateCall, inputAccessor, 2)
+                : Double.valueOf(DoublesReservoirAggregatorFactory.DEFAULT_CONFIDENCE);
+
+        if (rankError == null || confidence == null) {
+            return null;
+        }
+
+        try {
+            return DoublesReservoir.getSizeForRankError(rankError.doubleValue(), confidence.doubleValue());
+        } catch (IAE e) {
+            throw InvalidSqlInput.exception("Invalid arguments of %s: %s", NAME, e.getMessage());
+        }
+    }
+
+    @Override
+    protected int getWeightOperand() {
+        return 3;
+    }
+}
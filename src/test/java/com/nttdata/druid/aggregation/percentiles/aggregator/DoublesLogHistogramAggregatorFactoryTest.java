@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogram;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogramLayout;
+import nl.jqno.equalsverifier.EqualsVerifier;
+import org.apache.druid.jackson.DefaultObjectMapper;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.query.aggregation.AggregatorFactory;
+import org.apache.druid.query.aggregation.BufferAggregator;
+import org.apache.druid.query.aggregation.TestDoubleColumnSelectorImpl;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.nttdata.druid.DoublesReservoirModule.LOG_HISTOGRAM_TYPE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DoublesLogHistogramAggregatorFactoryTest {
+    @Test
+    void testEquals() {
+        EqualsVerifier.forClass(DoublesLogHistogramAggregatorFactory.class)
+                .withNonnullFields("name", "fieldName", "layout")
+                .usingGetClass()
+                .verify();
+    }
+
+    @Test
+    void testSerde() throws IOException {
+        final ObjectMapper mapper = new DefaultObjectMapper();
+        mapper.registerSubtypes(DoublesLogHistogramAggregatorFactory.class);
+
+        final DoublesLogHistogramAggregatorFactory factory = (DoublesLogHistogramAggregatorFactory) mapper.readValue(
+                "{\"type\": \"doublesLogHistogram\", \"name\": \"myFactory\", \"fieldName\": \"myField\","
+                        + " \"significantDigits\": 3, \"highestTrackableValue\": 60000}",
+                AggregatorFactory.class);
+
+        assertEquals(3, factory.getSignificantDigits());
+        assertEquals(DoublesLogHistogramLayout.DEFAULT_LOWEST_DISCERNIBLE_VALUE, factory.getLowestDiscernibleValue());
+        assertEquals(60000, factory.getHighestTrackableValue());
+        assertEquals(factory, mapper.readValue(mapper.writeValueAsBytes(factory), AggregatorFactory.class));
+        assertEquals(LOG_HISTOGRAM_TYPE, factory.getIntermediateType());
+
+        assertThrows(IAE.class, () -> new DoublesLogHistogramAggregatorFactory(
+                "myFactory", "myField", 5, null, null));
+    }
+
+    @Test
+    void testBufferAggregator() {
+        final DoublesLogHistogramAggregatorFactory factory =
+                new DoublesLogHistogramAggregatorFactory("myFactory", "myField");
+        final double[] values = new double[]{1, 2, 3, 4, 5};
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
+        final BufferAggregator agg =
+                new DoublesLogHistogramBufferAggregator(selector, DoublesLogHistogramLayout.DEFAULT);
+        final ByteBuffer buffer = ByteBuffer.allocate(3 + factory.getMaxIntermediateSize());
+
+        agg.init(buffer, 3);
+        for (int i = 0; i < values.length; ++i) {
+            agg.aggregate(buffer, 3);
+            selector.increment();
+        }
+
+        final DoublesLogHistogram histogram = (DoublesLogHistogram) agg.get(buffer, 3);
+        assertTrue(histogram.isFrozen());
+        assertEquals(5, histogram.getTotalItemsSeen());
+        assertEquals(3.0, histogram.getMedian(), 3.0 / 256);
+        assertEquals(3.0, histogram.getAVG());
+        assertEquals(1.0, histogram.getMin());
+        assertEquals(5.0, histogram.getMax());
+    }
+
+    @Test
+    void testCombine() {
+        final DoublesLogHistogramAggregatorFactory factory =
+                new DoublesLogHistogramAggregatorFactory("myFactory", "myField");
+        final DoublesLogHistogram lhs = new DoublesLogHistogram(DoublesLogHistogramLayout.DEFAULT);
+        final DoublesLogHistogram rhs = new DoublesLogHistogram(DoublesLogHistogramLayout.DEFAULT);
+
+        ImmutableList.of(1.0, 2.0).forEach(lhs::accept);
+        ImmutableList.of(3.0).forEach(rhs::accept);
+        lhs.freeze();
+
+        final DoublesLogHistogram combined = (DoublesLogHistogram) factory.combine(lhs, rhs.toBytes());
+        assertEquals(3, combined.getTotalItemsSeen());
+        assertEquals(2, lhs.getTotalItemsSeen());
+        assertSame(rhs, factory.combine(null, rhs));
+    }
+}
@@ -19,10 +19,19 @@
 package com.nttdata.druid.aggregation.percentiles.aggregator;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.nttdata.druid.aggregation.percentiles.metrics.DoublesReservoirCounter;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirOrdering;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirStorage;
 import nl.jqno.equalsverifier.EqualsVerifier;
 import org.apache.druid.jackson.DefaultObjectMapper;
+import org.apache.druid.java.util.common.IAE;
 import org.apache.druid.java.util.common.granularity.Granularities;
 import org.apache.druid.query.Druids;
+import org.apache.druid.query.QueryContext;
+import org.apache.druid.query.ResourceLimitExceededException;
 import org.apache.druid.query.aggregation.*;
 import org.apache.druid.query.aggregation.post.FieldAccessPostAggregator;
 import org.apache.druid.query.aggregation.post.FinalizingFieldAccessPostAggregator;
@@ -33,16 +42,28 @@ import org.apache.druid.segment.column.RowSignature;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
 
 import static com.nttdata.druid.DoublesReservoirModule.TYPE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class DoublesReservoirAggregatorFactoryTest {
     @Test
     void testEquals() {
         EqualsVerifier.forClass(DoublesReservoirAggregatorFactory.class)
                 .withNonnullFields("name", "fieldName", "maxReservoirSize")
+                .withIgnoredFields("budget")
                 .usingGetClass()
                 .verify();
     }
@@ -53,27 +74,63 @@ class DoublesReservoirAggregatorFactoryTest {
         mapper.registerSubtypes(DoublesReservoirAggregatorFactory.class);
 
         final DoublesReservoirAggregatorFactory factory =
-                new DoublesReservoirAggregatorFactory("myFactory", "myField", 1024);
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 1024, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null);
         final byte[] json = mapper.writeValueAsBytes(factory);
         final DoublesReservoirAggregatorFactory fromJson =
                 (DoublesReservoirAggregatorFactory) mapper.readValue(json, AggregatorFactory.class);
         assertEquals(factory, fromJson);
     }
 
+    @Test
+    void testSerdeWithOrdering() throws IOException {
+        final ObjectMapper mapper = new DefaultObjectMapper();
+        mapper.registerSubtypes(DoublesReservoirAggregatorFactory.class);
+
+        final DoublesReservoirAggregatorFactory factory = new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 1024, DoublesReservoirOrdering.MEDIAN, DoublesReservoirStorage.DOUBLE, 0,
+                null, 0, false, null);
+        final DoublesReservoirAggregatorFactory fromJson = (DoublesReservoirAggregatorFactory)
+                mapper.readValue(mapper.writeValueAsBytes(factory), AggregatorFactory.class);
+        assertEquals(factory, fromJson);
+        assertEquals(DoublesReservoirOrdering.MEDIAN, fromJson.getOrdering());
+    }
+
+    @Test
+    void testComparator() {
+        final DoublesReservoir small = new DoublesReservoir(8, ImmutableList.of(10.0, 20.0));
+        final DoublesReservoir large = new DoublesReservoir(8, ImmutableList.of(1.0, 2.0, 3.0));
+
+        final Comparator<Object> byCount =
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 8, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null)
+                        .getComparator();
+        assertTrue(byCount.compare(small, large) < 0);
+
+        final Comparator<Object> byMedian = new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 8, DoublesReservoirOrdering.MEDIAN, DoublesReservoirStorage.DOUBLE,
+                        0, null, 0, false, null)
+                .getComparator();
+        assertTrue(byMedian.compare(small, large) > 0);
+    }
+
     @Test
     void testGuessAggregatorHeapFootprint() {
-        DoublesReservoirAggregatorFactory factory = new DoublesReservoirAggregatorFactory("myFactory", "myField", 128);
+        DoublesReservoirAggregatorFactory factory = new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 128, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null);
 
-        assertEquals(1024, factory.guessAggregatorHeapFootprint(1));
-        assertEquals(1024, factory.guessAggregatorHeapFootprint(100));
-        assertEquals(1024, factory.guessAggregatorHeapFootprint(1000));
-        assertEquals(1024, factory.guessAggregatorHeapFootprint(1_000_000_000_000L));
+        assertEquals(1036, factory.guessAggregatorHeapFootprint(1));
+        assertEquals(1036, factory.guessAggregatorHeapFootprint(100));
+        assertEquals(1036, factory.guessAggregatorHeapFootprint(1000));
+        assertEquals(1036, factory.guessAggregatorHeapFootprint(1_000_000_000_000L));
     }
 
     @Test
     void testMaxIntermediateSize() {
-        DoublesReservoirAggregatorFactory factory = new DoublesReservoirAggregatorFactory("myFactory", "myField", 128);
-        assertEquals(1024, factory.getMaxIntermediateSize());
+        DoublesReservoirAggregatorFactory factory = new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 128, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null);
+        // totalItemsSeen and size, then 128 samples
+        assertEquals(1036, factory.getMaxIntermediateSize());
     }
 
     @Test
@@ -84,7 +141,9 @@ class DoublesReservoirAggregatorFactoryTest {
                 .granularity(Granularities.HOUR)
                 .aggregators(
                         new CountAggregatorFactory("count"),
-                        new DoublesReservoirAggregatorFactory("doublesReservoir", "col", 8))
+                        new DoublesReservoirAggregatorFactory(
+                                "doublesReservoir", "col", 8, null, DoublesReservoirStorage.DOUBLE, 0, null, 0,
+                                false, null))
                 .postAggregators(
                         new FieldAccessPostAggregator("doublesReservoir-access", "doublesReservoir"),
                         new FinalizingFieldAccessPostAggregator("doublesReservoir-finalize", "doublesReservoir"))
@@ -104,11 +163,13 @@ class DoublesReservoirAggregatorFactoryTest {
     @Test
     void testNullReservoir() {
         final DoublesReservoirAggregatorFactory factory =
-                new DoublesReservoirAggregatorFactory("myFactory", "myField", 1024);
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 1024, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null);
         final double[] values = new double[]{1, 2, 3, 4, 5, 6};
         final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
 
-        try (final Aggregator agg1 = new DoublesReservoirBuildAggregator(selector, 8)) {
+        try (final Aggregator agg1 = new DoublesReservoirBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null)) {
             assertNotNull(factory.combine(null, agg1.get()));
             assertNotNull(factory.combine(agg1.get(), null));
 
@@ -117,4 +178,705 @@ class DoublesReservoirAggregatorFactoryTest {
             assertNotNull(ac.getObject());
         }
     }
+
+    @Test
+    void testAggregateCombinerReusesReservoir() {
+        final DoublesReservoirAggregatorFactory factory =
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 8, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null);
+        final TestDoublesReservoirColumnValueSelector selector = new TestDoublesReservoirColumnValueSelector(
+                new DoublesReservoir(8, ImmutableList.of(1.0, 2.0)));
+
+        final AggregateCombiner<?> ac = factory.makeAggregateCombiner();
+        ac.reset(selector);
+        selector.setReservoir(new DoublesReservoir(8, ImmutableList.of(3.0)));
+        ac.fold(selector);
+
+        final DoublesReservoir first = (DoublesReservoir) ac.getObject();
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), first.getSortedValues());
+        assertEquals(3, first.getTotalItemsSeen());
+
+        selector.setReservoir(new DoublesReservoir(8, ImmutableList.of(7.0)));
+        ac.reset(selector);
+        selector.setReservoir(null);
+        ac.fold(selector);
+
+        final DoublesReservoir second = (DoublesReservoir) ac.getObject();
+        assertSame(first, second);
+        assertEquals(ImmutableList.of(7.0), second.getSortedValues());
+        assertEquals(1, second.getTotalItemsSeen());
+    }
+
+    @Test
+    void testAggregateCombinerMergesManyRows() {
+        final DoublesReservoirAggregatorFactory factory =
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 8, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null);
+        final TestDoublesReservoirColumnValueSelector selector = new TestDoublesReservoirColumnValueSelector(
+                new DoublesReservoir(8, ImmutableList.of(0.0)));
+
+        // More rows than a batch, each standing for 10 items
+        final AggregateCombiner<?> ac = factory.makeAggregateCombiner();
+        ac.reset(selector);
+        for (int row = 1; row < 200; ++row) {
+            selector.setReservoir(new DoublesReservoir(8, Collections.nCopies(8, (double) row), 10));
+            ac.fold(selector);
+        }
+
+        final DoublesReservoir combined = (DoublesReservoir) ac.getObject();
+        assertEquals(1 + 199 * 10, combined.getTotalItemsSeen());
+        assertEquals(8, combined.getSize());
+    }
+
+    @Test
+    void testCombineDoesNotModifyFrozenInputs() {
+        final DoublesReservoirAggregatorFactory factory =
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 8, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null);
+        final DoublesReservoir lhs = (DoublesReservoir) factory.deserialize(
+                new DoublesReservoir(8, ImmutableList.of(1.0, 2.0)).toBytes());
+        final DoublesReservoir rhs = new DoublesReservoir(8, ImmutableList.of(3.0));
+
+        final DoublesReservoir combined = (DoublesReservoir) factory.combine(lhs, rhs);
+
+        assertNotNull(combined);
+        assertTrue(lhs.isFrozen());
+        assertEquals(ImmutableList.of(1.0, 2.0), lhs.getSortedValues());
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), combined.getSortedValues());
+
+        // Once owned by the merge, the result is merged in place
+        assertSame(combined, factory.combine(combined, new DoublesReservoir(8, ImmutableList.of(4.0))));
+        assertEquals(4, combined.getTotalItemsSeen());
+    }
+
+    @Test
+    void testCombineWithEmpty() {
+        final DoublesReservoirAggregatorFactory factory =
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 8, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null);
+        final DoublesReservoir rhs = new DoublesReservoir(8, ImmutableList.of(3.0));
+
+        assertSame(rhs, factory.combine(DoublesReservoir.EMPTY, rhs));
+        assertEquals(0, DoublesReservoir.EMPTY.getTotalItemsSeen());
+    }
+
+    @Test
+    void testSerdeWithStorage() throws IOException {
+        final ObjectMapper mapper = new DefaultObjectMapper();
+        mapper.registerSubtypes(DoublesReservoirAggregatorFactory.class);
+
+        final DoublesReservoirAggregatorFactory factory = (DoublesReservoirAggregatorFactory) mapper.readValue(
+                "{\"type\": \"doublesReservoir\", \"name\": \"myFactory\", \"fieldName\": \"myField\","
+                        + " \"maxReservoirSize\": 128, \"storage\": \"fixed\", \"scale\": 2}",
+                AggregatorFactory.class);
+
+        assertEquals("fixed", factory.getStorage());
+        assertEquals(2, factory.getScale());
+        assertEquals(factory, mapper.readValue(mapper.writeValueAsBytes(factory), AggregatorFactory.class));
+        assertEquals(12 + 128 * 4, factory.getMaxIntermediateSize());
+        assertFalse(Arrays.equals(
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 128, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null)
+                        .getCacheKey(),
+                factory.getCacheKey()));
+
+        final DoublesReservoirAggregatorFactory defaults =
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 128, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null);
+        assertEquals("double", defaults.getStorage());
+        assertNull(defaults.getScale());
+
+        assertThrows(IAE.class, () -> new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 128, null, "float", 2, null, null, null, null, null, null));
+    }
+
+    @Test
+    void testBufferAggregatorWithFloatStorage() {
+        final double[] values = new double[]{0.1, 0.2, 0.3};
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
+        final BufferAggregator agg =
+                new DoublesReservoirBufferBuildAggregator(
+                        selector, null, null, 4, DoublesReservoirStorage.FLOAT, 0, 0, false, null);
+        final ByteBuffer buffer =
+                ByteBuffer.allocate(DoublesReservoir.getBufferSize(4, DoublesReservoirStorage.FLOAT));
+
+        agg.init(buffer, 0);
+        for (int i = 0; i < values.length; ++i) {
+            agg.aggregate(buffer, 0);
+            selector.increment();
+        }
+
+        final DoublesReservoir reservoir = (DoublesReservoir) agg.get(buffer, 0);
+        assertEquals(DoublesReservoirStorage.FLOAT, reservoir.getStorage());
+        assertEquals(ImmutableList.of((double) 0.1f, (double) 0.2f, (double) 0.3f), reservoir.getSortedValues());
+    }
+
+    @Test
+    void testMaxReservoirSizeMustFitInBuffer() {
+        assertThrows(IAE.class, () -> new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", DoublesReservoir.MAX_BUFFERED_SIZE + 1, null,
+                DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null));
+    }
+
+    @Test
+    void testBufferAggregatorKeepsStateInBuffer() {
+        final DoublesReservoirAggregatorFactory factory =
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 4, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null);
+        final double[] values = new double[]{1, 2, 3, 4, 5, 6};
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
+        final BufferAggregator agg = new DoublesReservoirBufferBuildAggregator(
+                selector, null, null, 4, DoublesReservoirStorage.DOUBLE, 0, 0, false, null);
+        final int size = factory.getMaxIntermediateSize();
+        final ByteBuffer buffer = ByteBuffer.allocate(3 + size);
+
+        agg.init(buffer, 3);
+        for (int i = 0; i < values.length; ++i) {
+            agg.aggregate(buffer, 3);
+            selector.increment();
+        }
+
+        final DoublesReservoir reservoir = (DoublesReservoir) agg.get(buffer, 3);
+        assertEquals(6, reservoir.getTotalItemsSeen());
+        assertEquals(4, reservoir.getSize());
+
+        // Slots are moved or spilled by copying their bytes, without calling the aggregator
+        final ByteBuffer other = ByteBuffer.allocate(size + 7);
+        for (int i = 0; i < size; ++i) {
+            other.put(7 + i, buffer.get(3 + i));
+        }
+
+        final DoublesReservoir moved = (DoublesReservoir) agg.get(other, 7);
+        assertEquals(reservoir.getTotalItemsSeen(), moved.getTotalItemsSeen());
+        assertEquals(reservoir.getSortedValues(), moved.getSortedValues());
+
+        agg.close();
+    }
+
+    @Test
+    void testBufferAggregatorMergesReservoirs() {
+        final TestDoublesReservoirColumnValueSelector selector = new TestDoublesReservoirColumnValueSelector(
+                new DoublesReservoir(8, ImmutableList.of(1.0, 2.0)));
+        final BufferAggregator agg = new DoublesReservoirBufferBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null);
+        final ByteBuffer buffer = ByteBuffer.allocate(DoublesReservoir.getBufferSize(8, DoublesReservoirStorage.DOUBLE));
+
+        agg.init(buffer, 0);
+        agg.aggregate(buffer, 0);
+        selector.setReservoir(new DoublesReservoir(8, ImmutableList.of(3.0)));
+        agg.aggregate(buffer, 0);
+        selector.setReservoir(DoublesReservoir.EMPTY);
+        agg.aggregate(buffer, 0);
+
+        final DoublesReservoir reservoir = (DoublesReservoir) agg.get(buffer, 0);
+        assertTrue(reservoir.isFrozen());
+        assertEquals(3, reservoir.getTotalItemsSeen());
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), reservoir.getSortedValues());
+    }
+
+    @Test
+    void testSerdeWithSketchK() throws IOException {
+        final ObjectMapper mapper = new DefaultObjectMapper();
+        mapper.registerSubtypes(DoublesReservoirAggregatorFactory.class);
+
+        final DoublesReservoirAggregatorFactory factory = (DoublesReservoirAggregatorFactory) mapper.readValue(
+                "{\"type\": \"doublesReservoir\", \"name\": \"myFactory\", \"fieldName\": \"myField\","
+                        + " \"maxReservoirSize\": 128, \"sketchK\": 200}",
+                AggregatorFactory.class);
+
+        assertEquals(200, factory.getSketchK());
+        assertEquals(factory, mapper.readValue(mapper.writeValueAsBytes(factory), AggregatorFactory.class));
+        assertEquals(200, ((DoublesReservoirAggregatorFactory) factory.getCombiningFactory()).getSketchK());
+        assertFalse(Arrays.equals(
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 128, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null)
+                        .getCacheKey(),
+                factory.getCacheKey()));
+        assertNull(new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 128, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null)
+                .getSketchK());
+
+        assertThrows(IAE.class, () -> new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 128, null, null, null, 4, null, null, null, null, null));
+    }
+
+    @Test
+    void testSerdeWithValueCounts() throws IOException {
+        final ObjectMapper mapper = new DefaultObjectMapper();
+        mapper.registerSubtypes(DoublesReservoirAggregatorFactory.class);
+
+        final DoublesReservoirAggregatorFactory factory = (DoublesReservoirAggregatorFactory) mapper.readValue(
+                "{\"type\": \"doublesReservoir\", \"name\": \"myFactory\", \"fieldName\": \"myField\","
+                        + " \"maxReservoirSize\": 128, \"valueCounts\": true}",
+                AggregatorFactory.class);
+
+        assertTrue(factory.isValueCounts());
+        assertEquals(factory, mapper.readValue(mapper.writeValueAsBytes(factory), AggregatorFactory.class));
+        assertTrue(((DoublesReservoirAggregatorFactory) factory.getCombiningFactory()).isValueCounts());
+        assertFalse(Arrays.equals(
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 128, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null)
+                        .getCacheKey(),
+                factory.getCacheKey()));
+        assertFalse(new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 128, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null)
+                .isValueCounts());
+    }
+
+    @Test
+    void testBufferAggregatorCountsValuesOnlyWhenAsked() {
+        // Room for 8 samples, or for the counts of 4 distinct values
+        final double[] values = new double[]{1, 1, 2, 2, 3, 3, 1, 1, 2, 2};
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
+        final BufferAggregator sampling = new DoublesReservoirBufferBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null);
+        final BufferAggregator counting = new DoublesReservoirBufferBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, true, null);
+        final int size = DoublesReservoir.getBufferSize(8, DoublesReservoirStorage.DOUBLE);
+        final ByteBuffer buffer = ByteBuffer.allocate(2 * size);
+
+        sampling.init(buffer, 0);
+        counting.init(buffer, size);
+        for (int i = 0; i < values.length; ++i) {
+            sampling.aggregate(buffer, 0);
+            counting.aggregate(buffer, size);
+            selector.increment();
+        }
+
+        assertFalse(((DoublesReservoir) sampling.get(buffer, 0)).isValueCountMode());
+        assertEquals(8, ((DoublesReservoir) sampling.get(buffer, 0)).getSize());
+
+        final DoublesReservoir counted = (DoublesReservoir) counting.get(buffer, size);
+        assertTrue(counted.isValueCountMode());
+        assertEquals(10, counted.getTotalItemsSeen());
+        assertEquals(2.0, counted.getMedian());
+    }
+
+    @Test
+    void testBufferAggregatorPromotesToSketch() {
+        final double[] values = new double[]{1, 2, 3, 4, 5, 6};
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
+        final BufferAggregator agg =
+                new DoublesReservoirBufferBuildAggregator(
+                        selector, null, null, 4, DoublesReservoirStorage.DOUBLE, 200, 0, false, null);
+        final int size = DoublesReservoir.getBufferSize(4, DoublesReservoirStorage.DOUBLE, 200);
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+
+        assertTrue(size > DoublesReservoir.getBufferSize(4, DoublesReservoirStorage.DOUBLE));
+        agg.init(buffer, 0);
+        for (int i = 0; i < values.length - 1; ++i) {
+            agg.aggregate(buffer, 0);
+            selector.increment();
+        }
+
+        final DoublesReservoir reservoir = (DoublesReservoir) agg.get(buffer, 0);
+        assertTrue(reservoir.isSketchMode());
+        assertEquals(5, reservoir.getTotalItemsSeen());
+        assertEquals(5.0, reservoir.getMax());
+
+        // The sketch is built in the slot, so it moves along with its bytes
+        final ByteBuffer other = ByteBuffer.allocate(2 * size);
+        other.position(size);
+        other.put(buffer.duplicate());
+        agg.relocate(0, size, buffer, other);
+
+        final DoublesReservoir moved = (DoublesReservoir) agg.get(other, size);
+        assertEquals(reservoir.getTotalItemsSeen(), moved.getTotalItemsSeen());
+        assertEquals(reservoir.getMedian(), moved.getMedian());
+
+        agg.aggregate(other, size);
+        assertEquals(6, ((DoublesReservoir) agg.get(other, size)).getTotalItemsSeen());
+        assertEquals(6.0, ((DoublesReservoir) agg.get(other, size)).getMax());
+
+        agg.init(other, size);
+        assertFalse(((DoublesReservoir) agg.get(other, size)).isSketchMode());
+
+        agg.close();
+    }
+
+    @Test
+    void testSerdeWithWeightFieldName() throws IOException {
+        final ObjectMapper mapper = new DefaultObjectMapper();
+        mapper.registerSubtypes(DoublesReservoirAggregatorFactory.class);
+
+        final DoublesReservoirAggregatorFactory factory = (DoublesReservoirAggregatorFactory) mapper.readValue(
+                "{\"type\": \"doublesReservoir\", \"name\": \"myFactory\", \"fieldName\": \"myField\","
+                        + " \"maxReservoirSize\": 128, \"weightFieldName\": \"count\"}",
+                AggregatorFactory.class);
+
+        assertEquals("count", factory.getWeightFieldName());
+        assertEquals(ImmutableList.of("myField", "count"), factory.requiredFields());
+        assertEquals(factory, mapper.readValue(mapper.writeValueAsBytes(factory), AggregatorFactory.class));
+        assertEquals(factory, factory.withName("other").withName("myFactory"));
+        assertFalse(Arrays.equals(
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 128, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null)
+                        .getCacheKey(),
+                factory.getCacheKey()));
+
+        // Reservoirs already carry their number of items
+        assertNull(((DoublesReservoirAggregatorFactory) factory.getCombiningFactory()).getWeightFieldName());
+    }
+
+    @Test
+    void testBufferAggregatorWeightsRows() {
+        final double[] values = new double[]{1, 2, 3, 4};
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
+        final TestDoubleColumnSelectorImpl weights = new TestDoubleColumnSelectorImpl(new double[]{3, 1, 0, 2});
+        final BufferAggregator agg = new DoublesReservoirBufferBuildAggregator(
+                selector, weights, null, 16, DoublesReservoirStorage.DOUBLE, 0, 0, false, null);
+        final ByteBuffer buffer = ByteBuffer.allocate(DoublesReservoir.getBufferSize(16, DoublesReservoirStorage.DOUBLE));
+
+        agg.init(buffer, 0);
+        for (int i = 0; i < values.length; ++i) {
+            agg.aggregate(buffer, 0);
+            selector.increment();
+            weights.increment();
+        }
+
+        final DoublesReservoir reservoir = (DoublesReservoir) agg.get(buffer, 0);
+        assertEquals(6, reservoir.getTotalItemsSeen());
+        assertEquals(ImmutableList.of(1.0, 1.0, 1.0, 2.0, 4.0, 4.0), reservoir.getSortedValues());
+    }
+
+    @Test
+    void testStringInputs() {
+        final DoublesReservoir reservoir = new DoublesReservoir(4);
+        reservoir.accept(1);
+        final String base64 = Base64.getEncoder().encodeToString(reservoir.toBytes());
+
+        // Numbers read as strings are values, not serialized reservoirs
+        assertEquals(12.0, DoublesReservoirBuildAggregator.toInput("12"));
+        assertEquals(-1500.0, DoublesReservoirBuildAggregator.toInput("-1.5e3"));
+        assertNull(DoublesReservoirBuildAggregator.toInput(""));
+        assertEquals(base64, DoublesReservoirBuildAggregator.toInput(base64));
+
+        assertTrue(DoublesReservoirBuildAggregator.isSerializedReservoir(base64));
+        assertTrue(DoublesReservoirBuildAggregator.isSerializedReservoir("{\"maxSize\":4}"));
+        assertFalse(DoublesReservoirBuildAggregator.isSerializedReservoir("1234"));
+        assertFalse(DoublesReservoirBuildAggregator.isSerializedReservoir("n/a"));
+    }
+
+    @Test
+    void testFractionalWeightsAreSkipped() {
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(new double[]{1, 3});
+        final TestDoubleColumnSelectorImpl weights = new TestDoubleColumnSelectorImpl(new double[]{0.5, 2});
+        final BufferAggregator agg = new DoublesReservoirBufferBuildAggregator(
+                selector, weights, null, 16, DoublesReservoirStorage.DOUBLE, 0, 0, false, null);
+        final ByteBuffer buffer = ByteBuffer.allocate(DoublesReservoir.getBufferSize(16, DoublesReservoirStorage.DOUBLE));
+        final long skipped = DoublesReservoirCounter.ROWS_SKIPPED.sum();
+
+        agg.init(buffer, 0);
+        for (int i = 0; i < 2; ++i) {
+            agg.aggregate(buffer, 0);
+            selector.increment();
+            weights.increment();
+        }
+
+        final DoublesReservoir reservoir = (DoublesReservoir) agg.get(buffer, 0);
+        assertEquals(2, reservoir.getTotalItemsSeen());
+        assertEquals(ImmutableList.of(3.0, 3.0), reservoir.getSortedValues());
+        assertEquals(skipped + 1, DoublesReservoirCounter.ROWS_SKIPPED.sum());
+    }
+
+    @Test
+    void testSerdeWithHalfLife() throws IOException {
+        final ObjectMapper mapper = new DefaultObjectMapper();
+        mapper.registerSubtypes(DoublesReservoirAggregatorFactory.class);
+
+        final DoublesReservoirAggregatorFactory factory = (DoublesReservoirAggregatorFactory) mapper.readValue(
+                "{\"type\": \"doublesReservoir\", \"name\": \"myFactory\", \"fieldName\": \"myField\","
+                        + " \"maxReservoirSize\": 128, \"halfLife\": \"PT5M\"}",
+                AggregatorFactory.class);
+
+        assertEquals("PT5M", factory.getHalfLife());
+        assertEquals(ImmutableList.of("myField", "__time"), factory.requiredFields());
+        // Each sample keeps its log weight and priority
+        assertEquals(12 + 8 + 128 * 24, factory.getMaxIntermediateSize());
+        assertEquals(factory, mapper.readValue(mapper.writeValueAsBytes(factory), AggregatorFactory.class));
+        assertEquals("PT5M", ((DoublesReservoirAggregatorFactory) factory.getCombiningFactory()).getHalfLife());
+        assertFalse(Arrays.equals(
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 128, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null)
+                        .getCacheKey(),
+                factory.getCacheKey()));
+
+        assertThrows(IAE.class, () -> new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 128, null, null, null, null, null, "P1M", null, null, null));
+        assertThrows(IAE.class, () -> new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 128, null, null, null, 200, null, "PT5M", null, null, null));
+    }
+
+    @Test
+    void testSerdeWithTargetRankError() throws IOException {
+        final ObjectMapper mapper = new DefaultObjectMapper();
+        mapper.registerSubtypes(DoublesReservoirAggregatorFactory.class);
+
+        final DoublesReservoirAggregatorFactory factory = (DoublesReservoirAggregatorFactory) mapper.readValue(
+                "{\"type\": \"doublesReservoir\", \"name\": \"myFactory\", \"fieldName\": \"myField\","
+                        + " \"targetRankError\": 0.01}",
+                AggregatorFactory.class);
+
+        assertEquals(18445, factory.getMaxReservoirSize());
+        assertEquals(DoublesReservoir.getBufferSize(18445, DoublesReservoirStorage.DOUBLE),
+                factory.getMaxIntermediateSize());
+        assertEquals(new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 18445, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null), factory);
+        assertEquals(factory, mapper.readValue(mapper.writeValueAsBytes(factory), AggregatorFactory.class));
+
+        final DoublesReservoirAggregatorFactory moreConfident = new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", null, null, null, null, null, null, null, 0.01, 0.99, null);
+        assertTrue(moreConfident.getMaxReservoirSize() > factory.getMaxReservoirSize());
+
+        assertThrows(IAE.class, () -> new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 128, null, null, null, null, null, null, 0.01, null, null));
+        assertThrows(IAE.class, () -> new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 128, null, null, null, null, null, null, null, 0.95, null));
+        assertThrows(IAE.class, () -> new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", null, null, null, null, null, null, null, 1.5, null, null));
+        assertThrows(IAE.class, () -> new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", null, null, null, null, null, null, null, null, null, null));
+    }
+
+    @Test
+    void testMergingFactoryKeepsLargestSizeAndWidestStorage() throws AggregatorFactoryNotMergeableException {
+        final DoublesReservoirAggregatorFactory recent = new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 10_000, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null);
+        final DoublesReservoirAggregatorFactory compacted = new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 500, null, DoublesReservoirStorage.FLOAT, 0, null, 0, false, null);
+
+        final AggregatorFactory expected = new DoublesReservoirAggregatorFactory(
+                "myFactory", "myFactory", 10_000, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null);
+        assertEquals(expected, recent.getMergingFactory(compacted));
+        assertEquals(expected, compacted.getMergingFactory(recent));
+
+        assertThrows(AggregatorFactoryNotMergeableException.class, () -> recent.getMergingFactory(
+                new DoublesReservoirAggregatorFactory(
+                        "other", "myField", 500, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null)));
+        assertThrows(AggregatorFactoryNotMergeableException.class, () -> recent.getMergingFactory(
+                new DoublesReservoirAggregatorFactory(
+                        "myFactory", "myField", 500, null, DoublesReservoirStorage.DOUBLE, 200, null, 0, false, null)));
+    }
+
+    @Test
+    void testBudgetScopedToQuery() throws IOException {
+        final ObjectMapper mapper = new DefaultObjectMapper();
+        mapper.registerSubtypes(DoublesReservoirAggregatorFactory.class);
+
+        final byte[] bytes = makeFullReservoirBytes();
+        final int reservoirBytes = DoublesReservoir.getBufferSize(128, DoublesReservoirStorage.DOUBLE);
+        final String json = "{\"type\": \"doublesReservoir\", \"name\": \"myFactory\", \"fieldName\": \"myField\","
+                + " \"maxReservoirSize\": 128}";
+
+        // Factories read while a query with a limit is read draw on its budget, the others on none
+        final DoublesReservoirMemoryBudget budget = openBudget(reservoirBytes, DoublesReservoirBudgetPolicy.FAIL);
+        final AggregatorFactory limited = mapper.readValue(json, AggregatorFactory.class);
+        assertSame(budget, DoublesReservoirMemoryBudget.current());
+        DoublesReservoirMemoryBudget.detach();
+        assertNull(DoublesReservoirMemoryBudget.current());
+
+        final AggregatorFactory unlimited = mapper.readValue(json, AggregatorFactory.class);
+        limited.deserialize(bytes);
+        assertThrows(ResourceLimitExceededException.class, () -> limited.deserialize(bytes));
+        unlimited.deserialize(bytes);
+        unlimited.deserialize(bytes);
+
+        // The end of the query lets go of everything still counted
+        budget.close();
+        assertEquals(0, budget.getUsedBytes());
+        limited.deserialize(bytes);
+
+        // The budget is no part of the aggregator itself
+        assertEquals(unlimited, limited);
+        assertArrayEquals(unlimited.getCacheKey(), limited.getCacheKey());
+        assertEquals(mapper.writeValueAsString(unlimited), mapper.writeValueAsString(limited));
+
+        // Unless it downsamples, which changes the results
+        assertFalse(Arrays.equals(
+                unlimited.getCacheKey(),
+                makeLimitedFactory(reservoirBytes, DoublesReservoirBudgetPolicy.DOWNSAMPLE).getCacheKey()));
+
+        assertNull(DoublesReservoirMemoryBudget.open(QueryContext.empty()));
+        assertNull(DoublesReservoirMemoryBudget.current());
+    }
+
+    @Test
+    void testBudgetFromQueryContext() {
+        assertEquals(0, DoublesReservoirMemoryBudget.getMaxBytes(QueryContext.empty()));
+        assertEquals(DoublesReservoirBudgetPolicy.FAIL, DoublesReservoirMemoryBudget.getPolicy(QueryContext.empty()));
+        assertEquals(1000, DoublesReservoirMemoryBudget.getMaxBytes(
+                QueryContext.of(ImmutableMap.of(DoublesReservoirMemoryBudget.CTX_MAX_BYTES_PER_QUERY, 1000))));
+        assertEquals(DoublesReservoirBudgetPolicy.DOWNSAMPLE, DoublesReservoirMemoryBudget.getPolicy(
+                QueryContext.of(ImmutableMap.of(DoublesReservoirMemoryBudget.CTX_BUDGET_POLICY, "downsample"))));
+        assertThrows(IAE.class, () -> DoublesReservoirMemoryBudget.getMaxBytes(
+                QueryContext.of(ImmutableMap.of(DoublesReservoirMemoryBudget.CTX_MAX_BYTES_PER_QUERY, -1))));
+        assertThrows(IAE.class, () -> DoublesReservoirMemoryBudget.getPolicy(
+                QueryContext.of(ImmutableMap.of(DoublesReservoirMemoryBudget.CTX_BUDGET_POLICY, "ignore"))));
+    }
+
+    @Test
+    void testBudgetPolicies() {
+        final byte[] bytes = makeFullReservoirBytes();
+        final int reservoirBytes = DoublesReservoir.getBufferSize(128, DoublesReservoirStorage.DOUBLE);
+
+        // Reservoirs read back from other services count until they are merged into another
+        final DoublesReservoirAggregatorFactory failing =
+                makeLimitedFactory(2L * reservoirBytes, DoublesReservoirBudgetPolicy.FAIL);
+        failing.deserialize(bytes);
+        failing.deserialize(bytes);
+        assertThrows(ResourceLimitExceededException.class, () -> failing.deserialize(bytes));
+
+        // Downsampling goes down to MIN_DOWNSAMPLED_SIZE samples, then fails rather than overdraw the budget
+        final DoublesReservoirAggregatorFactory downsampling = makeLimitedFactory(
+                2L * reservoirBytes + DoublesReservoir.getBufferSize(64, DoublesReservoirStorage.DOUBLE),
+                DoublesReservoirBudgetPolicy.DOWNSAMPLE);
+        assertEquals(128, ((DoublesReservoir) downsampling.deserialize(bytes)).getSize());
+        assertEquals(128, ((DoublesReservoir) downsampling.deserialize(bytes)).getSize());
+
+        final DoublesReservoir downsampled = (DoublesReservoir) downsampling.deserialize(bytes);
+        assertEquals(DoublesReservoirMemoryBudget.MIN_DOWNSAMPLED_SIZE, downsampled.getSize());
+        assertEquals(1000, downsampled.getTotalItemsSeen());
+        assertThrows(ResourceLimitExceededException.class, () -> downsampling.deserialize(bytes));
+
+        // Heap aggregators give their room back once closed
+        final DoublesReservoirMemoryBudget budget =
+                new DoublesReservoirMemoryBudget(reservoirBytes, DoublesReservoirBudgetPolicy.FAIL);
+        assertEquals(128, budget.reserve(128, DoublesReservoirStorage.DOUBLE));
+        assertThrows(ResourceLimitExceededException.class, () -> budget.reserve(128, DoublesReservoirStorage.DOUBLE));
+        budget.release(128, DoublesReservoirStorage.DOUBLE);
+        assertEquals(0, budget.getUsedBytes());
+
+        assertThrows(IAE.class, () -> DoublesReservoirBudgetPolicy.fromString("ignore"));
+    }
+
+    @Test
+    void testMergedReservoirsGiveBackTheirBudget() {
+        final int reservoirBytes = DoublesReservoir.getBufferSize(128, DoublesReservoirStorage.DOUBLE);
+        final DoublesReservoirAggregatorFactory factory =
+                makeLimitedFactory(2L * reservoirBytes, DoublesReservoirBudgetPolicy.FAIL);
+        final byte[] bytes = makeFullReservoirBytes();
+
+        // The merge holds only its result, so every result read back counts only until merged
+        Object merged = factory.combine(factory.deserialize(bytes), factory.deserialize(bytes));
+        for (int i = 0; i < 10; ++i) {
+            merged = factory.combine(merged, factory.deserialize(bytes));
+        }
+
+        assertEquals(12000, ((DoublesReservoir) merged).getTotalItemsSeen());
+        factory.deserialize(bytes);
+        assertThrows(ResourceLimitExceededException.class, () -> factory.deserialize(bytes));
+    }
+
+    @Test
+    void testBudgetReleasedWithoutGarbageCollection() {
+        final int reservoirBytes = DoublesReservoir.getBufferSize(128, DoublesReservoirStorage.DOUBLE);
+        final DoublesReservoirAggregatorFactory factory =
+                makeLimitedFactory(reservoirBytes, DoublesReservoirBudgetPolicy.FAIL);
+        final byte[] bytes = makeFullReservoirBytes();
+
+        // Results give their room back once finalized, whether or not they are still referenced
+        final Object result = factory.deserialize(bytes);
+        assertThrows(ResourceLimitExceededException.class, () -> factory.deserialize(bytes));
+        assertSame(result, factory.finalizeComputation(result));
+
+        // Spilled reservoirs read back give theirs back once folded into a combiner
+        final TestDoublesReservoirColumnValueSelector selector =
+                new TestDoublesReservoirColumnValueSelector((DoublesReservoir) factory.deserialize(bytes));
+        final AggregateCombiner<?> combiner = factory.makeAggregateCombiner();
+        combiner.reset(selector);
+        assertEquals(1000, ((DoublesReservoir) combiner.getObject()).getTotalItemsSeen());
+
+        factory.finalizeComputation(factory.deserialize(bytes));
+        factory.deserialize(bytes);
+    }
+
+    @Test
+    void testBudgetSharedWithCopies() throws AggregatorFactoryNotMergeableException {
+        final int reservoirBytes = DoublesReservoir.getBufferSize(128, DoublesReservoirStorage.DOUBLE);
+        final DoublesReservoirAggregatorFactory factory =
+                makeLimitedFactory(3L * reservoirBytes, DoublesReservoirBudgetPolicy.FAIL);
+        final byte[] bytes = makeFullReservoirBytes();
+
+        // The combining, merging and renamed copies of the factory count against the same limit
+        factory.deserialize(bytes);
+        factory.getCombiningFactory().deserialize(bytes);
+        factory.getMergingFactory(new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 64, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null))
+                .deserialize(bytes);
+        assertThrows(ResourceLimitExceededException.class, () -> factory.withName("renamed").deserialize(bytes));
+    }
+
+    private static DoublesReservoirAggregatorFactory makeLimitedFactory(
+            long maxBytes, DoublesReservoirBudgetPolicy policy) {
+        return new DoublesReservoirAggregatorFactory(
+                "myFactory", "myField", 128, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false,
+                new DoublesReservoirMemoryBudget(maxBytes, policy));
+    }
+
+    private static DoublesReservoirMemoryBudget openBudget(long maxBytes, DoublesReservoirBudgetPolicy policy) {
+        return DoublesReservoirMemoryBudget.open(QueryContext.of(ImmutableMap.of(
+                DoublesReservoirMemoryBudget.CTX_MAX_BYTES_PER_QUERY, maxBytes,
+                DoublesReservoirMemoryBudget.CTX_BUDGET_POLICY, policy.toString())));
+    }
+
+    private static byte[] makeFullReservoirBytes() {
+        final DoublesReservoir full = new DoublesReservoir(128);
+        for (int i = 0; i < 1000; ++i) {
+            full.accept(i);
+        }
+        return full.toBytes();
+    }
+
+    @Test
+    void testBufferAggregatorDecays() {
+        final double[] values = new double[]{1, 2, 3, 4};
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
+        final TestDoubleColumnSelectorImpl times = new TestDoubleColumnSelectorImpl(new double[]{0, 1000, 2000, 3000});
+        final BufferAggregator agg = new DoublesReservoirBufferBuildAggregator(
+                selector, null, times, 16, DoublesReservoirStorage.DOUBLE, 0, 1000, false, null);
+        final int size = DoublesReservoir.getDecayedBufferSize(16, DoublesReservoirStorage.DOUBLE);
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+
+        agg.init(buffer, 0);
+        for (int i = 0; i < values.length; ++i) {
+            agg.aggregate(buffer, 0);
+            selector.increment();
+            times.increment();
+        }
+
+        // Weights of 1, 2, 4 and 8
+        final DoublesReservoir reservoir = (DoublesReservoir) agg.get(buffer, 0);
+        assertEquals(1000, reservoir.getHalfLifeMillis());
+        assertEquals(4, reservoir.getTotalItemsSeen());
+        assertEquals(49.0 / 15, reservoir.getAVG(), 1e-9);
+
+        // The priority sample lives in the slot, so a copy of the slot holds the same reservoir
+        final ByteBuffer other = ByteBuffer.allocate(size);
+        other.put(buffer.duplicate());
+        assertEquals(49.0 / 15, ((DoublesReservoir) agg.get(other, 0)).getAVG(), 1e-9);
+
+        agg.close();
+    }
+
+    @Test
+    void testBufferAggregatorKeepsDecayedReservoirsOffBudget() {
+        final int slotBytes = DoublesReservoir.getDecayedBufferSize(16, DoublesReservoirStorage.DOUBLE);
+        final DoublesReservoirMemoryBudget budget =
+                new DoublesReservoirMemoryBudget(slotBytes, DoublesReservoirBudgetPolicy.FAIL);
+        final BufferAggregator agg = new DoublesReservoirBufferBuildAggregator(
+                new TestDoubleColumnSelectorImpl(new double[]{1}), null,
+                new TestDoubleColumnSelectorImpl(new double[]{0}), 16, DoublesReservoirStorage.DOUBLE, 0, 1000,
+                false, budget);
+        final ByteBuffer buffer = ByteBuffer.allocate(3 * slotBytes);
+
+        // Forward-decay reservoirs are bounded by the buffers, not by the budget
+        agg.init(buffer, 0);
+        agg.init(buffer, slotBytes);
+        agg.init(buffer, 2 * slotBytes);
+        agg.aggregate(buffer, 2 * slotBytes);
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(1, ((DoublesReservoir) agg.get(buffer, 2 * slotBytes)).getTotalItemsSeen());
+
+        agg.close();
+    }
 }
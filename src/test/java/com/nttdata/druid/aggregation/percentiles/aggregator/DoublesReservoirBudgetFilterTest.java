@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirStorage;
+import org.apache.druid.java.util.common.StringUtils;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DoublesReservoirBudgetFilterTest {
+    private static final String JSON_TYPE = "application/json";
+    private static final String SMILE_TYPE = "application/x-jackson-smile";
+
+    @Test
+    void testBudgetOpenedForTheRequest() throws Exception {
+        final byte[] body = StringUtils.toUtf8("{\"queryType\": \"timeseries\", \"context\": "
+                + "{\"drMaxBytesPerQuery\": 1000, \"drBudgetPolicy\": \"downsample\"}}");
+        final AtomicReference<DoublesReservoirMemoryBudget> budget = new AtomicReference<>();
+        final AtomicReference<byte[]> read = new AtomicReference<>();
+
+        new DoublesReservoirBudgetFilter().doFilter(makeRequest("POST", body, JSON_TYPE), makeResponse(null),
+                (request, response) -> {
+                    budget.set(DoublesReservoirMemoryBudget.current());
+                    read.set(ByteStreams.toByteArray(request.getInputStream()));
+
+                    // 128 samples take more than 1000 bytes, so the reservoir is downsampled
+                    assertTrue(budget.get().reserve(128, DoublesReservoirStorage.DOUBLE) < 128);
+                });
+
+        // The query reads the body as sent, and the budget goes away with the response
+        assertNotNull(budget.get());
+        assertArrayEquals(body, read.get());
+        assertNull(DoublesReservoirMemoryBudget.current());
+        assertEquals(0, budget.get().getUsedBytes());
+    }
+
+    @Test
+    void testBudgetOpenedForSmileRequests() throws Exception {
+        final byte[] body = new ObjectMapper(new SmileFactory()).writeValueAsBytes(ImmutableMap.of(
+                "query", "SELECT 1", "context", ImmutableMap.of("drMaxBytesPerQuery", 1000)));
+        final AtomicReference<DoublesReservoirMemoryBudget> budget = new AtomicReference<>();
+
+        new DoublesReservoirBudgetFilter().doFilter(makeRequest("POST", body, SMILE_TYPE), makeResponse(null),
+                (request, response) -> budget.set(DoublesReservoirMemoryBudget.current()));
+
+        assertNotNull(budget.get());
+    }
+
+    @Test
+    void testNoBudgetWithoutLimit() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final byte[] body = StringUtils.toUtf8("{\"queryType\": \"timeseries\", \"context\": {\"priority\": 1}}");
+        final byte[] unreadable = StringUtils.toUtf8("{\"drMaxBytesPerQuery\": ");
+
+        for (byte[] request : new byte[][]{body, unreadable}) {
+            new DoublesReservoirBudgetFilter().doFilter(makeRequest("POST", request, JSON_TYPE), makeResponse(null),
+                    (req, resp) -> {
+                        assertNull(DoublesReservoirMemoryBudget.current());
+                        calls.incrementAndGet();
+                    });
+        }
+        new DoublesReservoirBudgetFilter().doFilter(makeRequest("GET", null, null), makeResponse(null),
+                (req, resp) -> calls.incrementAndGet());
+
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void testInvalidLimitRejected() throws Exception {
+        final AtomicInteger status = new AtomicInteger();
+        final byte[] body = StringUtils.toUtf8("{\"context\": {\"drMaxBytesPerQuery\": -1}}");
+
+        new DoublesReservoirBudgetFilter().doFilter(makeRequest("POST", body, JSON_TYPE), makeResponse(status),
+                (request, response) -> status.set(200));
+
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, status.get());
+    }
+
+    private static HttpServletRequest makeRequest(String method, byte[] body, String contentType) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                DoublesReservoirBudgetFilterTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                (proxy, m, args) -> {
+                    switch (m.getName()) {
+                        case "getMethod":
+                            return method;
+                        case "getContentType":
+                            return contentType;
+                        case "isAsyncStarted":
+                            return false;
+                        case "getInputStream":
+                            return makeInputStream(body);
+                        default:
+                            throw new UnsupportedOperationException(m.getName());
+                    }
+                });
+    }
+
+    private static ServletInputStream makeInputStream(byte[] body) {
+        final ByteArrayInputStream in = new ByteArrayInputStream(body);
+
+        return new ServletInputStream() {
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read() {
+                return in.read();
+            }
+        };
+    }
+
+    private static HttpServletResponse makeResponse(AtomicInteger status) {
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                DoublesReservoirBudgetFilterTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class},
+                (proxy, m, args) -> {
+                    if ("sendError".equals(m.getName())) {
+                        status.set((Integer) args[0]);
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(m.getName());
+                });
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.nttdata.druid.DoublesReservoirModule;
+import com.nttdata.druid.aggregation.percentiles.metrics.DoublesReservoirCounter;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
+import org.apache.druid.java.util.common.HumanReadableBytes;
+import org.apache.druid.java.util.common.StringUtils;
+import org.apache.druid.java.util.common.granularity.Granularities;
+import org.apache.druid.java.util.common.guava.Sequence;
+import org.apache.druid.query.aggregation.AggregationTestHelper;
+import org.apache.druid.query.groupby.GroupByQueryConfig;
+import org.apache.druid.query.groupby.ResultRow;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a groupBy with far more groups than its buffer grouper may hold, so the grouper spills reservoirs to disk
+ * and merges them back.
+ */
+class DoublesReservoirGroupBySpillTest {
+    private static final int GROUPS = 500;
+    private static final int ROWS_PER_GROUP = 10;
+
+    private static final String PARSER = "{"
+            + "\"type\": \"string\","
+            + "\"parseSpec\": {"
+            + "  \"format\": \"csv\","
+            + "  \"timestampSpec\": {\"column\": \"timestamp\", \"format\": \"auto\"},"
+            + "  \"dimensionsSpec\": {\"dimensions\": [\"group\"]},"
+            + "  \"columns\": [\"timestamp\", \"group\", \"value\"]"
+            + "}}";
+
+    private static final String METRICS = "[{\"type\": \"doubleSum\", \"name\": \"value\", \"fieldName\": \"value\"}]";
+
+    private static final String QUERY = "{"
+            + "\"queryType\": \"groupBy\","
+            + "\"dataSource\": \"test_datasource\","
+            + "\"granularity\": \"ALL\","
+            + "\"dimensions\": [\"group\"],"
+            + "\"aggregations\": [{"
+            + "  \"type\": \"doublesReservoir\", \"name\": \"reservoir\", \"fieldName\": \"value\","
+            + "  \"maxReservoirSize\": 100"
+            + "}],"
+            + "\"intervals\": [\"2024-01-01T00:00:00.000Z/2024-01-02T00:00:00.000Z\"],"
+            + "\"context\": {\"bufferGrouperMaxSize\": 16, \"maxOnDiskStorage\": \"1GiB\"}"
+            + "}";
+
+    @Test
+    void testGroupBySpillsReservoirs(@TempDir File tempFolder) throws Exception {
+        DoublesReservoirModule.registerSerde();
+
+        final GroupByQueryConfig config = new GroupByQueryConfig() {
+            @Override
+            public int getBufferGrouperMaxSize() {
+                return 16;
+            }
+
+            @Override
+            public HumanReadableBytes getMaxOnDiskStorage() {
+                return HumanReadableBytes.valueOf(1024L * 1024 * 1024);
+            }
+        };
+
+        final long bytesWritten = DoublesReservoirCounter.BYTES_WRITTEN.sum();
+        final long bytesRead = DoublesReservoirCounter.BYTES_READ.sum();
+        final AggregationTestHelper helper = AggregationTestHelper.createGroupByQueryAggregationTestHelper(
+                new DoublesReservoirModule().getJacksonModules(), config, tempFolder);
+
+        final Sequence<ResultRow> sequence = helper.createIndexAndRunQueryOnSegment(
+                new ByteArrayInputStream(makeRows().getBytes(StandardCharsets.UTF_8)),
+                PARSER,
+                METRICS,
+                0,
+                Granularities.NONE,
+                GROUPS * ROWS_PER_GROUP,
+                QUERY);
+
+        final List<ResultRow> results = sequence.toList();
+        assertEquals(GROUPS, results.size());
+
+        // The segment holds plain doubles and JSON results hold plain samples as objects: only spill files, written
+        // with Smile, hold the binary form, so bytes written and read back show that the grouper did spill
+        assertTrue(DoublesReservoirCounter.BYTES_WRITTEN.sum() > bytesWritten, "no reservoir was spilled");
+        assertTrue(DoublesReservoirCounter.BYTES_READ.sum() > bytesRead, "no spilled reservoir was read back");
+
+        for (ResultRow row : results) {
+            // Granularity ALL: the group comes first, then the reservoir
+            final int group = Integer.parseInt(((String) row.get(0)).substring(1));
+            final DoublesReservoir reservoir = DoublesReservoir.deserialize(row.get(1));
+            final List<Double> expected = new ArrayList<>();
+
+            for (int i = 0; i < ROWS_PER_GROUP; ++i) {
+                expected.add((double) (group * ROWS_PER_GROUP + i));
+            }
+
+            assertEquals(ROWS_PER_GROUP, reservoir.getTotalItemsSeen());
+            assertEquals(expected, reservoir.getSortedValues());
+        }
+    }
+
+    private static String makeRows() {
+        final StringBuilder rows = new StringBuilder();
+
+        // A different timestamp for every value of a group, so rollup keeps each value in its own row
+        for (int i = 0; i < ROWS_PER_GROUP; ++i) {
+            for (int group = 0; group < GROUPS; ++group) {
+                rows.append(StringUtils.format(
+                        "2024-01-01T00:%02d:00.000Z,g%d,%d%n", i, group, group * ROWS_PER_GROUP + i));
+            }
+        }
+
+        return rows.toString();
+    }
+}
@@ -19,6 +19,7 @@
 package com.nttdata.druid.aggregation.percentiles.aggregator;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirStorage;
 import nl.jqno.equalsverifier.EqualsVerifier;
 import org.apache.druid.jackson.DefaultObjectMapper;
 import org.apache.druid.java.util.common.granularity.Granularities;
@@ -67,7 +68,8 @@ class DoublesReservoirToAVGPostAggregatorTest {
     public void emptyReservoir() {
         final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(null);
 
-        try (final Aggregator agg = new DoublesReservoirBuildAggregator(selector, 8)) {
+        try (final Aggregator agg = new DoublesReservoirBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null)) {
             final Map<String, Object> fields = new HashMap<>();
             fields.put("reservoir", agg.get());
 
@@ -86,7 +88,8 @@ class DoublesReservoirToAVGPostAggregatorTest {
         final double[] values = new double[] {1, 2, 3, 4, 5};
         final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
 
-        try (final Aggregator agg = new DoublesReservoirBuildAggregator(selector, 8)) {
+        try (final Aggregator agg = new DoublesReservoirBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null)) {
             for (int i = 0; i < values.length; i++) {
                 agg.aggregate();
                 selector.increment();
@@ -110,7 +113,8 @@ class DoublesReservoirToAVGPostAggregatorTest {
                 .dataSource("dummy")
                 .intervals("2000/3000")
                 .granularity(Granularities.HOUR)
-                .aggregators(new DoublesReservoirAggregatorFactory("reservoir", "col", 8))
+                .aggregators(new DoublesReservoirAggregatorFactory(
+                        "reservoir", "col", 8, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null))
                 .postAggregators(new DoublesReservoirToAVGPostAggregator(
                         "a", new FieldAccessPostAggregator("field", "reservoir")))
                 .build();
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirStorage;
+import nl.jqno.equalsverifier.EqualsVerifier;
+import org.apache.druid.jackson.DefaultObjectMapper;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.java.util.common.granularity.Granularities;
+import org.apache.druid.query.Druids;
+import org.apache.druid.query.aggregation.Aggregator;
+import org.apache.druid.query.aggregation.PostAggregator;
+import org.apache.druid.query.aggregation.TestDoubleColumnSelectorImpl;
+import org.apache.druid.query.aggregation.post.FieldAccessPostAggregator;
+import org.apache.druid.query.timeseries.TimeseriesQuery;
+import org.apache.druid.query.timeseries.TimeseriesQueryQueryToolChest;
+import org.apache.druid.segment.column.ColumnType;
+import org.apache.druid.segment.column.RowSignature;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.nttdata.druid.DoublesReservoirModule.TYPE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DoublesReservoirToCDFPostAggregatorTest {
+    @Test
+    public void testSerde() throws JsonProcessingException {
+        final PostAggregator there = new DoublesReservoirToCDFPostAggregator(
+                "post", new FieldAccessPostAggregator("field1", "reservoir"), new double[]{100, 200});
+        DefaultObjectMapper mapper = new DefaultObjectMapper();
+        DoublesReservoirToCDFPostAggregator andBackAgain =
+                mapper.readValue(mapper.writeValueAsString(there), DoublesReservoirToCDFPostAggregator.class);
+
+        assertEquals(there, andBackAgain);
+        Assertions.assertArrayEquals(there.getCacheKey(), andBackAgain.getCacheKey());
+    }
+
+    @Test
+    public void testToString() {
+        final PostAggregator postAgg = new DoublesReservoirToCDFPostAggregator(
+                "post", new FieldAccessPostAggregator("field1", "reservoir"), new double[]{100, 200});
+
+        assertEquals(
+                "DoublesReservoirToCDFPostAggregator{name='post', field=FieldAccessPostAggregator{name='field1', fieldName='reservoir'}, splitPoints=[100.0, 200.0]}",
+                postAgg.toString());
+    }
+
+    @Test
+    public void testUnorderedSplitPoints() {
+        assertThrows(IAE.class, () -> new DoublesReservoirToCDFPostAggregator(
+                "post", new FieldAccessPostAggregator("field1", "reservoir"), new double[]{200, 100}));
+    }
+
+    @Test
+    public void testEqualsAndHashCode() {
+        EqualsVerifier.forClass(DoublesReservoirToCDFPostAggregator.class)
+                .withNonnullFields("name", "field", "splitPoints")
+                .usingGetClass()
+                .verify();
+    }
+
+    @Test
+    public void emptyReservoir() {
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(null);
+
+        try (final Aggregator agg = new DoublesReservoirBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null)) {
+            final Map<String, Object> fields = new HashMap<>();
+            fields.put("reservoir", agg.get());
+
+            final PostAggregator postAgg = new DoublesReservoirToCDFPostAggregator(
+                    "cdf", new FieldAccessPostAggregator("field", "reservoir"), new double[]{2, 4});
+
+            final double[] cdf = (double[]) postAgg.compute(fields);
+            assertNotNull(cdf);
+            assertEquals(3, cdf.length);
+            assertTrue(Double.isNaN(cdf[0]));
+            assertTrue(Double.isNaN(cdf[1]));
+            assertTrue(Double.isNaN(cdf[2]));
+        }
+    }
+
+    @Test
+    public void normalCase() {
+        final double[] values = new double[]{1, 2, 3, 4, 5};
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
+
+        try (final Aggregator agg = new DoublesReservoirBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null)) {
+            for (int i = 0; i < values.length; i++) {
+                agg.aggregate();
+                selector.increment();
+            }
+
+            final Map<String, Object> fields = new HashMap<>();
+            fields.put("reservoir", agg.get());
+
+            final PostAggregator postAgg = new DoublesReservoirToCDFPostAggregator(
+                    "cdf", new FieldAccessPostAggregator("field", "reservoir"), new double[]{0, 2, 4.5});
+
+            assertArrayEquals(new double[]{0, 0.4, 0.8, 1.0}, (double[]) postAgg.compute(fields), 0);
+        }
+    }
+
+    @Test
+    public void testResultArraySignature() {
+        final TimeseriesQuery query = Druids.newTimeseriesQueryBuilder()
+                .dataSource("dummy")
+                .intervals("2000/3000")
+                .granularity(Granularities.HOUR)
+                .aggregators(new DoublesReservoirAggregatorFactory(
+                        "reservoir", "col", 8, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null))
+                .postAggregators(new DoublesReservoirToCDFPostAggregator(
+                        "a", new FieldAccessPostAggregator("field", "reservoir"), new double[]{100, 200}))
+                .build();
+
+        assertEquals(
+                RowSignature.builder()
+                        .addTimeColumn()
+                        .add("reservoir", TYPE)
+                        .add("a", ColumnType.DOUBLE_ARRAY)
+                        .build(),
+                new TimeseriesQueryQueryToolChest().resultArraySignature(query));
+    }
+}
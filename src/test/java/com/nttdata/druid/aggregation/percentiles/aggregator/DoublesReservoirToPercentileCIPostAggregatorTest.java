@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.aggregator;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogramLayout;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirStorage;
+import nl.jqno.equalsverifier.EqualsVerifier;
+import org.apache.druid.jackson.DefaultObjectMapper;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.java.util.common.granularity.Granularities;
+import org.apache.druid.query.Druids;
+import org.apache.druid.query.aggregation.Aggregator;
+import org.apache.druid.query.aggregation.PostAggregator;
+import org.apache.druid.query.aggregation.TestDoubleColumnSelectorImpl;
+import org.apache.druid.query.aggregation.post.FieldAccessPostAggregator;
+import org.apache.druid.query.timeseries.TimeseriesQuery;
+import org.apache.druid.query.timeseries.TimeseriesQueryQueryToolChest;
+import org.apache.druid.segment.column.ColumnType;
+import org.apache.druid.segment.column.RowSignature;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.nttdata.druid.DoublesReservoirModule.TYPE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DoublesReservoirToPercentileCIPostAggregatorTest {
+    @Test
+    void testSerde() throws JsonProcessingException {
+        final PostAggregator there = new DoublesReservoirToPercentileCIPostAggregator(
+                "post", new FieldAccessPostAggregator("field1", "reservoir"), 0.5, null);
+        DefaultObjectMapper mapper = new DefaultObjectMapper();
+        DoublesReservoirToPercentileCIPostAggregator andBackAgain =
+                mapper.readValue(mapper.writeValueAsString(there), DoublesReservoirToPercentileCIPostAggregator.class);
+
+        assertEquals(there, andBackAgain);
+        Assertions.assertArrayEquals(there.getCacheKey(), andBackAgain.getCacheKey());
+    }
+
+    @Test
+    void testToString() {
+        final PostAggregator postAgg = new DoublesReservoirToPercentileCIPostAggregator(
+                "post", new FieldAccessPostAggregator("field1", "reservoir"), 0.5, null);
+
+        assertEquals(
+                "DoublesReservoirToPercentileCIPostAggregator{name='post', field=FieldAccessPostAggregator{name='field1', fieldName='reservoir'}, fraction=0.5, confidence=0.95}",
+                postAgg.toString());
+    }
+
+    @Test
+    void testSerdeWithConfidence() throws JsonProcessingException {
+        final PostAggregator there = new DoublesReservoirToPercentileCIPostAggregator(
+                "post", new FieldAccessPostAggregator("field1", "reservoir"), 0.99, 0.9);
+        DefaultObjectMapper mapper = new DefaultObjectMapper();
+        DoublesReservoirToPercentileCIPostAggregator andBackAgain =
+                mapper.readValue(mapper.writeValueAsString(there), DoublesReservoirToPercentileCIPostAggregator.class);
+
+        assertEquals(there, andBackAgain);
+        Assertions.assertArrayEquals(there.getCacheKey(), andBackAgain.getCacheKey());
+        assertThrows(IAE.class, () -> new DoublesReservoirToPercentileCIPostAggregator(
+                "post", new FieldAccessPostAggregator("field1", "reservoir"), 0.99, 1.0));
+    }
+
+    @Test
+    public void emptyReservoir() {
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(null);
+
+        try (final Aggregator agg = new DoublesReservoirBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null)) {
+            final Map<String, Object> fields = new HashMap<>();
+            fields.put("reservoir", agg.get());
+
+            final PostAggregator postAgg = new DoublesReservoirToPercentileCIPostAggregator(
+                    "interval", new FieldAccessPostAggregator("field", "reservoir"), 0.5, null);
+
+            final double[] interval = (double[]) postAgg.compute(fields);
+            assertNotNull(interval);
+            assertEquals(3, interval.length);
+            assertTrue(Double.isNaN(interval[0]) && Double.isNaN(interval[1]) && Double.isNaN(interval[2]));
+        }
+    }
+
+    @Test
+    public void normalCase() {
+        final double[] values = new double[]{1, 2, 3, 4, 5};
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
+
+        try (final Aggregator agg = new DoublesReservoirBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null)) {
+            for (int i = 0; i < values.length; i++) {
+                agg.aggregate();
+                selector.increment();
+            }
+
+            final Map<String, Object> fields = new HashMap<>();
+            fields.put("reservoir", agg.get());
+
+            final PostAggregator postAgg = new DoublesReservoirToPercentileCIPostAggregator(
+                    "interval", new FieldAccessPostAggregator("field", "reservoir"), 0.5, 0.9);
+
+            // All the items fit in the reservoir, so the percentile is exact
+            assertArrayEquals(new double[]{3, 3, 3}, (double[]) postAgg.compute(fields), 0);
+        }
+    }
+
+    @Test
+    public void histogram() {
+        final double[] values = new double[]{1, 2, 3, 4, 5};
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
+
+        try (Aggregator agg = new DoublesLogHistogramBuildAggregator(selector, DoublesLogHistogramLayout.DEFAULT)) {
+            for (int i = 0; i < values.length; i++) {
+                agg.aggregate();
+                selector.increment();
+            }
+
+            final Map<String, Object> fields = new HashMap<>();
+            fields.put("histogram", agg.get());
+
+            final PostAggregator postAgg = new DoublesReservoirToPercentileCIPostAggregator(
+                    "interval", new FieldAccessPostAggregator("field", "histogram"), 0.5, null);
+
+            final double[] interval = (double[]) postAgg.compute(fields);
+            assertNotNull(interval);
+            assertEquals(3.0, interval[1], 3.0 / 256);
+            assertTrue(interval[0] <= 3.0 && 3.0 <= interval[2]);
+        }
+    }
+
+    @Test
+    public void testResultArraySignature() {
+        final TimeseriesQuery query = Druids.newTimeseriesQueryBuilder()
+                .dataSource("dummy")
+                .intervals("2000/3000")
+                .granularity(Granularities.HOUR)
+                .aggregators(new DoublesReservoirAggregatorFactory(
+                        "reservoir", "col", 8, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null))
+                .postAggregators(new DoublesReservoirToPercentileCIPostAggregator(
+                        "a", new FieldAccessPostAggregator("field", "reservoir"), 1.0, null))
+                .build();
+
+        assertEquals(
+                RowSignature.builder()
+                        .addTimeColumn()
+                        .add("reservoir", TYPE)
+                        .add("a", ColumnType.DOUBLE_ARRAY)
+                        .build(),
+                new TimeseriesQueryQueryToolChest().resultArraySignature(query));
+    }
+
+    @Test
+    void testEqualsAndHashCode() {
+        EqualsVerifier.forClass(DoublesReservoirToPercentileCIPostAggregator.class)
+                .withNonnullFields("name", "field", "fraction", "confidence")
+                .usingGetClass()
+                .verify();
+    }
+}
@@ -19,6 +19,8 @@
 package com.nttdata.druid.aggregation.percentiles.aggregator;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.nttdata.druid.aggregation.percentiles.histogram.DoublesLogHistogramLayout;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirStorage;
 import nl.jqno.equalsverifier.EqualsVerifier;
 import org.apache.druid.jackson.DefaultObjectMapper;
 import org.apache.druid.java.util.common.granularity.Granularities;
@@ -67,7 +69,8 @@ class DoublesReservoirToPercentilePostAggregatorTest {
     public void emptyReservoir() {
         final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(null);
 
-        try (final Aggregator agg = new DoublesReservoirBuildAggregator(selector, 8)) {
+        try (final Aggregator agg = new DoublesReservoirBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null)) {
             final Map<String, Object> fields = new HashMap<>();
             fields.put("reservoir", agg.get());
 
@@ -86,7 +89,8 @@ class DoublesReservoirToPercentilePostAggregatorTest {
         final double[] values = new double[]{1, 2, 3, 4, 5};
         final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
 
-        try (final Aggregator agg = new DoublesReservoirBuildAggregator(selector, 8)) {
+        try (final Aggregator agg = new DoublesReservoirBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null)) {
             for (int i = 0; i < values.length; i++) {
                 agg.aggregate();
                 selector.increment();
@@ -104,13 +108,37 @@ class DoublesReservoirToPercentilePostAggregatorTest {
         }
     }
 
+    @Test
+    public void histogram() {
+        final double[] values = new double[]{1, 2, 3, 4, 5};
+        final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
+
+        try (Aggregator agg = new DoublesLogHistogramBuildAggregator(selector, DoublesLogHistogramLayout.DEFAULT)) {
+            for (int i = 0; i < values.length; i++) {
+                agg.aggregate();
+                selector.increment();
+            }
+
+            final Map<String, Object> fields = new HashMap<>();
+            fields.put("histogram", agg.get());
+
+            final PostAggregator postAgg = new DoublesReservoirToPercentilePostAggregator(
+                    "percentile", new FieldAccessPostAggregator("field", "histogram"), 0.5);
+
+            final Double percentile = (Double) postAgg.compute(fields);
+            assertNotNull(percentile);
+            assertEquals(3.0, percentile, 3.0 / 256);
+        }
+    }
+
     @Test
     public void testResultArraySignature() {
         final TimeseriesQuery query = Druids.newTimeseriesQueryBuilder()
                 .dataSource("dummy")
                 .intervals("2000/3000")
                 .granularity(Granularities.HOUR)
-                .aggregators(new DoublesReservoirAggregatorFactory("reservoir", "col", 8))
+                .aggregators(new DoublesReservoirAggregatorFactory(
+                        "reservoir", "col", 8, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null))
                 .postAggregators(new DoublesReservoirToPercentilePostAggregator(
                         "a", new FieldAccessPostAggregator("field", "reservoir"), 1.0))
                 .build();
@@ -19,9 +19,9 @@
 package com.nttdata.druid.aggregation.percentiles.aggregator;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoirStorage;
 import nl.jqno.equalsverifier.EqualsVerifier;
 import org.apache.druid.jackson.DefaultObjectMapper;
-import org.apache.druid.java.util.common.IAE;
 import org.apache.druid.java.util.common.granularity.Granularities;
 import org.apache.druid.query.Druids;
 import org.apache.druid.query.aggregation.Aggregator;
@@ -35,6 +35,7 @@ import org.apache.druid.segment.column.RowSignature;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -66,12 +67,16 @@ class DoublesReservoirToPercentilesPostAggregatorTest {
 
     @Test
     public void testComparator() {
-        IAE exception = Assertions.assertThrows(IAE.class, () -> {
-            final PostAggregator postAgg = new DoublesReservoirToPercentilesPostAggregator(
-                    "post", new FieldAccessPostAggregator("field1", "reservoir"), new double[]{0, 0.5, 1});
-            postAgg.getComparator();
-        });
-        Assertions.assertEquals("Comparing arrays of percentiles is not supported", exception.getMessage());
+        final PostAggregator postAgg = new DoublesReservoirToPercentilesPostAggregator(
+                "post", new FieldAccessPostAggregator("field1", "reservoir"), new double[]{0, 0.5, 1});
+        @SuppressWarnings("unchecked")
+        final Comparator<double[]> comparator = postAgg.getComparator();
+
+        assertEquals(0, comparator.compare(new double[]{1, 2, 3}, new double[]{1, 2, 3}));
+        assertTrue(comparator.compare(new double[]{1, 2, 3}, new double[]{1, 3, 3}) < 0);
+        assertTrue(comparator.compare(new double[]{2, 2, 3}, new double[]{1, 3, 3}) > 0);
+        assertTrue(comparator.compare(new double[]{1, 2}, new double[]{1, 2, 3}) < 0);
+        assertTrue(comparator.compare(null, new double[]{1, 2, 3}) < 0);
     }
 
     @Test
@@ -86,7 +91,8 @@ class DoublesReservoirToPercentilesPostAggregatorTest {
     public void emptyReservoir() {
         final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(null);
 
-        try (final Aggregator agg = new DoublesReservoirBuildAggregator(selector, 8)) {
+        try (final Aggregator agg = new DoublesReservoirBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null)) {
             final Map<String, Object> fields = new HashMap<>();
             fields.put("reservoir", agg.get());
 
@@ -107,7 +113,8 @@ class DoublesReservoirToPercentilesPostAggregatorTest {
         final double[] values = new double[]{1, 2, 3, 4, 5};
         final TestDoubleColumnSelectorImpl selector = new TestDoubleColumnSelectorImpl(values);
 
-        try (final Aggregator agg = new DoublesReservoirBuildAggregator(selector, 8)) {
+        try (final Aggregator agg = new DoublesReservoirBuildAggregator(
+                selector, null, null, 8, DoublesReservoirStorage.DOUBLE, 0, 0, false, null)) {
             for (int i = 0; i < values.length; i++) {
                 agg.aggregate();
                 selector.increment();
@@ -134,7 +141,8 @@ class DoublesReservoirToPercentilesPostAggregatorTest {
                 .dataSource("dummy")
                 .intervals("2000/3000")
                 .granularity(Granularities.HOUR)
-                .aggregators(new DoublesReservoirAggregatorFactory("reservoir", "col", 8))
+                .aggregators(new DoublesReservoirAggregatorFactory(
+                        "reservoir", "col", 8, null, DoublesReservoirStorage.DOUBLE, 0, null, 0, false, null))
                 .postAggregators(new DoublesReservoirToPercentilesPostAggregator(
                         "a", new FieldAccessPostAggregator("field", "reservoir"), new double[]{0, 0.5, 1}))
                 .build();
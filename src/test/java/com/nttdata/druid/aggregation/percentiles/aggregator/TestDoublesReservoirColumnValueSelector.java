@@ -25,6 +25,21 @@ import org.apache.druid.segment.ColumnValueSelector;
 import javax.annotation.Nullable;
 
 class TestDoublesReservoirColumnValueSelector implements ColumnValueSelector<DoublesReservoir> {
+    @Nullable
+    private DoublesReservoir reservoir;
+
+    TestDoublesReservoirColumnValueSelector() {
+        this(DoublesReservoir.EMPTY);
+    }
+
+    TestDoublesReservoirColumnValueSelector(@Nullable DoublesReservoir reservoir) {
+        this.reservoir = reservoir;
+    }
+
+    void setReservoir(@Nullable DoublesReservoir reservoir) {
+        this.reservoir = reservoir;
+    }
+
     @Override
     public double getDouble() {
         return 99;
@@ -48,7 +63,7 @@ class TestDoublesReservoirColumnValueSelector implements ColumnValueSelector<Dou
     @Nullable
     @Override
     public DoublesReservoir getObject() {
-        return DoublesReservoir.EMPTY;
+        return reservoir;
     }
 
     @Override
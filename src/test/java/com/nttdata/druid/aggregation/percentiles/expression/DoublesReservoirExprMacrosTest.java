@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.expression;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
+import org.apache.druid.math.expr.Expr;
+import org.apache.druid.math.expr.ExprEval;
+import org.apache.druid.math.expr.ExprMacroTable;
+import org.apache.druid.math.expr.ExpressionType;
+import org.apache.druid.math.expr.InputBindings;
+import org.apache.druid.math.expr.Parser;
+import org.apache.druid.math.expr.vector.ExprEvalVector;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+
+import static com.nttdata.druid.DoublesReservoirModule.TYPE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DoublesReservoirExprMacrosTest {
+    private static final ExprMacroTable MACRO_TABLE = new ExprMacroTable(ImmutableList.of(
+            new DoublesReservoirExprMacros.PercentileExprMacro(),
+            new DoublesReservoirExprMacros.PercentilesExprMacro(),
+            new DoublesReservoirExprMacros.PercentileCIExprMacro(),
+            new DoublesReservoirExprMacros.StddevExprMacro(),
+            new DoublesReservoirExprMacros.AVGExprMacro(),
+            new DoublesReservoirExprMacros.MINExprMacro(),
+            new DoublesReservoirExprMacros.MAXExprMacro(),
+            new DoublesReservoirExprMacros.RankExprMacro(),
+            new DoublesReservoirExprMacros.CDFExprMacro(),
+            new DoublesReservoirExprMacros.HistogramExprMacro(),
+            new DoublesReservoirExprMacros.HistogramBinsExprMacro(),
+            new DoublesReservoirExprMacros.TrimmedMeanExprMacro(),
+            new DoublesReservoirExprMacros.IQRExprMacro(),
+            new DoublesReservoirExprMacros.MADExprMacro()));
+
+    private static final Expr.ObjectBinding BINDINGS = InputBindings.forMap(ImmutableMap.of(
+            "reservoir", new DoublesReservoir(8, ImmutableList.of(5.0, 1.0, 4.0, 2.0, 3.0))));
+
+    @Test
+    void testPercentile() {
+        assertEquals(3.0, eval("dr_percentile(reservoir, 0.5)").asDouble(), 0);
+        assertEquals(5.0, eval("dr_percentile(reservoir, 1)").asDouble(), 0);
+    }
+
+    @Test
+    void testPercentiles() {
+        final Object[] percentiles = eval("dr_percentiles(reservoir, 0, 0.5, 1)").asArray();
+        assertArrayEquals(new Object[]{1.0, 3.0, 5.0}, percentiles);
+    }
+
+    @Test
+    void testPercentileConfidenceInterval() {
+        // The reservoir holds all the items it has seen, so the percentile is exact
+        assertArrayEquals(new Object[]{3.0, 3.0, 3.0}, eval("dr_percentile_ci(reservoir, 0.5)").asArray());
+        assertArrayEquals(new Object[]{3.0, 3.0, 3.0}, eval("dr_percentile_ci(reservoir, 0.5, 0.99)").asArray());
+        assertThrows(RuntimeException.class, () -> Parser.parse("dr_percentile_ci(reservoir, 0.5, 2)", MACRO_TABLE));
+    }
+
+    @Test
+    void testStatistics() {
+        assertEquals(Math.sqrt(2.5), eval("dr_stddev(reservoir)").asDouble(), 0);
+        assertEquals(3.0, eval("dr_avg(reservoir)").asDouble(), 0);
+        assertEquals(1.0, eval("dr_min(reservoir)").asDouble(), 0);
+        assertEquals(5.0, eval("dr_max(reservoir)").asDouble(), 0);
+    }
+
+    @Test
+    void testRankAndCDF() {
+        assertEquals(0.6, eval("dr_rank(reservoir, 3)").asDouble(), 0);
+        assertEquals(0.0, eval("dr_rank(reservoir, 0.5)").asDouble(), 0);
+        assertArrayEquals(new Object[]{0.4, 0.8, 1.0}, eval("dr_cdf(reservoir, 2, 4.5)").asArray());
+    }
+
+    @Test
+    void testUnorderedSplitPoints() {
+        assertThrows(RuntimeException.class, () -> Parser.parse("dr_cdf(reservoir, 2, 2)", MACRO_TABLE));
+        assertThrows(RuntimeException.class, () -> Parser.parse("dr_histogram(reservoir, 3, 1)", MACRO_TABLE));
+    }
+
+    @Test
+    void testHistogram() {
+        assertArrayEquals(new Object[]{2.0, 2.0, 1.0}, eval("dr_histogram(reservoir, 2, 4)").asArray());
+        assertArrayEquals(new Object[]{2.0, 1.0, 1.0, 1.0}, eval("dr_histogram_bins(reservoir, 4)").asArray());
+        assertThrows(RuntimeException.class, () -> Parser.parse("dr_histogram_bins(reservoir, 0)", MACRO_TABLE));
+    }
+
+    @Test
+    void testRobustStatistics() {
+        assertEquals(3.0, eval("dr_trimmed_mean(reservoir, 0.2, 0.8)").asDouble(), 0);
+        assertEquals(2.0, eval("dr_iqr(reservoir)").asDouble(), 0);
+        assertEquals(1.0, eval("dr_mad(reservoir)").asDouble(), 0);
+        assertThrows(RuntimeException.class, () -> Parser.parse("dr_trimmed_mean(reservoir, 0.8, 0.2)", MACRO_TABLE));
+    }
+
+    @Test
+    void testNullReservoir() {
+        final Expr.ObjectBinding nullBindings = InputBindings.forMap(Collections.emptyMap());
+        final ExprEval<?> eval = Parser.parse("dr_percentile(reservoir, 0.5)", MACRO_TABLE).eval(nullBindings);
+        assertNull(eval.value());
+    }
+
+    @Test
+    void testNonLiteralFraction() {
+        assertThrows(RuntimeException.class, () -> Parser.parse("dr_percentile(reservoir, reservoir)", MACRO_TABLE));
+    }
+
+    @Test
+    void testFractionOutOfRange() {
+        assertThrows(RuntimeException.class, () -> Parser.parse("dr_percentile(reservoir, 1.5)", MACRO_TABLE));
+        assertThrows(RuntimeException.class, () -> Parser.parse("dr_percentiles(reservoir, 0.5, -1)", MACRO_TABLE));
+        assertThrows(RuntimeException.class, () -> Parser.parse("dr_percentile_ci(reservoir, 2, 0.95)", MACRO_TABLE));
+    }
+
+    @Test
+    void testVectorized() {
+        final Expr expr = Parser.parse("dr_percentile(reservoir, 0.5)", MACRO_TABLE);
+        final ReservoirVectorBinding bindings = new ReservoirVectorBinding(
+                new DoublesReservoir(8, ImmutableList.of(5.0, 1.0, 4.0, 2.0, 3.0)),
+                null,
+                new DoublesReservoir(8, ImmutableList.of(10.0)).toBytes());
+
+        assertTrue(expr.canVectorize(bindings));
+
+        final ExprEvalVector<?> result = expr.asVectorProcessor(bindings).evalVector(bindings);
+        assertArrayEquals(new double[]{3.0, 0, 10.0}, result.getDoubleVector(), 0);
+        assertArrayEquals(new boolean[]{false, true, false}, result.getNullVector());
+    }
+
+    private static ExprEval<?> eval(String expression) {
+        return Parser.parse(expression, MACRO_TABLE).eval(BINDINGS);
+    }
+
+    /**
+     * A single vector of the "reservoir" column, as a vectorized query on a pre-aggregated column would read it.
+     */
+    private static class ReservoirVectorBinding implements Expr.VectorInputBinding {
+        private final Object[] reservoirs;
+
+        ReservoirVectorBinding(Object... reservoirs) {
+            this.reservoirs = reservoirs;
+        }
+
+        @Nullable
+        @Override
+        public ExpressionType getType(String name) {
+            return "reservoir".equals(name) ? ExpressionType.fromColumnType(TYPE) : null;
+        }
+
+        @Override
+        public int getMaxVectorSize() {
+            return reservoirs.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T[] getObjectVector(String name) {
+            return (T[]) reservoirs;
+        }
+
+        @Override
+        public long[] getLongVector(String name) {
+            throw new UnsupportedOperationException("Not implemented");
+        }
+
+        @Override
+        public double[] getDoubleVector(String name) {
+            throw new UnsupportedOperationException("Not implemented");
+        }
+
+        @Nullable
+        @Override
+        public boolean[] getNullVector(String name) {
+            return null;
+        }
+
+        @Override
+        public int getCurrentVectorSize() {
+            return reservoirs.length;
+        }
+
+        @Override
+        public int getCurrentVectorId() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.histogram;
+
+import com.nttdata.druid.aggregation.percentiles.DoublesDistribution;
+import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.java.util.common.ISE;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DoublesLogHistogramTest {
+    private static final double[] FRACTIONS = new double[]{0.01, 0.25, 0.5, 0.9, 0.99, 0.999};
+
+    @Test
+    public void testLayout() {
+        final DoublesLogHistogramLayout layout = DoublesLogHistogramLayout.DEFAULT;
+
+        assertSame(DoublesLogHistogramLayout.DEFAULT, DoublesLogHistogramLayout.of(null, null, null));
+        assertEquals(0, layout.indexOf(0.0));
+        assertEquals(0, layout.indexOf(-3.0));
+        assertEquals(layout.getNumBuckets() - 1, layout.indexOf(1e13));
+        assertEquals(layout.getNumBuckets() - 1, layout.indexOf(Double.POSITIVE_INFINITY));
+        assertTrue(Double.isNaN(layout.valueAt(0)));
+
+        // 128 sub-buckets per power of two, each reported at its middle
+        for (double value = 0.001; value < 1e12; value *= 1.37) {
+            final double bucketValue = layout.valueAt(layout.indexOf(value));
+            assertEquals(value, bucketValue, value / 256);
+        }
+
+        assertThrows(IAE.class, () -> new DoublesLogHistogramLayout(0, 1, 10));
+        assertThrows(IAE.class, () -> new DoublesLogHistogramLayout(4, 1, 10));
+        assertThrows(IAE.class, () -> new DoublesLogHistogramLayout(2, 0, 10));
+        assertThrows(IAE.class, () -> new DoublesLogHistogramLayout(2, 10, 10));
+        assertThrows(IAE.class, () -> new DoublesLogHistogramLayout(3, 1e-300, 1e300));
+    }
+
+    @Test
+    public void testPercentilesHaveBoundedRelativeError() {
+        final Random random = new Random(42);
+        final double[] values = new double[100_000];
+        final DoublesLogHistogram histogram = new DoublesLogHistogram(DoublesLogHistogramLayout.DEFAULT);
+
+        for (int i = 0; i < values.length; ++i) {
+            // Long-tailed, like latencies
+            values[i] = Math.exp(random.nextGaussian() * 2 + 3);
+            histogram.accept(values[i]);
+        }
+
+        Arrays.sort(values);
+
+        for (double fraction : FRACTIONS) {
+            final double exact = values[(int) Math.ceil(fraction * values.length) - 1];
+            assertEquals(exact, histogram.getPercentile(fraction), exact / 256, "p" + fraction);
+        }
+
+        assertEquals(values[0], histogram.getPercentile(0.0));
+        assertEquals(values[values.length - 1], histogram.getPercentile(1.0));
+        assertEquals(values.length, histogram.getTotalItemsSeen());
+        assertEquals(values[0], histogram.getMin());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(Arrays.stream(values).average().getAsDouble(), histogram.getAVG(), 1e-9);
+        assertThrows(IAE.class, () -> histogram.getPercentile(1.5));
+    }
+
+    @Test
+    public void testRankHasBoundedRelativeError() {
+        final Random random = new Random(42);
+        final double[] values = new double[100_000];
+        final DoublesLogHistogram histogram = new DoublesLogHistogram(DoublesLogHistogramLayout.DEFAULT);
+
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = Math.exp(random.nextGaussian() * 2 + 3);
+            histogram.accept(values[i]);
+        }
+
+        Arrays.sort(values);
+
+        for (double fraction : FRACTIONS) {
+            final double value = values[(int) Math.ceil(fraction * values.length) - 1];
+            // Ranks are off by the items of one bucket at most, so they bracket the ranks of the bucket edges
+            assertTrue(histogram.getRank(value * (1 - 1.0 / 128)) <= fraction, "p" + fraction);
+            assertTrue(histogram.getRank(value * (1 + 1.0 / 128)) >= fraction, "p" + fraction);
+        }
+
+        assertEquals(0.0, histogram.getRank(values[0] / 2));
+        assertEquals(1.0, histogram.getRank(values[values.length - 1]));
+        assertArrayEquals(
+                new double[]{histogram.getRank(10), histogram.getRank(100), 1.0},
+                histogram.getCDF(new double[]{10, 100}));
+    }
+
+    @Test
+    public void testRobustStatistics() {
+        final Random random = new Random(42);
+        final double[] values = new double[100_000];
+        final DoublesLogHistogram histogram = new DoublesLogHistogram(DoublesLogHistogramLayout.DEFAULT);
+
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = Math.exp(random.nextGaussian() * 2 + 3);
+            histogram.accept(values[i]);
+        }
+
+        Arrays.sort(values);
+
+        final double trimmedMean = Arrays.stream(values, 5_000, 95_000).average().getAsDouble();
+        assertEquals(trimmedMean, histogram.getTrimmedMean(0.05, 0.95), trimmedMean / 256);
+
+        final double median = (values[49_999] + values[50_000]) / 2;
+        final double[] deviations = Arrays.stream(values).map(value -> Math.abs(value - median)).sorted().toArray();
+        final double mad = (deviations[49_999] + deviations[50_000]) / 2;
+        // The deviations are off by the relative error of the values, which is larger than that of the deviations
+        assertEquals(mad, histogram.getMedianAbsoluteDeviation(), median / 128);
+        assertEquals(values[74_999] - values[24_999], histogram.getIQR(), values[74_999] / 128);
+    }
+
+    @Test
+    public void testPercentileConfidenceInterval() {
+        final DoublesLogHistogram histogram = new DoublesLogHistogram(DoublesLogHistogramLayout.DEFAULT);
+
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.accept(i);
+        }
+
+        for (double fraction : FRACTIONS) {
+            final double exact = Math.ceil(fraction * 1000);
+            final double[] interval = histogram.getPercentileConfidenceInterval(fraction, 0.95);
+
+            assertEquals(histogram.getPercentile(fraction), interval[1]);
+            assertTrue(interval[0] <= exact && exact <= interval[2], "p" + fraction);
+            assertTrue(interval[2] - interval[0] <= exact / 64, "p" + fraction);
+        }
+
+        assertThrows(IAE.class, () -> histogram.getPercentileConfidenceInterval(0.5, 0));
+    }
+
+    @Test
+    public void testEmptyHistogram() {
+        final DoublesLogHistogram histogram = new DoublesLogHistogram(DoublesLogHistogramLayout.DEFAULT);
+
+        histogram.accept(Double.NaN);
+        assertEquals(0, histogram.getTotalItemsSeen());
+        assertTrue(Double.isNaN(histogram.getMedian()));
+        assertTrue(Double.isNaN(histogram.getMin()));
+        assertTrue(Double.isNaN(histogram.getStddev()));
+    }
+
+    @Test
+    public void testValuesOutsideTheTrackedRange() {
+        final DoublesLogHistogram histogram = new DoublesLogHistogram(new DoublesLogHistogramLayout(2, 1, 1000));
+
+        histogram.accept(-5.0);
+        histogram.accept(0.0);
+        histogram.accept(10.0);
+        histogram.accept(1e6);
+
+        assertEquals(-5.0, histogram.getPercentile(0.25));
+        assertEquals(-5.0, histogram.getPercentile(0.5));
+        assertEquals(10.0, histogram.getPercentile(0.75), 10.0 / 256);
+        assertEquals(1e6, histogram.getPercentile(1.0));
+        assertEquals((1e6 + 5) / 4, histogram.getAVG(), 1e-9);
+    }
+
+    @Test
+    public void testMergeAddsCounters() {
+        final DoublesLogHistogram all = new DoublesLogHistogram(DoublesLogHistogramLayout.DEFAULT);
+        final DoublesLogHistogram lhs = new DoublesLogHistogram(DoublesLogHistogramLayout.DEFAULT);
+        final DoublesLogHistogram rhs = new DoublesLogHistogram(DoublesLogHistogramLayout.DEFAULT);
+
+        for (int i = 1; i <= 1000; ++i) {
+            all.accept(i);
+            (i % 3 == 0 ? lhs : rhs).accept(i);
+        }
+
+        lhs.mergeWith(rhs);
+
+        assertArrayEquals(all.getPercentile(FRACTIONS), lhs.getPercentile(FRACTIONS));
+        assertEquals(all.getTotalItemsSeen(), lhs.getTotalItemsSeen());
+        assertEquals(all.getAVG(), lhs.getAVG(), 1e-9);
+        assertEquals(all.getStddev(), lhs.getStddev(), 1e-9);
+        assertEquals(1.0, lhs.getMin());
+        assertEquals(1000.0, lhs.getMax());
+    }
+
+    @Test
+    public void testMergeWithAnotherLayout() {
+        final DoublesLogHistogram fine = new DoublesLogHistogram(new DoublesLogHistogramLayout(3, 1, 1e6));
+        final DoublesLogHistogram coarse = new DoublesLogHistogram(DoublesLogHistogramLayout.DEFAULT);
+
+        for (int i = 1; i <= 1000; ++i) {
+            fine.accept(i);
+        }
+
+        coarse.mergeWith(fine);
+
+        assertEquals(1000, coarse.getTotalItemsSeen());
+        assertEquals(500.0, coarse.getMedian(), 500.0 / 128);
+        assertEquals(fine.getAVG(), coarse.getAVG(), 1e-9);
+    }
+
+    @Test
+    public void testToBytesRoundTrip() {
+        final DoublesLogHistogram histogram = new DoublesLogHistogram(new DoublesLogHistogramLayout(1, 0.5, 1e4));
+
+        for (int i = 0; i < 100; ++i) {
+            histogram.accept(i * 7.5);
+        }
+
+        final byte[] bytes = histogram.toBytes();
+        final DoublesLogHistogram copy = DoublesLogHistogram.fromBytes(ByteBuffer.wrap(bytes));
+
+        assertTrue(DoublesLogHistogram.isSerialized(bytes));
+        assertEquals(histogram.getLayout(), copy.getLayout());
+        assertArrayEquals(histogram.getPercentile(FRACTIONS), copy.getPercentile(FRACTIONS));
+        assertEquals(histogram.getStddev(), copy.getStddev());
+        assertArrayEquals(bytes, copy.toBytes());
+
+        final DoublesDistribution fromBase64 =
+                DoublesDistribution.deserialize(Base64.getEncoder().encodeToString(bytes));
+        assertTrue(fromBase64 instanceof DoublesLogHistogram);
+        assertEquals(histogram.getMedian(), fromBase64.getPercentile(0.5));
+    }
+
+    @Test
+    public void testBufferMatchesHeap() {
+        final DoublesLogHistogramLayout layout = new DoublesLogHistogramLayout(2, 1, 1e4);
+        final DoublesLogHistogram histogram = new DoublesLogHistogram(layout);
+        final ByteBuffer buffer = ByteBuffer.allocate(5 + DoublesLogHistogram.getBufferSize(layout));
+
+        DoublesLogHistogram.initBuffer(buffer, 5, layout);
+
+        for (int i = 0; i < 500; ++i) {
+            histogram.accept(i * 1.5);
+            DoublesLogHistogram.acceptInBuffer(buffer, 5, layout, i * 1.5);
+        }
+
+        DoublesLogHistogram fromBuffer = DoublesLogHistogram.fromBuffer(buffer, 5, layout);
+        assertArrayEquals(histogram.getPercentile(FRACTIONS), fromBuffer.getPercentile(FRACTIONS));
+        assertEquals(histogram.getAVG(), fromBuffer.getAVG(), 1e-9);
+        assertEquals(histogram.getStddev(), fromBuffer.getStddev(), 1e-9);
+
+        DoublesLogHistogram.mergeInBuffer(buffer, 5, layout, histogram);
+        histogram.mergeWith(histogram.copy());
+        fromBuffer = DoublesLogHistogram.fromBuffer(buffer, 5, layout);
+
+        assertEquals(1000, fromBuffer.getTotalItemsSeen());
+        assertArrayEquals(histogram.getPercentile(FRACTIONS), fromBuffer.getPercentile(FRACTIONS));
+        assertEquals(histogram.getStddev(), fromBuffer.getStddev(), 1e-9);
+    }
+
+    @Test
+    public void testFrozenHistogramCannotBeModified() {
+        final DoublesLogHistogram histogram = new DoublesLogHistogram(DoublesLogHistogramLayout.DEFAULT);
+        histogram.accept(1.0);
+        histogram.freeze();
+
+        assertThrows(ISE.class, () -> histogram.accept(2.0));
+        assertThrows(ISE.class, () -> histogram.mergeWith(histogram));
+
+        final DoublesLogHistogram copy = histogram.copy();
+        copy.accept(2.0);
+        assertEquals(1, histogram.getTotalItemsSeen());
+        assertEquals(2, copy.getTotalItemsSeen());
+    }
+}
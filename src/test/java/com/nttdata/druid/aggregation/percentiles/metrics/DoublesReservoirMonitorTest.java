@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.metrics;
+
+import com.nttdata.druid.aggregation.percentiles.reservoir.DoublesReservoir;
+import org.apache.druid.java.util.emitter.core.Event;
+import org.apache.druid.java.util.emitter.service.ServiceMetricEvent;
+import org.apache.druid.java.util.metrics.StubServiceEmitter;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DoublesReservoirMonitorTest {
+    @Test
+    void testEmitsCountersSinceLastEmission() {
+        final DoublesReservoirMonitor monitor = new DoublesReservoirMonitor();
+        monitor.doMonitor(new StubServiceEmitter("service", "host"));
+
+        final DoublesReservoir reservoir = new DoublesReservoir(100);
+        final DoublesReservoir other = new DoublesReservoir(100);
+        for (int i = 0; i < 1000; ++i) {
+            reservoir.accept(i);
+            other.accept(-i);
+        }
+        reservoir.mergeWith(other);
+        final byte[] bytes = reservoir.toBytes();
+        DoublesReservoir.fromBytes(ByteBuffer.wrap(bytes)).getPercentile(0.5);
+
+        final Map<String, Number> metrics = emit(monitor);
+        // None counts as created: neither built by an aggregator or a combiner, nor decoded
+        assertEquals(0L, metrics.get("doublesReservoir/created/count").longValue());
+        assertTrue(metrics.get("doublesReservoir/allocated/bytes").longValue() >= 3 * 100 * Double.BYTES);
+        assertTrue(metrics.get("doublesReservoir/merge/count").longValue() >= 1);
+        assertTrue(metrics.get("doublesReservoir/serde/written/bytes").longValue() >= bytes.length);
+        assertTrue(metrics.get("doublesReservoir/serde/read/bytes").longValue() >= bytes.length);
+        assertTrue(metrics.get("doublesReservoir/sort/samples").longValue() >= 100);
+        assertTrue(metrics.containsKey("doublesReservoir/merge/time"));
+        assertTrue(metrics.containsKey(DoublesReservoirMonitor.FILL_RATIO_METRIC));
+
+        // Counters start over after each emission
+        assertEquals(0L, emit(monitor).get("doublesReservoir/merge/count").longValue());
+    }
+
+    private static Map<String, Number> emit(DoublesReservoirMonitor monitor) {
+        final StubServiceEmitter emitter = new StubServiceEmitter("service", "host");
+        monitor.doMonitor(emitter);
+
+        final Map<String, Number> metrics = new HashMap<>();
+        for (Event event : emitter.getEvents()) {
+            final ServiceMetricEvent metric = (ServiceMetricEvent) event;
+            metrics.put(metric.getMetric(), metric.getValue());
+        }
+        return metrics;
+    }
+}
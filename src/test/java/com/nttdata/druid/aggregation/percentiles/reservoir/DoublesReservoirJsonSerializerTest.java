@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.reservoir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DoublesReservoirJsonSerializerTest {
+    private static final SimpleModule MODULE = new SimpleModule()
+            .addSerializer(DoublesReservoir.class, new DoublesReservoirJsonSerializer())
+            .addDeserializer(DoublesReservoir.class, new DoublesReservoirJsonDeserializer());
+    private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(MODULE);
+    private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory()).registerModule(MODULE);
+
+    @Test
+    void testRoundTrip() throws IOException {
+        final DoublesReservoir reservoir = new DoublesReservoir(8, ImmutableList.of(3.0, 1.0, 2.0), 42);
+        final String json = MAPPER.writeValueAsString(reservoir);
+
+        // Responses stay readable
+        assertEquals("{\"maxSize\":8,\"reservoir\":[1.0,2.0,3.0],\"totalItemsSeen\":42}", json);
+
+        final DoublesReservoir fromJson = MAPPER.readValue(json, DoublesReservoir.class);
+        assertEquals(8, fromJson.getMaxSize());
+        assertEquals(42, fromJson.getTotalItemsSeen());
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), fromJson.getSortedValues());
+    }
+
+    @Test
+    void testJsonRoundTripOfNarrowerStorages() throws IOException {
+        final DoublesReservoir reservoir = DoublesReservoir.decayed(8, DoublesReservoirStorage.FLOAT, 1000);
+        reservoir.acceptAt(1.0, 0, 1);
+        reservoir.acceptAt(2.0, 1000, 1);
+
+        // The object form would drop the storage and the weights, so the binary form is written in base64
+        final String json = MAPPER.writeValueAsString(reservoir);
+        assertEquals('"', json.charAt(0));
+
+        final DoublesReservoir fromJson = MAPPER.readValue(json, DoublesReservoir.class);
+        assertEquals(DoublesReservoirStorage.FLOAT, fromJson.getStorage());
+        assertEquals(1000, fromJson.getHalfLifeMillis());
+        assertEquals(reservoir.getAVG(), fromJson.getAVG(), 1e-12);
+
+        // As does a broker reading the value without its type
+        final DoublesReservoir untyped = DoublesReservoir.deserialize(MAPPER.readValue(json, Object.class));
+        assertNotNull(untyped);
+        assertEquals(1000, untyped.getHalfLifeMillis());
+    }
+
+    @Test
+    void testSmileRoundTrip() throws IOException {
+        final DoublesReservoir reservoir = DoublesReservoir.decayed(8, DoublesReservoirStorage.DOUBLE, 1000);
+        reservoir.acceptAt(1.0, 0, 1);
+        reservoir.acceptAt(2.0, 1000, 1);
+
+        // Between services the binary form keeps what the object form cannot, e.g. the weights of decayed samples
+        final DoublesReservoir fromSmile =
+                SMILE_MAPPER.readValue(SMILE_MAPPER.writeValueAsBytes(reservoir), DoublesReservoir.class);
+        assertEquals(1000, fromSmile.getHalfLifeMillis());
+        assertEquals(2, fromSmile.getTotalItemsSeen());
+        assertEquals(reservoir.getAVG(), fromSmile.getAVG(), 1e-12);
+    }
+
+    @Test
+    void testReadsBase64() throws IOException {
+        final DoublesReservoir reservoir = new DoublesReservoir(8, ImmutableList.of(3.0, 1.0, 2.0), 42);
+        final DoublesReservoir fromJson = MAPPER.readValue(
+                MAPPER.writeValueAsString(reservoir.toBytes()), DoublesReservoir.class);
+
+        assertEquals(42, fromJson.getTotalItemsSeen());
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), fromJson.getSortedValues());
+    }
+
+    @Test
+    void testReadsObjectForm() throws IOException {
+        final DoublesReservoir fromJson = MAPPER.readValue(
+                "{\"maxSize\":8,\"reservoir\":[1.0,2.0,3.0],\"totalItemsSeen\":42}", DoublesReservoir.class);
+
+        assertEquals(8, fromJson.getMaxSize());
+        assertEquals(42, fromJson.getTotalItemsSeen());
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), fromJson.getSortedValues());
+    }
+
+    @Test
+    void testDeserializeUntypedValue() throws IOException {
+        final DoublesReservoir reservoir = new DoublesReservoir(8, ImmutableList.of(3.0, 1.0, 2.0), 42);
+
+        // What a broker sees when it reads a result value without knowing its type
+        final Object untyped = MAPPER.readValue(MAPPER.writeValueAsString(reservoir), Object.class);
+        final DoublesReservoir fromString = DoublesReservoir.deserialize(untyped);
+        assertNotNull(fromString);
+        assertEquals(42, fromString.getTotalItemsSeen());
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), fromString.getSortedValues());
+
+        final DoublesReservoir fromBytes = DoublesReservoir.deserialize(reservoir.toBytes());
+        assertNotNull(fromBytes);
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), fromBytes.getSortedValues());
+    }
+}
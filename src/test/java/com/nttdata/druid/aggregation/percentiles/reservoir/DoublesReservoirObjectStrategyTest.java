@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.reservoir;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DoublesReservoirObjectStrategyTest {
+    private static final DoublesReservoirObjectStrategy STRATEGY = new DoublesReservoirObjectStrategy();
+
+    @Test
+    void testPlainSamplesStayJson() {
+        final DoublesReservoir reservoir = new DoublesReservoir(8, ImmutableList.of(3.0, 1.0, 2.0), 42);
+        final byte[] bytes = STRATEGY.toBytes(reservoir);
+
+        assertEquals(
+                "{\"maxSize\":8,\"reservoir\":[1.0,2.0,3.0],\"totalItemsSeen\":42}",
+                new String(bytes, StandardCharsets.UTF_8));
+
+        final DoublesReservoir read = STRATEGY.fromByteBuffer(ByteBuffer.wrap(bytes), bytes.length);
+        assertTrue(read.isFrozen());
+        assertEquals(42, read.getTotalItemsSeen());
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), read.getSortedValues());
+    }
+
+    @Test
+    void testOtherStoragesAreBinary() {
+        final DoublesReservoir reservoir = new DoublesReservoir(8, DoublesReservoirStorage.FLOAT);
+        reservoir.accept(1.5);
+        reservoir.accept(2.5);
+
+        final byte[] bytes = STRATEGY.toBytes(reservoir);
+        assertNotEquals('{', bytes[0]);
+
+        final DoublesReservoir read = STRATEGY.fromByteBuffer(ByteBuffer.wrap(bytes), bytes.length);
+        assertEquals(DoublesReservoirStorage.FLOAT, read.getStorage());
+        assertEquals(ImmutableList.of(1.5, 2.5), read.getSortedValues());
+    }
+
+    @Test
+    void testEmpty() {
+        assertEquals(0, STRATEGY.toBytes(null).length);
+        assertSame(DoublesReservoir.EMPTY, STRATEGY.fromByteBuffer(ByteBuffer.allocate(0), 0));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.reservoir;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.druid.java.util.common.IAE;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DoublesReservoirStorageTest {
+    @Test
+    public void testOf() {
+        assertSame(DoublesReservoirStorage.DOUBLE, DoublesReservoirStorage.of(null, null));
+        assertSame(DoublesReservoirStorage.DOUBLE, DoublesReservoirStorage.of("double", null));
+        assertSame(DoublesReservoirStorage.FLOAT, DoublesReservoirStorage.of("FLOAT", null));
+        assertEquals(DoublesReservoirStorage.fixed(3), DoublesReservoirStorage.of("fixed", null));
+        assertEquals(DoublesReservoirStorage.fixed(1), DoublesReservoirStorage.of("fixed", 1));
+        assertEquals(1, DoublesReservoirStorage.fixed(1).getScale());
+        assertNull(DoublesReservoirStorage.FLOAT.getScale());
+
+        assertThrows(IAE.class, () -> DoublesReservoirStorage.of("half", null));
+        assertThrows(IAE.class, () -> DoublesReservoirStorage.of("double", 2));
+        assertThrows(IAE.class, () -> DoublesReservoirStorage.of("fixed", -1));
+        assertThrows(IAE.class, () -> DoublesReservoirStorage.of("fixed", 10));
+    }
+
+    @Test
+    public void testNarrow() {
+        assertEquals(0.1, DoublesReservoirStorage.DOUBLE.narrow(0.1));
+        assertEquals((double) 0.1f, DoublesReservoirStorage.FLOAT.narrow(0.1));
+        assertEquals(12.346, DoublesReservoirStorage.fixed(3).narrow(12.3456));
+        assertEquals(-12.0, DoublesReservoirStorage.fixed(0).narrow(-12.3456));
+        assertEquals(Integer.MAX_VALUE / 1000.0, DoublesReservoirStorage.fixed(3).narrow(1e12));
+    }
+
+    @Test
+    public void testReservoirKeepsNarrowedSamples() {
+        final DoublesReservoir reservoir = new DoublesReservoir(4, DoublesReservoirStorage.fixed(2));
+        reservoir.addAll(ImmutableList.of(1.234, 5.678));
+
+        assertEquals(ImmutableList.of(1.23, 5.68), reservoir.getSortedValues());
+
+        // Samples merged from a wider reservoir are narrowed too
+        reservoir.mergeWith(new DoublesReservoir(4, ImmutableList.of(9.999)));
+        assertEquals(ImmutableList.of(1.23, 5.68, 10.0), reservoir.getSortedValues());
+    }
+
+    @Test
+    public void testToBytes() {
+        for (DoublesReservoirStorage storage : ImmutableList.of(
+                DoublesReservoirStorage.DOUBLE, DoublesReservoirStorage.FLOAT, DoublesReservoirStorage.fixed(4))) {
+            // Too small to count values, so it samples
+            final DoublesReservoir sampled = new DoublesReservoir(3, storage);
+            sampled.addAll(ImmutableList.of(0.1, -2.5, 3.14159, 100.0));
+            assertFalse(sampled.isValueCountMode());
+
+            final byte[] bytes = sampled.toBytes();
+            assertEquals(DoublesReservoir.getSerializedSize(3, storage), bytes.length);
+
+            final DoublesReservoir read = DoublesReservoir.fromBytes(ByteBuffer.wrap(bytes));
+            assertEquals(storage, read.getStorage());
+            assertEquals(3, read.getMaxSize());
+            assertEquals(4, read.getTotalItemsSeen());
+            assertEquals(sampled.getSortedValues(), read.getSortedValues());
+
+            final DoublesReservoir counted = new DoublesReservoir(16, storage);
+            counted.addAll(ImmutableList.of(0.1, -2.5, 3.14159, 100.0, 0.1));
+            assertTrue(counted.isValueCountMode());
+
+            final DoublesReservoir readCounted = DoublesReservoir.fromBytes(ByteBuffer.wrap(counted.toBytes()));
+            assertEquals(storage, readCounted.getStorage());
+            assertTrue(readCounted.isValueCountMode());
+            assertEquals(5, readCounted.getTotalItemsSeen());
+            assertEquals(counted.getSortedValues(), readCounted.getSortedValues());
+        }
+
+        assertEquals(
+                DoublesReservoir.getSerializedSize(100) - 100 * Float.BYTES + 2,
+                DoublesReservoir.getSerializedSize(100, DoublesReservoirStorage.FLOAT));
+    }
+
+    @Test
+    public void testBuffer() {
+        final DoublesReservoirStorage storage = DoublesReservoirStorage.fixed(1);
+        final ByteBuffer buffer = ByteBuffer.allocate(DoublesReservoir.getBufferSize(3, storage));
+        assertEquals(12 + 3 * Integer.BYTES, buffer.capacity());
+
+        DoublesReservoir.initBuffer(buffer, 0);
+        DoublesReservoir.acceptInBuffer(buffer, 0, 3, storage, 1.26);
+        DoublesReservoir.acceptInBuffer(buffer, 0, 3, storage, -0.44);
+
+        final DoublesReservoir reservoir = DoublesReservoir.fromBuffer(buffer, 0, 3, storage);
+        assertEquals(ImmutableList.of(-0.4, 1.3), reservoir.getSortedValues());
+
+        reservoir.accept(2.0);
+        reservoir.writeToBuffer(buffer, 0);
+        assertEquals(
+                ImmutableList.of(-0.4, 1.3, 2.0),
+                DoublesReservoir.fromBuffer(buffer, 0, 3, storage).getSortedValues());
+    }
+
+    @Test
+    public void testMergeAllKeepsSharedStorage() {
+        final DoublesReservoir lhs = new DoublesReservoir(4, DoublesReservoirStorage.FLOAT);
+        final DoublesReservoir rhs = new DoublesReservoir(4, DoublesReservoirStorage.FLOAT);
+        lhs.accept(1.0);
+        rhs.accept(2.0);
+
+        assertEquals(DoublesReservoirStorage.FLOAT, DoublesReservoir.mergeAll(ImmutableList.of(lhs, rhs)).getStorage());
+
+        final DoublesReservoir mixed = new DoublesReservoir(4, new ArrayList<>(ImmutableList.of(3.0)));
+        assertEquals(
+                DoublesReservoirStorage.DOUBLE,
+                DoublesReservoir.mergeAll(ImmutableList.of(lhs, rhs, mixed)).getStorage());
+    }
+}
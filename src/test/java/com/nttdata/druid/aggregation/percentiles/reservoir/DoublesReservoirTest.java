@@ -19,10 +19,20 @@
 package com.nttdata.druid.aggregation.percentiles.reservoir;
 
 import com.google.common.collect.ImmutableList;
+import com.nttdata.druid.aggregation.percentiles.metrics.DoublesReservoirCounter;
+import org.apache.datasketches.kll.KllDoublesSketch;
+import org.apache.datasketches.memory.DefaultMemoryRequestServer;
+import org.apache.datasketches.memory.WritableMemory;
 import org.apache.druid.java.util.common.IAE;
+import org.apache.druid.java.util.common.ISE;
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -107,4 +117,1126 @@ class DoublesReservoirTest {
         iae = assertThrows(IAE.class, () -> reservoir.getPercentile(-0.1));
         assertEquals("A fraction must be >= 0 and <= 1.0: -0.1", iae.getMessage());
     }
+
+    @Test
+    public void testSortedValuesAreCachedUntilNextSample() {
+        DoublesReservoir reservoir = new DoublesReservoir(10, new ArrayList<>(ImmutableList.of(3.0, 1.0, 2.0)));
+
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), reservoir.getSortedValues());
+        assertEquals(2.0, reservoir.getMedian());
+
+        reservoir.accept(0.0);
+        reservoir.accept(-1.0);
+        assertEquals(ImmutableList.of(-1.0, 0.0, 1.0, 2.0, 3.0), reservoir.getSortedValues());
+        assertEquals(1.0, reservoir.getMedian());
+    }
+
+    @Test
+    public void testCountComparator() {
+        DoublesReservoir small = new DoublesReservoir(10, ImmutableList.of(5.0, 6.0), 2);
+        DoublesReservoir large = new DoublesReservoir(10, ImmutableList.of(1.0, 2.0), 200);
+
+        assertTrue(DoublesReservoir.COUNT_COMPARATOR.compare(small, large) < 0);
+        assertTrue(DoublesReservoir.COUNT_COMPARATOR.compare(large, small) > 0);
+        assertTrue(DoublesReservoir.COUNT_COMPARATOR.compare(null, small) < 0);
+        assertEquals(DoublesReservoir.COUNT_COMPARATOR, DoublesReservoir.COMPARATOR);
+    }
+
+    @Test
+    public void testMedianComparator() {
+        DoublesReservoir low = new DoublesReservoir(10, ImmutableList.of(1.0, 2.0, 30.0));
+        DoublesReservoir high = new DoublesReservoir(10, ImmutableList.of(5.0, 6.0, 7.0));
+        DoublesReservoir empty = new DoublesReservoir(10);
+
+        assertTrue(DoublesReservoir.MEDIAN_COMPARATOR.compare(low, high) < 0);
+        assertTrue(DoublesReservoir.MEDIAN_COMPARATOR.compare(high, low) > 0);
+        assertTrue(DoublesReservoir.MEDIAN_COMPARATOR.compare(empty, low) < 0);
+        assertEquals(0, DoublesReservoir.MEDIAN_COMPARATOR.compare(empty, new DoublesReservoir(5)));
+        assertTrue(DoublesReservoir.MEDIAN_COMPARATOR.compare(null, empty) < 0);
+    }
+
+    @Test
+    public void testOrderingFromString() {
+        assertEquals(DoublesReservoirOrdering.COUNT, DoublesReservoirOrdering.fromString(null));
+        assertEquals(DoublesReservoirOrdering.MEDIAN, DoublesReservoirOrdering.fromString("median"));
+        assertEquals("median", DoublesReservoirOrdering.MEDIAN.toString());
+        assertThrows(IAE.class, () -> DoublesReservoirOrdering.fromString("mode"));
+    }
+
+    @Test
+    public void testToBytesRoundTrip() {
+        DoublesReservoir reservoir = new DoublesReservoir(4);
+        for (int i = 0; i < 100; ++i) {
+            reservoir.accept(i);
+        }
+
+        byte[] bytes = reservoir.toBytes();
+        assertEquals(DoublesReservoir.getSerializedSize(4), bytes.length);
+
+        final long created = DoublesReservoirCounter.CREATED.sum();
+        DoublesReservoir fromBytes = DoublesReservoir.fromBytes(ByteBuffer.wrap(bytes));
+        // Decoding reads back a reservoir that was counted where it was built
+        assertEquals(created, DoublesReservoirCounter.CREATED.sum());
+        assertEquals(4, fromBytes.getMaxSize());
+        assertEquals(100, fromBytes.getTotalItemsSeen());
+        assertEquals(reservoir.getSortedValues(), fromBytes.getSortedValues());
+    }
+
+    @Test
+    public void testIsSerialized() {
+        final DoublesReservoir reservoir = new DoublesReservoir(4);
+        reservoir.accept(1);
+        final DoublesReservoir decayed = DoublesReservoir.decayed(4, DoublesReservoirStorage.DOUBLE, 1000);
+        decayed.acceptAt(1, 0, 1);
+
+        assertTrue(DoublesReservoir.isSerialized("{\"maxSize\":4}"));
+        assertTrue(DoublesReservoir.isSerialized(Base64.getEncoder().encodeToString(reservoir.toBytes())));
+        assertTrue(DoublesReservoir.isSerialized(Base64.getEncoder().encodeToString(decayed.toBytes())));
+
+        // Numbers and other text, even when valid base64
+        assertFalse(DoublesReservoir.isSerialized(""));
+        assertFalse(DoublesReservoir.isSerialized("12"));
+        assertFalse(DoublesReservoir.isSerialized("1234"));
+        assertFalse(DoublesReservoir.isSerialized("-1.5e3"));
+        assertFalse(DoublesReservoir.isSerialized("NaN"));
+        assertFalse(DoublesReservoir.isSerialized("abcd"));
+        assertFalse(DoublesReservoir.isSerialized("n/a"));
+    }
+
+    @Test
+    public void testReservoirKeepsAtMostMaxSizeSamples() {
+        DoublesReservoir reservoir = new DoublesReservoir(100);
+        for (int i = 0; i < 1000; ++i) {
+            reservoir.accept(i);
+        }
+
+        assertEquals(100, reservoir.getSize());
+        assertEquals(1000, reservoir.getTotalItemsSeen());
+    }
+
+    @Test
+    public void testMergeWithUnsaturatedReservoirsKeepsEverything() {
+        DoublesReservoir left = new DoublesReservoir(10, new ArrayList<>(ImmutableList.of(1.0, 2.0)));
+        DoublesReservoir right = new DoublesReservoir(10, ImmutableList.of(3.0, 4.0, 5.0));
+
+        left.mergeWith(right);
+
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0, 4.0, 5.0), left.getSortedValues());
+        assertEquals(5, left.getTotalItemsSeen());
+        assertEquals(ImmutableList.of(3.0, 4.0, 5.0), right.getSortedValues());
+    }
+
+    @Test
+    public void testMergeWithIsWeightedByItemsSeen() {
+        // 'large' stands for 1000 items of value 1, 'small' for 10 items of value 0
+        int fromLarge = 0;
+        for (int run = 0; run < 200; ++run) {
+            DoublesReservoir large = new DoublesReservoir(10, Collections.nCopies(10, 1.0), 1000);
+            DoublesReservoir small = new DoublesReservoir(10, Collections.nCopies(10, 0.0), 10);
+            small.mergeWith(large);
+
+            assertEquals(10, small.getSize());
+            assertEquals(1010, small.getTotalItemsSeen());
+            fromLarge += (int) small.getSortedValues().stream().filter(value -> value == 1.0).count();
+        }
+
+        // ~99% of the merged samples should come from the larger population
+        assertTrue(fromLarge > 1900, "samples from large: " + fromLarge);
+    }
+
+    @Test
+    public void testMergeAll() {
+        List<DoublesReservoir> reservoirs = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            DoublesReservoir reservoir = new DoublesReservoir(20);
+            for (int j = 0; j < 100; ++j) {
+                reservoir.accept(i * 100 + j);
+            }
+            reservoirs.add(reservoir);
+        }
+        reservoirs.add(null);
+        reservoirs.add(new DoublesReservoir(20));
+
+        DoublesReservoir merged = DoublesReservoir.mergeAll(reservoirs);
+
+        assertEquals(20, merged.getMaxSize());
+        assertEquals(20, merged.getSize());
+        assertEquals(5000, merged.getTotalItemsSeen());
+        for (int i = 0; i < 50; ++i) {
+            assertEquals(20, reservoirs.get(i).getSize());
+            assertEquals(100, reservoirs.get(i).getTotalItemsSeen());
+        }
+    }
+
+    @Test
+    public void testMergeIsAssociative() {
+        // Inputs of 20 samples standing for 100, 300 and 600 items: every grouping keeps them in that proportion
+        final DoublesReservoir a = new DoublesReservoir(20, Collections.nCopies(20, 0.0), 100);
+        final DoublesReservoir b = new DoublesReservoir(20, Collections.nCopies(20, 1.0), 300);
+        final DoublesReservoir c = new DoublesReservoir(20, Collections.nCopies(20, 2.0), 600);
+        final int trials = 1000;
+        final double[][] shares = new double[3][3];
+
+        for (int trial = 0; trial < trials; ++trial) {
+            final List<DoublesReservoir> groupings = ImmutableList.of(
+                    DoublesReservoir.mergeAll(ImmutableList.of(a, b, c)),
+                    DoublesReservoir.mergeAll(ImmutableList.of(DoublesReservoir.mergeAll(ImmutableList.of(a, b)), c)),
+                    DoublesReservoir.mergeAll(ImmutableList.of(a, DoublesReservoir.mergeAll(ImmutableList.of(b, c)))));
+
+            for (int grouping = 0; grouping < 3; ++grouping) {
+                final DoublesReservoir merged = groupings.get(grouping);
+                assertEquals(1000, merged.getTotalItemsSeen());
+                assertEquals(20, merged.getSize());
+
+                for (double value : merged.getSortedValues()) {
+                    shares[grouping][(int) value] += 1.0 / (20 * trials);
+                }
+            }
+        }
+
+        for (int grouping = 0; grouping < 3; ++grouping) {
+            assertEquals(0.1, shares[grouping][0], 0.02);
+            assertEquals(0.3, shares[grouping][1], 0.02);
+            assertEquals(0.6, shares[grouping][2], 0.02);
+        }
+
+        // Side-effect free: the inputs are left as they were
+        assertEquals(100, a.getTotalItemsSeen());
+        assertEquals(Collections.nCopies(20, 1.0), b.getSortedValues());
+    }
+
+    @Test
+    public void testMergeAllUnsaturated() {
+        DoublesReservoir merged = DoublesReservoir.mergeAll(100, ImmutableList.of(
+                new DoublesReservoir(10, ImmutableList.of(1.0, 2.0)),
+                new DoublesReservoir(10, ImmutableList.of(3.0)),
+                new DoublesReservoir(10, ImmutableList.of(4.0, 5.0))));
+
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0, 4.0, 5.0), merged.getSortedValues());
+        assertEquals(5, merged.getTotalItemsSeen());
+        assertEquals(100, merged.getMaxSize());
+    }
+
+    @Test
+    public void testMergeAllStopsWhenASmallerInputRunsOut() {
+        // 4 samples standing for 1000 items cannot supply a uniform sample of 50 together with 50 exact items
+        DoublesReservoir merged = DoublesReservoir.mergeAll(100, ImmutableList.of(
+                new DoublesReservoir(4, ImmutableList.of(1.0, 2.0, 3.0, 4.0), 1000),
+                new DoublesReservoir(100, Collections.nCopies(50, 0.0))));
+
+        assertEquals(1050, merged.getTotalItemsSeen());
+        assertTrue(merged.getSize() < 20, "merged size: " + merged.getSize());
+    }
+
+    @Test
+    public void testClearKeepsReservoirUsable() {
+        DoublesReservoir reservoir = new DoublesReservoir(4, new ArrayList<>(ImmutableList.of(1.0, 2.0, 3.0)));
+        reservoir.clear();
+
+        assertEquals(0, reservoir.getSize());
+        assertEquals(0, reservoir.getTotalItemsSeen());
+        assertTrue(Double.isNaN(reservoir.getMedian()));
+
+        reservoir.mergeWith(new DoublesReservoir(10, ImmutableList.of(9.0, 8.0, 7.0, 6.0, 5.0, 4.0)));
+        assertEquals(4, reservoir.getSize());
+        assertEquals(6, reservoir.getTotalItemsSeen());
+    }
+
+    @Test
+    public void testFrozenReservoirCannotBeModified() {
+        DoublesReservoir reservoir = new DoublesReservoir(4, new ArrayList<>(ImmutableList.of(1.0, 2.0))).freeze();
+
+        assertTrue(reservoir.isFrozen());
+        assertThrows(ISE.class, () -> reservoir.accept(3.0));
+        assertThrows(ISE.class, () -> reservoir.mergeWith(new DoublesReservoir(4, ImmutableList.of(3.0))));
+        assertThrows(ISE.class, reservoir::clear);
+        assertThrows(ISE.class, () -> DoublesReservoir.EMPTY.accept(1.0));
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByLaterWrites() {
+        DoublesReservoir reservoir = new DoublesReservoir(4, new ArrayList<>(ImmutableList.of(1.0, 2.0)));
+        DoublesReservoir snapshot = reservoir.snapshot();
+
+        reservoir.accept(3.0);
+        reservoir.mergeWith(new DoublesReservoir(4, ImmutableList.of(4.0)));
+
+        assertTrue(snapshot.isFrozen());
+        assertFalse(reservoir.isFrozen());
+        assertEquals(ImmutableList.of(1.0, 2.0), snapshot.getSortedValues());
+        assertEquals(2, snapshot.getTotalItemsSeen());
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0, 4.0), reservoir.getSortedValues());
+    }
+
+    @Test
+    public void testMutableCopyIsCopyOnWrite() {
+        DoublesReservoir frozen = new DoublesReservoir(4, new ArrayList<>(ImmutableList.of(1.0, 2.0))).freeze();
+        DoublesReservoir copy = frozen.mutableCopy();
+
+        copy.accept(3.0);
+        assertEquals(ImmutableList.of(1.0, 2.0), frozen.getSortedValues());
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), copy.getSortedValues());
+
+        DoublesReservoir owner = new DoublesReservoir(4, new ArrayList<>(ImmutableList.of(5.0)));
+        DoublesReservoir ownerCopy = owner.mutableCopy();
+        owner.accept(6.0);
+        ownerCopy.accept(7.0);
+        assertEquals(ImmutableList.of(5.0, 6.0), owner.getSortedValues());
+        assertEquals(ImmutableList.of(5.0, 7.0), ownerCopy.getSortedValues());
+    }
+
+    @Test
+    public void testBufferRoundTrip() {
+        final ByteBuffer buffer = ByteBuffer.allocate(5 + DoublesReservoir.getBufferSize(4, DoublesReservoirStorage.DOUBLE));
+        DoublesReservoir.initBuffer(buffer, 5);
+
+        assertEquals(0, DoublesReservoir.fromBuffer(buffer, 5, 4, DoublesReservoirStorage.DOUBLE).getTotalItemsSeen());
+
+        for (double value = 1; value <= 3; ++value) {
+            DoublesReservoir.acceptInBuffer(buffer, 5, 4, DoublesReservoirStorage.DOUBLE, value);
+        }
+
+        final DoublesReservoir reservoir = DoublesReservoir.fromBuffer(buffer, 5, 4, DoublesReservoirStorage.DOUBLE);
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), reservoir.getSortedValues());
+        assertEquals(3, reservoir.getTotalItemsSeen());
+        assertEquals(4, reservoir.getMaxSize());
+
+        reservoir.accept(4.0);
+        reservoir.accept(5.0);
+        reservoir.writeToBuffer(buffer, 5);
+
+        final DoublesReservoir read = DoublesReservoir.fromBuffer(buffer, 5, 4, DoublesReservoirStorage.DOUBLE);
+        assertEquals(5, read.getTotalItemsSeen());
+        assertEquals(reservoir.getSortedValues(), read.getSortedValues());
+    }
+
+    @Test
+    public void testAcceptInBufferRespectsMaxSize() {
+        final ByteBuffer buffer = ByteBuffer.allocate(DoublesReservoir.getBufferSize(10, DoublesReservoirStorage.DOUBLE));
+        DoublesReservoir.initBuffer(buffer, 0);
+
+        for (int value = 0; value < 1000; ++value) {
+            DoublesReservoir.acceptInBuffer(buffer, 0, 10, DoublesReservoirStorage.DOUBLE, value);
+        }
+
+        final DoublesReservoir reservoir = DoublesReservoir.fromBuffer(buffer, 0, 10, DoublesReservoirStorage.DOUBLE);
+        assertEquals(10, reservoir.getSize());
+        assertEquals(1000, reservoir.getTotalItemsSeen());
+        assertTrue(reservoir.getSortedValues().stream().allMatch(value -> value >= 0 && value < 1000));
+    }
+
+    @Test
+    public void testValueCountModeIsExact() {
+        final DoublesReservoir reservoir = new DoublesReservoir(100);
+        final List<Double> all = new ArrayList<>();
+
+        for (int i = 0; i < 10_000; ++i) {
+            final double value = i % 7 == 0 ? 250.0 : (i % 3 == 0 ? 20.0 : 5.0);
+            reservoir.accept(value);
+            all.add(value);
+        }
+
+        assertTrue(reservoir.isValueCountMode());
+        assertEquals(10_000, reservoir.getTotalItemsSeen());
+        assertEquals(10_000, reservoir.getSize());
+
+        final DoublesReservoir expanded = new DoublesReservoir(all.size(), all);
+        final double[] fractions = new double[]{0, 0.1, 0.5, 0.8, 0.857, 0.9, 0.99, 1};
+        assertArrayEquals(expanded.getPercentile(fractions), reservoir.getPercentile(fractions));
+        assertEquals(expanded.getAVG(), reservoir.getAVG(), 1e-9);
+        assertEquals(expanded.getStddev(), reservoir.getStddev(), 1e-9);
+        assertEquals(5.0, reservoir.getMin());
+        assertEquals(250.0, reservoir.getMax());
+        // Listed as 100 evenly spaced quantiles of the items, not every item
+        Collections.sort(all);
+        final List<Double> quantiles = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            quantiles.add(all.get(i * 100 + 50));
+        }
+        assertEquals(quantiles, reservoir.getSortedValues());
+    }
+
+    @Test
+    public void testValueCountModeListsAtMostMaxSizeValues() {
+        final DoublesReservoir reservoir = new DoublesReservoir(8);
+        reservoir.accept(1.0, 3_000_000_000L);
+        reservoir.accept(2.0, 1_000_000_000L);
+
+        assertTrue(reservoir.isValueCountMode());
+        assertEquals(ImmutableList.of(1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 2.0, 2.0), reservoir.getSortedValues());
+
+        final DoublesReservoir few = new DoublesReservoir(8);
+        few.accept(1.0, 2);
+        few.accept(2.0);
+        assertEquals(ImmutableList.of(1.0, 1.0, 2.0), few.getSortedValues());
+    }
+
+    @Test
+    public void testValueCountModeSwitchesToSampling() {
+        // Room for 5 distinct values
+        final DoublesReservoir reservoir = new DoublesReservoir(10);
+
+        for (int i = 0; i < 5; ++i) {
+            reservoir.accept(i);
+            reservoir.accept(i);
+        }
+
+        assertTrue(reservoir.isValueCountMode());
+
+        reservoir.accept(5);
+        assertFalse(reservoir.isValueCountMode());
+        assertEquals(11, reservoir.getTotalItemsSeen());
+        assertEquals(10, reservoir.getSize());
+        assertTrue(reservoir.getSortedValues().stream().allMatch(value -> value >= 0 && value <= 5));
+
+        reservoir.clear();
+        assertFalse(reservoir.isValueCountMode());
+        reservoir.accept(1.0);
+        assertEquals(ImmutableList.of(1.0), reservoir.getSortedValues());
+    }
+
+    @Test
+    public void testClearKeepsModeOfSharedReservoir() {
+        final DoublesReservoir reservoir = new DoublesReservoir(10);
+
+        for (int i = 0; i < 20; ++i) {
+            reservoir.accept(i);
+        }
+
+        final DoublesReservoir copy = reservoir.mutableCopy();
+        copy.clear();
+
+        assertFalse(copy.isValueCountMode());
+        assertEquals(0, copy.getTotalItemsSeen());
+        assertEquals(20, reservoir.getTotalItemsSeen());
+        assertEquals(10, reservoir.getSize());
+    }
+
+    @Test
+    public void testMergeValueCounts() {
+        final DoublesReservoir lhs = new DoublesReservoir(10);
+        final DoublesReservoir rhs = new DoublesReservoir(10);
+        lhs.addAll(ImmutableList.of(1.0, 3.0, 3.0));
+        rhs.addAll(ImmutableList.of(2.0, 3.0, 3.0, 3.0));
+
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0, 3.0, 3.0, 3.0, 3.0), lhs.mergeWith(rhs).getSortedValues());
+        assertTrue(lhs.isValueCountMode());
+        assertEquals(ImmutableList.of(2.0, 3.0, 3.0, 3.0), rhs.getSortedValues());
+
+        final DoublesReservoir merged = DoublesReservoir.mergeAll(ImmutableList.of(lhs, rhs));
+        assertTrue(merged.isValueCountMode());
+        assertEquals(11, merged.getTotalItemsSeen());
+
+        // Too many distinct values between them: a uniform sample of all the items
+        final DoublesReservoir others = new DoublesReservoir(10);
+        others.addAll(ImmutableList.of(4.0, 5.0, 6.0));
+        lhs.mergeWith(others);
+        assertFalse(lhs.isValueCountMode());
+        assertEquals(10, lhs.getTotalItemsSeen());
+        assertEquals(10, lhs.getSize());
+
+        // A counted source merged into a sample
+        final DoublesReservoir sampled = new DoublesReservoir(10, new ArrayList<>(ImmutableList.of(7.0)));
+        sampled.mergeWith(rhs);
+        assertFalse(sampled.isValueCountMode());
+        assertEquals(ImmutableList.of(2.0, 3.0, 3.0, 3.0, 7.0), sampled.getSortedValues());
+    }
+
+    @Test
+    public void testValueCountModeInBuffer() {
+        final DoublesReservoirStorage storage = DoublesReservoirStorage.DOUBLE;
+        final ByteBuffer buffer = ByteBuffer.allocate(DoublesReservoir.getBufferSize(8, storage));
+        DoublesReservoir.initBuffer(buffer, 0);
+
+        for (int i = 0; i < 1000; ++i) {
+            DoublesReservoir.acceptInBuffer(buffer, 0, 8, storage, i % 4);
+        }
+
+        DoublesReservoir reservoir = DoublesReservoir.fromBuffer(buffer, 0, 8, storage);
+        assertTrue(reservoir.isValueCountMode());
+        assertEquals(1000, reservoir.getTotalItemsSeen());
+        assertEquals(1.5, reservoir.getMedian());
+        assertEquals(0.0, reservoir.getPercentile(0.2));
+
+        reservoir.accept(3.0);
+        reservoir.writeToBuffer(buffer, 0);
+        reservoir = DoublesReservoir.fromBuffer(buffer, 0, 8, storage);
+        assertEquals(1001, reservoir.getTotalItemsSeen());
+        assertTrue(reservoir.isValueCountMode());
+
+        // A fifth distinct value no longer fits next to the counts
+        DoublesReservoir.acceptInBuffer(buffer, 0, 8, storage, 4.0);
+        reservoir = DoublesReservoir.fromBuffer(buffer, 0, 8, storage);
+        assertFalse(reservoir.isValueCountMode());
+        assertEquals(1002, reservoir.getTotalItemsSeen());
+        assertEquals(8, reservoir.getSize());
+    }
+
+    @Test
+    public void testHybridStaysExactUntilItOverflows() {
+        final DoublesReservoir reservoir = new DoublesReservoir(8, DoublesReservoirStorage.DOUBLE, 200);
+
+        // More distinct values than can be counted, but still few enough to keep them all
+        for (int i = 1; i <= 8; ++i) {
+            reservoir.accept(i);
+        }
+
+        assertFalse(reservoir.isSketchMode());
+        assertEquals(8, reservoir.getSize());
+        assertEquals(4.5, reservoir.getMedian());
+
+        reservoir.accept(9);
+
+        assertTrue(reservoir.isSketchMode());
+        assertEquals(9, reservoir.getTotalItemsSeen());
+        assertEquals(5.0, reservoir.getMedian());
+        assertEquals(1.0, reservoir.getMin());
+        assertEquals(9.0, reservoir.getMax());
+        assertEquals(5.0, reservoir.getAVG(), 1e-12);
+        assertEquals(Math.sqrt(7.5), reservoir.getStddev(), 1e-12);
+        assertEquals(8, reservoir.getSortedValues().size());
+    }
+
+    @Test
+    public void testHybridCountsStayExact() {
+        final DoublesReservoir reservoir = new DoublesReservoir(8, DoublesReservoirStorage.DOUBLE, 200);
+
+        for (int i = 0; i < 1000; ++i) {
+            reservoir.accept(i % 3);
+        }
+
+        reservoir.accept(3.0);
+        assertTrue(reservoir.isValueCountMode());
+
+        // A fifth distinct value no longer fits, and 1002 items do not fit as samples either
+        reservoir.accept(4.0);
+        assertTrue(reservoir.isSketchMode());
+        assertEquals(1002, reservoir.getTotalItemsSeen());
+        assertEquals(1.0, reservoir.getMedian());
+        assertEquals(4.0, reservoir.getMax());
+    }
+
+    @Test
+    public void testHybridMerge() {
+        final DoublesReservoir lhs = new DoublesReservoir(8, DoublesReservoirStorage.DOUBLE, 200);
+        final DoublesReservoir rhs = new DoublesReservoir(8, DoublesReservoirStorage.DOUBLE, 200);
+
+        for (int i = 1; i <= 4; ++i) {
+            lhs.accept(i);
+            rhs.accept(10 * i);
+        }
+
+        lhs.mergeWith(rhs);
+        assertFalse(lhs.isSketchMode());
+        assertEquals(8, lhs.getSize());
+
+        lhs.mergeWith(rhs);
+        assertTrue(lhs.isSketchMode());
+        assertEquals(12, lhs.getTotalItemsSeen());
+        assertEquals(40.0, lhs.getMax());
+        assertEquals(210 / 12.0, lhs.getAVG(), 1e-12);
+
+        final DoublesReservoir merged = DoublesReservoir.mergeAll(8, Arrays.asList(rhs, lhs));
+        assertTrue(merged.isSketchMode());
+        assertEquals(16, merged.getTotalItemsSeen());
+        assertEquals(1.0, merged.getMin());
+        assertEquals(310 / 16.0, merged.getAVG(), 1e-12);
+        assertEquals(4, rhs.getSize());
+    }
+
+    @Test
+    public void testMergeSketchIntoFullSample() {
+        final DoublesReservoir sampled = new DoublesReservoir(100);
+        final DoublesReservoir hybrid = new DoublesReservoir(100, DoublesReservoirStorage.DOUBLE, 200);
+
+        for (int i = 0; i < 10000; ++i) {
+            sampled.accept(i / 10000.0);
+        }
+
+        for (int i = 0; i < 1000; ++i) {
+            hybrid.accept(10 + i / 1000.0);
+        }
+
+        assertFalse(sampled.isValueCountMode());
+        assertTrue(hybrid.isSketchMode());
+
+        // Each of the 100 samples stands for 100 items, not for one
+        sampled.mergeWith(hybrid);
+        assertTrue(sampled.isSketchMode());
+        assertEquals(11000, sampled.getTotalItemsSeen());
+        assertTrue(sampled.getMedian() < 1.0);
+        assertEquals(10 / 11.0, sampled.getRank(5.0), 0.03);
+    }
+
+    @Test
+    public void testMergeHugeSampleIntoSketch() {
+        final DoublesReservoir sampled = new DoublesReservoir(100);
+        final DoublesReservoir hybrid = new DoublesReservoir(100, DoublesReservoirStorage.DOUBLE, 200);
+
+        // Enough items that the total times the number of samples no longer fits in a long
+        for (int i = 0; i < 100; ++i) {
+            sampled.accept(i, Long.MAX_VALUE / 200);
+        }
+
+        hybrid.mergeWith(sampled);
+        assertTrue(hybrid.isSketchMode());
+        assertEquals(100 * (Long.MAX_VALUE / 200), hybrid.getTotalItemsSeen());
+        assertEquals(0.5, hybrid.getRank(hybrid.getMedian()), 0.05);
+        assertEquals(sampled.getAVG(), hybrid.getAVG(), 1e-9);
+    }
+
+    @Test
+    public void testHybridToBytesRoundTrip() {
+        final DoublesReservoir reservoir = new DoublesReservoir(4, DoublesReservoirStorage.FLOAT, 200);
+
+        for (int i = 0; i < 3; ++i) {
+            reservoir.accept(i);
+        }
+
+        DoublesReservoir copy = DoublesReservoir.fromBytes(ByteBuffer.wrap(reservoir.toBytes()));
+        assertEquals(200, copy.getSketchK());
+        assertEquals(DoublesReservoirStorage.FLOAT, copy.getStorage());
+        assertFalse(copy.isSketchMode());
+        assertEquals(reservoir.getSortedValues(), copy.getSortedValues());
+
+        for (int i = 3; i < 10; ++i) {
+            reservoir.accept(i);
+        }
+
+        copy = DoublesReservoir.fromBytes(ByteBuffer.wrap(reservoir.toBytes()));
+        assertTrue(copy.isSketchMode());
+        assertEquals(10, copy.getTotalItemsSeen());
+        assertEquals(reservoir.getMedian(), copy.getMedian());
+        assertEquals(reservoir.getAVG(), copy.getAVG());
+        assertEquals(reservoir.getStddev(), copy.getStddev());
+    }
+
+    @Test
+    public void testHybridInBuffer() {
+        final DoublesReservoirStorage storage = DoublesReservoirStorage.DOUBLE;
+        final ByteBuffer buffer = ByteBuffer.allocate(DoublesReservoir.getBufferSize(4, storage, 200));
+        DoublesReservoir.initBuffer(buffer, 0);
+
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(DoublesReservoir.acceptExactlyInBuffer(buffer, 0, 4, storage, i));
+        }
+
+        final byte[] before = buffer.array().clone();
+        assertFalse(DoublesReservoir.acceptExactlyInBuffer(buffer, 0, 4, storage, 4.0));
+        assertArrayEquals(before, buffer.array());
+
+        final DoublesReservoir reservoir = DoublesReservoir.fromBuffer(buffer, 0, 4, storage, 200);
+        assertEquals(200, reservoir.getSketchK());
+        assertEquals(ImmutableList.of(0.0, 1.0, 2.0, 3.0), reservoir.getSortedValues());
+
+        reservoir.accept(4.0);
+        assertThrows(ISE.class, () -> reservoir.writeToBuffer(buffer, 0));
+
+        final WritableMemory memory =
+                WritableMemory.writableWrap(buffer, ByteOrder.LITTLE_ENDIAN, new DefaultMemoryRequestServer());
+        final KllDoublesSketch sketch = reservoir.writeSketchToBuffer(buffer, memory, 0);
+        assertTrue(DoublesReservoir.isPromotedInBuffer(buffer, 0));
+        assertThrows(ISE.class, () -> DoublesReservoir.fromBuffer(buffer, 0, 4, storage, 200));
+
+        // The sketch is updated in the slot, and reads the same as the one updated on heap
+        final DoublesReservoir other = new DoublesReservoir(4, storage, 200);
+        for (int i = 5; i < 100; ++i) {
+            DoublesReservoir.acceptInSketchBuffer(buffer, 0, sketch, i, 2);
+            reservoir.accept(i, 2);
+            other.accept(-i);
+        }
+
+        DoublesReservoir.mergeInSketchBuffer(buffer, 0, sketch, other);
+        reservoir.mergeWith(other);
+
+        final DoublesReservoir copy = DoublesReservoir.fromSketchBuffer(
+                buffer, 0, DoublesReservoir.wrapSketchInBuffer(memory, 0, 200), 4, storage);
+        assertTrue(copy.isSketchMode());
+        assertEquals(200, copy.getSketchK());
+        assertEquals(reservoir.getTotalItemsSeen(), copy.getTotalItemsSeen());
+        assertEquals(reservoir.getMedian(), copy.getMedian());
+        assertEquals(reservoir.getMin(), copy.getMin());
+        assertEquals(reservoir.getAVG(), copy.getAVG(), 1e-9);
+        assertEquals(reservoir.getStddev(), copy.getStddev(), 1e-9);
+    }
+
+    @Test
+    public void testWeightedAcceptCountsValues() {
+        final DoublesReservoir weighted = new DoublesReservoir(100);
+        final DoublesReservoir repeated = new DoublesReservoir(100);
+
+        for (int i = 0; i < 10; ++i) {
+            weighted.accept(i % 3, i + 1);
+            for (int copy = 0; copy <= i; ++copy) {
+                repeated.accept(i % 3);
+            }
+        }
+
+        weighted.accept(7.0, 0);
+        weighted.accept(7.0, -5);
+
+        assertTrue(weighted.isValueCountMode());
+        assertEquals(55, weighted.getTotalItemsSeen());
+        assertEquals(repeated.getSortedValues(), weighted.getSortedValues());
+    }
+
+    @Test
+    public void testWeightedAcceptSamplesUniformly() {
+        final int trials = 200;
+        double share = 0;
+
+        for (int trial = 0; trial < trials; ++trial) {
+            final DoublesReservoir reservoir = new DoublesReservoir(100);
+
+            // Enough distinct values to sample, then two heavy rows of equal weight
+            for (int i = 0; i < 200; ++i) {
+                reservoir.accept(-1 - i);
+            }
+            reservoir.accept(1.0, 50_000);
+            reservoir.accept(2.0, 50_000);
+
+            assertEquals(100_200, reservoir.getTotalItemsSeen());
+            assertEquals(100, reservoir.getSize());
+            share += reservoir.getSortedValues().stream().filter(value -> value == 2.0).count() / 100.0 / trials;
+        }
+
+        assertEquals(50_000.0 / 100_200, share, 0.03);
+    }
+
+    @Test
+    public void testWeightedAcceptInBuffer() {
+        final DoublesReservoirStorage storage = DoublesReservoirStorage.DOUBLE;
+        final ByteBuffer buffer = ByteBuffer.allocate(DoublesReservoir.getBufferSize(8, storage));
+        DoublesReservoir.initBuffer(buffer, 0);
+
+        DoublesReservoir.acceptInBuffer(buffer, 0, 8, storage, 1.0, 1000);
+        DoublesReservoir.acceptInBuffer(buffer, 0, 8, storage, 2.0, 3000);
+        DoublesReservoir reservoir = DoublesReservoir.fromBuffer(buffer, 0, 8, storage);
+        assertTrue(reservoir.isValueCountMode());
+        assertEquals(4000, reservoir.getTotalItemsSeen());
+        assertEquals(1.0, reservoir.getPercentile(0.2));
+        assertEquals(2.0, reservoir.getPercentile(0.3));
+
+        for (int i = 0; i < 10; ++i) {
+            DoublesReservoir.acceptInBuffer(buffer, 0, 8, storage, 10.0 + i, 100);
+        }
+        reservoir = DoublesReservoir.fromBuffer(buffer, 0, 8, storage);
+        assertFalse(reservoir.isValueCountMode());
+        assertEquals(5000, reservoir.getTotalItemsSeen());
+        assertEquals(8, reservoir.getSize());
+
+        // A hybrid reservoir takes all the occurrences of a value exactly, or none of them
+        DoublesReservoir.initBuffer(buffer, 0);
+        assertTrue(DoublesReservoir.acceptExactlyInBuffer(buffer, 0, 4, storage, 1.0, 2));
+        assertTrue(DoublesReservoir.acceptExactlyInBuffer(buffer, 0, 4, storage, 2.0, 1));
+        final byte[] before = buffer.array().clone();
+        assertFalse(DoublesReservoir.acceptExactlyInBuffer(buffer, 0, 4, storage, 3.0, 2));
+        assertArrayEquals(before, buffer.array());
+
+        final DoublesReservoir hybrid = DoublesReservoir.fromBuffer(buffer, 0, 4, storage, 200);
+        hybrid.accept(3.0, 2);
+        assertTrue(hybrid.isSketchMode());
+        assertEquals(5, hybrid.getTotalItemsSeen());
+        assertEquals(3.0, hybrid.getMax());
+    }
+
+    @Test
+    public void testDecayedWeighsRecentItems() {
+        final DoublesReservoir reservoir = DoublesReservoir.decayed(100, DoublesReservoirStorage.DOUBLE, 1000);
+
+        // Ten half-lives apart, the recent items weigh 1024 times as much as the old ones
+        for (int i = 0; i < 10_000; ++i) {
+            reservoir.acceptAt(0.0, i % 10, 1);
+            reservoir.acceptAt(100.0, 10_000 + i % 10, 1);
+        }
+
+        assertEquals(20_000, reservoir.getTotalItemsSeen());
+        assertEquals(100, reservoir.getSize());
+        assertEquals(100.0, reservoir.getMedian());
+        // An old sample rarely makes it, and then stands for about a hundredth of the weight
+        assertEquals(100.0, reservoir.getAVG(), 5.0);
+        assertEquals(100.0, reservoir.getMax());
+        assertThrows(ISE.class, () -> reservoir.accept(1.0));
+
+        // Without decay, the same items make a uniform sample
+        final DoublesReservoir uniform = new DoublesReservoir(100);
+        uniform.acceptAt(1.0, 0, 2);
+        assertEquals(ImmutableList.of(1.0, 1.0), uniform.getSortedValues());
+    }
+
+    @Test
+    public void testDecayedIsExactWhileItemsFit() {
+        final DoublesReservoir reservoir = DoublesReservoir.decayed(10, DoublesReservoirStorage.DOUBLE, 1000);
+        reservoir.acceptAt(1.0, 5000, 1);
+        reservoir.acceptAt(2.0, 6000, 1);
+        reservoir.acceptAt(3.0, 6000, 1);
+
+        // Weights of 1, 2 and 2
+        assertEquals(ImmutableList.of(1.0, 2.0, 3.0), reservoir.getSortedValues());
+        assertEquals(11.0 / 5, reservoir.getAVG(), 1e-9);
+        assertEquals(1.0, reservoir.getPercentile(0.0));
+        assertEquals(3.0, reservoir.getPercentile(1.0));
+        // The middle sample sits at the middle of its weight: (1 + 2 / 2 - 1 / 2) / (5 - 1 / 2 - 2 / 2)
+        assertEquals(2.0, reservoir.getPercentile(3.0 / 7), 1e-9);
+        assertEquals(2.125, reservoir.getPercentile(0.5), 1e-9);
+        assertEquals(1.0, reservoir.getMin());
+    }
+
+    @Test
+    public void testDecayedMerge() {
+        final DoublesReservoir lhs = DoublesReservoir.decayed(50, DoublesReservoirStorage.DOUBLE, 60_000);
+        final DoublesReservoir rhs = DoublesReservoir.decayed(50, DoublesReservoirStorage.DOUBLE, 60_000);
+
+        for (int i = 0; i < 1000; ++i) {
+            lhs.acceptAt(i, i * 1000L, 1);
+            rhs.acceptAt(i + 1000, 1_000_000 + i * 1000L, 1);
+        }
+
+        final DoublesReservoir merged = DoublesReservoir.mergeAll(ImmutableList.of(lhs, DoublesReservoir.EMPTY, rhs));
+        assertEquals(60_000, merged.getHalfLifeMillis());
+        assertEquals(2000, merged.getTotalItemsSeen());
+        assertEquals(50, merged.getSize());
+        assertTrue(merged.getMedian() > 1000);
+
+        // An empty reservoir takes the decay of what it merges
+        final DoublesReservoir combined = new DoublesReservoir(50).mergeWith(lhs).mergeWith(rhs);
+        assertEquals(60_000, combined.getHalfLifeMillis());
+        assertEquals(2000, combined.getTotalItemsSeen());
+
+        final DoublesReservoir copy = DoublesReservoir.fromBytes(ByteBuffer.wrap(merged.toBytes()));
+        assertEquals(merged.getTotalItemsSeen(), copy.getTotalItemsSeen());
+        assertEquals(merged.getSortedValues(), copy.getSortedValues());
+        assertEquals(merged.getMedian(), copy.getMedian());
+        assertEquals(merged.getStddev(), copy.getStddev());
+
+        assertThrows(IAE.class, () -> DoublesReservoir.decayed(50, DoublesReservoirStorage.DOUBLE, 1000).mergeWith(lhs));
+        assertThrows(IAE.class, () -> new DoublesReservoir(50, ImmutableList.of(1.0)).mergeWith(lhs));
+        assertThrows(ISE.class, () -> merged.writeToBuffer(ByteBuffer.allocate(1024), 0));
+    }
+
+    @Test
+    public void testDecayedInBuffer() {
+        final DoublesReservoirStorage storage = DoublesReservoirStorage.FLOAT;
+        final ByteBuffer buffer = ByteBuffer.allocate(3 + DoublesReservoir.getDecayedBufferSize(50, storage));
+        final DoublesReservoir heap = DoublesReservoir.decayed(50, storage, 60_000);
+
+        DoublesReservoir.initDecayedBuffer(buffer, 3);
+        assertEquals(0, DoublesReservoir.fromDecayedBuffer(buffer, 3, 50, storage, 60_000).getSize());
+
+        for (int i = 0; i < 20; ++i) {
+            DoublesReservoir.acceptAtInBuffer(buffer, 3, 50, storage, 60_000, i + 0.1, i * 1000L, 2);
+            heap.acceptAt(i + 0.1, i * 1000L, 2);
+        }
+
+        // While the items fit, the slot holds all of them with their weights, exactly as on heap
+        final DoublesReservoir exact = DoublesReservoir.fromDecayedBuffer(buffer, 3, 50, storage, 60_000);
+        assertEquals(60_000, exact.getHalfLifeMillis());
+        assertEquals(40, exact.getTotalItemsSeen());
+        assertEquals(heap.getSortedValues(), exact.getSortedValues());
+        assertEquals(heap.getAVG(), exact.getAVG(), 1e-9);
+
+        final DoublesReservoir recent = DoublesReservoir.decayed(50, DoublesReservoirStorage.DOUBLE, 60_000);
+        for (int i = 0; i < 1000; ++i) {
+            DoublesReservoir.acceptAtInBuffer(buffer, 3, 50, storage, 60_000, i, i * 1000L, 1);
+            recent.acceptAt(1000 + i, 1_000_000 + i * 1000L, 1);
+        }
+        DoublesReservoir.mergeDecayedInBuffer(buffer, 3, 50, storage, 60_000, recent);
+
+        // The slot keeps the largest priorities, so the recent items win
+        final DoublesReservoir merged = DoublesReservoir.fromDecayedBuffer(buffer, 3, 50, storage, 60_000);
+        assertEquals(2040, merged.getTotalItemsSeen());
+        assertEquals(50, merged.getSize());
+        assertTrue(merged.getMedian() > 1000);
+
+        final DoublesReservoir uniform = new DoublesReservoir(50, ImmutableList.of(1.0));
+        assertThrows(
+                IAE.class,
+                () -> DoublesReservoir.mergeDecayedInBuffer(buffer, 3, 50, storage, 60_000, uniform));
+    }
+
+    @Test
+    public void testRankAndCDF() {
+        final DoublesReservoir sampled = new DoublesReservoir(10, ImmutableList.of(4.0, 1.0, 3.0, 2.0, 2.0));
+        assertEquals(0.0, sampled.getRank(0.5));
+        assertEquals(0.6, sampled.getRank(2.0));
+        assertEquals(0.6, sampled.getRank(2.5));
+        assertEquals(1.0, sampled.getRank(4.0));
+        assertTrue(Double.isNaN(sampled.getRank(Double.NaN)));
+        assertArrayEquals(new double[]{0.2, 0.8, 1.0}, sampled.getCDF(new double[]{1.0, 3.0}));
+        assertThrows(IAE.class, () -> sampled.getCDF(new double[]{3.0, 1.0}));
+        assertThrows(IAE.class, () -> sampled.getCDF(new double[]{1.0, 1.0}));
+
+        final DoublesReservoir counted = new DoublesReservoir(10);
+        counted.accept(1.0, 3);
+        counted.accept(5.0, 1);
+        assertTrue(counted.isValueCountMode());
+        assertEquals(0.75, counted.getRank(4.0));
+        assertEquals(1.0, counted.getRank(5.0));
+
+        final DoublesReservoir sketched = new DoublesReservoir(4, DoublesReservoirStorage.DOUBLE, 8);
+        for (int i = 1; i <= 10; ++i) {
+            sketched.accept(i);
+        }
+        assertTrue(sketched.isSketchMode());
+        assertEquals(0.5, sketched.getRank(5.0), 0.1);
+
+        // Weights of 1, 2 and 2
+        final DoublesReservoir decayed = DoublesReservoir.decayed(10, DoublesReservoirStorage.DOUBLE, 1000);
+        decayed.acceptAt(1.0, 5000, 1);
+        decayed.acceptAt(2.0, 6000, 1);
+        decayed.acceptAt(3.0, 6000, 1);
+        assertArrayEquals(new double[]{0.2, 0.6, 1.0}, decayed.getCDF(new double[]{1.0, 2.5}), 1e-9);
+
+        assertTrue(Double.isNaN(new DoublesReservoir(10).getRank(1.0)));
+        assertTrue(Double.isNaN(new DoublesReservoir(10).getCDF(new double[]{1.0})[1]));
+    }
+
+    @Test
+    public void testHistogram() {
+        final DoublesReservoir sampled = new DoublesReservoir(10, ImmutableList.of(4.0, 1.0, 3.0, 2.0, 2.0), 50);
+        // Scaled to the items seen
+        assertArrayEquals(new double[]{10, 20, 10, 10}, sampled.getHistogram(new double[]{1.0, 2.0, 3.5}), 1e-9);
+        assertArrayEquals(new double[]{10, 20, 10, 10}, sampled.getHistogram(4), 1e-9);
+        assertThrows(IAE.class, () -> sampled.getHistogram(0));
+
+        final DoublesReservoir constant = new DoublesReservoir(10);
+        constant.accept(7.0, 3);
+        assertArrayEquals(new double[]{3, 0, 0}, constant.getHistogram(3));
+
+        final double[] empty = new DoublesReservoir(10).getHistogram(2);
+        assertTrue(Double.isNaN(empty[0]) && Double.isNaN(empty[1]));
+
+        // Weights of 1, 2 and 2 out of 5, whatever the number of items
+        final DoublesReservoir decayed = DoublesReservoir.decayed(10, DoublesReservoirStorage.DOUBLE, 1000);
+        decayed.acceptAt(1.0, 5000, 1);
+        decayed.acceptAt(2.0, 6000, 1);
+        decayed.acceptAt(3.0, 6000, 1);
+        assertArrayEquals(new double[]{0.2, 0.4, 0.4}, decayed.getHistogram(new double[]{1.0, 2.5}), 1e-9);
+        assertArrayEquals(new double[]{0.6, 0.4}, decayed.getHistogram(2), 1e-9);
+    }
+
+    @Test
+    public void testRobustStatistics() {
+        final DoublesReservoir sampled = new DoublesReservoir(10, ImmutableList.of(1.0, 2.0, 3.0, 4.0, 100.0, 6.0));
+        // The 10% trimmed at each end take 0.6 items away: 0.4 * 1 + 2 + 3 + 4 + 6 + 0.4 * 100
+        assertEquals(55.4 / 4.8, sampled.getTrimmedMean(0.1, 0.9), 1e-9);
+        assertEquals(3.5, sampled.getTrimmedMean(1.0 / 3, 2.0 / 3), 1e-9);
+        assertEquals(sampled.getAVG(), sampled.getTrimmedMean(0, 1), 1e-9);
+        // Deviations from 3.5 are 0.5, 0.5, 1.5, 2.5, 2.5 and 96.5
+        assertEquals(2.0, sampled.getMedianAbsoluteDeviation());
+        assertEquals(sampled.getPercentile(0.75) - sampled.getPercentile(0.25), sampled.getIQR());
+        assertThrows(IAE.class, () -> sampled.getTrimmedMean(0.5, 0.4));
+
+        final DoublesReservoir odd = new DoublesReservoir(10, ImmutableList.of(1.0, 2.0, 3.0, 4.0, 100.0));
+        // Deviations from 3 are 0, 1, 1, 2 and 97
+        assertEquals(1.0, odd.getMedianAbsoluteDeviation());
+
+        final DoublesReservoir counted = new DoublesReservoir(10);
+        counted.accept(1.0, 2);
+        counted.accept(2.0, 3);
+        counted.accept(50.0, 1);
+        assertTrue(counted.isValueCountMode());
+        assertEquals(1.6, counted.getTrimmedMean(0, 5.0 / 6), 1e-9);
+        assertEquals(0.5, counted.getMedianAbsoluteDeviation(), 1e-9);
+
+        // A K above the number of items, as smaller sketches compact them at random
+        final DoublesReservoir sketched = new DoublesReservoir(4, DoublesReservoirStorage.DOUBLE, 200);
+        for (int i = 1; i <= 100; ++i) {
+            sketched.accept(i);
+        }
+        assertTrue(sketched.isSketchMode());
+        assertEquals(50.5, sketched.getTrimmedMean(0.1, 0.9), 2);
+        assertEquals(25, sketched.getMedianAbsoluteDeviation(), 2);
+
+        // Weights of 1, 2 and 2
+        final DoublesReservoir decayed = DoublesReservoir.decayed(10, DoublesReservoirStorage.DOUBLE, 1000);
+        decayed.acceptAt(1.0, 5000, 1);
+        decayed.acceptAt(2.0, 6000, 1);
+        decayed.acceptAt(3.0, 6000, 1);
+        assertEquals(2.5, decayed.getTrimmedMean(0.2, 1), 1e-9);
+
+        final DoublesReservoir empty = new DoublesReservoir(10);
+        assertTrue(Double.isNaN(empty.getTrimmedMean(0.1, 0.9)));
+        assertTrue(Double.isNaN(empty.getMedianAbsoluteDeviation()));
+        assertTrue(Double.isNaN(empty.getIQR()));
+    }
+
+    @Test
+    public void testPercentileConfidenceInterval() {
+        final List<Double> samples = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            samples.add(i / 1000.0);
+        }
+
+        final DoublesReservoir sampled = new DoublesReservoir(1000, samples, 1_000_000);
+        final double[] interval = sampled.getPercentileConfidenceInterval(0.5, 0.95);
+        // Ranks 499.5 -/+ 1.96 * sqrt(1000 * 0.5 * 0.5 * 999000 / 999999), i.e. the 469th and the 532nd samples
+        assertEquals(0.468, interval[0], 1e-9);
+        assertEquals(0.4995, interval[1], 1e-9);
+        assertEquals(0.531, interval[2], 1e-9);
+
+        final double[] wider = sampled.getPercentileConfidenceInterval(0.5, 0.99);
+        assertTrue(wider[0] < interval[0] && wider[2] > interval[2]);
+
+        final double[] tail = sampled.getPercentileConfidenceInterval(1.0, 0.95);
+        assertEquals(0.999, tail[0], 1e-9);
+        assertEquals(0.999, tail[2], 1e-9);
+
+        // All the items seen are in the reservoir
+        final DoublesReservoir exact = new DoublesReservoir(1000, samples);
+        assertArrayEquals(new double[]{0.4995, 0.4995, 0.4995}, exact.getPercentileConfidenceInterval(0.5, 0.95));
+
+        final DoublesReservoir counted = new DoublesReservoir(10);
+        counted.accept(1.0, 100);
+        counted.accept(2.0, 100);
+        assertArrayEquals(new double[]{1.0, 1.0, 1.0}, counted.getPercentileConfidenceInterval(0.25, 0.95));
+
+        final DoublesReservoir sketched = new DoublesReservoir(4, DoublesReservoirStorage.DOUBLE, 8);
+        for (int i = 1; i <= 1000; ++i) {
+            sketched.accept(i);
+        }
+        final double[] sketchInterval = sketched.getPercentileConfidenceInterval(0.5, 0.95);
+        assertTrue(sketchInterval[0] < sketchInterval[1] && sketchInterval[1] < sketchInterval[2]);
+
+        final DoublesReservoir decayed = DoublesReservoir.decayed(50, DoublesReservoirStorage.DOUBLE, 60_000);
+        for (int i = 0; i < 1000; ++i) {
+            decayed.acceptAt(i, i * 1000L, 1);
+        }
+        final double[] decayedInterval = decayed.getPercentileConfidenceInterval(0.5, 0.95);
+        assertTrue(decayedInterval[0] < decayedInterval[1] && decayedInterval[1] < decayedInterval[2]);
+
+        final double[] empty = new DoublesReservoir(10).getPercentileConfidenceInterval(0.5, 0.95);
+        assertTrue(Double.isNaN(empty[0]) && Double.isNaN(empty[1]) && Double.isNaN(empty[2]));
+        assertThrows(IAE.class, () -> sampled.getPercentileConfidenceInterval(0.5, 1));
+        assertThrows(IAE.class, () -> sampled.getPercentileConfidenceInterval(1.5, 0.95));
+    }
+
+    @Test
+    public void testPercentileConfidenceIntervalCoverage() {
+        final int trials = 400;
+        final double[] fractions = new double[]{0.1, 0.5, 0.9};
+        final int[] covered = new int[fractions.length];
+
+        for (int trial = 0; trial < trials; ++trial) {
+            final DoublesReservoir reservoir = new DoublesReservoir(200);
+            for (int i = 0; i < 10_000; ++i) {
+                reservoir.accept(i);
+            }
+
+            for (int index = 0; index < fractions.length; ++index) {
+                final double[] interval = reservoir.getPercentileConfidenceInterval(fractions[index], 0.9);
+                final double actual = fractions[index] * 9_999;
+                if (interval[0] <= actual && actual <= interval[2]) {
+                    ++covered[index];
+                }
+            }
+        }
+
+        // About 90% of the intervals hold the percentile of all the items, on either side of the distribution
+        for (int count : covered) {
+            assertTrue(count >= 0.84 * trials && count <= 0.99 * trials, "Covered " + count + " of " + trials);
+        }
+    }
+
+    @Test
+    public void testSizeForRankError() {
+        assertEquals(18445, DoublesReservoir.getSizeForRankError(0.01, 0.95));
+        assertEquals(73778, DoublesReservoir.getSizeForRankError(0.005, 0.95));
+        assertTrue(DoublesReservoir.getSizeForRankError(0.01, 0.99) > 18445);
+
+        // Percentiles of a reservoir of that size stay within the rank error
+        final int size = DoublesReservoir.getSizeForRankError(0.05, 0.9999);
+        final DoublesReservoir reservoir = new DoublesReservoir(size);
+        for (int i = 0; i < 100_000; ++i) {
+            reservoir.accept(i);
+        }
+        for (double fraction = 0.05; fraction < 1; fraction += 0.05) {
+            assertEquals(fraction, reservoir.getPercentile(fraction) / 100_000, 0.05);
+        }
+
+        assertThrows(IAE.class, () -> DoublesReservoir.getSizeForRankError(0, 0.95));
+        assertThrows(IAE.class, () -> DoublesReservoir.getSizeForRankError(1, 0.95));
+        assertThrows(IAE.class, () -> DoublesReservoir.getSizeForRankError(0.01, 1));
+        assertThrows(IAE.class, () -> DoublesReservoir.getSizeForRankError(1e-6, 0.95));
+    }
+
+    @Test
+    public void testDownsamplesSerializedInputsOnMerge() {
+        final DoublesReservoir large = new DoublesReservoir(10_000);
+        for (int i = 0; i < 100_000; ++i) {
+            large.accept(i);
+        }
+
+        // Samples are written in order, and read back as their own sorted view
+        final DoublesReservoir read = DoublesReservoir.fromBytes(ByteBuffer.wrap(large.toBytes()));
+        assertEquals(large.getSortedValues(), read.getSortedValues());
+
+        final DoublesReservoir small = new DoublesReservoir(500).mergeWith(read);
+        assertEquals(500, small.getSize());
+        assertEquals(100_000, small.getTotalItemsSeen());
+        assertEquals(50_000, small.getMedian(), 5_000);
+
+        // Stride sampling spreads the kept samples over the whole range
+        final List<Double> kept = small.getSortedValues();
+        assertTrue(kept.get(0) < 500 && kept.get(499) > 99_500);
+
+        // Inputs of different sizes weigh in proportion to the items they have seen
+        final DoublesReservoir zeros = new DoublesReservoir(500);
+        zeros.accept(0, 300_000);
+        final DoublesReservoir mixed = new DoublesReservoir(1000).mergeWith(read);
+        mixed.mergeWith(DoublesReservoir.fromBytes(ByteBuffer.wrap(zeros.toBytes())));
+        assertEquals(400_000, mixed.getTotalItemsSeen());
+        assertEquals(0.75, mixed.getRank(0), 0.1);
+    }
+
+    @Test
+    public void testResampleToSmallerSizeAndNarrowerStorage() {
+        final DoublesReservoir stored = new DoublesReservoir(10_000);
+        for (int i = 0; i < 100_000; ++i) {
+            stored.accept(i + 0.123456789);
+        }
+
+        // As a compaction does with a smaller, float metricsSpec over the stored column
+        final DoublesReservoir compacted = new DoublesReservoir(500, DoublesReservoirStorage.FLOAT)
+                .mergeWith(DoublesReservoir.fromBytes(ByteBuffer.wrap(stored.toBytes())));
+
+        assertEquals(DoublesReservoirStorage.FLOAT, compacted.getStorage());
+        assertEquals(500, compacted.getSize());
+        assertEquals(100_000, compacted.getTotalItemsSeen());
+        for (double value : compacted.getSortedValues()) {
+            assertEquals((double) (float) value, value, 0);
+        }
+        assertEquals(
+                DoublesReservoir.getSerializedSize(500, DoublesReservoirStorage.FLOAT), compacted.toBytes().length);
+    }
+
+    @Test
+    public void testDownsample() {
+        final DoublesReservoir sampled = new DoublesReservoir(1000);
+        for (int i = 0; i < 10_000; ++i) {
+            sampled.accept(i);
+        }
+
+        final DoublesReservoir downsampled = sampled.downsample(100);
+        assertEquals(100, downsampled.getMaxSize());
+        assertEquals(100, downsampled.getSize());
+        assertEquals(10_000, downsampled.getTotalItemsSeen());
+        assertEquals(1000, sampled.getSize());
+        assertSame(sampled, sampled.downsample(1000));
+
+        // Counted values that still fit stay exact
+        final DoublesReservoir counted = new DoublesReservoir(1000);
+        counted.accept(1.0, 5000);
+        counted.accept(2.0, 5000);
+        assertEquals(1.5, counted.downsample(100).getAVG(), 0);
+        assertTrue(counted.downsample(100).isValueCountMode());
+
+        final DoublesReservoir decayed = DoublesReservoir.decayed(1000, DoublesReservoirStorage.DOUBLE, 60_000);
+        for (int i = 0; i < 10_000; ++i) {
+            decayed.acceptAt(i, i * 100L, 1);
+        }
+        final DoublesReservoir downsampledDecayed = decayed.downsample(100);
+        assertEquals(100, downsampledDecayed.getSize());
+        assertEquals(60_000, downsampledDecayed.getHalfLifeMillis());
+    }
 }
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.nttdata.druid.aggregation.percentiles.sql;
+
+import com.google.common.collect.ImmutableList;
+import com.nttdata.druid.DoublesReservoirModule;
+import org.apache.druid.guice.DruidInjectorBuilder;
+import org.apache.druid.sql.calcite.BaseCalciteQueryTest;
+import org.apache.druid.sql.calcite.SqlTestFrameworkConfig;
+import org.apache.druid.sql.calcite.TempDirProducer;
+import org.apache.druid.sql.calcite.util.SqlTestFramework.StandardComponentSupplier;
+import org.junit.jupiter.api.Test;
+
+@SqlTestFrameworkConfig.ComponentSupplier(DoublesReservoirSqlAggregatorTest.DoublesReservoirComponentSupplier.class)
+public class DoublesReservoirSqlAggregatorTest extends BaseCalciteQueryTest {
+    public static class DoublesReservoirComponentSupplier extends StandardComponentSupplier {
+        public DoublesReservoirComponentSupplier(TempDirProducer tempFolderProducer) {
+            super(tempFolderProducer);
+        }
+
+        @Override
+        public void configureGuice(DruidInjectorBuilder builder) {
+            super.configureGuice(builder);
+            builder.addModule(new DoublesReservoirModule());
+        }
+    }
+
+    @Test
+    public void testFractionalWeightsAreSkipped() {
+        cannotVectorize();
+
+        // m1 holds 1 to 6, so only the row of 4 has a whole weight; truncated weights would keep 5 and 6 as well
+        testBuilder()
+                .sql("SELECT DR_GET_MAX(DR_PERCENTILE_AGG(m1, 100, m1 / 4)) FROM foo")
+                .expectedResults(ImmutableList.of(new Object[]{4.0}))
+                .run();
+    }
+}